@@ -306,9 +306,11 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
 				is = new GZIPInputStream(data.getInputStream());
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW || ctype == COMPRESSOR_TYPE.LZMA_CHUNKED) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
-				// In fact we need to for LZMA_NEW, because of the properties bytes.
+				// In fact we need to for LZMA_NEW, because of the properties bytes,
+				// and for LZMA_CHUNKED, because of the framing.
+				final COMPRESSOR_TYPE decompressor = ctype;
 				PipedInputStream pis = new PipedInputStream();
 				PipedOutputStream pos = new PipedOutputStream();
 				pis.connect(pos);
@@ -320,7 +322,7 @@ public class ArchiveManager {
 					public void run() {
 						InputStream is = null;
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
+							decompressor.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
@@ -48,7 +48,8 @@ public abstract class FECCodec {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
-            return new OnionFECCodec();
+            // Produces the same check blocks as OnionFECCodec, but faster.
+            return new TableFECCodec();
         default:
             throw new IllegalArgumentException();
         }
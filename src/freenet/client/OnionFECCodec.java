@@ -157,6 +157,11 @@ public class OnionFECCodec extends FECCodec {
     
     @Override
     public int getCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
+        return standardCheckBlocks(dataBlocks, compatibilityMode);
+    }
+    
+    /** The number of check blocks for ONION_STANDARD, for any codec implementing it. */
+    static int standardCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
         /**
          * ALCHEMY: What we do know is that redundancy by FEC is much more efficient than 
          * redundancy by simply duplicating blocks, for obvious reasons (see e.g. Wuala). But
@@ -0,0 +1,406 @@
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.io.NativeThread;
+
+/**
+ * Pure Java Reed-Solomon codec, producing exactly the same check blocks as OnionFECCodec: The
+ * same field (GF(2^8) with polynomial x^8+x^4+x^3+x^2+1) and the same systematic code (the
+ * Vandermonde matrix on 0, 1, a, a^2, ..., multiplied by the inverse of its top k rows), as in
+ * Luigi Rizzo's fec.c, which onion's PureCode is a port of. Only the implementation differs:
+ *
+ * - Multiplication by a coefficient is a lookup in that coefficient's row of a 256x256 table, in
+ * a simple counted loop over the block which the JIT can unroll and hoist the bounds checks from.
+ * - Blocks are processed in stripes small enough that the inputs for a stripe stay in the CPU
+ * cache while all the outputs for it are computed.
+ * - Decoding writes straight into the missing data blocks, without copying the check blocks
+ * or allocating temporary blocks. Only the rows of the inverse matrix for the missing data blocks
+ * are used.
+ * - Large encodes and decodes split the blocks into ranges of stripes, which are independent,
+ * and run them on several threads.
+ */
+public class TableFECCodec extends FECCodec {
+
+    /** Bytes of each block processed at a time. */
+    static final int STRIPE_SIZE = 2048;
+    /** Don't use more than one thread for less than this many multiplications. */
+    static final long PARALLEL_THRESHOLD = 8*1024*1024;
+    /** Maximum threads for one encode or decode, including the caller. The memory limited job
+     * runner already runs several at once, so don't use all the cores. */
+    static final int MAX_THREADS =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Exponentials of the generator, 2, doubled up so we don't need to reduce mod 255. */
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[a][b] = a * b */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = EXP[i+255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) x ^= 0x11d;
+        }
+        for(int a=1;a<256;a++)
+            for(int b=1;b<256;b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    static int mul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException();
+        return EXP[255 - LOG[a]];
+    }
+
+    private static ThreadPoolExecutor threads;
+
+    /** Only used if MAX_THREADS > 1. The threads are daemon threads and exit when idle, so they
+     * don't keep the JVM running, e.g. after a unit test. */
+    private static synchronized ExecutorService getThreads() {
+        if(threads == null) {
+            threads = new ThreadPoolExecutor(MAX_THREADS - 1, MAX_THREADS - 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new NativeThread(r, "FEC stripe thread",
+                            MemoryLimitedJobRunner.THREAD_PRIORITY, true);
+                    t.setDaemon(true);
+                    return t;
+                }
+
+            });
+            threads.allowCoreThreadTimeOut(true);
+        }
+        return threads;
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        int missing = 0;
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) missing++;
+        }
+        if(missing == 0) return;
+        // The rows of the encoding matrix for the blocks we have, which will be in the order we
+        // pass them in, with the check blocks filling the gaps.
+        int[] inputIndex = new int[k];
+        byte[][] inputs = new byte[k][];
+        int[] missingBlocks = new int[missing];
+        int x = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) {
+                inputIndex[i] = i;
+                inputs[i] = dataBlocks[i];
+            } else {
+                missingBlocks[x++] = i;
+            }
+        }
+        x = 0;
+        for(int i=0;i<checkBlocks.length && x < missing;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            int target = missingBlocks[x++];
+            inputIndex[target] = k + i;
+            inputs[target] = checkBlocks[i];
+        }
+        if(x < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        byte[][] encodeMatrix = getEncodeMatrix(k, n);
+        int[][] matrix = new int[k][];
+        for(int i=0;i<k;i++) {
+            matrix[i] = new int[k];
+            if(inputIndex[i] < k) {
+                matrix[i][i] = 1;
+            } else {
+                byte[] row = encodeMatrix[inputIndex[i] - k];
+                for(int j=0;j<k;j++) matrix[i][j] = row[j] & 0xFF;
+            }
+        }
+        int[][] inverse = invert(matrix);
+        byte[][] outputs = new byte[missing][];
+        byte[][] coefficients = new byte[missing][];
+        for(int i=0;i<missing;i++) {
+            outputs[i] = dataBlocks[missingBlocks[i]];
+            coefficients[i] = toBytes(inverse[missingBlocks[i]]);
+        }
+        multiply(coefficients, inputs, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[][] encodeMatrix = getEncodeMatrix(k, n);
+        byte[][] outputs = new byte[mustEncode][];
+        byte[][] coefficients = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            outputs[x] = checkBlocks[i];
+            coefficients[x++] = encodeMatrix[i];
+        }
+        multiply(coefficients, dataBlocks, outputs, blockLength);
+    }
+
+    private static byte[] toBytes(int[] row) {
+        byte[] ret = new byte[row.length];
+        for(int i=0;i<row.length;i++) ret[i] = (byte) row[i];
+        return ret;
+    }
+
+    /** outputs[i] = sum over j of coefficients[i][j] * inputs[j], possibly in parallel. */
+    private static void multiply(final byte[][] coefficients, final byte[][] inputs,
+            final byte[][] outputs, int blockLength) {
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        long work = (long) outputs.length * inputs.length * blockLength;
+        int threadCount = (int) Math.min(Math.min(MAX_THREADS, stripes),
+                Math.max(1, work / PARALLEL_THRESHOLD));
+        if(threadCount <= 1) {
+            multiply(coefficients, inputs, outputs, 0, blockLength);
+            return;
+        }
+        int stripesPerThread = (stripes + threadCount - 1) / threadCount;
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(threadCount - 1);
+        ExecutorService executor = getThreads();
+        for(int i=1;i<threadCount;i++) {
+            final int start = Math.min(blockLength, i * stripesPerThread * STRIPE_SIZE);
+            final int end = Math.min(blockLength, (i+1) * stripesPerThread * STRIPE_SIZE);
+            if(start == end) break;
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    multiply(coefficients, inputs, outputs, start, end);
+                    return null;
+                }
+
+            }));
+        }
+        Throwable failed = null;
+        try {
+            multiply(coefficients, inputs, outputs, 0,
+                    Math.min(blockLength, stripesPerThread * STRIPE_SIZE));
+        } catch (Throwable t) {
+            failed = t;
+        }
+        boolean interrupted = false;
+        for(Future<Void> future : futures) {
+            while(true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Must wait, as the threads are writing to the caller's blocks.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if(failed == null) failed = e.getCause();
+                    break;
+                }
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        if(failed != null) {
+            Logger.error(TableFECCodec.class, "FEC failed: "+failed, failed);
+            if(failed instanceof RuntimeException) throw (RuntimeException) failed;
+            if(failed instanceof Error) throw (Error) failed;
+            throw new RuntimeException(failed);
+        }
+    }
+
+    /** outputs[i] = sum over j of coefficients[i][j] * inputs[j], for bytes start to end, a
+     * stripe at a time. */
+    static void multiply(byte[][] coefficients, byte[][] inputs, byte[][] outputs,
+            int start, int end) {
+        for(int stripe=start;stripe<end;stripe+=STRIPE_SIZE) {
+            int stripeEnd = Math.min(end, stripe + STRIPE_SIZE);
+            for(int i=0;i<outputs.length;i++) {
+                byte[] output = outputs[i];
+                byte[] row = coefficients[i];
+                setMul(output, inputs[0], row[0] & 0xFF, stripe, stripeEnd);
+                for(int j=1;j<inputs.length;j++)
+                    addMul(output, inputs[j], row[j] & 0xFF, stripe, stripeEnd);
+            }
+        }
+    }
+
+    /** dst = c * src, for bytes start to end. */
+    private static void setMul(byte[] dst, byte[] src, int c, int start, int end) {
+        if(c == 1) {
+            System.arraycopy(src, start, dst, start, end - start);
+        } else {
+            byte[] table = MUL[c];
+            for(int i=start;i<end;i++)
+                dst[i] = table[src[i] & 0xFF];
+        }
+    }
+
+    /** dst += c * src, for bytes start to end. */
+    private static void addMul(byte[] dst, byte[] src, int c, int start, int end) {
+        if(c == 0) return;
+        if(c == 1) {
+            for(int i=start;i<end;i++)
+                dst[i] ^= src[i];
+        } else {
+            byte[] table = MUL[c];
+            for(int i=start;i<end;i++)
+                dst[i] ^= table[src[i] & 0xFF];
+        }
+    }
+
+    /** Invert a matrix by Gauss-Jordan elimination. The matrix is destroyed.
+     * @throws IllegalArgumentException If it is singular, which can't happen for a decode with
+     * distinct blocks. */
+    static int[][] invert(int[][] matrix) {
+        int k = matrix.length;
+        int[][] inverse = new int[k][k];
+        for(int i=0;i<k;i++) inverse[i][i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && matrix[pivot][col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                int[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+                t = inverse[pivot]; inverse[pivot] = inverse[col]; inverse[col] = t;
+            }
+            int[] pivotRow = matrix[col];
+            int[] pivotInverseRow = inverse[col];
+            int inv = inverse(pivotRow[col]);
+            if(inv != 1) {
+                for(int j=0;j<k;j++) {
+                    pivotRow[j] = mul(pivotRow[j], inv);
+                    pivotInverseRow[j] = mul(pivotInverseRow[j], inv);
+                }
+            }
+            for(int row=0;row<k;row++) {
+                if(row == col) continue;
+                int factor = matrix[row][col];
+                if(factor == 0) continue;
+                int[] r = matrix[row];
+                int[] ir = inverse[row];
+                for(int j=0;j<k;j++) {
+                    r[j] ^= mul(factor, pivotRow[j]);
+                    ir[j] ^= mul(factor, pivotInverseRow[j]);
+                }
+            }
+        }
+        return inverse;
+    }
+
+    /** Create the rows of the systematic encoding matrix for the check blocks: The Vandermonde
+     * matrix on 0, 1, a, a^2 ... a^(n-2), multiplied by the inverse of its top k rows. */
+    static byte[][] createEncodeMatrix(int k, int n) {
+        int[][] top = new int[k][];
+        for(int i=0;i<k;i++) top[i] = vandermondeRow(i, k);
+        int[][] topInverse = invert(top);
+        byte[][] ret = new byte[n-k][k];
+        for(int i=k;i<n;i++) {
+            int[] row = vandermondeRow(i, k);
+            for(int col=0;col<k;col++) {
+                int acc = 0;
+                for(int j=0;j<k;j++)
+                    acc ^= mul(row[j], topInverse[j][col]);
+                ret[i-k][col] = (byte) acc;
+            }
+        }
+        return ret;
+    }
+
+    /** Row i of the Vandermonde matrix: Powers of 0 for row 0, of a^(i-1) otherwise. */
+    private static int[] vandermondeRow(int i, int k) {
+        int[] row = new int[k];
+        if(i == 0) {
+            row[0] = 1;
+        } else {
+            for(int col=0;col<k;col++)
+                row[col] = EXP[((i-1) * col) % 255];
+        }
+        return row;
+    }
+
+    /** Cache of encoding matrices by {k,n}, as for OnionFECCodec. */
+    private synchronized static byte[][] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) + k;
+        SoftReference<byte[][]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(key);
+        if(ref != null) {
+            byte[][] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(key, ref);
+                return matrix;
+            }
+        }
+        byte[][] matrix = createEncodeMatrix(k, n);
+        recentlyUsedMatrices.push(key, new SoftReference<byte[][]>(matrix));
+        return matrix;
+    }
+
+    private static final LRUMap<Integer, SoftReference<byte[][]>> recentlyUsedMatrices = LRUMap.createSafeMap();
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Cached encoding matrix, int[] matrix and inverse, and coefficients.
+        return n*k + k*k*4*2 + k*k;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Cached encoding matrix, and the int[] matrices used to create it.
+        return n*k + k*k*4*2;
+    }
+
+    @Override
+    public int getCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
+        return OnionFECCodec.standardCheckBlocks(dataBlocks, compatibilityMode);
+    }
+
+}
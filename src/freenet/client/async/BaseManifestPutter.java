@@ -933,6 +933,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
+		notifyChanged(context);
 		context.jobRunner.setCheckpointASAP();
 		resolveAndStartBase(context);
 	}
@@ -1078,6 +1079,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		// FIXME we could remove the put handlers after inserting all files but not having finished the insert of the manifest
 		// However it would complicate matters for no real gain in most cases...
 		// Also doing it this way means we don't need to worry about
+		notifyChanged(context);
 		cb.onSuccess(this);
 	}
 
@@ -1093,6 +1095,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			finished = true;
 		}
 		cancelAndFinish(context);
+		notifyChanged(context);
 
 		cb.onFailure(e, this);
 	}
@@ -11,8 +11,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -53,6 +51,7 @@ import freenet.support.io.FileUtil;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.NullOutputStream;
 import freenet.support.io.ResumeFailedException;
+import freenet.support.io.RingBufferPipe;
 import freenet.support.io.StorageFormatException;
 
 /**
@@ -299,8 +298,9 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		RingBufferPipe dataPipe = new RingBufferPipe();
+		OutputStream dataOutput = dataPipe.getOutputStream();
+		InputStream dataInput = dataPipe.getInputStream();
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -326,7 +326,6 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
@@ -407,6 +406,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			}
 			return;
 		}
+		notifyChanged(context);
 		context.getJobRunner(persistent()).setCheckpointASAP();
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
@@ -492,6 +492,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
+            notifyChanged(context);
             context.getJobRunner(persistent()).setCheckpointASAP();
             clientCallback.onSuccess(result, ClientGetter.this);
         }
@@ -520,6 +521,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 
+		notifyChanged(context);
 		context.getJobRunner(persistent()).setCheckpointASAP();
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
@@ -709,6 +711,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				return;
 			}
 		}
+		notifyChanged(context);
 		if(persistent())
 		    context.jobRunner.setCheckpointASAP();
 	}
@@ -13,20 +13,33 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
-import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
@@ -35,6 +48,7 @@ import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
@@ -76,6 +90,19 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 
  * SCHEMA MIGRATION: Note that changing classes that are Serializable can result in restarting 
  * downloads or losing uploads.
+ * 
+ * JOURNAL: client.dat is only written in full occasionally. In between, each checkpoint writes a
+ * journal segment (client.dat.journal0, client.dat.journal1, ...) containing only the requests
+ * which have been added, or have changed (see requestChanged()), and those which have been
+ * removed, since the last checkpoint. Each segment carries the generation number of the
+ * client.dat it applies to, so stale segments are ignored. Once the journal holds about as many
+ * requests as client.dat, or has too many segments, client.dat is rewritten in full and the
+ * journal is deleted. Version 1 client.dat files, which have no generation and no journal, can
+ * still be loaded.
+ * 
+ * LAZY RESUME: Optionally, the requests are loaded in the background, so FProxy and FCP are 
+ * usable while a big queue is still being resumed. The files are read first, and then the 
+ * requests are deserialized, and then resumed, on a small pool of threads.
  * @author toad
  */
 public class ClientLayerPersister extends PersistentJobRunnerImpl {
@@ -100,9 +127,72 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Non-null if journal segments are to be encrypted, like writeToBucket. */
+    private DatabaseKey writeToJournalKey;
+    
+    // Journal state. LOCKING: Only changed while loading or checkpointing, i.e. while holding 
+    // serializeCheckpoints.
+    /** Generation of the last client.dat written in full. Journal segments with a different 
+     * generation are ignored. */
+    private long generation;
+    /** Number of journal segments written since the last full write. */
+    private int journalSegments;
+    /** Number of requests written or removed in the journal since the last full write. */
+    private int journalRecords;
+    /** If true, the next checkpoint must write client.dat in full. */
+    private boolean mustWriteFull = true;
+    /** The requests written to client.dat or the journal since client.dat was last written in
+     * full, whose removal must be journaled. Each maps to the SHA-256 of its serialized form as it
+     * was last written, so that unchanged requests can be left out of the journal, or to null if
+     * it could not be serialized. */
+    private final Map<RequestIdentifier, byte[]> writtenDigests =
+        new HashMap<RequestIdentifier, byte[]>();
+    /** Requests which have changed since the last checkpoint. Only these, and new requests, are
+     * serialized for the journal. LOCKING: Protected by itself, as requests can change outside of
+     * jobs, e.g. when a block is found. */
+    private final Set<ClientRequest> changedRequests = new HashSet<ClientRequest>();
+    /** The requests in the last client.dat written in full or loaded. Used to record which of 
+     * them have been removed when it becomes client.dat.bak. */
+    private Set<RequestIdentifier> snapshotRequests = new HashSet<RequestIdentifier>();
+    /** Buckets waiting to be freed. A request which has stopped using a bucket may not have been
+     * written to the journal since, so the last copy on disk may still refer to it: We can only 
+     * free them after writing client.dat in full. */
+    private final List<DelayedFree> deferredFrees = new ArrayList<DelayedFree>();
+    
+    /** If true, load and resume the requests in the background and in parallel, rather than 
+     * blocking startup until they have all been resumed one at a time. */
+    private final boolean lazyResume;
+    private final Object resumeSync = new Object();
+    /** True while loading and resuming in the background. LOCKING: resumeSync. */
+    private boolean resuming;
+    /** The files to write to, from a call to setFilesAndLoad() while resuming in the background,
+     * applied once it has finished. LOCKING: serializeCheckpoints. */
+    private PendingFiles pendingFiles;
+    /** The callbacks passed to setFilesAndLoad() while resuming in the background. 
+     * LOCKING: serializeCheckpoints. */
+    private final List<Runnable> pendingOnResumed = new ArrayList<Runnable>();
+    
+    static final long MAGIC = 0xd332925f3caf4aedL;
+    /** Version 2 adds the generation and the list of removed requests. */
+    static final int VERSION = 2;
+    static final int VERSION_NO_JOURNAL = 1;
     
-    private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    private static final long JOURNAL_MAGIC = 0x7b5e0f4c91d2a6e3L;
+    private static final int JOURNAL_VERSION = 1;
+    private static final byte JOURNAL_PUT = 1;
+    private static final byte JOURNAL_REMOVE = 2;
+    private static final byte JOURNAL_END = 0;
+    /** Write client.dat in full after this many journal segments, so the number of files (and the 
+     * time to replay them) is bounded even if only a few requests change each time. */
+    private static final int MAX_JOURNAL_SEGMENTS = 100;
+    /** Write client.dat in full once the journal holds this many records, or as many records as 
+     * there are requests, whichever is larger. */
+    private static final int MIN_JOURNAL_RECORDS = 100;
+    
+    /** Maximum number of threads used to deserialize and resume requests when resuming lazily. 
+     * Some requests, e.g. big site inserts, can use a lot of memory while being deserialized. */
+    private static final int RESUME_THREADS = 
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
     
     private static volatile boolean logMINOR;
     static {
@@ -112,10 +202,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     /** Load everything.
      * @param persistentTempFactory Only passed in so that we can call its pre- and post- commit
      * hooks. We don't explicitly save it; it must be populated lazily in onResume() like 
-     * everything else. */
+     * everything else. 
+     * @param lazyResume If true, load and resume the requests in the background, so that the 
+     * rest of the node can start meanwhile, and deserialize and resume them in parallel. */
     public ClientLayerPersister(Executor executor, Ticker ticker, Node node, NodeClientCore core,
             PersistentTempBucketFactory persistentTempFactory, TempBucketFactory tempBucketFactory,
-            PersistentStatsPutter stats) {
+            PersistentStatsPutter stats, boolean lazyResume) {
         super(executor, ticker, INTERVAL);
         this.node = node;
         this.clientCore = core;
@@ -123,16 +215,21 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         this.tempBucketFactory = tempBucketFactory;
         this.checker = new CRCChecksumChecker();
         this.bandwidthStatsPutter = stats;
+        this.lazyResume = lazyResume;
     }
     
     /** Set the files to write to and set up encryption
      * @param noWrite If true, don't write the data to disk at all, and delete existing 
      * client.dat*.
+     * @param onResumed If the requests are loaded and resumed in the background, called after 
+     * they have all been resumed. Not called if they are loaded before returning. If this is 
+     * called again while they are being resumed, the new files are used, and onResumed is 
+     * called, once resuming has finished.
      * @throws MasterKeysWrongPasswordException If we need the encryption key but it has not been 
      * supplied. */
     public void setFilesAndLoad(File dir, String baseName, boolean writeEncrypted, boolean noWrite, 
             DatabaseKey encryptionKey, ClientContext context, RequestStarterGroup requestStarters, 
-            Random random) throws MasterKeysWrongPasswordException {
+            Random random, Runnable onResumed) throws MasterKeysWrongPasswordException {
         if(noWrite)
             super.disableWrite();
         synchronized(serializeCheckpoints) {
@@ -146,6 +243,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournalFiles(dir, baseName, true);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -153,17 +251,25 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     requestStarters.setGlobalSalt(salt);
                 }
             } else if(!hasLoaded()) {
-                // Some serialization failures cause us to fail only at the point of scheduling the request.
-                // So if that happens we need to retry with serialization turned off.
-                // The requests that loaded fine already will not be affected as we check for duplicates.
-                if(innerSetFilesAndLoad(false, dir, baseName, writeEncrypted, encryptionKey, context, 
-                        requestStarters, random)) {
-                    Logger.error(this, "Some requests failed to restart after serializing. Trying to recover/restart ...");
-                    System.err.println("Some requests failed to restart after serializing. Trying to recover/restart ...");
-                    innerSetFilesAndLoad(true, dir, baseName, writeEncrypted, encryptionKey, context, 
+                if(lazyResume) {
+                    checkEncryptionKey(dir, baseName, writeEncrypted, encryptionKey);
+                    synchronized(resumeSync) {
+                        if(resuming) {
+                            // Can't change the files while loading from them, so do it after.
+                            pendingFiles = new PendingFiles(dir, baseName, writeEncrypted, 
+                                    encryptionKey);
+                            if(onResumed != null)
+                                pendingOnResumed.add(onResumed);
+                            return;
+                        }
+                        resuming = true;
+                    }
+                    loadInBackground(dir, baseName, writeEncrypted, encryptionKey, context, 
+                            requestStarters, random, onResumed);
+                } else {
+                    loadAndResume(dir, baseName, writeEncrypted, encryptionKey, context, 
                             requestStarters, random);
                 }
-                onStarted(noWrite);
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
                 onStarted(false);
@@ -171,6 +277,127 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    private void loadAndResume(File dir, String baseName, boolean writeEncrypted, 
+            DatabaseKey encryptionKey, ClientContext context, RequestStarterGroup requestStarters, 
+            Random random) throws MasterKeysWrongPasswordException {
+        // Some serialization failures cause us to fail only at the point of scheduling the request.
+        // So if that happens we need to retry with serialization turned off.
+        // The requests that loaded fine already will not be affected as we check for duplicates.
+        if(innerSetFilesAndLoad(false, dir, baseName, writeEncrypted, encryptionKey, context, 
+                requestStarters, random)) {
+            Logger.error(this, "Some requests failed to restart after serializing. Trying to recover/restart ...");
+            System.err.println("Some requests failed to restart after serializing. Trying to recover/restart ...");
+            innerSetFilesAndLoad(true, dir, baseName, writeEncrypted, encryptionKey, context, 
+                    requestStarters, random);
+        }
+        onStarted(false);
+    }
+    
+    /** Load and resume the requests on another thread, so that the rest of the node can start 
+     * meanwhile. Until this has finished, hasLoaded() returns false, so persistent requests will be
+     * refused, as they are while waiting for the password. */
+    private void loadInBackground(final File dir, final String baseName, 
+            final boolean writeEncrypted, final DatabaseKey encryptionKey, 
+            final ClientContext context, final RequestStarterGroup requestStarters, 
+            final Random random, final Runnable onResumed) {
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                List<Runnable> callbacks = new ArrayList<Runnable>();
+                if(onResumed != null)
+                    callbacks.add(onResumed);
+                synchronized(serializeCheckpoints) {
+                    try {
+                        loadAndResume(dir, baseName, writeEncrypted, encryptionKey, context, 
+                                requestStarters, random);
+                    } catch (MasterKeysWrongPasswordException e) {
+                        // Impossible, checked by checkEncryptionKey() before starting.
+                        Logger.error(this, "Unable to load persistent requests: "+e, e);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Unable to load persistent requests: "+t, t);
+                        System.err.println("Unable to load persistent requests: "+t);
+                        t.printStackTrace();
+                    } finally {
+                        // Nobody else can call setFilesAndLoad() until we release the lock, so 
+                        // nothing can be added after this.
+                        applyPendingFiles();
+                        callbacks.addAll(pendingOnResumed);
+                        pendingOnResumed.clear();
+                        synchronized(resumeSync) {
+                            resuming = false;
+                            resumeSync.notifyAll();
+                        }
+                    }
+                }
+                if(hasLoaded()) {
+                    for(Runnable callback : callbacks)
+                        callback.run();
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.NORM_PRIORITY;
+            }
+            
+        }, "Resuming persistent requests");
+    }
+    
+    /** The arguments to a call to setFilesAndLoad() made while resuming in the background. */
+    private static class PendingFiles {
+        final File dir;
+        final String baseName;
+        final boolean writeEncrypted;
+        final DatabaseKey encryptionKey;
+        PendingFiles(File dir, String baseName, boolean writeEncrypted, DatabaseKey encryptionKey) {
+            this.dir = dir;
+            this.baseName = baseName;
+            this.writeEncrypted = writeEncrypted;
+            this.encryptionKey = encryptionKey;
+        }
+    }
+    
+    /** Switch to the files from the latest call to setFilesAndLoad() while we were resuming in 
+     * the background, if any. Caller must hold serializeCheckpoints. */
+    private void applyPendingFiles() {
+        PendingFiles pending = pendingFiles;
+        pendingFiles = null;
+        if(pending == null) return;
+        if(!hasLoaded()) {
+            Logger.error(this, "Failed to load persistent requests, so not changing files to "+
+                    pending.dir+" : "+pending.baseName);
+            return;
+        }
+        try {
+            innerSetFilesOnly(pending.dir, pending.baseName, pending.writeEncrypted, 
+                    pending.encryptionKey);
+        } catch (MasterKeysWrongPasswordException e) {
+            // Impossible, checked by checkEncryptionKey() before queueing.
+            Logger.error(this, "Unable to change persistent requests files: "+e, e);
+        }
+    }
+    
+    /** @return True if the persistent requests are being loaded and resumed in the background. */
+    public boolean isResuming() {
+        synchronized(resumeSync) {
+            return resuming;
+        }
+    }
+    
+    /** Wait until any background load of the persistent requests has finished. */
+    public void waitForResume() {
+        synchronized(resumeSync) {
+            while(resuming) {
+                try {
+                    resumeSync.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+    
     private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
         File f = makeFilename(dir, baseName, backup, encrypted);
         try {
@@ -193,7 +420,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeToJournalKey = writeEncrypted ? encryptionKey : null;
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        // The journal must follow a client.dat in the same place, with the same encryption.
+        mustWriteFull = true;
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -208,11 +438,22 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         });
     }
 
+    /** @throws MasterKeysWrongPasswordException If we need the encryption key to write or to 
+     * load, but it has not been supplied. */
+    private void checkEncryptionKey(File dir, String baseName, boolean writeEncrypted, 
+            DatabaseKey encryptionKey) throws MasterKeysWrongPasswordException {
+        if(writeEncrypted && encryptionKey == null)
+            throw new MasterKeysWrongPasswordException();
+        if(encryptionKey == null) {
+            if(new File(dir, baseName+".crypt").exists() || new File(dir, baseName+".bak.crypt").exists())
+                throw new MasterKeysWrongPasswordException();
+        }
+    }
+
     private boolean innerSetFilesAndLoad(boolean noSerialize, File dir, String baseName, 
             boolean writeEncrypted, DatabaseKey encryptionKey, ClientContext context, 
             RequestStarterGroup requestStarters, Random random) throws MasterKeysWrongPasswordException {
-        if(writeEncrypted && encryptionKey == null)
-            throw new MasterKeysWrongPasswordException();
+        checkEncryptionKey(dir, baseName, writeEncrypted, encryptionKey);
         File clientDat = new File(dir, baseName);
         File clientDatCrypt = new File(dir, baseName+".crypt");
         File clientDatBak = new File(dir, baseName+".bak");
@@ -221,23 +462,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         boolean clientDatCryptExists = clientDatCrypt.exists();
         boolean clientDatBakExists = clientDatBak.exists();
         boolean clientDatBakCryptExists = clientDatBakCrypt.exists();
-        if(encryptionKey == null) {
-            if(clientDatCryptExists || clientDatBakCryptExists)
-                throw new MasterKeysWrongPasswordException();
-        }
-        boolean failedSerialize = false;
         PartialLoad loaded = new PartialLoad();
+        long startTime = System.currentTimeMillis();
         if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, makeBucket(dir, baseName, false, null), dir, baseName, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), dir, baseName, encryptionKey, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, makeBucket(dir, baseName, true, null), dir, baseName, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), dir, baseName, encryptionKey, noSerialize, context, requestStarters, random);
         }
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
@@ -246,6 +483,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeToJournalKey = writeEncrypted ? encryptionKey : null;
+        // We don't know what has changed since the requests were written, and the journal must 
+        // not be appended to whatever we loaded.
+        mustWriteFull = true;
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -260,56 +501,37 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     salt = loaded.salt;
                 }
             }
-            int success = 0;
-            int restoredRestarted = 0;
-            int restoredFully = 0;
-            int failed = 0;
+            long loadedTime = System.currentTimeMillis();
+            ResumeStats stats = new ResumeStats();
             // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
-                ClientRequest req = partial.request;
-                if(req == null) continue;
-                try {
-                    req.onResume(context);
-                    if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
-                            partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
-                    }
-                    switch(partial.status) {
-                    case LOADED:
-                        success++;
-                        break;
-                    case RESTORED_FULLY:
-                        restoredFully++;
-                        break;
-                    case RESTORED_RESTARTED:
-                        restoredRestarted++;
-                        break;
-                    case FAILED:
-                        failed++;
-                        break;
-                    }
-                } catch (Throwable t) {
-                    if(partial.status == RequestLoadStatus.LOADED)
-                        failedSerialize = true;
-                    failed++;
-                    System.err.println("Unable to resume request "+req+" after loading it.");
-                    Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
-                    try {
-                        req.cancel(context);
-                    } catch (Throwable t1) {
-                        Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
-                    }
-                }
+            List<PartiallyLoadedRequest> partials = 
+                new ArrayList<PartiallyLoadedRequest>(loaded.partiallyLoadedRequests.values());
+            if(lazyResume) {
+                resumeInParallel(partials, context, stats);
+            } else {
+                for(PartiallyLoadedRequest partial : partials)
+                    resumeRequest(partial, context, stats);
             }
-            if(success > 0)
-                System.out.println("Resumed "+success+" requests ...");
-            if(restoredFully > 0)
-                System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
-            if(restoredRestarted > 0)
-                System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
-            if(failed > 0)
-                System.err.println("Failed to restore "+failed+" requests due to data corruption");
-            return failedSerialize;
+            long resumedTime = System.currentTimeMillis();
+            if(stats.success > 0)
+                System.out.println("Resumed "+stats.success+" requests ...");
+            if(stats.restoredFully > 0)
+                System.out.println("Restored "+stats.restoredFully+" requests (in spite of data corruption)");
+            if(stats.restoredRestarted > 0)
+                System.out.println("Restarted "+stats.restoredRestarted+" requests (due to data corruption)");
+            if(stats.failed > 0)
+                System.err.println("Failed to restore "+stats.failed+" requests due to data corruption");
+            String timings;
+            if(lazyResume)
+                timings = "Persistent requests: read in "+(loadedTime - startTime - loaded.deserializeTime)+
+                    "ms, deserialized in "+loaded.deserializeTime+"ms, resumed in "+
+                    (resumedTime - loadedTime)+"ms using up to "+RESUME_THREADS+" threads";
+            else
+                timings = "Persistent requests: read and deserialized in "+(loadedTime - startTime)+
+                    "ms, resumed in "+(resumedTime - loadedTime)+"ms";
+            Logger.normal(this, timings);
+            System.out.println(timings);
+            return stats.failedSerialize;
         } else {
             // FIXME backups etc!
             System.err.println("Starting request persistence layer without resuming ...");
@@ -321,6 +543,108 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Counts of how the requests were resumed. */
+    private static class ResumeStats {
+        int success;
+        int restoredRestarted;
+        int restoredFully;
+        int failed;
+        /** True if a request which was deserialized failed to resume, so it may be worth trying 
+         * again from the recovery data. */
+        boolean failedSerialize;
+        
+        synchronized void add(RequestLoadStatus status) {
+            switch(status) {
+            case LOADED:
+                success++;
+                break;
+            case RESTORED_FULLY:
+                restoredFully++;
+                break;
+            case RESTORED_RESTARTED:
+                restoredRestarted++;
+                break;
+            case FAILED:
+                failed++;
+                break;
+            }
+        }
+        
+        synchronized void addFailed(RequestLoadStatus status) {
+            if(status == RequestLoadStatus.LOADED)
+                failedSerialize = true;
+            failed++;
+        }
+    }
+    
+    private void resumeRequest(PartiallyLoadedRequest partial, ClientContext context, 
+            ResumeStats stats) {
+        ClientRequest req = partial.request;
+        if(req == null) return;
+        try {
+            req.onResume(context);
+            if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
+                    partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
+                req.start(context);
+            }
+            stats.add(partial.status);
+        } catch (Throwable t) {
+            stats.addFailed(partial.status);
+            System.err.println("Unable to resume request "+req+" after loading it.");
+            Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
+            try {
+                req.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+            }
+        }
+    }
+    
+    private void resumeInParallel(List<PartiallyLoadedRequest> partials, 
+            final ClientContext context, final ResumeStats stats) {
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(partials.size());
+        for(final PartiallyLoadedRequest partial : partials) {
+            jobs.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    resumeRequest(partial, context, stats);
+                    return null;
+                }
+                
+            });
+        }
+        runInParallel(jobs, "Resuming persistent requests");
+    }
+    
+    /** Run the jobs on a bounded pool of threads, and wait for them all to finish. The jobs must 
+     * catch their own errors. */
+    private void runInParallel(List<Callable<Void>> jobs, final String name) {
+        if(jobs.isEmpty()) return;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(RESUME_THREADS, jobs.size()), 
+                new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new NativeThread(r, name, NativeThread.NORM_PRIORITY, true);
+            }
+            
+        });
+        try {
+            for(Future<Void> f : pool.invokeAll(jobs)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Logger.error(this, "Failed: "+name+" : "+e.getCause(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Logger.error(this, "Interrupted: "+name);
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
     /** Create a Bucket for client.dat[.bak][.crypt].
      * @param dir The parent directory.
      * @param baseName The base name, usually "client.dat".
@@ -340,6 +664,41 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 
     }
 
+    /** Create a Bucket for client.dat.journal<segment>[.crypt]. */
+    Bucket makeJournalBucket(File dir, String baseName, int segment, DatabaseKey encryptionKey) {
+        File filename = makeJournalFilename(dir, baseName, segment, encryptionKey != null);
+        Bucket bucket = new FileBucket(filename, false, false, false, false);
+        if(encryptionKey != null)
+            bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+        return bucket;
+    }
+
+    private File makeJournalFilename(File parent, String baseName, int segment, boolean encrypted) {
+        return new File(parent, baseName + ".journal" + segment + (encrypted ? ".crypt" : ""));
+    }
+
+    /** Delete all journal segments, encrypted or not, whatever generation they belong to. */
+    private void deleteJournalFiles(File dir, String baseName, boolean secure) {
+        if(dir == null) return;
+        final String prefix = baseName + ".journal";
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            if(!f.getName().startsWith(prefix)) continue;
+            if(secure) {
+                try {
+                    FileUtil.secureDelete(f);
+                    continue;
+                } catch (IOException e) {
+                    // Fall through.
+                }
+            }
+            f.delete();
+            if(f.exists())
+                Logger.error(this, "Unable to delete old journal segment "+f);
+        }
+    }
+
     private enum RequestLoadStatus {
         // In order of preference, best first.
         LOADED,
@@ -367,10 +726,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         
         private boolean doneSomething;
         
+        /** Time spent deserializing requests, in milliseconds, if done separately from reading 
+         * them. */
+        private long deserializeTime;
+        
+        /** Requests which were removed after the file currently being loaded was written, and 
+         * so must not be loaded from older files such as client.dat.bak. */
+        private final Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>();
+        
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
-        void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
+        synchronized void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
                 RequestLoadStatus status) {
             if(reqID == null) {
                 if(request == null) {
@@ -410,16 +777,70 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         public boolean doneSomething() {
             return doneSomething;
         }
+        
+        void addRemoved(RequestIdentifier reqID) {
+            if(!partiallyLoadedRequests.containsKey(reqID))
+                removed.add(reqID);
+        }
+        
+        boolean isRemoved(RequestIdentifier reqID) {
+            return removed.contains(reqID);
+        }
     }
     
-    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
-            ClientContext context, RequestStarterGroup requestStarters, Random random) {
+    /** The journal segments for one generation of client.dat, read but not yet deserialized. */
+    private class Journal {
+        /** For each request, the checksummed request and recovery data, in the same format as in
+         * client.dat. Null if the request has been removed. The latest change wins. */
+        final Map<RequestIdentifier, byte[]> changes = new LinkedHashMap<RequestIdentifier, byte[]>();
+        /** The stats from the latest segment, which replace the stats in client.dat. */
+        PersistentStatsPutter stats;
+        final List<DelayedFree> buckets = new ArrayList<DelayedFree>();
+        boolean failed;
+    }
+
+    /** Everything read from client.dat and its journal, apart from the requests themselves. */
+    static class ClientDat {
+        int version;
+        /** Zero if there is no journal, i.e. version 1. */
+        long generation;
+        /** Requests which were removed after client.dat.bak was written, listed in client.dat,
+         * or after client.dat was written, according to the journal. */
+        final Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>();
+        /** The requests in client.dat, including any which the journal has removed since, and
+         * those added by the journal. */
+        final Set<RequestIdentifier> requests = new HashSet<RequestIdentifier>();
+        /** The stats, from the latest journal segment if any, otherwise from client.dat. */
+        PersistentStatsPutter stats;
+        /** The buckets to free, from client.dat and the journal. */
+        final List<DelayedFree> buckets = new ArrayList<DelayedFree>();
+        /** True if a journal segment could not be read. */
+        boolean journalFailed;
+    }
+
+    /** Called by readClientDat() with what it reads, as it reads it. */
+    interface Loader {
+        /** Called with the global salt.
+         * @param valid False if the checksum failed. */
+        void onSalt(byte[] salt, boolean valid);
+        /** @return False to skip the request without reading it. */
+        boolean wantRequest(RequestIdentifier reqID);
+        /** Read a request and its recovery data, in the format written by writeRequest().
+         * @param reqID The request identifier, or null if it could not be read, in which case
+         * wantRequest() will not have been called. */
+        void loadRequest(RequestIdentifier reqID, InputStream is, long length) throws IOException;
+    }
+
+    private void innerLoad(PartialLoad loaded, Bucket bucket, File dir, String baseName, 
+            DatabaseKey encryptionKey, boolean noSerialize, ClientContext context, 
+            RequestStarterGroup requestStarters, Random random) {
         long length = bucket.size();
         InputStream fis = null;
         try {
             fis = bucket.getInputStream();
-            innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
-                    requestStarters, random, noSerialize);
+            innerLoad(loaded, fis, length, dir, baseName, encryptionKey, 
+                    !noSerialize && !loaded.doneSomething(), context, requestStarters, random, 
+                    noSerialize);
         } catch (IOException e) {
             // FIXME tell user more obviously.
             Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
@@ -441,113 +862,341 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
-            ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
+    private void innerLoad(final PartialLoad loaded, InputStream fis, long length, File dir, 
+            String baseName, DatabaseKey encryptionKey, boolean latest, final ClientContext context, 
+            final RequestStarterGroup requestStarters, Random random, final boolean noSerialize) throws IOException {
+        // If resuming lazily, read all the requests first, and then deserialize them in parallel.
+        final List<RawRequest> pending = lazyResume ? new ArrayList<RawRequest>() : null;
+        ClientDat dat = readClientDat(fis, length, dir, baseName, encryptionKey, latest, new Loader() {
+
+            @Override
+            public void onSalt(byte[] salt, boolean valid) {
+                if(valid)
+                    loaded.setSalt(salt);
+                requestStarters.setGlobalSalt(salt);
+            }
+
+            @Override
+            public boolean wantRequest(RequestIdentifier reqID) {
+                // Removed since, e.g. if this is client.dat.bak.
+                if(loaded.isRemoved(reqID)) return false;
+                if(context.persistentRoot.hasRequest(reqID)) {
+                    Logger.warning(this, "Not reading request because already have it");
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void loadRequest(RequestIdentifier reqID, InputStream is, long length) 
+                    throws IOException {
+                if(pending != null)
+                    pending.add(readRawRequest(reqID, is, length));
+                else
+                    ClientLayerPersister.this.loadRequest(loaded, is, length, reqID, noSerialize);
+            }
+            
+        });
+        if(dat.journalFailed)
+            loaded.setSomethingFailed();
+        // New generations must not match any journal segments already on disk.
+        generation = Math.max(generation, dat.generation);
+        if(pending != null)
+            loadInParallel(loaded, pending, noSerialize);
+        for(RequestIdentifier reqID : dat.removed)
+            loaded.addRemoved(reqID);
+        if(latest) {
+            // This file will become client.dat.bak on the next full write.
+            snapshotRequests = dat.requests;
+            if(dat.stats != null)
+                this.bandwidthStatsPutter.addFrom(dat.stats);
+            persistentTempFactory.finishDelayedFree(
+                    dat.buckets.toArray(new DelayedFree[dat.buckets.size()]));
+        }
+    }
+    
+    /** Read client.dat, and the journal segments for it if it has any, passing the requests to 
+     * the Loader as they are read. A request in client.dat which has been changed or removed in 
+     * the journal is skipped, and the journal's version, if any, is loaded after all the requests
+     * in client.dat.
+     * @param readStats If true, read the stats and the buckets to free, which are only needed 
+     * from the latest file. 
+     * @return Everything else read from client.dat and the journal. */
+    ClientDat readClientDat(InputStream fis, long length, File dir, String baseName, 
+            DatabaseKey encryptionKey, boolean readStats, Loader loader) throws IOException {
         ObjectInputStream ois = new ObjectInputStream(fis);
         long magic = ois.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
-        int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        ClientDat dat = new ClientDat();
+        dat.version = ois.readInt();
+        if(dat.version != VERSION && dat.version != VERSION_NO_JOURNAL) throw new IOException("Bad version");
+        Journal journal = null;
+        if(dat.version == VERSION) {
+            dat.generation = ois.readLong();
+            journal = readJournal(dir, baseName, encryptionKey, dat.generation);
+            dat.journalFailed = journal.failed;
+        }
         byte[] salt = new byte[32];
+        boolean validSalt = false;
         try {
             checker.readAndChecksum(ois, salt, 0, salt.length);
-            loaded.setSalt(salt);
+            validSalt = true;
         } catch (ChecksumFailedException e1) {
             Logger.error(this, "Unable to read global salt (checksum failed)");
         }
-        requestStarters.setGlobalSalt(salt);
+        loader.onSalt(salt, validSalt);
+        if(dat.version == VERSION) {
+            int removedCount = ois.readInt();
+            for(int i=0;i<removedCount;i++) {
+                RequestIdentifier reqID = readRequestIdentifier(ois);
+                if(reqID != null) dat.removed.add(reqID);
+            }
+        }
+        if(journal != null) {
+            for(Map.Entry<RequestIdentifier, byte[]> change : journal.changes.entrySet()) {
+                if(change.getValue() == null) dat.removed.add(change.getKey());
+            }
+        }
         int requestCount = ois.readInt();
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
             RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
+            if(reqID != null) {
+                dat.requests.add(reqID);
+                if((journal != null && journal.changes.containsKey(reqID)) || 
+                        !loader.wantRequest(reqID)) {
+                    // Superseded by the journal, or not wanted.
+                    skipChecksummedObject(ois, length); // Request itself
+                    skipChecksummedObject(ois, length); // Recovery data
+                    continue;
+                }
+            }
+            loader.loadRequest(reqID, ois, length);
+        }
+        if(journal != null) {
+            for(Map.Entry<RequestIdentifier, byte[]> change : journal.changes.entrySet()) {
+                RequestIdentifier reqID = change.getKey();
+                byte[] data = change.getValue();
+                if(data == null) continue;
+                dat.requests.add(reqID);
+                if(!loader.wantRequest(reqID)) continue;
+                loader.loadRequest(reqID, new ByteArrayInputStream(data), data.length);
             }
+        }
+        if(readStats) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
+                readStatsAndBuckets(ois, length, dat);
+            } catch (Throwable t) {
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+            }
+            if(journal != null) {
+                // The stats in the journal replace those in client.dat.
+                if(journal.stats != null)
+                    dat.stats = journal.stats;
+                dat.buckets.addAll(journal.buckets);
+            }
+        }
+        ois.close();
+        return dat;
+    }
+    
+    /** Read a request and its recovery data, in the format written by writeRequest(), and add it
+     * to the PartialLoad. */
+    private void loadRequest(PartialLoad loaded, InputStream is, long length, 
+            RequestIdentifier reqID, boolean noSerialize) throws IOException {
+        ClientRequest request = null;
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(is, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
                         }
                     }
-                } else
-                    skipChecksummedObject(ois, length);
+                }
+            } else
+                skipChecksummedObject(is, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
+            try {
+                ClientRequest restored = readRequestFromRecoveryData(is, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                }
             } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
-            } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
             }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+        } else {
+            skipChecksummedObject(is, length);
+        }
+    }
+    
+    /** A request and its recovery data, in the format written by writeRequest(), read but not yet
+     * deserialized. */
+    static class RawRequest implements RequestRecord {
+        final RequestIdentifier reqID;
+        final byte[] data;
+        RawRequest(RequestIdentifier reqID, byte[] data) {
+            this.reqID = reqID;
+            this.data = data;
+        }
+
+        @Override
+        public RequestIdentifier getRequestIdentifier() {
+            return reqID;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            os.write(data);
+        }
+    }
+    
+    /** Read a request and its recovery data, without checking or deserializing them. */
+    RawRequest readRawRequest(RequestIdentifier reqID, InputStream is, long length) 
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        copyChecksummedObject(is, baos, length); // Request itself
+        copyChecksummedObject(is, baos, length); // Recovery data
+        return new RawRequest(reqID, baos.toByteArray());
+    }
+    
+    private void loadInParallel(final PartialLoad loaded, List<RawRequest> pending, 
+            final boolean noSerialize) {
+        long startTime = System.currentTimeMillis();
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(pending.size());
+        for(final RawRequest raw : pending) {
+            jobs.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    try {
+                        loadRequest(loaded, new ByteArrayInputStream(raw.data), raw.data.length, 
+                                raw.reqID, noSerialize);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Failed to load request: "+t, t);
+                        System.err.println("Failed to load a request: "+t);
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+                    return null;
                 }
-            } else {
-                skipChecksummedObject(ois, length);
-            }
+                
+            });
         }
-        if(latest) {
+        runInParallel(jobs, "Loading persistent requests");
+        loaded.deserializeTime += System.currentTimeMillis() - startTime;
+    }
+    
+    /** Read the journal segments for a client.dat, in order, keeping only the latest change to 
+     * each request. Segments from other generations are ignored. A damaged segment is skipped, 
+     * but the changes read from it so far are kept, as each change is complete in itself. */
+    private Journal readJournal(File dir, String baseName, DatabaseKey encryptionKey, 
+            long fileGeneration) {
+        Journal journal = new Journal();
+        for(int segment = 0; makeJournalFilename(dir, baseName, segment, encryptionKey != null).exists(); segment++) {
+            Bucket bucket = makeJournalBucket(dir, baseName, segment, encryptionKey);
+            InputStream is = null;
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
+                long maxLength = bucket.size();
+                is = bucket.getInputStream();
+                ObjectInputStream ois = new ObjectInputStream(is);
+                if(ois.readLong() != JOURNAL_MAGIC) throw new IOException("Bad magic");
+                if(ois.readInt() != JOURNAL_VERSION) throw new IOException("Bad version");
+                long segmentGeneration = ois.readLong();
+                if(segmentGeneration != fileGeneration) {
+                    Logger.normal(this, "Ignoring journal segment "+segment+" for generation "+
+                            segmentGeneration+" not "+fileGeneration);
+                    continue;
+                }
+                if(ois.readInt() != segment) throw new IOException("Wrong segment number");
+                while(true) {
+                    byte type = ois.readByte();
+                    if(type == JOURNAL_END) break;
+                    RequestIdentifier reqID = readRequestIdentifier(ois);
+                    byte[] data = null;
+                    if(type == JOURNAL_PUT) {
+                        data = readRawRequest(reqID, ois, maxLength).data;
+                    } else if(type != JOURNAL_REMOVE) {
+                        throw new IOException("Bad journal record type "+type);
+                    }
+                    if(reqID == null) {
+                        Logger.error(this, "Unable to apply journal record without a request identifier");
+                        journal.failed = true;
+                        continue;
+                    }
+                    // Keep the order of the latest changes.
+                    journal.changes.remove(reqID);
+                    journal.changes.put(reqID, data);
+                }
+                journal.stats = (PersistentStatsPutter) ois.readObject();
+                int bucketCount = ois.readInt();
+                for(int i=0;i<bucketCount;i++) {
+                    try {
+                        DelayedFree b = (DelayedFree) readChecksummedObject(ois, maxLength);
+                        if(b != null) journal.buckets.add(b);
+                    } catch (ChecksumFailedException e) {
+                        Logger.warning(this, "Failed to load a bucket to free");
+                    }
+                }
+                ois.close();
+                is = null;
             } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                Logger.error(this, "Failed to read journal segment "+segment+" from "+bucket+" : "+t, t);
+                System.err.println("Failed to read journal segment "+segment+" of persistent requests: "+t);
+                journal.failed = true;
+            } finally {
+                try {
+                    if(is != null) is.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
             }
         }
-        ois.close();
-        fis = null;
+        return journal;
     }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientDat dat) 
+            throws IOException, ClassNotFoundException {
+        dat.stats = (PersistentStatsPutter) ois.readObject();
         int count = ois.readInt();
-        DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
             try {
-                buckets[i] = (DelayedFree) readChecksummedObject(ois, length);
+                DelayedFree bucket = (DelayedFree) readChecksummedObject(ois, length);
+                if(bucket != null) dat.buckets.add(bucket);
             } catch (ChecksumFailedException e) {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
         }
-        persistentTempFactory.finishDelayedFree(buckets);
     }
 
     @Override
@@ -555,12 +1204,78 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         save(shutdown);
     }
     
+    /** Called when a persistent request changes, so that the next checkpoint writes it again. 
+     * New requests are always written, and a full checkpoint writes everything. */
+    @Override
+    public void requestChanged(ClientRequester requester) {
+        ClientBaseCallback cb = requester.getCallback();
+        // Not a request on the queue, e.g. a fetch for a plugin, which is not persistent anyway.
+        if(!(cb instanceof ClientRequest)) return;
+        synchronized(changedRequests) {
+            changedRequests.add((ClientRequest) cb);
+        }
+    }
+    
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
+        }
+        Set<ClientRequest> changed;
+        synchronized(changedRequests) {
+            changed = new HashSet<ClientRequest>(changedRequests);
+            changedRequests.clear();
+        }
+        DelayedFree[] grabbed = persistentTempFactory.grabBucketsToFree();
+        if(grabbed != null) deferredFrees.addAll(Arrays.asList(grabbed));
+        bandwidthStatsPutter.updateData(node);
+        // If we are shutting down, write in full so the buckets are freed.
+        if(!mustWriteFull && journalSegments < MAX_JOURNAL_SEGMENTS && 
+                journalRecords < Math.max(MIN_JOURNAL_RECORDS, snapshotRequests.size()) &&
+                !(shutdown && !deferredFrees.isEmpty())) {
+            if(saveJournal(shutdown, requests, changed))
+                return;
+            Logger.error(this, "Failed to write journal, writing "+writeToFilename+" in full");
+        }
+        DelayedFree[] buckets = null;
+        if(!deferredFrees.isEmpty())
+            buckets = deferredFrees.toArray(new DelayedFree[deferredFrees.size()]);
+        saveFull(requests, buckets);
+    }
+    
+    private void saveFull(ClientRequest[] requests, DelayedFree[] buckets) {
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
         }
-        if(innerSave(shutdown)) {
+        // Always newer than the last one, whether or not that was written successfully.
+        generation = Math.max(generation + 1, System.currentTimeMillis());
+        Set<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+        for(ClientRequest req : requests)
+            current.add(req.getRequestIdentifier());
+        // What was in the old client.dat, which is now client.dat.bak, but isn't any more.
+        List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+        for(RequestIdentifier reqID : snapshotRequests) {
+            if(!current.contains(reqID)) removed.add(reqID);
+        }
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        if(innerSave(requests, removed, buckets, digests)) {
+            writtenDigests.clear();
+            writtenDigests.putAll(digests);
+            snapshotRequests = current;
+            journalSegments = 0;
+            journalRecords = 0;
+            mustWriteFull = false;
+            // Freed by innerSave().
+            deferredFrees.clear();
+            deleteJournalFiles(dir, baseName, false);
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,52 +1284,26 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+        } else {
+            mustWriteFull = true;
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+    /** Write client.dat in full.
+     * @param digests Will be filled in with every request written, and the digest of its 
+     * serialized form, or null if it could not be serialized. */
+    private boolean innerSave(ClientRequest[] requests, List<RequestIdentifier> removed, 
+            DelayedFree[] buckets, Map<RequestIdentifier, byte[]> digests) {
+        List<RequestToWrite> toWrite = new ArrayList<RequestToWrite>(requests.length);
+        for(ClientRequest req : requests)
+            toWrite.add(new RequestToWrite(req));
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
-            checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
-            oos.writeInt(requests.length);
-            for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
-            }
-            oos.close();
+            writeClientDat(fos, generation, salt, removed, toWrite, buckets);
             fos = null;
+            for(RequestToWrite req : toWrite)
+                digests.put(req.reqID, req.digest);
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
             persistentTempFactory.finishDelayedFree(buckets);
             return true;
@@ -632,7 +1321,191 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Write a journal segment with the requests which have been added, changed or removed since 
+     * the last checkpoint. Only the requests which have been added, or reported by 
+     * requestChanged(), are serialized, and of those, only the ones whose serialized form is 
+     * different are written. Doesn't free any buckets, see deferredFrees.
+     * @param changed The requests reported by requestChanged() since the last checkpoint.
+     * @return False if the segment could not be written, in which case the caller must write 
+     * client.dat in full. */
+    private boolean saveJournal(boolean shutdown, ClientRequest[] requests, 
+            Set<ClientRequest> changed) {
+        int segment = journalSegments;
+        List<RequestToWrite> toWrite = new ArrayList<RequestToWrite>();
+        List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+        Set<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+        for(ClientRequest req : requests) {
+            RequestIdentifier reqID = req.getRequestIdentifier();
+            current.add(reqID);
+            boolean written = writtenDigests.containsKey(reqID);
+            // onShutdown() may have changed anything.
+            if(written && !shutdown && !changed.contains(req)) continue;
+            RequestToWrite write = new RequestToWrite(req);
+            write.serialize();
+            // If serialization failed, write it anyway, so the recovery data is up to date.
+            if(written && write.digest != null && 
+                    Arrays.equals(writtenDigests.get(reqID), write.digest)) continue;
+            toWrite.add(write);
+        }
+        for(RequestIdentifier reqID : writtenDigests.keySet()) {
+            if(!current.contains(reqID)) removed.add(reqID);
+        }
+        if(toWrite.isEmpty() && removed.isEmpty() && !shutdown) {
+            // Don't use up a segment just for the stats.
+            if(logMINOR) Logger.minor(this, "Nothing changed, not writing journal segment");
+            return true;
+        }
+        OutputStream fos = null;
+        try {
+            fos = makeJournalBucket(dir, baseName, segment, writeToJournalKey).getOutputStream();
+            writeJournalSegment(fos, generation, segment, toWrite, removed, null);
+            fos = null;
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests journal: "+e);
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if(fos != null) fos.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests journal: "+e);
+                e.printStackTrace();
+            }
+        }
+        for(RequestToWrite req : toWrite)
+            writtenDigests.put(req.reqID, req.digest);
+        for(RequestIdentifier reqID : removed)
+            writtenDigests.remove(reqID);
+        journalSegments++;
+        journalRecords += toWrite.size() + removed.size();
+        Logger.normal(this, "Saved "+toWrite.size()+" changed and "+removed.size()+
+                " removed requests of "+requests.length+" to journal segment "+segment);
+        return true;
+    }
+    
+    /** Write client.dat. Closes the stream.
+     * @param removed Requests which were in the previous client.dat, which is now 
+     * client.dat.bak, but have been removed since. */
+    void writeClientDat(OutputStream os, long generation, byte[] salt, 
+            List<RequestIdentifier> removed, List<? extends RequestRecord> requests, 
+            DelayedFree[] buckets) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+        oos.writeLong(MAGIC);
+        oos.writeInt(VERSION);
+        oos.writeLong(generation);
+        checker.writeAndChecksum(oos, salt);
+        oos.writeInt(removed.size());
+        for(RequestIdentifier reqID : removed)
+            writeRequestIdentifier(oos, reqID);
+        oos.writeInt(requests.size());
+        for(RequestRecord req : requests)
+            writeRequest(oos, req);
+        writeStatsAndBuckets(oos, buckets);
+        oos.close();
+    }
+    
+    /** Write a journal segment for the client.dat with the given generation. Closes the stream. */
+    void writeJournalSegment(OutputStream os, long generation, int segment, 
+            List<? extends RequestRecord> changed, List<RequestIdentifier> removed, 
+            DelayedFree[] buckets) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+        oos.writeLong(JOURNAL_MAGIC);
+        oos.writeInt(JOURNAL_VERSION);
+        oos.writeLong(generation);
+        oos.writeInt(segment);
+        for(RequestRecord req : changed) {
+            oos.writeByte(JOURNAL_PUT);
+            writeRequest(oos, req);
+        }
+        for(RequestIdentifier reqID : removed) {
+            oos.writeByte(JOURNAL_REMOVE);
+            writeRequestIdentifier(oos, reqID);
+        }
+        oos.writeByte(JOURNAL_END);
+        writeStatsAndBuckets(oos, buckets);
+        oos.close();
+    }
+    
+    void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+    }
+    
+    /** Write one request in client.dat or the journal. */
+    void writeRequest(ObjectOutputStream oos, RequestRecord req) throws IOException {
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(oos, req.getRequestIdentifier());
+        req.writeTo(oos);
+    }
+    
+    /** A request as it is written to client.dat and the journal, after its identifier: The 
+     * serialized request, and then its recovery data, each with a length and a checksum. */
+    interface RequestRecord {
+        RequestIdentifier getRequestIdentifier();
+        void writeTo(OutputStream os) throws IOException;
+    }
+    
+    /** A ClientRequest to be written. It is serialized when it is written, unless it already 
+     * has been, to compare it with the last version written. */
+    private class RequestToWrite implements RequestRecord {
+        final ClientRequest request;
+        final RequestIdentifier reqID;
+        private boolean serialized;
+        /** The serialized request, until it has been written. */
+        private byte[] data;
+        /** The SHA-256 of the serialized request, or null if it could not be serialized. */
+        byte[] digest;
+        
+        RequestToWrite(ClientRequest request) {
+            this.request = request;
+            this.reqID = request.getRequestIdentifier();
+        }
+        
+        void serialize() {
+            data = serializeRequest(request);
+            if(data != null) digest = SHA256.digest(data);
+            serialized = true;
+        }
+
+        @Override
+        public RequestIdentifier getRequestIdentifier() {
+            return reqID;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            if(!serialized) serialize();
+            writeChecksummedBytes(os, data);
+            // Not needed any more, and there may be a lot of requests.
+            data = null;
+            // Write recovery data. This is just enough to restart the request from scratch, 
+            // but may support continuing the request in simple cases e.g. if a fetch is now
+            // just a single splitfile.
+            writeRecoveryData(os, request);
+        }
+    }
+    
+    /** @return The request serialized as by writeChecksummedObject(), or null if it can't be. */
+    private byte[] serializeRequest(ClientRequest req) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(req);
+            oos.close();
+            return baos.toByteArray();
+        } catch (Throwable e) {
+            Logger.error(this, "Unable to serialize "+req+" : "+e, e);
+            return null;
+        }
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +1522,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -681,7 +1554,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,12 +1571,35 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
-        long length = is.readLong();
+    /** Write data in the same format as writeChecksummedObject(). If data is null, write an empty
+     * object, as writeChecksummedObject() does when serialization fails. */
+    void writeChecksummedBytes(OutputStream os, byte[] data) throws IOException {
+        PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
+        if(data == null)
+            oos.abort();
+        else
+            oos.write(data);
+        oos.close();
+    }
+
+    private void skipChecksummedObject(InputStream is, long totalLength) throws IOException {
+        long length = new DataInputStream(is).readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
 
+    /** Copy a checksummed object, including its length and checksum, without checking it. */
+    private void copyChecksummedObject(InputStream is, OutputStream os, long totalLength) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        long length = dis.readLong();
+        if(length < 0 || length > totalLength || length > Integer.MAX_VALUE - checker.checksumLength()) 
+            throw new IOException("Bad length: "+length);
+        byte[] buf = new byte[(int) length + checker.checksumLength()];
+        dis.readFully(buf);
+        new DataOutputStream(os).writeLong(length);
+        os.write(buf);
+    }
+
     private ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
@@ -757,6 +1653,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournalFiles(dir, baseName, true);
         }
     }
 
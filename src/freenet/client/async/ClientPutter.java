@@ -276,6 +276,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 						", Successful blocks: "+successfulBlocks+", Total blocks: "+totalBlocks+" but success?! on "+this+" from "+state,
 						new Exception("debug"));
 		}
+		notifyChanged(context);
 		client.onSuccess(this);
 	}
 
@@ -287,6 +288,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			finished = true;
 			currentState = null;
 		}
+		notifyChanged(context);
 		client.onFailure(e, this);
 	}
 
@@ -309,6 +311,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			}
             this.uri = u;
 		}
+		notifyChanged(context);
 		client.onGeneratedURI(u, this);
 	}
 	
@@ -331,6 +334,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			finalMetadata.free();
 			return;
 		}
+		notifyChanged(context);
 		client.onGeneratedMetadata(finalMetadata, this);
 	}
 
@@ -396,6 +400,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 				return;
 			}
 		}
+		notifyChanged(context);
 		if(persistent())
 		    context.jobRunner.setCheckpointASAP();
 		Logger.normal(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState);
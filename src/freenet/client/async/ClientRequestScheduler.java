@@ -265,6 +265,19 @@ public class ClientRequestScheduler implements RequestScheduler {
 			Logger.error(this, "Listener not found when removing: "+getter);
 	}
 
+	/**
+	 * Called when a listener which was registered before it knew its keys, e.g. a persistent
+	 * splitfile on startup, has read them, so they can be indexed.
+	 */
+	public void indexPendingKeys(IndexableKeyListener listener, boolean persistent) {
+		if(persistent) {
+			if(schedCore != null)
+				schedCore.indexPendingKeys(listener);
+		} else {
+			schedTransient.indexPendingKeys(listener);
+		}
+	}
+
 	public void reregisterAll(final ClientRequester request, short oldPrio) {
 		selector.reregisterAll(request, this, clientContext, oldPrio);
 		starter.wakeUp();
@@ -244,7 +244,10 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			successfulBlocks++;
             latestSuccess = CurrentTimeUTC.get();
 		}
-		if(dontNotify) return;
+		if(dontNotify) {
+			notifyChanged(context);
+			return;
+		}
 		notifyClients(context);
 	}
 	
@@ -258,6 +261,8 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         }
         if(!dontNotify)
             notifyClients(context);
+        else
+            notifyChanged(context);
     }
 
 	/** A block failed. Count it and notify our clients. */
@@ -290,6 +295,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	
 	/** Notify clients by calling innerNotifyClients off-thread. */
 	public final void notifyClients(ClientContext context) {
+	    notifyChanged(context);
 	    context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -307,6 +313,13 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	 * events notably SimpleProgressEvent. */
 	protected abstract void innerNotifyClients(ClientContext context);
 	
+	/** Tell the persister that the request has changed, so that the next checkpoint writes it, 
+	 * even if it only writes what has changed. Called by notifyClients(), so only needed for 
+	 * changes which don't notify the clients, e.g. a new state, or completion. */
+	public void notifyChanged(ClientContext context) {
+	    context.getJobRunner(persistent()).requestChanged(this);
+	}
+	
 	/** Called when we first send a request to the network. Ensures that it really is the first time and
 	 * passes on to innerToNetwork().
 	 */
@@ -315,6 +328,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(sentToNetwork) return;
 			sentToNetwork = true;
 		}
+		notifyChanged(context);
 		innerToNetwork(context);
 	}
 
@@ -352,6 +366,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			this.priorityClass = newPriorityClass;
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
+		notifyChanged(ctx);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
 		ctx.getChkInsertScheduler(realTimeFlag).reregisterAll(this, oldPrio);
 		ctx.getSskFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -0,0 +1,22 @@
+package freenet.client.async;
+
+/**
+ * A KeyListener which can tell KeyListenerTracker exactly which keys it wants, so that the tracker
+ * can index them, rather than calling probablyWantKey() for every key the node sees. Listeners
+ * which don't have their keys yet (e.g. a persistent splitfile while it is reading its keys on
+ * startup) are asked about every key as before, until they call
+ * ClientRequestScheduler.indexPendingKeys().
+ * @see SaltedKeyIndex
+ */
+public interface IndexableKeyListener extends KeyListener {
+
+    /**
+     * Get the hashes of the salted keys, and forget them. Called by KeyListenerTracker when the
+     * listener is registered, and by indexPendingKeys().
+     * LOCKING: Will be called within the KeyListenerTracker lock.
+     * @return SaltedKeyIndex.hash() of the salted key for every key the listener wants, or null
+     * if they are not known yet, or have already been taken.
+     */
+    long[] takeKeyHashes();
+
+}
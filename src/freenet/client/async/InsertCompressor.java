@@ -3,6 +3,7 @@ package freenet.client.async;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -22,6 +23,7 @@ import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.CompressionRatioException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.ParallelCompressor;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
@@ -108,6 +110,14 @@ public class InsertCompressor implements CompressJob {
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
 			int maxTimeForSingleCompressor = config.get("node").getInt("maxTimeForSingleCompressor");
+			if(comps.length > 1 && config.get("node").getBoolean("parallelInsertCompression")) {
+				CompressionOutput output = compressParallel(comps, context, origSize,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+				// Freed below if we can't pass it on.
+				bestCompressedData = output.data;
+				onCompressed(output, context);
+				return;
+			}
 			for (final COMPRESSOR_TYPE comp : comps) {
 				long compressionStartTime = System.currentTimeMillis();
 				boolean shouldFreeOnFinally = true;
@@ -116,23 +126,7 @@ public class InsertCompressor implements CompressJob {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
 					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					onStartCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -214,41 +208,7 @@ public class InsertCompressor implements CompressJob {
 					break;
 			}
 
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
-
-			if(persistent) {
-
-				context.jobRunner.queue(new PersistentJob() {
-
-				    // This can wait until after the next checkpoint, because it's still in the
-				    // persistentInsertCompressors list, so will be restarted if necessary.
-					@Override
-					public boolean run(ClientContext context) {
-						inserter.onCompressed(output, context);
-						return true;
-					}
-
-				}, NativeThread.NORM_PRIORITY+1);
-			} else {
-				// We do it off thread so that RealCompressor can release the semaphore
-				context.mainExecutor.execute(new PrioRunnable() {
-
-					@Override
-					public int getPriority() {
-						return NativeThread.NORM_PRIORITY;
-					}
-
-					@Override
-					public void run() {
-						try {
-							inserter.onCompressed(output, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Caught "+t+" running compression job", t);
-						}
-					}
-
-				}, "Insert thread for "+this);
-			}
+			onCompressed(new CompressionOutput(bestCompressedData, bestCodec, hashes), context);
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
@@ -260,6 +220,104 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	/**
+	 * Run all the codecs at once, reading the data only once, and pick the same codec as the
+	 * sequential loop in tryCompress() would. The codecs run on the main executor rather than
+	 * the compressor threads, so maxTimeForSingleCompressor does not apply.
+	 * @see ParallelCompressor
+	 */
+	private CompressionOutput compressParallel(COMPRESSOR_TYPE[] comps, ClientContext context, long origSize,
+			long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+			throws IOException, PersistenceDisabledException {
+		if(logMINOR)
+			Logger.minor(this, "Attempt to compress in parallel using " + Arrays.toString(comps));
+		for(COMPRESSOR_TYPE comp : comps)
+			onStartCompression(comp, context);
+		ParallelCompressor compressor = new ParallelCompressor(comps, bucketFactory, context.mainExecutor,
+				CHKBlock.DATA_LENGTH, minSize, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+		ParallelCompressor.Result result = null;
+		HashResult[] hashes = null;
+		InputStream is = null;
+		boolean success = false;
+		try {
+			is = origData.getInputStream();
+			MultiHashInputStream hasher = null;
+			if(generateHashes != 0) {
+				if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			}
+			result = compressor.compress(is, origSize);
+			if(hasher != null) {
+				// The codecs may all have given up before the end of the data.
+				is.skip(Long.MAX_VALUE);
+				hashes = hasher.getResults();
+			}
+			success = true;
+		} finally {
+			Closer.close(is);
+			if(!success && result != null)
+				result.data.free();
+		}
+		if(result == null)
+			return new CompressionOutput(origData, null, hashes);
+		return new CompressionOutput(result.data, result.codec, hashes);
+	}
+
+	private void onCompressed(final CompressionOutput output, final ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+			    // This can wait until after the next checkpoint, because it's still in the
+			    // persistentInsertCompressors list, so will be restarted if necessary.
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onCompressed(output, context);
+					return true;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			// We do it off thread so that RealCompressor can release the semaphore
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				@Override
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+				@Override
+				public void run() {
+					try {
+						inserter.onCompressed(output, context);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running compression job", t);
+					}
+				}
+
+			}, "Insert thread for "+this);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -66,8 +66,13 @@ class KeyListenerTracker implements KeySalter {
 	final boolean isRTScheduler;
 	
 	protected final ClientRequestScheduler sched;
-	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
+	/** Transient even for persistent scheduler. There is one for each of transient, persistent. 
+	 * Listeners which we have to ask about every key. */
 	protected final ArrayList<KeyListener> keyListeners;
+	/** Listeners whose keys we know, so we only ask them about keys they probably want. Also 
+	 * transient: IndexableKeyListener's are re-registered on startup, and are in keyListeners 
+	 * until they have read their keys. */
+	protected final SaltedKeyIndex keyIndex;
 	protected final Map<ByteArrayWrapper,Object> singleKeyListeners;
 
 	final boolean persistent;
@@ -82,6 +87,7 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		keyIndex = new SaltedKeyIndex();
 		singleKeyListeners = this.isSSKScheduler ? new TreeMap<ByteArrayWrapper,Object>(ByteArrayWrapper.FAST_COMPARATOR) : new HashMap<ByteArrayWrapper,Object>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
@@ -134,13 +140,33 @@ class KeyListenerTracker implements KeySalter {
 					singleKeyListeners.put(wrapper, newListeners);
 				}
 			} else {
-				if(keyListeners.contains(listener))
+				if(keyListeners.contains(listener) || keyIndex.contains(listener))
 					return;
-				keyListeners.add(listener);
+				long[] hashes = null;
+				if(listener instanceof IndexableKeyListener)
+					hashes = ((IndexableKeyListener)listener).takeKeyHashes();
+				if(hashes == null || !keyIndex.add(listener, hashes))
+					keyListeners.add(listener);
 			}
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+this.keyListeners.size()+"/"+keyIndex.size()+"/"+singleKeyListeners.size()+" : "+listener);
+	}
+	
+	/**
+	 * Index the keys of a listener which was registered before it knew its keys, so we no longer
+	 * need to ask it about every key. If it has not been registered yet, addPendingKeys() will 
+	 * index them.
+	 */
+	public void indexPendingKeys(IndexableKeyListener listener) {
+		synchronized(this) {
+			if(!keyListeners.contains(listener)) return;
+			long[] hashes = listener.takeKeyHashes();
+			if(hashes == null || !keyIndex.add(listener, hashes)) return;
+			keyListeners.remove(listener);
+		}
+		if (logMINOR)
+			Logger.minor(this, "Indexed pending keys on "+this+" : size now "+this.keyListeners.size()+"/"+keyIndex.size()+"/"+singleKeyListeners.size()+" : "+listener);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
@@ -187,6 +213,8 @@ class KeyListenerTracker implements KeySalter {
 				}
 			} else {
 				ret = keyListeners.remove(listener);
+				if(keyIndex.remove(listener))
+					ret = true;
 			}
 			listener.onRemove();
 		}
@@ -258,6 +286,15 @@ class KeyListenerTracker implements KeySalter {
 						Logger.minor(this, "Removed pending keys from "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
 				}
 			}
+			for(KeyListener listener : new ArrayList<KeyListener>(keyIndex.listeners())) {
+				if(listener.getHasKeyListener() == hasListener) {
+					ret = true;
+					keyIndex.remove(listener);
+					listener.onRemove();
+					if (logMINOR)
+						Logger.minor(this, "Removed pending keys from index on "+this+" : size now "+keyIndex.size()+" : "+listener);
+				}
+			}
 		}
 		return ret;
 	}
@@ -284,6 +321,11 @@ class KeyListenerTracker implements KeySalter {
 				matches.add(listener);
 			}
 		}
+		for(KeyListener listener : keyIndex.get(saltedKey)) {
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(matches == null) matches = new ArrayList<KeyListener> ();
+			matches.add(listener);
+		}
 		for(KeyListener listener : keyListeners) {
 			if(!listener.probablyWantKey(key, saltedKey)) continue;
 			if(matches == null) matches = new ArrayList<KeyListener> ();
@@ -331,6 +373,13 @@ class KeyListenerTracker implements KeySalter {
 				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
 			}
 		}
+		for (KeyListener listener : keyIndex.listeners()) {
+			try {
+				count += listener.countKeys();
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
+			}
+		}
 		return count;
 	}
 	
@@ -370,6 +419,15 @@ class KeyListenerTracker implements KeySalter {
 					return true;
 			}
 		}
+		for (KeyListener listener : keyIndex.get(saltedKey)) {
+			try {
+				if (listener.probablyWantKey(key, saltedKey)) {
+					return true;
+				}
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+			}
+		}
 		for (KeyListener listener : keyListeners) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
@@ -485,6 +543,17 @@ class KeyListenerTracker implements KeySalter {
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
+			for (KeyListener listener : keyIndex.get(saltedKey)) {
+				try {
+					if (!listener.probablyWantKey(key, saltedKey)) {
+						continue;
+					}
+				} catch (Throwable t) {
+					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+					continue;
+				}
+				matches.add(listener);
+			}
 			for (KeyListener listener : keyListeners) {
 				try {
 					if (!listener.probablyWantKey(key, saltedKey)) {
@@ -58,6 +58,11 @@ public interface PersistentJobRunner {
      * able to do it "inline". */
     void setCheckpointASAP();
 
+    /** Called when a request has changed, so that the next checkpoint writes it, even if it only
+     * writes what has changed since the last one. Requests which are not on the persistent queue
+     * are ignored. */
+    void requestChanged(ClientRequester requester);
+
     /** Has the queue started yet? */
     boolean hasLoaded();
     
@@ -286,6 +286,12 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
         checkpointOffThread();
     }
     
+    @Override
+    public void requestChanged(ClientRequester requester) {
+        // Nothing to do: The default checkpoint() writes everything. Subclasses which only write
+        // what has changed since the last checkpoint, e.g. ClientLayerPersister, override this.
+    }
+    
     protected void updateLastCheckpointed() {
         lastCheckpointed = System.currentTimeMillis();
     }
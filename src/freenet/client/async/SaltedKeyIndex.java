@@ -0,0 +1,221 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import freenet.support.Fields;
+
+/**
+ * Index of the keys wanted by KeyListener's, so that KeyListenerTracker can find the listeners
+ * which might want a key without asking every listener. With thousands of splitfiles queued,
+ * asking each one's Bloom filters about every block the node sees is expensive; this costs the
+ * same however many listeners there are.
+ *
+ * An open addressing hash table of 64-bit entries: The top 40 bits of an entry are a fingerprint,
+ * the top 40 bits of the hash of the salted key, which also determine where it goes in the table,
+ * and the bottom 24 bits are the listener's number. The table is at most 3/4 full, so this needs
+ * around 11 bytes per key. False positives are rare and harmless, as the caller still calls
+ * probablyWantKey() on the listeners returned.
+ *
+ * Keys are not removed when they are found. When a listener is removed, its entries are ignored,
+ * and they are dropped when the table is rebuilt, which happens when more than half of the
+ * entries belong to removed listeners.
+ *
+ * LOCKING: Not thread-safe. KeyListenerTracker synchronizes.
+ */
+final class SaltedKeyIndex {
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int LISTENER_BITS = 24;
+    private static final int MAX_LISTENERS = 1 << LISTENER_BITS;
+
+    private long[] table;
+    private int mask;
+    /** Number of entries in the table, including stale entries for removed listeners. */
+    private int entries;
+    /** Number of entries for removed listeners. */
+    private int staleEntries;
+    /** Listeners by number. Null if removed. */
+    private KeyListener[] listeners;
+    /** Number of entries for each listener, by number. */
+    private int[] entryCounts;
+    private int nextListenerNumber;
+    private final IdentityHashMap<KeyListener, Integer> listenerNumbers;
+
+    SaltedKeyIndex() {
+        table = new long[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+        listeners = new KeyListener[16];
+        entryCounts = new int[16];
+        listenerNumbers = new IdentityHashMap<KeyListener, Integer>();
+    }
+
+    /** @return The hash of a salted key, as used by the index. The salted key is already a
+     * cryptographic hash, so we just take the first 8 bytes. */
+    static long hash(byte[] saltedKey) {
+        return Fields.bytesToLong(saltedKey, 0);
+    }
+
+    /** Add a listener and the hashes of all the keys it wants.
+     * @return False if the listener is already in the index, or if the index is full, in which
+     * case the caller must ask the listener about every key as before. */
+    boolean add(KeyListener listener, long[] hashes) {
+        if(listenerNumbers.containsKey(listener)) return false;
+        long liveEntries = (long) entries - staleEntries + hashes.length;
+        if(liveEntries > MAX_CAPACITY / 4 * 3) return false;
+        if(nextListenerNumber == listeners.length) {
+            if(listenerNumbers.size() < listeners.length / 2) {
+                // Renumber.
+                rebuild(table.length);
+            } else if(listeners.length == MAX_LISTENERS) {
+                return false;
+            } else {
+                listeners = Arrays.copyOf(listeners, listeners.length * 2);
+                entryCounts = Arrays.copyOf(entryCounts, entryCounts.length * 2);
+            }
+        }
+        if(entries + (long) hashes.length > table.length / 4 * 3)
+            rebuild(capacityFor(liveEntries));
+        int number = nextListenerNumber++;
+        listeners[number] = listener;
+        listenerNumbers.put(listener, number);
+        int count = 0;
+        for(long hash : hashes) {
+            if(insert(fingerprint(hash), number)) count++;
+        }
+        entryCounts[number] = count;
+        return true;
+    }
+
+    /** @return False if the listener was not in the index. */
+    boolean remove(KeyListener listener) {
+        Integer number = listenerNumbers.remove(listener);
+        if(number == null) return false;
+        listeners[number] = null;
+        staleEntries += entryCounts[number];
+        entryCounts[number] = 0;
+        if(listenerNumbers.isEmpty()) {
+            clear();
+        } else if(staleEntries > entries / 2) {
+            rebuild(capacityFor(entries - staleEntries));
+        }
+        return true;
+    }
+
+    boolean contains(KeyListener listener) {
+        return listenerNumbers.containsKey(listener);
+    }
+
+    /** @return The listeners which might want the key. Each listener is only returned once. */
+    List<KeyListener> get(byte[] saltedKey) {
+        long fingerprint = fingerprint(hash(saltedKey));
+        List<KeyListener> ret = null;
+        for(int i = slot(fingerprint);;i = (i + 1) & mask) {
+            long entry = table[i];
+            if(entry == 0) break;
+            if((entry >>> LISTENER_BITS) != fingerprint) continue;
+            KeyListener listener = listeners[(int) entry & (MAX_LISTENERS - 1)];
+            if(listener == null) continue;
+            if(ret == null) ret = new ArrayList<KeyListener>(1);
+            ret.add(listener);
+        }
+        if(ret == null) return Collections.emptyList();
+        return ret;
+    }
+
+    /** @return The listeners in the index. Must not be modified. */
+    Set<KeyListener> listeners() {
+        return listenerNumbers.keySet();
+    }
+
+    /** @return The number of listeners. */
+    int size() {
+        return listenerNumbers.size();
+    }
+
+    /** @return The number of keys indexed, not counting removed listeners. */
+    int countKeys() {
+        return entries - staleEntries;
+    }
+
+    /** @return The top 40 bits of the hash. Never zero, so an entry is never zero. */
+    private static long fingerprint(long hash) {
+        long fingerprint = hash >>> LISTENER_BITS;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int slot(long fingerprint) {
+        return ((int) fingerprint) & mask;
+    }
+
+    /** @return False if the entry was already present. */
+    private boolean insert(long fingerprint, int number) {
+        long entry = (fingerprint << LISTENER_BITS) | number;
+        for(int i = slot(fingerprint);;i = (i + 1) & mask) {
+            long e = table[i];
+            if(e == entry) return false;
+            if(e == 0) {
+                table[i] = entry;
+                entries++;
+                return true;
+            }
+        }
+    }
+
+    private static int capacityFor(long entries) {
+        int capacity = MIN_CAPACITY;
+        while(entries > capacity / 4 * 3)
+            capacity *= 2;
+        return capacity;
+    }
+
+    /** Rebuild the table with the given capacity, dropping stale entries and renumbering the
+     * listeners so that the numbers are contiguous. */
+    private void rebuild(int capacity) {
+        int[] newNumbers = new int[nextListenerNumber];
+        KeyListener[] newListeners = new KeyListener[Math.max(16, listeners.length)];
+        int[] newEntryCounts = new int[newListeners.length];
+        int next = 0;
+        for(int i=0;i<nextListenerNumber;i++) {
+            if(listeners[i] == null) continue;
+            newNumbers[i] = next;
+            newListeners[next] = listeners[i];
+            newEntryCounts[next] = entryCounts[i];
+            listenerNumbers.put(listeners[i], next);
+            next++;
+        }
+        long[] oldTable = table;
+        table = new long[capacity];
+        mask = capacity - 1;
+        entries = 0;
+        staleEntries = 0;
+        for(long entry : oldTable) {
+            if(entry == 0) continue;
+            int number = (int) entry & (MAX_LISTENERS - 1);
+            if(listeners[number] == null) continue;
+            insert(entry >>> LISTENER_BITS, newNumbers[number]);
+        }
+        listeners = newListeners;
+        entryCounts = newEntryCounts;
+        nextListenerNumber = next;
+    }
+
+    private void clear() {
+        table = new long[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+        entries = 0;
+        staleEntries = 0;
+        Arrays.fill(listeners, null);
+        Arrays.fill(entryCounts, 0);
+        nextListenerNumber = 0;
+    }
+
+}
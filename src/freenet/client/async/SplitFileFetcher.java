@@ -395,6 +395,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         // We need to fetch more blocks. Some of them may even be in the datastore.
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
+        parent.notifyChanged(context);
         context.jobRunner.setCheckpointASAP();
     }
 
@@ -458,6 +459,11 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         return context.getChkFetchScheduler(realTimeFlag).getGlobalKeySalter(persistent);
     }
 
+    @Override
+    public void onLoadedKeyHashes() {
+        context.getChkFetchScheduler(realTimeFlag).indexPendingKeys(storage.keyListener, persistent);
+    }
+
     public boolean writeTrivialProgress(DataOutputStream dos) throws IOException {
         boolean done = false;
         synchronized(this) {
@@ -4,8 +4,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -16,13 +16,13 @@ import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeCHK;
 import freenet.node.SendableGet;
-import freenet.support.BinaryBloomFilter;
+import freenet.support.AtomicBinaryBloomFilter;
+import freenet.support.AtomicCountingBloomFilter;
 import freenet.support.BloomFilter;
-import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexableKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -54,15 +54,21 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private final int perSegmentK;
     /** The overall bloom filter, containing all the keys, salted with the global hash. When a key
      * is found, it is removed from this. */
-    private final CountingBloomFilter filter;
+    private final AtomicCountingBloomFilter filter;
     /** The per-segment bloom filters, containing the keys for each segment. These are not changed. */
-    private final BinaryBloomFilter[] segmentFilters;
+    private final AtomicBinaryBloomFilter[] segmentFilters;
     private boolean finishedSetup;
     private final boolean persistent;
     /** Does the main bloom filter need writing? */
     private boolean dirty;
     private transient boolean mustRegenerateMainFilter;
     private transient boolean mustRegenerateSegmentFilters;
+    /** Hashes of the globally salted keys, for KeyListenerTracker's index. Collected as keys are
+     * added, or read from disk on startup, and dropped once the tracker has taken them. */
+    private long[] keyHashes;
+    private int keyHashCount;
+    /** True once keyHashes includes every key. */
+    private boolean hasAllKeyHashes;
     
     /** Create a set of bloom filters for a new download.
      * @throws FetchException */
@@ -99,28 +105,19 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         perSegmentSize = (perSegmentSize + 7) & ~7;
         perSegmentBloomFilterSizeBytes = perSegmentSize / 8;
         perSegmentK = BloomFilter.optimialK(perSegmentSize, segBlocks);
-        segmentFilters = new BinaryBloomFilter[segments];
-        byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
-        for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
-        }
-        byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        segmentFilters = new AtomicBinaryBloomFilter[segments];
+        for(int i=0;i<segments;i++)
+            segmentFilters[i] = new AtomicBinaryBloomFilter(perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+        filter = new AtomicCountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK);
         filter.setWarnOnRemoveFromEmpty();
     }
     
+    /** Restore the bloom filters for a download from disk.
+     * @param oldFilterFormat True if the filters on disk were written by the old BloomFilter
+     * code, which computed positions differently. We will have to regenerate them from the keys. */
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
-            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
+            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt,
+            boolean oldFilterFormat) 
     throws IOException, StorageFormatException {
         this.storage = storage;
         this.fetcher = callback;
@@ -141,29 +138,24 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         if(perSegmentK < 0)
             throw new StorageFormatException("Bad per segment bloom filter K");
         int segments = storage.segments.length;
-        segmentFilters = new BinaryBloomFilter[segments];
+        segmentFilters = new AtomicBinaryBloomFilter[segments];
         byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        try {
-            storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+        if(!oldFilterFormat) {
+            try {
+                storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+                mustRegenerateSegmentFilters = true;
+            }
+        } else {
             mustRegenerateSegmentFilters = true;
         }
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
         for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
+            segmentFilters[i] = new AtomicBinaryBloomFilter(segmentsFilterBuffer, 
+                    i * perSegmentBloomFilterSizeBytes, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        if(!newSalt) {
+        if(!newSalt && !oldFilterFormat) {
             try {
                 storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
             } catch (ChecksumFailedException e) {
@@ -173,7 +165,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new AtomicCountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
         filter.setWarnOnRemoveFromEmpty();
     }
 
@@ -184,8 +176,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     synchronized void addKey(Key key, int segNo, KeySalter salter) {
         if(finishedSetup && !(mustRegenerateMainFilter || mustRegenerateSegmentFilters)) 
             throw new IllegalStateException();
+        byte[] saltedKey = salter.saltKey(key);
         if(mustRegenerateMainFilter || !finishedSetup) {
-            byte[] saltedKey = salter.saltKey(key);
             filter.addKey(saltedKey);
         }
         if(mustRegenerateSegmentFilters || !finishedSetup) {
@@ -194,10 +186,42 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         }
 //      if(!segmentFilters[segNo].checkFilter(localSalted))
 //          Logger.error(this, "Key added but not in filter: "+key+" on "+this);
+        addKeyHash(saltedKey);
+    }
+    
+    /** Add a key for the index only. Used on startup, when the filters have been read from disk
+     * but the tracker needs all the keys. */
+    synchronized void addKeyHash(byte[] saltedKey) {
+        if(hasAllKeyHashes) return;
+        if(keyHashes == null)
+            keyHashes = new long[1024];
+        else if(keyHashCount == keyHashes.length)
+            keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+        keyHashes[keyHashCount++] = SaltedKeyIndex.hash(saltedKey);
+    }
+    
+    /** Called when addKeyHash() has been called for every key. */
+    synchronized void addedAllKeyHashes() {
+        hasAllKeyHashes = true;
+    }
+    
+    /** @return True if we need to read the keys from disk for the index. */
+    synchronized boolean needsKeyHashes() {
+        return !hasAllKeyHashes;
+    }
+    
+    @Override
+    public synchronized long[] takeKeyHashes() {
+        if(!hasAllKeyHashes || keyHashes == null) return null;
+        long[] ret = Arrays.copyOf(keyHashes, keyHashCount);
+        keyHashes = null;
+        keyHashCount = 0;
+        return ret;
     }
     
     synchronized void finishedSetup() {
         finishedSetup = true;
+        hasAllKeyHashes = true;
     }
 
     private byte[] localSaltKey(Key key) {
@@ -213,7 +237,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
      * once. Include a checksum. */
     void initialWriteSegmentBloomFilters(long fileOffset) throws IOException {
         OutputStream cos = storage.writeChecksummedTo(fileOffset, totalSegmentBloomFiltersSize());
-        for(BinaryBloomFilter segFilter : segmentFilters) {
+        for(AtomicBinaryBloomFilter segFilter : segmentFilters) {
             segFilter.writeTo(cos);
         }
         cos.close();
@@ -283,11 +307,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         if(logMINOR)
             Logger.minor(this, "handleBlock("+key+") on "+this+" for "+fetcher, new Exception("debug"));
         for(int i=0;i<segmentFilters.length;i++) {
-            boolean match;
-            synchronized(this) {
-                match = segmentFilters[i].checkFilter(salted);
-            }
-            if(match) {
+            if(segmentFilters[i].checkFilter(salted)) {
                 try {
                     found = storage.segments[i].onGotKey((NodeCHK)key, (CHKBlock)block);
                 } catch (IOException e) {
@@ -360,10 +380,11 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return mustRegenerateMainFilter || mustRegenerateSegmentFilters;
     }
 
-    public void addedAllKeys() {
+    public synchronized void addedAllKeys() {
         mustRegenerateMainFilter = false;
         mustRegenerateSegmentFilters = false;
         finishedSetup = true;
+        hasAllKeyHashes = true;
     }
 
 }
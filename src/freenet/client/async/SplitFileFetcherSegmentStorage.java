@@ -289,18 +289,30 @@ public class SplitFileFetcherSegmentStorage {
         final int prio = parent.getPriorityClass();
         parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
             
+            private PrefetchedBlocks prefetched;
+            
             @Override
             public int getPriority() {
                 return prio;
             }
             
+            @Override
+            public boolean hasPrefetch() {
+                return true;
+            }
+            
+            @Override
+            public void prefetch() {
+                prefetched = prefetchBlocks();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
                 CheckpointLock lock = null;
                 try {
                     lock = parent.jobRunner.lock();
-                    innerDecode(chunk);
+                    innerDecode(chunk, prefetched);
                 } catch (IOException e) {
                     Logger.error(this, "Failed to decode "+this+" because of disk error: "+e, e);
                     parent.failOnDiskError(e);
@@ -334,9 +346,34 @@ public class SplitFileFetcherSegmentStorage {
         return true;
     }
     
+    /** Blocks read ahead of a decode, and which blocks were in which slots at the time. */
+    private static class PrefetchedBlocks {
+        final byte[][] blocks;
+        final int[] blocksFetched;
+        PrefetchedBlocks(byte[][] blocks, int[] blocksFetched) {
+            this.blocks = blocks;
+            this.blocksFetched = blocksFetched;
+        }
+    }
+    
+    /** Read the blocks for a decode while waiting for a thread to decode on. 
+     * @return Null if we have finished or the read failed, in which case innerDecode() will read
+     * the blocks itself, and handle the error. */
+    private synchronized PrefetchedBlocks prefetchBlocks() {
+        if(succeeded || failed || finished) return null;
+        try {
+            return new PrefetchedBlocks(readAllBlocks(), blocksFetched.clone());
+        } catch (IOException e) {
+            if(logMINOR) Logger.minor(this, "Unable to prefetch blocks for "+this+" : "+e, e);
+            return null;
+        }
+    }
+    
     /** Attempt FEC decoding. Check blocks before decoding in case there is disk corruption. Check
-     * the new decoded blocks afterwards to ensure reproducible behaviour. */
-    private void innerDecode(MemoryLimitedChunk chunk) throws IOException {
+     * the new decoded blocks afterwards to ensure reproducible behaviour. 
+     * @param prefetched The blocks, if they have been read already. Ignored if we have fetched
+     * more blocks since. */
+    private void innerDecode(MemoryLimitedChunk chunk, PrefetchedBlocks prefetched) throws IOException {
         if(logMINOR) Logger.minor(this, "Trying to decode "+this+" for "+parent);
         // Even if we fail, once we set tryDecode=true, we need to notify the parent when we're done.
         boolean fail;
@@ -350,7 +387,15 @@ public class SplitFileFetcherSegmentStorage {
         }
         
         int totalBlocks = totalBlocks();
-        byte[][] allBlocks = readAllBlocks();
+        byte[][] allBlocks = null;
+        if(prefetched != null) {
+            synchronized(this) {
+                if(Arrays.equals(prefetched.blocksFetched, blocksFetched))
+                    allBlocks = prefetched.blocks;
+            }
+        }
+        if(allBlocks == null)
+            allBlocks = readAllBlocks();
         SplitFileSegmentKeys keys = getSegmentKeys();
         if(allBlocks == null || keys == null) {
             return;
@@ -39,6 +39,8 @@ import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
 import freenet.support.Logger;
+import freenet.support.MemoryLimitedChunk;
+import freenet.support.MemoryLimitedJob;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.RandomArrayIterator;
 import freenet.support.Ticker;
@@ -220,12 +222,16 @@ public class SplitFileFetcherStorage {
     static final long HAS_CHECKED_DATASTORE_FLAG = 1;
     /** Fixed value posted at the end of the file (if plaintext!) */
     static final long END_MAGIC = 0x28b32d99416eb6efL;
-    /** Current format version */
-    static final int VERSION = 1;
+    /** Current format version. Version 1 used the old Bloom filters, see 
+     * SplitFileFetcherKeyListener. */
+    static final int VERSION = 2;
     
     /** List of segments we need to tryStartDecode() on because their metadata was corrupted on
      * startup. */
     private List<SplitFileFetcherSegmentStorage> segmentsToTryDecode;
+    /** True if we have read an old version of the file, and will write the current version once
+     * the Bloom filters have been regenerated. */
+    private boolean mustUpgradeVersion;
     
     /** Construct a new SplitFileFetcherStorage from metadata. Creates the RandomAccessBuffer and
      * writes the initial data to it. There is another constructor for resuming a download. 
@@ -649,8 +655,9 @@ public class SplitFileFetcherStorage {
         raf.pread(rafLength-12, versionBuf, 0, 4);
         dis = new DataInputStream(new ByteArrayInputStream(versionBuf));
         int version = dis.readInt();
-        if(version != 1)
+        if(version != VERSION && version != 1)
             throw new StorageFormatException("Wrong version "+version);
+        mustUpgradeVersion = version < VERSION;
         // 2 bytes: Checksum type
         byte[] checksumTypeBuf = new byte[2];
         raf.pread(rafLength-14, checksumTypeBuf, 0, 2);
@@ -827,7 +834,7 @@ public class SplitFileFetcherStorage {
             for(int i=0;i<crossSegments;i++) {
                 this.crossSegments[i] = new SplitFileFetcherCrossSegmentStorage(this, i, dis);
             }
-            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt);
+            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt, mustUpgradeVersion);
         } catch (IOException e) {
             // We are reading from an array! Bad as written perhaps?
             throw new StorageFormatException("Cannot read basic settings even though passed checksum: "+e, e);
@@ -954,8 +961,16 @@ public class SplitFileFetcherStorage {
 
                     @Override
                     public boolean run(ClientContext context) {
-                        System.out.println("Regenerating filters for "+SplitFileFetcherStorage.this);
-                        Logger.error(this, "Regenerating filters for "+SplitFileFetcherStorage.this);
+                        boolean upgrade;
+                        synchronized(SplitFileFetcherStorage.this) {
+                            upgrade = mustUpgradeVersion;
+                        }
+                        if(upgrade) {
+                            Logger.normal(this, "Regenerating filters in the new format for "+SplitFileFetcherStorage.this);
+                        } else {
+                            System.out.println("Regenerating filters for "+SplitFileFetcherStorage.this);
+                            Logger.error(this, "Regenerating filters for "+SplitFileFetcherStorage.this);
+                        }
                         KeySalter salt = fetcher.getSalter();
                         for(int i=0;i<segments.length;i++) {
                             SplitFileFetcherSegmentStorage segment = segments[i];
@@ -975,16 +990,23 @@ public class SplitFileFetcherStorage {
                             }
                         }
                         keyListener.addedAllKeys();
+                        fetcher.onLoadedKeyHashes();
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
+                            if(upgrade)
+                                writeVersion();
                         } catch (IOException e) {
                             if(persistent)
                                 failOnDiskError(e);
                         }
                         fetcher.restartedAfterDataCorruption();
-                        Logger.warning(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
-                        System.out.println("Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                        if(upgrade) {
+                            Logger.normal(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                        } else {
+                            Logger.warning(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                            System.out.println("Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                        }
                         return false;
                     }
                     
@@ -994,9 +1016,80 @@ public class SplitFileFetcherStorage {
             }
             return false;
         }
+        if(keyListener.needsKeyHashes())
+            loadKeyHashes();
         return true;
     }
     
+    /** Write the current version to the footer of a file which was created by an older version,
+     * once everything has been converted. The checksum covers the basic settings length, flags,
+     * checksum type and version, and is followed by the flags, checksum type and version, so we 
+     * can update all of it with a single write. */
+    private void writeVersion() throws IOException {
+        byte[] lengthBuf = new byte[4];
+        raf.pread(rafLength-(22+checksumLength), lengthBuf, 0, 4);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0); // flags
+        dos.writeShort(checksumChecker.getChecksumTypeID());
+        dos.writeInt(VERSION);
+        byte[] version = baos.toByteArray();
+        byte[] bufToChecksum = Arrays.copyOf(lengthBuf, lengthBuf.length+version.length);
+        System.arraycopy(version, 0, bufToChecksum, lengthBuf.length, version.length);
+        byte[] checksum = checksumChecker.generateChecksum(bufToChecksum);
+        byte[] buf = Arrays.copyOf(checksum, checksum.length+version.length);
+        System.arraycopy(version, 0, buf, checksum.length, version.length);
+        raf.pwrite(rafLength-(18+checksumLength), buf, 0, buf.length);
+        synchronized(this) {
+            mustUpgradeVersion = false;
+        }
+    }
+    
+    /** Read the keys from disk in the background, so that the scheduler can index them. Until 
+     * then the KeyListener is asked about every key, so it's okay if this is slow, or fails. */
+    private void loadKeyHashes() {
+        long totalKeys = 0;
+        int maxKeysLength = 0;
+        for(SplitFileFetcherSegmentStorage segment : segments) {
+            int dataBlocks = segment.dataBlocks + segment.crossSegmentCheckBlocks;
+            totalKeys += dataBlocks + segment.checkBlocks;
+            maxKeysLength = Math.max(maxKeysLength, SplitFileFetcherSegmentStorage.storedKeysLength(
+                    dataBlocks, segment.checkBlocks, splitfileSingleCryptoKey != null, checksumLength));
+        }
+        final int prio = getPriorityClass();
+        memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(totalKeys * 8 + maxKeysLength) {
+
+            @Override
+            public int getPriority() {
+                return prio;
+            }
+
+            @Override
+            public boolean start(MemoryLimitedChunk chunk) {
+                KeySalter salt = fetcher.getSalter();
+                for(SplitFileFetcherSegmentStorage segment : segments) {
+                    if(hasFinished()) return true;
+                    try {
+                        SplitFileSegmentKeys keys = segment.readSegmentKeys();
+                        for(int j=0;j<keys.totalKeys();j++) {
+                            keyListener.addKeyHash(salt.saltKey(keys.getKey(j, null, false).getNodeKey(false)));
+                        }
+                    } catch (IOException e) {
+                        Logger.error(this, "Unable to read keys for "+SplitFileFetcherStorage.this+" : "+e, e);
+                        return true;
+                    } catch (ChecksumFailedException e) {
+                        Logger.error(this, "Unable to read keys for "+SplitFileFetcherStorage.this+" : "+e, e);
+                        return true;
+                    }
+                }
+                keyListener.addedAllKeyHashes();
+                fetcher.onLoadedKeyHashes();
+                return true;
+            }
+            
+        });
+    }
+    
     OutputStream checksumOutputStream(OutputStream os) {
         return checksumChecker.checksumWriter(os);
     }
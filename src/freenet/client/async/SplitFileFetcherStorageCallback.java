@@ -99,4 +99,8 @@ public interface SplitFileFetcherStorageCallback {
 
     KeySalter getSalter();
 
+    /** Called when the KeyListener has read all of its keys on startup, so the scheduler can 
+     * index them. */
+    void onLoadedKeyHashes();
+
 }
@@ -403,18 +403,30 @@ public class SplitFileInserterSegmentStorage {
                 " blocks "+totalBlockCount+" memory limit "+limit);
         parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
             
+            private byte[][] prefetched;
+            
             @Override
             public int getPriority() {
                 return prio;
             }
             
+            @Override
+            public boolean hasPrefetch() {
+                return true;
+            }
+            
+            @Override
+            public void prefetch() {
+                prefetched = prefetchDataBlocks();
+            }
+            
             @Override
             public boolean start(MemoryLimitedChunk chunk) {
                 boolean shutdown = false;
                 CheckpointLock lock = null;
                 try {
                     lock = parent.jobRunner.lock();
-                    innerEncode(chunk);
+                    innerEncode(chunk, prefetched);
                 } catch (PersistenceDisabledException e) {
                     // Will be retried on restarting.
                     shutdown = true;
@@ -440,7 +452,29 @@ public class SplitFileInserterSegmentStorage {
         });
     }
 
-    private void innerEncode(MemoryLimitedChunk chunk) {
+    /** Read the data and cross-check blocks for an encode while waiting for a thread to encode 
+     * on. They don't change once we are ready to encode.
+     * @return Null if cancelled or the read failed, in which case innerEncode() will read the 
+     * blocks itself, and handle the error. */
+    private byte[][] prefetchDataBlocks() {
+        RAFLock lock = null;
+        try {
+            synchronized(this) {
+                if(cancelled) return null;
+            }
+            lock = parent.lockRAF();
+            return readDataAndCrossCheckBlocks();
+        } catch (IOException e) {
+            if(logMINOR) Logger.minor(this, "Unable to prefetch blocks for "+this+" : "+e, e);
+            return null;
+        } finally {
+            if(lock != null) lock.unlock();
+        }
+    }
+
+    /** @param dataBlocks The data and cross-check blocks if they have been read already, or 
+     * null. */
+    private void innerEncode(MemoryLimitedChunk chunk, byte[][] dataBlocks) {
         RAFLock lock = null;
         try {
             synchronized(this) {
@@ -448,7 +482,8 @@ public class SplitFileInserterSegmentStorage {
             }
             lock = parent.lockRAF();
             if(logMINOR) Logger.minor(this, "Encoding "+this+" for "+parent);
-            byte[][] dataBlocks = readDataAndCrossCheckBlocks();
+            if(dataBlocks == null)
+                dataBlocks = readDataAndCrossCheckBlocks();
             generateKeys(dataBlocks, 0);
             byte[][] checkBlocks = new byte[checkBlockCount][];
             for(int i=0;i<checkBlocks.length;i++)
@@ -8,9 +8,8 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
@@ -58,6 +57,7 @@ import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.RingBufferPipe;
 
 /**
  *
@@ -214,8 +214,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			RingBufferPipe pipe = new RingBufferPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
 			try {
@@ -223,7 +224,6 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
 					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 					pipeIn = decompressorManager.execute();
 					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null,  ctx.getSchemeHostAndPort(), null, false, null, null, null, context.linkFilterExceptionProvider);
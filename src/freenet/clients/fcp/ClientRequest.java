@@ -348,6 +348,9 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		ClientRequester requester = getClientRequest();
+		if(requester != null)
+			requester.notifyChanged(server.core.clientContext);
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -381,6 +384,9 @@ public abstract class ClientRequest implements Serializable {
 			public boolean run(ClientContext context) {
 			    try {
 			        restart(context, disableFilterData);
+			        ClientRequester requester = getClientRequest();
+			        if(requester != null)
+			            requester.notifyChanged(context);
 			    } catch (PersistenceDisabledException e) {
 			        // Impossible
 			    }
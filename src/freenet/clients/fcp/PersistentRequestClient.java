@@ -523,14 +523,16 @@ public class PersistentRequestClient {
 			return lowLevelClient;
 	}
 	
-    public void addPersistentRequesters(List<ClientRequester> requesters) {
+    public synchronized void addPersistentRequesters(List<ClientRequester> requesters) {
         for(ClientRequest req : runningPersistentRequests)
             requesters.add(req.getClientRequest());
         for(ClientRequest req : completedUnackedRequests)
             requesters.add(req.getClientRequest());
     }
 
-    public void resume(ClientRequest clientRequest) {
+    /** Called when a request is resumed after loading it. May be called by several threads at 
+     * once when resuming in parallel. */
+    public synchronized void resume(ClientRequest clientRequest) {
         if(clientRequest.hasFinished())
             completedUnackedRequests.add(clientRequest);
         else
@@ -21,10 +21,12 @@ import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.node.FailureTable;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -46,6 +48,7 @@ import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
+import freenet.support.compress.DecompressorExecutor;
 import freenet.support.io.NativeThread;
 
 public class StatisticsToadlet extends Toadlet {
@@ -624,6 +627,10 @@ public class StatisticsToadlet extends Toadlet {
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
 				jvmStatsList.addChild("li", l10n("cryptoUsingJCA", "provider", Rijndael.getProviderName()));
+			jvmStatsList.addChild("li", l10n("decompressions", new String[] { "running", "queued", "rate" },
+					new String[] { Integer.toString(DecompressorExecutor.getRunningDecompressions()),
+						Integer.toString(DecompressorExecutor.getQueuedDecompressions()),
+						SizeUtil.formatSize((long) DecompressorExecutor.getBytesPerSecond(), true) }));
 		}
 	}
 	
@@ -733,6 +740,7 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("digestCacheHitRate"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -794,6 +802,11 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", access);
 			row.addChild("td", thousandPoint.format(sessionAccess.falsePos()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.falsePos())+")")));
+			try {
+				row.addChild("td", fix1p4.format(sessionAccess.digestCacheHitRate()) + "%");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -1058,6 +1071,16 @@ public class StatisticsToadlet extends Toadlet {
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
+			FailureTable ft = node.getFailureTable();
+			activityList.addChild("li", "failureTableEntries:\u00a0" + ft.getEntryCount() + " / " + ft.getMaxEntries() + ", offeredKeys:\u00a0" + ft.getOfferedKeyCount());
+			activityList.addChild("li", "failureTableRecentlyFailedHits:\u00a0" + ft.getRecentlyFailedHits() + " / " + ft.getRecentlyFailedLookups());
+			activityList.addChild("li", "failureTableOfferHits:\u00a0" + ft.getOfferHits() + " / " + ft.getOfferLookups());
+			long psSent = node.ps.getPacketsSent();
+			activityList.addChild("li", "packetSenderLoops:\u00a0" + node.ps.getLoopIterations() + ", peersTouchedPerPacket:\u00a0" + (psSent == 0 ? "-" : fix1p2.format((double)node.ps.getPeersTouched() / psSent)));
+			long droppedPackets = 0;
+			for(UdpSocketHandler handler : node.getPacketSocketHandlers())
+				droppedPackets += handler.getDroppedPackets();
+			activityList.addChild("li", "receiveWorkerDroppedPackets:\u00a0" + droppedPackets);
 		}
 		
 	}
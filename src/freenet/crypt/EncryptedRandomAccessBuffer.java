@@ -11,7 +11,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.SecretKey;
 
@@ -31,18 +31,21 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * The keystream position is always the file offset, so each read or write seeks its own cipher
+ * straight to the offset. Ciphers are kept in a pool rather than shared, so reads and writes at
+ * any offsets can run in parallel without locking.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
 public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable { 
     private static final long serialVersionUID = 1L;
-    private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
     private final EncryptedRandomAccessBufferType type;
     private final LockableRandomAccessBuffer underlyingBuffer;
     
-    private transient SkippingStreamCipher cipherRead;
-    private transient SkippingStreamCipher cipherWrite;
+    /** Initialised ciphers which are not in use. Holds at most one per thread which has used
+     * this buffer concurrently. */
+    private transient ConcurrentLinkedQueue<SkippingStreamCipher> ciphers;
     private transient ParametersWithIV cipherParams;//includes key
     
     private transient SecretKey headerMacKey;
@@ -82,9 +85,6 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
     
     private void setup(MasterSecret masterKey, boolean newFile) throws IOException, GeneralSecurityException {
-        this.cipherRead = this.type.get();
-        this.cipherWrite = this.type.get();
-        
         MasterSecret masterSecret = masterKey;
         
         this.headerEncKey = masterSecret.deriveKey(type.encryptKey);
@@ -137,8 +137,25 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
             throw new IllegalStateException(e); // Must be a bug.
         }
         this.cipherParams = tempPram;
-    	cipherRead.init(false, cipherParams);
-    	cipherWrite.init(true, cipherParams);
+        this.ciphers = new ConcurrentLinkedQueue<SkippingStreamCipher>();
+    }
+
+    /** Get a cipher from the pool, or create one, and seek it to the given offset. Seeking a
+     * ChaCha keystream is a counter calculation, not a skip through the data. Encryption and
+     * decryption are the same operation, so the same ciphers are used for both. Must be passed
+     * to releaseCipher() afterwards. */
+    private SkippingStreamCipher acquireCipher(long fileOffset) {
+        SkippingStreamCipher cipher = ciphers.poll();
+        if(cipher == null) {
+            cipher = type.get();
+            cipher.init(true, cipherParams);
+        }
+        cipher.seekTo(fileOffset);
+        return cipher;
+    }
+
+    private void releaseCipher(SkippingStreamCipher cipher) {
+        ciphers.add(cipher);
     }
 
     @Override
@@ -147,7 +164,8 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
 
     /**
-     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe. 
+     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe,
+     * and does not block concurrent reads or writes.
      */
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -163,28 +181,21 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
         
-        byte[] cipherText = new byte[length];
-        underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
+        // Read the ciphertext straight into buf and decrypt it in place.
+        underlyingBuffer.pread(fileOffset+type.headerLen, buf, bufOffset, length);
 
-        readLock.lock();
+        SkippingStreamCipher cipher = acquireCipher(fileOffset);
         try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
+            cipher.processBytes(buf, bufOffset, length, buf, bufOffset);
+            assert(cipher.getPosition() == fileOffset+length);
         }finally{
-            readLock.unlock();
+            releaseCipher(cipher);
         }
     }
 
     /**
-     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe. 
+     * Encrypts the given data and writes it to the underlying RAT. Encryption is thread-safe,
+     * and does not block concurrent reads or writes.
      */
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -202,20 +213,12 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
 
         byte[] cipherText = new byte[length];
 
-        writeLock.lock();
+        SkippingStreamCipher cipher = acquireCipher(fileOffset);
         try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
+            cipher.processBytes(buf, bufOffset, length, cipherText, 0);
+            assert(cipher.getPosition() == fileOffset+length);
         }finally{
-            writeLock.unlock();
+            releaseCipher(cipher);
         }
         underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
     }
@@ -442,6 +442,11 @@ public class FreenetInetAddress {
 		} else return this;
 	}
 
+	/** Was this address created from a hostname, rather than a numeric IP? */
+	public boolean hasHostname() {
+		return hostname != null;
+	}
+
 	public boolean hasHostnameNoIP() {
 		return hostname != null && hostname.length() > 0 && _address == null;
 	}
@@ -73,7 +73,8 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
-			for(PeerNode pn : crypto.getPeerNodes()) {
+			// Only peers watching for this sequence number can decrypt it.
+			for(PeerNode pn : crypto.getPeerNodesBySeqNum(buf, offset, length)) {
 				if(pn == opn) continue;
 				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
 					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
@@ -19,21 +19,17 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
-import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -49,6 +45,9 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * Fields are stored by their index in the MessageType, primitives unboxed, and are
+ * encoded and decoded by the MessageType's MessageCodec.
+ *
  * @author ian
  */
 public class Message {
@@ -70,7 +69,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageCodec _codec;
+	/** Primitive fields, as converted by MessageCodec.toBits(). Null if there are none. */
+	private final long[] _primitives;
+	/** All other fields. Null if there are none. */
+	private final Object[] _objects;
+	/** Bit i is set if field i has been set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -78,25 +83,31 @@ public class Message {
 	private boolean needsLoadRT;
 	private boolean needsLoadBulk;
 	
+	/** Encoding buffers larger than this are not kept for the next message. */
+	private static final int MAX_CACHED_ENCODE_BUFFER = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(4096);
+		}
+	};
+
 	public static Message decodeMessageFromPacket(byte[] buf, int offset, int length, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf, offset, length);
-		return decodeMessage(bb, peer, length + overhead, true, false, false);
+		return decodeMessage(ByteBuffer.wrap(buf, offset, length), peer, length + overhead, true, false, false);
 	}
 	
 	public static Message decodeMessageLax(byte[] buf, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
-		return decodeMessage(bb, peer, buf.length + overhead, true, false, true);
+		return decodeMessage(ByteBuffer.wrap(buf), peer, buf.length + overhead, true, false, true);
 	}
 
-	private static Message decodeMessage(ByteBufferInputStream bb, PeerContext peer, int recvByteCount,
+	private static Message decodeMessage(ByteBuffer bb, PeerContext peer, int recvByteCount,
 	        boolean mayHaveSubMessages, boolean inSubMessage, boolean veryLax) {
-		MessageType mspec;
-		try {
-			mspec = MessageType.getSpec(bb.readInt(), veryLax);
-		} catch (IOException e1) {
-			if (logMINOR) Logger.minor(Message.class,"Failed to read message type: "+e1, e1);
+		if (bb.remaining() < 4) {
+			if (logMINOR) Logger.minor(Message.class, "Failed to read message type: only "+bb.remaining()+" bytes");
 			return null;
 		}
+		MessageType mspec = MessageType.getSpec(bb.getInt(), veryLax);
 		if (mspec == null) {
 			if (logMINOR) Logger.minor(Message.class, "Bogus message type");
 			return null;
@@ -107,26 +118,14 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m._codec.decode(m, bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
-					ByteBufferInputStream bb2;
-					try {
-						int size = bb.readUnsignedShort();
-						if (bb.remaining() < size) return m;
-						bb2 = bb.slice(size);
-					} catch (EOFException e) {
-						if (logMINOR) Logger.minor(Message.class, "No submessages, returning: "+m);
-						return m;
-					}
+					int size = bb.getShort() & 0xFFFF;
+					if (bb.remaining() < size) return m;
+					ByteBuffer bb2 = bb.slice();
+					bb2.limit(size);
+					bb.position(bb.position() + size);
 					try {
 						Message subMessage = decodeMessage(bb2, peer, 0, false, true, veryLax);
 						if (subMessage == null) return m;
@@ -167,6 +166,10 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_codec = spec.getCodec();
+		int fields = _codec.getFieldCount();
+		_primitives = _codec.hasPrimitives() ? new long[fields] : null;
+		_objects = _codec.hasObjects() ? new Object[fields] : null;
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +177,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_codec = m._codec;
+		_primitives = m._primitives == null ? null : m._primitives.clone();
+		_objects = m._objects == null ? null : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +189,80 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The index of the field if it has the given primitive kind, otherwise -1. */
+	private int primitiveIndex(String key, int kind) {
+		int i = _spec.getFieldIndex(key);
+		if (i == -1 || _codec.getKind(i) != kind) return -1;
+		return i;
+	}
+
+	private long getBits(String key, int i) {
+		if (!isSet(i)) throw new FieldNotSetException(key+" not set");
+		return _primitives[i];
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.BOOLEAN);
+		if (i == -1) return (Boolean) getObject(key);
+		return getBits(key, i) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.BYTE);
+		if (i == -1) return (Byte) getObject(key);
+		return (byte) getBits(key, i);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.SHORT);
+		if (i == -1) return (Short) getObject(key);
+		return (short) getBits(key, i);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.INT);
+		if (i == -1) return (Integer) getObject(key);
+		return (int) getBits(key, i);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.LONG);
+		if (i == -1) return (Long) getObject(key);
+		return getBits(key, i);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.DOUBLE);
+		if (i == -1) return (Double) getObject(key);
+		return Double.longBitsToDouble(getBits(key, i));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int i = primitiveIndex(key, MessageCodec.FLOAT);
+		if (i == -1) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) getBits(key, i));
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _spec.getFieldIndex(key);
+		if (i == -1 || !isSet(i)) return null;
+		int kind = _codec.getKind(i);
+		if (MessageCodec.isPrimitive(kind))
+			return MessageCodec.fromBits(kind, _primitives[i]);
+		return _objects[i];
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +271,45 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		int i = primitiveIndex(key, MessageCodec.BOOLEAN);
+		if (i == -1) set(key, Boolean.valueOf(b));
+		else setBits(i, b ? 1 : 0);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		int i = primitiveIndex(key, MessageCodec.BYTE);
+		if (i == -1) set(key, Byte.valueOf(b));
+		else setBits(i, b);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		int i = primitiveIndex(key, MessageCodec.SHORT);
+		if (i == -1) set(key, Short.valueOf(s));
+		else setBits(i, s);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		int index = primitiveIndex(key, MessageCodec.INT);
+		if (index == -1) set(key, Integer.valueOf(i));
+		else setBits(index, i);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		int i = primitiveIndex(key, MessageCodec.LONG);
+		if (i == -1) set(key, Long.valueOf(l));
+		else setBits(i, l);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		int i = primitiveIndex(key, MessageCodec.DOUBLE);
+		if (i == -1) set(key, Double.valueOf(d));
+		else setBits(i, Double.doubleToRawLongBits(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		int i = primitiveIndex(key, MessageCodec.FLOAT);
+		if (i == -1) set(key, Float.valueOf(f));
+		else setBits(i, Float.floatToRawIntBits(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,45 +319,75 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		// checkType() has checked that the field exists.
+		int i = _spec.getFieldIndex(key);
+		int kind = _codec.getKind(i);
+		if (MessageCodec.isPrimitive(kind))
+			setBits(i, MessageCodec.toBits(kind, value));
+		else
+			setObjectAt(i, value);
 	}
 
-	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+	// For MessageCodec: fields by index, without type checks.
+
+	boolean isSet(int field) {
+		return (_set & (1L << field)) != 0;
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+	long getBits(int field) {
+		return _primitives[field];
+	}
+
+	void setBits(int field, long bits) {
+		_primitives[field] = bits;
+		_set |= 1L << field;
+	}
+
+	Object getObjectAt(int field) {
+		return _objects[field];
+	}
+
+	void setObjectAt(int field, Object value) {
+		_objects[field] = value;
+		_set |= 1L << field;
+	}
 
+	public byte[] encodeToPacket() {
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+		ByteBuffer buf = encodeBuffer.get();
+		while (true) {
+			buf.clear();
+			try {
+				encodeToBuffer(buf);
+				break;
+			} catch (BufferOverflowException e) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2);
+				if (buf.capacity() <= MAX_CACHED_ENCODE_BUFFER) encodeBuffer.set(buf);
 			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
 		}
+		byte[] data = new byte[buf.position()];
+		buf.flip();
+		buf.get(data);
+		if (logDEBUG) Logger.debug(this, "Length: "+data.length+", hash: "+Fields.hashCode(data));
+		return data;
+	}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+	/**
+	 * Encode the message, including sub-messages, at the buffer's position, in the same
+	 * format as encodeToPacket().
+	 * @throws BufferOverflowException If the message doesn't fit. The buffer's position is
+	 * then undefined.
+	 */
+	public void encodeToBuffer(ByteBuffer buf) {
+		_codec.encode(this, buf);
+		if (_subMessages != null) {
+			for (Message subMessage : _subMessages) {
+				int lengthPosition = buf.position();
+				buf.putShort((short) 0);
+				subMessage._codec.encode(subMessage, buf);
+				buf.putShort(lengthPosition, (short) (buf.position() - lengthPosition - 2));
 			}
 		}
-
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
 	}
 
 	@Override
@@ -313,9 +395,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (String name : _spec.getOrderedFields()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +417,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _spec.getFieldIndex(fieldName);
+		return i != -1 && isSet(i);
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -0,0 +1,338 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Encodes and decodes the fields of one MessageType, directly to and from a ByteBuffer. The
+ * type of each field is looked up once, when the codec is created, rather than for every field
+ * of every message, and primitive fields are read and written without boxing.
+ *
+ * The wire format is exactly the same as Serializer's: big-endian, the message type's ID, then
+ * each field in the order it was added.
+ */
+final class MessageCodec {
+
+	/** Fields are indexed by bits in a long. No DMT message comes close. */
+	static final int MAX_FIELDS = 64;
+
+	// Primitive kinds, stored in Message's long[].
+	static final int BOOLEAN = 0;
+	static final int BYTE = 1;
+	static final int SHORT = 2;
+	static final int INT = 3;
+	static final int LONG = 4;
+	static final int FLOAT = 5;
+	static final int DOUBLE = 6;
+	// Object kinds, stored in Message's Object[].
+	static final int STRING = 7;
+	static final int BUFFER = 8;
+	static final int SHORT_BUFFER = 9;
+	static final int DOUBLE_ARRAY = 10;
+	static final int FLOAT_ARRAY = 11;
+	static final int LIST = 12;
+	/** Anything else Serializer can handle, e.g. Peer, BitArray and keys. */
+	static final int OTHER = 13;
+
+	private final MessageType spec;
+	private final int id;
+	private final String[] names;
+	private final Class<?>[] types;
+	private final int[] kinds;
+	/** Element types for LIST fields */
+	private final Class<?>[] listTypes;
+	private final boolean hasPrimitives;
+	private final boolean hasObjects;
+
+	MessageCodec(MessageType spec) {
+		this.spec = spec;
+		id = spec.getName().hashCode();
+		List<String> fields = spec.getOrderedFields();
+		int count = fields.size();
+		names = fields.toArray(new String[count]);
+		types = new Class<?>[count];
+		kinds = new int[count];
+		listTypes = new Class<?>[count];
+		boolean primitives = false;
+		boolean objects = false;
+		for(int i = 0; i < count; i++) {
+			types[i] = spec.typeOf(names[i]);
+			kinds[i] = kindOf(types[i]);
+			if(kinds[i] == LIST)
+				listTypes[i] = spec.getLinkedListTypes().get(names[i]);
+			if(isPrimitive(kinds[i]))
+				primitives = true;
+			else
+				objects = true;
+		}
+		hasPrimitives = primitives;
+		hasObjects = objects;
+	}
+
+	private static int kindOf(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Float.class) return FLOAT;
+		if(type == Double.class) return DOUBLE;
+		if(type == String.class) return STRING;
+		if(type == Buffer.class) return BUFFER;
+		if(type == ShortBuffer.class) return SHORT_BUFFER;
+		if(type == double[].class) return DOUBLE_ARRAY;
+		if(type == float[].class) return FLOAT_ARRAY;
+		if(type == LinkedList.class) return LIST;
+		return OTHER;
+	}
+
+	static boolean isPrimitive(int kind) {
+		return kind <= DOUBLE;
+	}
+
+	int getFieldCount() {
+		return names.length;
+	}
+
+	int getKind(int field) {
+		return kinds[field];
+	}
+
+	boolean hasPrimitives() {
+		return hasPrimitives;
+	}
+
+	boolean hasObjects() {
+		return hasObjects;
+	}
+
+	/** Convert a primitive field's boxed value to how Message stores it. */
+	static long toBits(int kind, Object value) {
+		switch(kind) {
+		case BOOLEAN:
+			return ((Boolean) value) ? 1 : 0;
+		case BYTE:
+			return (Byte) value;
+		case SHORT:
+			return (Short) value;
+		case INT:
+			return (Integer) value;
+		case LONG:
+			return (Long) value;
+		case FLOAT:
+			return Float.floatToRawIntBits((Float) value);
+		case DOUBLE:
+			return Double.doubleToRawLongBits((Double) value);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/** Box a primitive field's value as stored by Message. */
+	static Object fromBits(int kind, long bits) {
+		switch(kind) {
+		case BOOLEAN:
+			return bits != 0;
+		case BYTE:
+			return (byte) bits;
+		case SHORT:
+			return (short) bits;
+		case INT:
+			return (int) bits;
+		case LONG:
+			return bits;
+		case FLOAT:
+			return Float.intBitsToFloat((int) bits);
+		case DOUBLE:
+			return Double.longBitsToDouble(bits);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Write the message type and all the fields, but not sub-messages.
+	 * @throws java.nio.BufferOverflowException If the message doesn't fit. The buffer's
+	 * position is then undefined.
+	 * @throws Message.FieldNotSetException If a field has not been set.
+	 */
+	void encode(Message m, ByteBuffer buf) {
+		buf.putInt(id);
+		DataOutputStream dos = null;
+		for(int i = 0; i < kinds.length; i++) {
+			if(!m.isSet(i))
+				throw new Message.FieldNotSetException(names[i] + " not set in " + spec.getName());
+			int kind = kinds[i];
+			if(isPrimitive(kind)) {
+				long bits = m.getBits(i);
+				switch(kind) {
+				case BOOLEAN:
+				case BYTE:
+					buf.put((byte) bits);
+					break;
+				case SHORT:
+					buf.putShort((short) bits);
+					break;
+				case INT:
+				case FLOAT:
+					buf.putInt((int) bits);
+					break;
+				default:
+					buf.putLong(bits);
+				}
+				continue;
+			}
+			Object o = m.getObjectAt(i);
+			switch(kind) {
+			case STRING:
+				String s = (String) o;
+				buf.putInt(s.length());
+				for(int x = 0; x < s.length(); x++)
+					buf.putChar(s.charAt(x));
+				break;
+			case BUFFER:
+				((Buffer) o).writeTo(buf);
+				break;
+			case SHORT_BUFFER:
+				((ShortBuffer) o).writeTo(buf);
+				break;
+			case DOUBLE_ARRAY:
+				double[] doubles = (double[]) o;
+				if(doubles.length > 255) {
+					throw new IllegalArgumentException("Cannot serialize an array of more than 255 doubles; attempted to " +
+					                                   "serialize " + doubles.length + ".");
+				}
+				buf.put((byte) doubles.length);
+				for(double d : doubles) buf.putDouble(d);
+				break;
+			case FLOAT_ARRAY:
+				float[] floats = (float[]) o;
+				buf.putShort((short) floats.length);
+				for(float f : floats) buf.putFloat(f);
+				break;
+			default:
+				// Lists, peers, keys etc are rare enough to go through Serializer.
+				if(dos == null) dos = new DataOutputStream(new ByteBufferOutputStream(buf));
+				try {
+					Serializer.writeToDataOutputStream(o, dos);
+					dos.flush();
+				} catch (IOException e) {
+					throw new IllegalStateException(e); // Impossible, or BufferOverflowException
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read all the fields into a message, after the message type.
+	 * @throws EOFException If the buffer ends before the last field.
+	 * @throws IOException If a field is invalid.
+	 */
+	void decode(Message m, ByteBuffer buf) throws IOException {
+		try {
+			for(int i = 0; i < kinds.length; i++) {
+				int kind = kinds[i];
+				switch(kind) {
+				case BOOLEAN:
+					final byte bool = buf.get();
+					// Only 0 and 1 are written, as for Serializer.
+					if(bool != 0 && bool != 1)
+						throw new IOException("Boolean is non boolean value: " + bool);
+					m.setBits(i, bool);
+					break;
+				case BYTE:
+					m.setBits(i, buf.get());
+					break;
+				case SHORT:
+					m.setBits(i, buf.getShort());
+					break;
+				case INT:
+				case FLOAT:
+					m.setBits(i, buf.getInt());
+					break;
+				case LONG:
+				case DOUBLE:
+					m.setBits(i, buf.getLong());
+					break;
+				case STRING:
+					m.setObjectAt(i, readString(buf));
+					break;
+				case DOUBLE_ARRAY:
+					// & 0xFF for unsigned byte. Can be up to 255, no negatives.
+					double[] doubles = new double[buf.get() & 0xFF];
+					for(int x = 0; x < doubles.length; x++) doubles[x] = buf.getDouble();
+					m.setObjectAt(i, doubles);
+					break;
+				case FLOAT_ARRAY:
+					final short length = buf.getShort();
+					if (length < 0 || length > Serializer.MAX_ARRAY_LENGTH/4) {
+						throw new IOException("Invalid flat array length: " + length);
+					}
+					float[] floats = new float[length];
+					for(int x = 0; x < floats.length; x++) floats[x] = buf.getFloat();
+					m.setObjectAt(i, floats);
+					break;
+				case LIST:
+					m.setObjectAt(i, Serializer.readListFromDataInputStream(listTypes[i], new ByteBufferInputStream(buf)));
+					break;
+				default:
+					// Shares the buffer's position.
+					m.setObjectAt(i, Serializer.readFromDataInputStream(types[i], new ByteBufferInputStream(buf)));
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw (EOFException)new EOFException().initCause(e);
+		}
+	}
+
+	private static String readString(ByteBuffer buf) throws IOException {
+		final int length = buf.getInt();
+		if (length < 0 || length > Serializer.MAX_ARRAY_LENGTH) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		if (buf.remaining() < length * 2) {
+			throw new EOFException();
+		}
+		char[] chars = new char[length];
+		for (int x = 0; x < length; x++) {
+			chars[x] = buf.getChar();
+		}
+		return new String(chars);
+	}
+
+	/** Writes to a ByteBuffer, for the few field types which can only write to a stream. */
+	private static class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
+
+	}
+
+}
@@ -37,6 +37,10 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** The position of each field in _orderedFields, which is also its index in a Message. */
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	/** Created when the first Message of this type is, after which fields can't be added. */
+	private volatile MessageCodec _codec;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -63,11 +67,22 @@ public class MessageType {
 	}
 	
 	public void addLinkedListField(String name, Class<?> parameter) {
-		_linkedListTypes.put(name, parameter);
 		addField(name, LinkedList.class);
+		_linkedListTypes.put(name, parameter);
 	}
 
-	public void addField(String name, Class<?> type) {
+	public synchronized void addField(String name, Class<?> type) {
+		if (_codec != null) {
+			throw new IllegalStateException("Cannot add field \"" + name + "\" to message type \"" + _name +
+			                                "\" after it has been used.");
+		}
+		if (_fields.containsKey(name)) {
+			throw new IllegalStateException("Field \"" + name + "\" is already defined in message type \"" + _name + "\".");
+		}
+		if (_orderedFields.size() == MessageCodec.MAX_FIELDS) {
+			throw new IllegalStateException("Too many fields in message type \"" + _name + "\".");
+		}
+		_fieldIndexes.put(name, _orderedFields.size());
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
 	}
@@ -98,6 +113,23 @@ public class MessageType {
 		return _fields.get(field);
 	}
 
+	/** @return The index of the field in getOrderedFields(), or -1 if it is not defined. */
+	int getFieldIndex(String field) {
+		Integer index = _fieldIndexes.get(field);
+		return index == null ? -1 : index;
+	}
+
+	/** @return The codec for messages of this type. No more fields can be added after this is
+	 * called. */
+	MessageCodec getCodec() {
+		MessageCodec codec = _codec;
+		if (codec != null) return codec;
+		synchronized (this) {
+			if (_codec == null) _codec = new MessageCodec(this);
+			return _codec;
+		}
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (!(o instanceof MessageType)) {
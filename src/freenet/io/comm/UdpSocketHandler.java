@@ -15,9 +15,15 @@ import java.net.DatagramSocket;
 import java.net.DatagramSocketImpl;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -30,6 +36,20 @@ import freenet.support.transport.ip.IPUtil;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final DatagramSocket _sock;
+	/** If non-null, we receive from the channel into a direct buffer. _sock is then the
+	 * channel's socket, which we still use for sending and for socket options. */
+	private final DatagramChannel channel;
+	/** If non-null, packets are handed to these to be decrypted and handled, rather than being
+	 * handled on the receiving thread. Packets from the same address always go to the same 
+	 * worker, so they are handled in the order they were received. */
+	private final ReceiveWorker[] workers;
+	/** Packet buffers for the workers. */
+	private final ArrayBlockingQueue<byte[]> freeBuffers;
+	/** Recently seen source addresses, so that we don't create a new Peer for every packet.
+	 * Only used by the receiving thread. */
+	private final Peer[] recentPeers = new Peer[RECENT_PEERS];
+	private static final int RECENT_PEERS = 256;
+	private final AtomicLong droppedPackets = new AtomicLong();
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -94,6 +114,21 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			}
 		}
 
+		private static int getFd(DatagramChannel c) {
+			int ret = -1;
+			try {
+				Field f = c.getClass().getDeclaredField("fd");
+				f.setAccessible(true);
+				FileDescriptor fdi = (FileDescriptor)f.get(c);
+				f = FileDescriptor.class.getDeclaredField("fd");
+				f.setAccessible(true);
+				ret = f.getInt(fdi);
+			} catch (Exception e) {
+			   Logger.normal(UdpSocketHandler.class, e.getMessage(), e);
+			}
+			return ret;
+		}
+
 		private static int getFd(DatagramSocket s) {
 			int ret = -1;
 			try {
@@ -113,9 +148,17 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 
 		public static boolean setAddressPreference(DatagramSocket s, SOCKET_ADDR_PREFERENCE p) {
+			return setAddressPreference(s, null, p);
+		}
+
+		public static boolean setAddressPreference(DatagramChannel c, SOCKET_ADDR_PREFERENCE p) {
+			return setAddressPreference(null, c, p);
+		}
+
+		private static boolean setAddressPreference(DatagramSocket s, DatagramChannel c, SOCKET_ADDR_PREFERENCE p) {
 			if(!Platform.isLinux())
 			    return false;
-			int fd = getFd(s);
+			int fd = c != null ? getFd(c) : getFd(s);
 			if(fd <= 2)
 			    return false;
 			int ret = -1;
@@ -127,6 +170,16 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(listenPort, bindto, node, startupTime, title, collector, false, 0);
+	}
+
+	/**
+	 * @param useNIO If true, receive packets with a DatagramChannel into a direct buffer.
+	 * @param receiveThreads If nonzero, decrypt and handle packets on this many worker threads
+	 * rather than on the receiving thread.
+	 */
+	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector,
+			boolean useNIO, int receiveThreads) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -137,7 +190,22 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		if(useNIO) {
+			try {
+				channel = DatagramChannel.open();
+				_sock = channel.socket();
+				_sock.bind(new InetSocketAddress(bindto, listenPort));
+			} catch (SocketException e) {
+				throw e;
+			} catch (IOException e) {
+				SocketException se = new SocketException("Unable to open DatagramChannel: "+e);
+				se.initCause(e);
+				throw se;
+			}
+		} else {
+			channel = null;
+			_sock = new DatagramSocket(listenPort, bindto);
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -153,13 +221,24 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		boolean r = channel != null ?
+				socketOptions.setAddressPreference(channel, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC) :
+				socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
 		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
 		tracker.startSend(startupTime);
+		if(receiveThreads > 0) {
+			workers = new ReceiveWorker[receiveThreads];
+			for(int i=0;i<receiveThreads;i++)
+				workers[i] = new ReceiveWorker();
+			freeBuffers = new ArrayBlockingQueue<byte[]>(receiveThreads * ReceiveWorker.QUEUE_LENGTH);
+		} else {
+			workers = null;
+			freeBuffers = null;
+		}
 	}
 
 	/** Must be called, or we will NPE in run() */
@@ -221,9 +300,13 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		ByteBuffer directBuf = channel == null ? null : ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
 		while (_active) {
 			try {
-				realRun(packet);
+				if(channel != null)
+					realRunNIO(directBuf, buf);
+				else
+					realRun(packet);
 			} catch (Throwable t) {
 				System.err.println("Caught "+t);
 				t.printStackTrace(System.err);
@@ -237,45 +320,175 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
+			Peer peer = getPeer(packet.getAddress(), packet.getPort());
+			handlePacket(packet.getData(), packet.getOffset(), packet.getLength(), peer, now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/**
+	 * Receive a packet from the channel into a direct buffer.
+	 * @param buf Buffer to copy the packet into if we handle it on this thread.
+	 */
+	private void realRunNIO(ByteBuffer directBuf, byte[] buf) {
+		// Single receiving thread
+		InetSocketAddress source = getPacket(directBuf);
+		long now = System.currentTimeMillis();
+		if (source != null) {
+			Peer peer = getPeer(source.getAddress(), source.getPort());
+			directBuf.flip();
+			int length = directBuf.remaining();
+			byte[] data = workers == null ? buf : allocateBuffer();
+			directBuf.get(data, 0, length);
+			handlePacket(data, 0, length, peer, now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Handle a packet on this thread, or pass it to a worker. If we pass it to a worker, data
+	 * must have come from allocateBuffer(). */
+	private void handlePacket(byte[] data, int offset, int length, Peer peer, long now) {
+		tracker.receivedPacketFrom(peer);
+		if(workers == null) {
+			processPacket(data, offset, length, peer, now);
+			return;
+		}
+		if(channel == null) {
+			// Copy out of the DatagramPacket's buffer.
+			byte[] copy = allocateBuffer();
+			System.arraycopy(data, offset, copy, 0, length);
+			data = copy;
+			offset = 0;
+		}
+		ReceiveWorker worker = workers[(peer.hashCode() & Integer.MAX_VALUE) % workers.length];
+		if(!worker.queue.offer(new ReceivedPacket(data, offset, length, peer, now))) {
+			// Like the socket buffer overflowing: the other side will retransmit.
+			droppedPackets.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Dropped packet from "+peer+" as the worker is busy");
+			releaseBuffer(data);
+		}
+	}
+
+	/** Decrypt and handle a packet. Called on the receiving thread or on a worker. */
+	private void processPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
 			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
+			lowLevelFilter.process(data, offset, length, peer, now);
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
 				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	/** Get a Peer for the source of a packet, reusing the last one for the same address if
+	 * possible. Peer's for numeric addresses are immutable, so they can be shared. */
+	private Peer getPeer(InetAddress address, int port) {
+		int slot = (address.hashCode() * 31 + port) & (RECENT_PEERS - 1);
+		Peer peer = recentPeers[slot];
+		if(peer != null && peer.getPort() == port && address.equals(peer.getAddress(false)))
+			return peer;
+		peer = new Peer(address, port);
+		recentPeers[slot] = peer;
+		return peer;
+	}
+
+	private byte[] allocateBuffer() {
+		byte[] buf = freeBuffers.poll();
+		return buf == null ? new byte[MAX_RECEIVE_SIZE] : buf;
+	}
+
+	private void releaseBuffer(byte[] buf) {
+		freeBuffers.offer(buf);
+	}
+
+	private static class ReceivedPacket {
+		final byte[] data;
+		final int offset;
+		final int length;
+		final Peer peer;
+		final long time;
+
+		ReceivedPacket(byte[] data, int offset, int length, Peer peer, long time) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.peer = peer;
+			this.time = time;
+		}
+	}
+
+	/** Decrypts and handles the packets from a subset of the source addresses. */
+	private class ReceiveWorker implements PrioRunnable {
+
+		/** Maximum number of packets waiting for each worker. Beyond this we drop packets. */
+		static final int QUEUE_LENGTH = 256;
+
+		final ArrayBlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(QUEUE_LENGTH);
+
+		@Override
+		public void run() {
+			while(_active) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
 				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+				if(packet == null) continue;
+				processPacket(packet.data, packet.offset, packet.length, packet.peer, packet.time);
+				releaseBuffer(packet.data);
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
+	}
+
+	/** @return The number of packets we have dropped because the workers could not keep up. */
+	public long getDroppedPackets() {
+		return droppedPackets.get();
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
+	/** @return The source address, or null if we didn't get a packet. */
+	private InetSocketAddress getPacket(ByteBuffer buf) {
+		InetSocketAddress source;
+		try {
+			buf.clear();
+			source = (InetSocketAddress) channel.receive(buf);
+			if(source == null) return null;
+			InetAddress address = source.getAddress();
+			boolean isLocal = !IPUtil.isValidAddress(address, false);
+			collector.addInfo(address, source.getPort(),
+					getHeadersLength(address) + buf.position(), 0, isLocal);
+		} catch (IOException e) {
+			if (!_active) { // closed, just return silently
+				return null;
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Received packet");
+		return source;
+	}
+
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
@@ -401,6 +614,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			startTime = System.currentTimeMillis();
 		}
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
+		if(workers != null) {
+			for(int i=0;i<workers.length;i++)
+				node.executor.execute(workers[i], "UdpSocketHandler worker "+i+" for port "+listenPort);
+		}
 	}
 
 	public void close() {
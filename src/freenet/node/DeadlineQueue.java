@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * When PacketSender next needs to look at each peer. A peer is always in the queue, and is
+ * taken out when it is due. Making a peer due sooner adds a new entry, and the old one is
+ * skipped when it reaches the head of the queue, so we never need to remove anything from the
+ * middle of the queue.
+ *
+ * Generic so it can be tested without real PeerNode's. Items are compared by identity.
+ *
+ * LOCKING: Protected by (this). Can be called with any locks held, we don't call out while
+ * holding the lock.
+ */
+class DeadlineQueue<T> {
+
+	/** When one item is next due. */
+	private static final class Schedule<T> {
+		final T item;
+		/** The time the item is due, if queued. */
+		long time;
+		/** Is there a valid entry for the item in the queue? */
+		boolean queued;
+		/** Has the item been removed by setItems()? */
+		boolean removed;
+
+		Schedule(T item) {
+			this.item = item;
+		}
+	}
+
+	/** An entry in the queue. Only valid if it matches the Schedule. */
+	private static final class Entry<T> implements Comparable<Entry<T>> {
+		final Schedule<T> schedule;
+		final long time;
+
+		Entry(Schedule<T> schedule, long time) {
+			this.schedule = schedule;
+			this.time = time;
+		}
+
+		boolean isValid() {
+			return schedule.queued && schedule.time == time && !schedule.removed;
+		}
+
+		@Override
+		public int compareTo(Entry<T> o) {
+			return Long.compare(time, o.time);
+		}
+	}
+
+	/** The Schedule for each item we know about. */
+	private final IdentityHashMap<T, Schedule<T>> schedules = new IdentityHashMap<T, Schedule<T>>();
+	/** Items by the time they are next due. May contain stale entries. */
+	private final PriorityQueue<Entry<T>> queue = new PriorityQueue<Entry<T>>();
+	/** The array passed to setItems() last time. */
+	private T[] knownItems;
+	/** The time sleep() will wake up, if something is sleeping. */
+	private long wakeTime = Long.MAX_VALUE;
+
+	/**
+	 * Make sure an item is due by the given time. If it is already due sooner this does
+	 * nothing. Wakes up sleep() if it is now due sooner than that would wake up.
+	 */
+	synchronized void schedule(T item, long time) {
+		Schedule<T> s = schedules.get(item);
+		// If we don't know about it yet, setItems() will queue it.
+		if(s == null) return;
+		if(s.queued && s.time <= time) return;
+		s.time = time;
+		s.queued = true;
+		queue.add(new Entry<T>(s, time));
+		if(time < wakeTime)
+			notifyAll();
+	}
+
+	/** Add new items, due immediately, and forget about items which are not in the array.
+	 * Does nothing if the array is the same as last time, since PeerManager replaces the array
+	 * whenever the peers change. */
+	synchronized void setItems(T[] items, long now) {
+		if(items == knownItems) return;
+		knownItems = items;
+		IdentityHashMap<T, Schedule<T>> old = new IdentityHashMap<T, Schedule<T>>(schedules);
+		for(T item : items) {
+			if(old.remove(item) != null) continue;
+			Schedule<T> s = new Schedule<T>(item);
+			schedules.put(item, s);
+			s.time = now;
+			s.queued = true;
+			queue.add(new Entry<T>(s, now));
+		}
+		for(Schedule<T> s : old.values()) {
+			s.removed = true;
+			schedules.remove(s.item);
+		}
+	}
+
+	/** Remove the items which are due from the queue. They won't be due again until they are
+	 * passed to schedule(). */
+	synchronized List<T> takeDue(long now) {
+		List<T> due = new ArrayList<T>();
+		while(true) {
+			Entry<T> e = peek();
+			if(e == null || e.time > now) break;
+			queue.poll();
+			e.schedule.queued = false;
+			due.add(e.schedule.item);
+		}
+		return due;
+	}
+
+	/** Sleep for up to maxSleep milliseconds, or until the next item is due, whichever is
+	 * sooner. Woken early if schedule() makes something due sooner than that. */
+	synchronized void sleep(long now, long maxSleep) throws InterruptedException {
+		Entry<T> next = peek();
+		if(next != null)
+			maxSleep = Math.min(maxSleep, next.time - now);
+		if(maxSleep <= 0) return;
+		wakeTime = now + maxSleep;
+		try {
+			wait(maxSleep);
+		} finally {
+			wakeTime = Long.MAX_VALUE;
+		}
+	}
+
+	/** @return The first valid entry in the queue, discarding any stale entries before it. */
+	private Entry<T> peek() {
+		while(true) {
+			Entry<T> e = queue.peek();
+			if(e == null || e.isValid()) return e;
+			queue.poll();
+		}
+	}
+
+}
@@ -8,7 +8,10 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -28,6 +31,7 @@ import freenet.support.ListUtils;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SerialExecutor;
+import freenet.support.Ticker;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
@@ -35,7 +39,7 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
+// LOCKING: Always take the Segment lock first if you need both. Take the FailureTableEntry 
 // lock only on cheap internal operations.
 
 /**
@@ -43,6 +47,12 @@ import freenet.support.io.NativeThread;
  * Implements Ultra-Lightweight Persistent Requests: Refuse requests for a key for 10 minutes after it's DNFed 
  * (UNLESS we find a better route for the request), and when it is found, offer it to those who've asked for it
  * in the last hour.
+ * 
+ * The table is split into segments by key, each with its own lock and its own LRU, so that
+ * onFound(), which is called for every block we receive, doesn't contend with unrelated keys.
+ * Entries are expired by a timing wheel: each entry is in the slot for the minute in which it
+ * will become empty, so the cleaner only looks at the entries which are due, rather than
+ * sweeping the whole table.
  * LOCKING: Do not lock PeerNode before FailureTable/FailureTableEntry.
  * @author toad
  */
@@ -61,16 +71,29 @@ public class FailureTable {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUMap<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the main FT. */
-	private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+	/** One part of the table. LOCKING: Synchronize on the Segment for entriesByKey. offersByKey
+	 * is synchronized on itself, as it doesn't interact with the main FT. */
+	private static final class Segment {
+		/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
+		final LRUMap<Key,FailureTableEntry> entriesByKey = LRUMap.createSafeMap();
+		/** BlockOfferList by key. */
+		final LRUMap<Key,BlockOfferList> offersByKey = LRUMap.createSafeMap();
+	}
+
+	/** Number of segments. Must be a power of 2. */
+	static final int SEGMENTS = 16;
+	private final Segment[] segments;
 	private final Node node;
+	private final Ticker ticker;
 	
-	/** Maximum number of keys to track */
+	/** Default maximum number of keys to track */
 	static final int MAX_ENTRIES = 20*1000;
-	/** Maximum number of offers to track */
+	/** Default maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	/** Maximum number of keys to track in each segment */
+	private final int maxEntriesPerSegment;
+	/** Maximum number of offers to track in each segment */
+	private final int maxOffersPerSegment;
 	/** Terminate a request if there was a DNF on the same key less than 10 minutes ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -86,17 +109,56 @@ public class FailureTable {
 	static final long OFFER_EXPIRY_TIME = MINUTES.toMillis(10);
 	/** HMAC key for the offer authenticator */
 	final byte[] offerAuthenticatorKey;
-	/** Clean up old data every 10 minutes to save memory and improve privacy */
-	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
+	/** Granularity of expiry, and how often the cleaner runs. */
+	static final long CLEANUP_PERIOD = MINUTES.toMillis(1);
+	/** Number of slots in the expiry wheel. Entries are never scheduled further ahead than
+	 * this. */
+	private static final int EXPIRY_SLOTS = 
+		(int) (FailureTableEntry.MAX_TIME_BETWEEN_REQUEST_AND_OFFER / CLEANUP_PERIOD) + 2;
+	/** Entries due to expire in each period. LOCKING: Synchronize on the set. Only change an 
+	 * entry's slot while holding the lock on its Segment. */
+	private final ExpirySlot[] expirySlots;
+	/** The last period the cleaner has dealt with. Only used by the cleaner. */
+	private long lastExpiredTick;
+
+	private static final class ExpirySlot {
+		final HashSet<FailureTableEntry> entries = new HashSet<FailureTableEntry>();
+	}
+
+	private final AtomicLong recentlyFailedLookups = new AtomicLong();
+	private final AtomicLong recentlyFailedHits = new AtomicLong();
+	private final AtomicLong offerLookups = new AtomicLong();
+	private final AtomicLong offerHits = new AtomicLong();
 
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
+		this(node, MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries The maximum number of keys to track. The number of offers scales with
+	 * it, from MAX_OFFERS for MAX_ENTRIES.
+	 */
+	FailureTable(Node node, int maxEntries) {
+		this(node, maxEntries, node.random, node.ticker);
+	}
+
+	/** For tests, which can pass in a Ticker which never runs the cleaner, and call
+	 * expireEntries() instead. */
+	FailureTable(Node node, int maxEntries, Random random, Ticker ticker) {
+		segments = new Segment[SEGMENTS];
+		for(int i=0;i<SEGMENTS;i++)
+			segments[i] = new Segment();
+		maxEntriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+		maxOffersPerSegment = Math.max(1, (int) ((long) maxEntries * MAX_OFFERS / MAX_ENTRIES / SEGMENTS));
+		expirySlots = new ExpirySlot[EXPIRY_SLOTS];
+		for(int i=0;i<EXPIRY_SLOTS;i++)
+			expirySlots[i] = new ExpirySlot();
 		this.node = node;
+		this.ticker = ticker;
 		offerAuthenticatorKey = new byte[32];
-		node.random.nextBytes(offerAuthenticatorKey);
+		random.nextBytes(offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
-		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
+		ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
 	}
 	
 	public void start() {
@@ -124,19 +186,25 @@ public class FailureTable {
 			rfTimeout = Math.max(Math.min(RECENTLY_FAILED_TIME, rfTimeout), 0);
 		}
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
-		long now = System.currentTimeMillis();
+		onFailed(key, routedTo, htl, rfTimeout, ftTimeout, System.currentTimeMillis());
+	}
+
+	/** Record a failure, after the timeouts have been checked. */
+	void onFailed(Key key, PeerNodeUnlocked routedTo, short htl, long rfTimeout, long ftTimeout, long now) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			segment.entriesByKey.push(key, entry);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
+			scheduleExpiry(entry, now + FailureTableEntry.MAX_TIME_BETWEEN_REQUEST_AND_OFFER);
 
-			trimEntries(now);
+			trimEntries(segment);
 		}
 	}
 	
@@ -161,11 +229,12 @@ public class FailureTable {
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null)
 				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+			segment.entriesByKey.push(key, entry);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -175,29 +244,71 @@ public class FailureTable {
 				entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
+			scheduleExpiry(entry, now + FailureTableEntry.MAX_TIME_BETWEEN_REQUEST_AND_OFFER);
 			
-			trimEntries(now);
+			trimEntries(segment);
 		}
 	}
-	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
+
+	private Segment segmentFor(Key key) {
+		int hash = key.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/** Caller must hold the lock on the segment. */
+	private void trimEntries(Segment segment) {
+		while(segment.entriesByKey.size() > maxEntriesPerSegment) {
+			FailureTableEntry entry = segment.entriesByKey.popValue();
+			unscheduleExpiry(entry);
 		}
 	}
 
-	// LOCKING: Synchronized on FailureTable because we need to remove self in deleteOffer(). 
+	/** Remove an entry, if it is still in the table. Caller must hold the lock on the segment. */
+	private void removeEntry(Segment segment, FailureTableEntry entry) {
+		if(segment.entriesByKey.get(entry.key) != entry) return;
+		segment.entriesByKey.removeKey(entry.key);
+		unscheduleExpiry(entry);
+	}
+
+	/** Make sure the cleaner will look at the entry after the given time, which must not be
+	 * more than MAX_TIME_BETWEEN_REQUEST_AND_OFFER ahead. Caller must hold the lock on the
+	 * entry's segment. */
+	private void scheduleExpiry(FailureTableEntry entry, long time) {
+		// Round up, so we never look at it too early.
+		long tick = time / CLEANUP_PERIOD + 1;
+		if(entry.expiryTick == tick) return;
+		unscheduleExpiry(entry);
+		ExpirySlot slot = expirySlots[(int) (tick % EXPIRY_SLOTS)];
+		synchronized(slot) {
+			slot.entries.add(entry);
+		}
+		entry.expiryTick = tick;
+	}
+
+	/** Caller must hold the lock on the entry's segment. */
+	private void unscheduleExpiry(FailureTableEntry entry) {
+		if(entry.expiryTick < 0) return;
+		ExpirySlot slot = expirySlots[(int) (entry.expiryTick % EXPIRY_SLOTS)];
+		synchronized(slot) {
+			slot.entries.remove(entry);
+		}
+		entry.expiryTick = -1;
+	}
+
+	// LOCKING: Synchronized on the segment's offersByKey because we need to remove self in deleteOffer(). 
 	private final class BlockOfferList {
 		private BlockOffer[] offers;
 		final FailureTableEntry entry;
+		private final LRUMap<Key,BlockOfferList> offersByKey;
 		
-		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
+		BlockOfferList(FailureTableEntry entry, BlockOffer offer, LRUMap<Key,BlockOfferList> offersByKey) {
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
+			this.offersByKey = offersByKey;
 		}
 
 		public long expires() {
-			synchronized(blockOfferListByKey) {
+			synchronized(offersByKey) {
 				long last = 0;
 				for(BlockOffer offer: offers) {
 					if(offer.offeredTime > last) last = offer.offeredTime;
@@ -207,7 +318,7 @@ public class FailureTable {
 		}
 
 		public boolean isEmpty(long now) {
-			synchronized(blockOfferListByKey) {
+			synchronized(offersByKey) {
 				for(BlockOffer offer: offers) {
 					if(!offer.isExpired(now)) return false;
 				}
@@ -217,7 +328,7 @@ public class FailureTable {
 
 		public void deleteOffer(BlockOffer offer) {
 			if(logMINOR) Logger.minor(this, "Deleting "+offer+" from "+this);
-			synchronized(blockOfferListByKey) {
+			synchronized(offersByKey) {
 				int idx = -1;
 				final int offerLength = offers.length;
 				for(int i=0;i<offerLength;i++) {
@@ -231,13 +342,13 @@ public class FailureTable {
 					System.arraycopy(offers, idx + 1, newOffers, idx, offers.length - idx - 1);
 				offers = newOffers;
 				if(offers.length > 1) return;
-				blockOfferListByKey.removeKey(entry.key);
+				offersByKey.removeKey(entry.key);
 			}
 			node.clientCore.dequeueOfferedKey(entry.key);
 		}
 
 		public void addOffer(BlockOffer offer) {
-			synchronized(blockOfferListByKey) {
+			synchronized(offersByKey) {
 				offers = Arrays.copyOf(offers, offers.length+1);
 				offers[offers.length-1] = offer;
 			}
@@ -294,16 +405,17 @@ public class FailureTable {
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized(blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment.offersByKey) {
+			segment.offersByKey.removeKey(key);
 		}
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
+			removeEntry(segment, entry);
 		}
 		if(logMINOR) Logger.minor(this, "Offering key");
 		if(!node.enableULPRDataPropagation) return;
@@ -326,8 +438,9 @@ public class FailureTable {
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
@@ -361,8 +474,9 @@ public class FailureTable {
 		// Re-check after potentially long disk I/O.
 		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
@@ -403,15 +517,15 @@ public class FailureTable {
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
 			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
+				synchronized(segment) {
+					removeEntry(segment, entry);
 				}
 			}
 			return;
 		}
 		if(entry.isEmpty(now)) {
-			synchronized(this) {
-				entriesByKey.removeKey(key);
+			synchronized(segment) {
+				removeEntry(segment, entry);
 			}
 		}
 		
@@ -419,17 +533,18 @@ public class FailureTable {
 		
 		// Add to offers list
 		
-		synchronized(blockOfferListByKey) {			
+		LRUMap<Key,BlockOfferList> offersByKey = segment.offersByKey;
+		synchronized(offersByKey) {			
 			if(logMINOR) Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
+			BlockOfferList bl = offersByKey.get(key);
 			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
 			if(bl == null) {
-				bl = new BlockOfferList(entry, offer);
+				bl = new BlockOfferList(entry, offer, offersByKey);
 			} else {
 				bl.addOffer(offer);
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			offersByKey.push(key, bl);
+			trimOffersList(offersByKey, now);
 		}
 		
 		// Accept the offer.
@@ -443,14 +558,14 @@ public class FailureTable {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized(blockOfferListByKey) {
+	private void trimOffersList(LRUMap<Key,BlockOfferList> offersByKey, long now) {
+		synchronized(offersByKey) {
 			while(true) {
-				if(blockOfferListByKey.isEmpty()) return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
+				if(offersByKey.isEmpty()) return;
+				BlockOfferList bl = offersByKey.peekValue();
+				if(bl.isEmpty(now) || bl.expires() < now || offersByKey.size() > maxOffersPerSegment) {
+					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+offersByKey.size());
+					offersByKey.popKey();
 				} else {
 					return;
 				}
@@ -655,18 +770,26 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized(blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
-		}
+		LRUMap<Key,BlockOfferList> offersByKey = segmentFor(key).offersByKey;
+		boolean hadOffers;
+		synchronized(offersByKey) {
+			hadOffers = offersByKey.get(key) != null;
+		}
+		offerLookups.incrementAndGet();
+		if(hadOffers) offerHits.incrementAndGet();
+		return hadOffers;
 	}
 
 	public OfferList getOffers(Key key) {
 		if(!node.enableULPRDataPropagation) return null;
 		BlockOfferList bl;
-		synchronized(blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
+		LRUMap<Key,BlockOfferList> offersByKey = segmentFor(key).offersByKey;
+		offerLookups.incrementAndGet();
+		synchronized(offersByKey) {
+			bl = offersByKey.get(key);
 			if(bl == null) return null;
 		}
+		offerHits.incrementAndGet();
 		return new OfferList(bl);
 	}
 
@@ -678,9 +801,64 @@ public class FailureTable {
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if(!node.enablePerNodeFailureTables) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		FailureTableEntry entry;
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 		}
+		recentlyFailedLookups.incrementAndGet();
+		if(entry != null) recentlyFailedHits.incrementAndGet();
+		return entry;
+	}
+
+	/** @return The entry for the key, if any, without counting it as a lookup. */
+	FailureTableEntry getEntry(Key key) {
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			return segment.entriesByKey.get(key);
+		}
+	}
+
+	/** Go round the expiry wheel up to the given time, removing entries which are empty by then.
+	 * Called by the cleaner; must not be called concurrently.
+	 * @return The number of entries removed. */
+	int expireEntries(long now) {
+		long currentTick = now / CLEANUP_PERIOD;
+		// Don't go round the wheel more than once if we haven't run for a long time.
+		long firstTick = Math.max(lastExpiredTick + 1, currentTick - EXPIRY_SLOTS + 1);
+		int removed = 0;
+		for(long tick = firstTick; tick <= currentTick; tick++)
+			removed += expire(tick, now);
+		lastExpiredTick = currentTick;
+		return removed;
+	}
+
+	/** Clean up the entries in one slot of the wheel.
+	 * @return The number of entries removed. */
+	private int expire(long tick, long now) {
+		ExpirySlot slot = expirySlots[(int) (tick % EXPIRY_SLOTS)];
+		FailureTableEntry[] entries;
+		synchronized(slot) {
+			if(slot.entries.isEmpty()) return 0;
+			entries = slot.entries.toArray(new FailureTableEntry[slot.entries.size()]);
+		}
+		int removed = 0;
+		for(FailureTableEntry entry: entries) {
+			Segment segment = segmentFor(entry.key);
+			synchronized(segment) {
+				// May have been rescheduled or removed since we took the snapshot.
+				if(entry.expiryTick < 0 || entry.expiryTick > tick) continue;
+				if(entry.cleanup(now)) {
+					if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
+					removeEntry(segment, entry);
+					removed++;
+				} else {
+					// Still in use, e.g. the clock went backwards. Try again later.
+					scheduleExpiry(entry, now + CLEANUP_PERIOD);
+				}
+			}
+		}
+		return removed;
 	}
 	
 	public class FailureTableCleaner implements Runnable {
@@ -692,39 +870,24 @@ public class FailureTable {
 			} catch (Throwable t) {
 				Logger.error(this, "FailureTableCleaner caught "+t, t);
 			} finally {
-				node.ticker.queueTimedJob(this, CLEANUP_PERIOD);
+				ticker.queueTimedJob(this, CLEANUP_PERIOD);
 			}
 		}
 
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
-			}
-			for(FailureTableEntry entry: entries) {
-				if(entry.cleanup()) {
-					synchronized(FailureTable.this) {
-						synchronized(entry) {
-						if(entry.isEmpty()) {
-							if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
-							entriesByKey.removeKey(entry.key);
-						}
-						}
-					}
-				}
-			}
+			int removed = expireEntries(startTime);
 			long endTime = System.currentTimeMillis();
-			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
+			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms, removed "+removed+" entries");
 		}
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null) return false; // Nobody cares
 		}
 		return entry.othersWant(apartFrom);
@@ -733,10 +896,59 @@ public class FailureTable {
         /** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Segment segment = segmentFor(key);
+		synchronized(segment) {
+			entry = segment.entriesByKey.get(key);
 			if(entry == null) return htl;
 		}
 		return entry.minRequestorHTL(htl);
 	}
+
+	/** @return The number of keys we are tracking. */
+	public int getEntryCount() {
+		int total = 0;
+		for(Segment segment : segments) {
+			synchronized(segment) {
+				total += segment.entriesByKey.size();
+			}
+		}
+		return total;
+	}
+
+	/** @return The maximum number of keys we will track. */
+	public int getMaxEntries() {
+		return maxEntriesPerSegment * SEGMENTS;
+	}
+
+	/** @return The number of keys we have offers for. */
+	public int getOfferedKeyCount() {
+		int total = 0;
+		for(Segment segment : segments) {
+			synchronized(segment.offersByKey) {
+				total += segment.offersByKey.size();
+			}
+		}
+		return total;
+	}
+
+	/** @return The number of times we have looked up the failure table entry for a key when
+	 * routing, i.e. to decide whether it has recently failed. */
+	public long getRecentlyFailedLookups() {
+		return recentlyFailedLookups.get();
+	}
+
+	/** @return The number of those lookups which found an entry. */
+	public long getRecentlyFailedHits() {
+		return recentlyFailedHits.get();
+	}
+
+	/** @return The number of times we have checked for offers for a key. */
+	public long getOfferLookups() {
+		return offerLookups.get();
+	}
+
+	/** @return The number of those checks which found offers. */
+	public long getOfferHits() {
+		return offerHits.get();
+	}
 }
@@ -36,6 +36,9 @@ class FailureTableEntry implements TimedOutNodesList {
 	long receivedTime;
 	/** Time we last received a DNF after sending a request for a key */
 	long sentTime;
+	/** The period in which the FailureTable will next try to expire this entry, or -1 if it is
+	 * not scheduled. Protected by the FailureTable segment lock. */
+	long expiryTick = -1;
 	/** WeakReference's to PeerNodeUnlocked's who have requested the key */
 	WeakReference<? extends PeerNodeUnlocked>[] requestorNodes;
 	/** Times at which they requested it */
@@ -490,9 +493,13 @@ class FailureTableEntry implements TimedOutNodesList {
 		return timeout;
 	}
 	
-	public synchronized boolean cleanup() {
-		long now = System.currentTimeMillis(); // don't pass in as a pass over the whole FT may take a while. get it in the method.
-		
+	public boolean cleanup() {
+		return cleanup(System.currentTimeMillis());
+	}
+
+	/** @param now The current time. The FailureTable's cleaner only looks at the entries which
+	 * are due, so it can pass in the time it started. */
+	synchronized boolean cleanup(long now) {
 		boolean empty = cleanupRequestor(now);
 		empty &= cleanupRequested(now);
 		return empty;
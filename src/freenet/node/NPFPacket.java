@@ -43,11 +43,18 @@ class NPFPacket {
 	private int ackBlockByteSize = 0;
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, 0, plaintext.length, pn);
+	}
+
+	/** Parse a decrypted packet. The fragments are copied, so the buffer may be reused
+	 * afterwards. */
+	public static NPFPacket create(byte[] plaintext, int start, int length, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
 		if (pn == null) throw new IllegalArgumentException("Can't estimate an ack type of received packet");
-		int offset = 0;
+		int offset = start;
+		int end = start + length;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(end < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -66,6 +73,8 @@ class NPFPacket {
 					int ack, prevAck = 0;
 					
 					for(int i = 0; i < numAckRanges; i++) {
+						// The buffer may be longer than the packet, so check explicitly.
+						if (end < offset + (i == 0 ? 5 : 2)) throw new ArrayIndexOutOfBoundsException(offset);
 						if (i == 0) {
 							ack = ((plaintext[offset] & 0xFF) << 24)
 						               | ((plaintext[offset + 1] & 0xFF) << 16)
@@ -78,6 +87,7 @@ class NPFPacket {
 								ack = prevAck + distanceFromPrevious;
 							} else {
 								// Far offset
+								if (end < offset + 5) throw new ArrayIndexOutOfBoundsException(offset);
 								ack = ((plaintext[offset] & 0xFF) << 24)
 							               | ((plaintext[offset + 1] & 0xFF) << 16)
 							               | ((plaintext[offset + 2] & 0xFF) << 8)
@@ -102,20 +112,20 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < end) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, end);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(end < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -126,7 +136,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(end < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -145,7 +155,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(end < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -182,8 +192,8 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > end) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
@@ -194,33 +204,33 @@ class NPFPacket {
 			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
 		}
 		
-		packet.length = offset;
+		packet.length = offset - start;
 
 		return packet;
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int end) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= end) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > end - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == end) return offset;
 		}
 	}
 
@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -12,9 +11,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
-import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
@@ -31,7 +27,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -142,6 +138,9 @@ public class NewPacketFormat implements PacketFormat {
 			return false;
 		}
 
+		// Move the watch list now, so packets from a new address can be found in the index.
+		updateWatchList(s);
+
 		pn.receivedPacket(false, true);
 		pn.verified(s);
 		pn.maybeRekey();
@@ -315,51 +314,24 @@ public class NewPacketFormat implements PacketFormat {
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
-		// Create the watchlist if the key has changed
-		if(keyContext.seqNumWatchList == null) {
-			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
-			
-			keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
-
-			int seqNum = keyContext.watchListOffset;
-			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
-				if(seqNum < 0) seqNum = 0;
-			}
-		}
+		updateWatchList(sessionKey);
 
-		// Move the watchlist if needed
-		int highestReceivedSeqNum;
-		synchronized(this) {
-			highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
+		SeqNumWatchListIndex watchListIndex;
+		synchronized(keyContext) {
+			watchListIndex = keyContext.watchListIndex;
 		}
-		// The entry for the highest received sequence number is kept in the middle of the list
-		int oldHighestReceived = (int) ((0l + keyContext.watchListOffset + (keyContext.seqNumWatchList.length / 2)) % NUM_SEQNUMS);
-		if(seqNumGreaterThan(highestReceivedSeqNum, oldHighestReceived, 31)) {
-			int moveBy;
-			if(highestReceivedSeqNum > oldHighestReceived) {
-				moveBy = highestReceivedSeqNum - oldHighestReceived;
-			} else {
-				moveBy = ((int) (NUM_SEQNUMS - oldHighestReceived)) + highestReceivedSeqNum;
-			}
-
-			if(moveBy > keyContext.seqNumWatchList.length) {
-				Logger.warning(this, "Moving watchlist pointer by " + moveBy);
-			} else if(moveBy < 0) {
-				Logger.warning(this, "Tried moving watchlist pointer by " + moveBy);
-				moveBy = 0;
-			} else {
-				if(logDEBUG) Logger.debug(this, "Moving watchlist pointer by " + moveBy);
-			}
-
-			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
-			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
-				if(seqNum < 0) seqNum = 0;
+		if(watchListIndex != null) {
+			if(length < HMAC_LENGTH + 4) return null;
+			for(SeqNumWatchListIndex.Match m = watchListIndex.get(buf, offset + HMAC_LENGTH); m != null; m = m.next) {
+				if(m.key != sessionKey) continue;
+				if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + m.seqNum);
+				NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, m.seqNum);
+				if(p != null) {
+					if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
+					return p;
+				}
 			}
-
-			keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
-			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
+			return null;
 		}
 
 		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
@@ -382,34 +354,107 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
-	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
-			if (logMINOR) {
-				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+	/** Create the watch list of encrypted sequence numbers we expect to receive on a new key,
+	 * and add it to the node's SeqNumWatchListIndex. Called when the key is set up, so that
+	 * its first packet can be found even if it comes from an address we don't know yet. */
+	static void createWatchList(SessionKey sessionKey) {
+		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		synchronized(keyContext) {
+			if(keyContext.seqNumWatchList == null) {
+				if(logMINOR) Logger.minor(NewPacketFormat.class, "Creating watchlist starting at " + keyContext.watchListOffset);
+				
+				keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
+
+				int seqNum = keyContext.watchListOffset;
+				for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
+					keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
+					if(seqNum < 0) seqNum = 0;
+				}
 			}
 
-			return null;
+			if(keyContext.watchListIndex == null && !keyContext.watchListForgotten) {
+				SeqNumWatchListIndex index = getWatchListIndex(sessionKey);
+				if(index != null) index.addAll(sessionKey);
+			}
 		}
+	}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+	/** Move the watch list along if we have received packets near its end, keeping the node's
+	 * SeqNumWatchListIndex up to date. Creates it if necessary. */
+	private void updateWatchList(SessionKey sessionKey) {
+		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		synchronized(keyContext) {
+			createWatchList(sessionKey);
 
-		NPFPacket p = NPFPacket.create(payload, pn);
+			// Move the watchlist if needed
+			int highestReceivedSeqNum;
+			synchronized(this) {
+				highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
+			}
+			// The entry for the highest received sequence number is kept in the middle of the list
+			int oldHighestReceived = (int) ((0l + keyContext.watchListOffset + (keyContext.seqNumWatchList.length / 2)) % NUM_SEQNUMS);
+			if(seqNumGreaterThan(highestReceivedSeqNum, oldHighestReceived, 31)) {
+				int moveBy;
+				if(highestReceivedSeqNum > oldHighestReceived) {
+					moveBy = highestReceivedSeqNum - oldHighestReceived;
+				} else {
+					moveBy = ((int) (NUM_SEQNUMS - oldHighestReceived)) + highestReceivedSeqNum;
+				}
+
+				if(moveBy > keyContext.seqNumWatchList.length) {
+					Logger.warning(this, "Moving watchlist pointer by " + moveBy);
+				} else if(moveBy < 0) {
+					Logger.warning(this, "Tried moving watchlist pointer by " + moveBy);
+					moveBy = 0;
+				} else {
+					if(logDEBUG) Logger.debug(this, "Moving watchlist pointer by " + moveBy);
+				}
+
+				SeqNumWatchListIndex index = keyContext.watchListIndex;
+				int length = keyContext.seqNumWatchList.length;
+				int seqNum = (int) ((0l + keyContext.watchListOffset + length) % NUM_SEQNUMS);
+				for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
+					byte[] encrypted = encryptSequenceNumber(seqNum, sessionKey);
+					if(index != null) {
+						// The entry being replaced is always the one length sequence numbers back.
+						int oldSeqNum = (int) ((seqNum - (long) length + NUM_SEQNUMS) % NUM_SEQNUMS);
+						index.replace(sessionKey, keyContext.seqNumWatchList[i % length], oldSeqNum, encrypted, seqNum);
+					}
+					keyContext.seqNumWatchList[i % length] = encrypted;
+					seqNum++;
+					if(seqNum < 0) seqNum = 0;
+				}
+
+				keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % length;
+				keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
+			}
+		}
+	}
+
+	/** @return The index of watched sequence numbers for the NodeCrypto the key's peer is on,
+	 * or null if there isn't one, e.g. in tests. */
+	private static SeqNumWatchListIndex getWatchListIndex(SessionKey sessionKey) {
+		PeerNode pn = sessionKey.pn;
+		if(pn == null || pn.crypto == null) return null;
+		return pn.crypto.seqNumWatchListIndex;
+	}
+
+	/** Must NOT modify buf contents unless the packet was sent on this key, in which case it is
+	 * decrypted in place. */
+	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
+		NewPacketFormatCipher cipher = sessionKey.incomingPacketCipher;
+		synchronized(cipher) {
+			if (!cipher.verify(buf, offset, length)) {
+				if (logMINOR) {
+					Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+				}
+
+				return null;
+			}
+			cipher.decrypt(buf, offset, length, sequenceNumber);
+		}
+
+		NPFPacket p = NPFPacket.create(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -430,23 +475,10 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
-		byte[] seqNumBytes = new byte[4];
-		seqNumBytes[0] = (byte) (seqNum >>> 24);
-		seqNumBytes[1] = (byte) (seqNum >>> 16);
-		seqNumBytes[2] = (byte) (seqNum >>> 8);
-		seqNumBytes[3] = (byte) (seqNum);
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
-		return seqNumBytes;
+		NewPacketFormatCipher cipher = sessionKey.incomingPacketCipher;
+		synchronized(cipher) {
+			return cipher.encryptSequenceNumber(seqNum);
+		}
 	}
 
 	@Override
@@ -498,24 +530,11 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		// Encrypt in place and add the hash.
+		NewPacketFormatCipher cipher = sessionKey.outgoingPacketCipher;
+		synchronized(cipher) {
+			cipher.encrypt(data, 0, paddedLen);
+		}
 
 		try {
 			if(logMINOR) {
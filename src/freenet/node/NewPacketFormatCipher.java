@@ -0,0 +1,120 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static freenet.node.NewPacketFormat.HMAC_LENGTH;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+
+/**
+ * Encrypts or decrypts NewPacketFormat packets in place, for one direction of one SessionKey.
+ * The IV buffer, PCFBMode and Mac are reused for every packet, so the per-packet crypto
+ * doesn't allocate anything.
+ *
+ * A packet is the truncated HMAC of the rest of the packet, followed by the encrypted
+ * payload, which starts with the sequence number. The IV is the ivNonce with the sequence
+ * number in its last 4 bytes, encrypted with the ivCipher.
+ *
+ * LOCKING: Not thread-safe, callers must synchronize on the NewPacketFormatCipher.
+ */
+class NewPacketFormatCipher {
+
+	private final BlockCipher ivCipher;
+	private final byte[] ivNonce;
+	private final byte[] iv;
+	private final PCFBMode payloadCipher;
+	/** Null if we don't have an HMAC key, so can only encrypt sequence numbers. */
+	private final Mac mac;
+	private final byte[] macOutput;
+
+	NewPacketFormatCipher(BlockCipher ivCipher, byte[] ivNonce, BlockCipher payloadCipher, byte[] hmacKey) {
+		this.ivCipher = ivCipher;
+		this.ivNonce = ivNonce;
+		iv = new byte[ivCipher.getBlockSize() / 8];
+		this.payloadCipher = PCFBMode.create(payloadCipher, iv);
+		if(hmacKey != null) {
+			mac = HMAC.createMac(HMAC.SHA2_256, hmacKey);
+			macOutput = new byte[mac.getMacLength()];
+		} else {
+			mac = null;
+			macOutput = null;
+		}
+	}
+
+	/** Reset the payload cipher to the IV for the given sequence number. */
+	private void setSequenceNumber(int seqNum) {
+		System.arraycopy(ivNonce, 0, iv, 0, iv.length);
+		iv[iv.length - 4] = (byte) (seqNum >>> 24);
+		iv[iv.length - 3] = (byte) (seqNum >>> 16);
+		iv[iv.length - 2] = (byte) (seqNum >>> 8);
+		iv[iv.length - 1] = (byte) (seqNum);
+		ivCipher.encipher(iv, iv);
+		payloadCipher.reset(iv);
+	}
+
+	/** Compute the HMAC of everything after the HMAC into macOutput. */
+	private void computeMac(byte[] buf, int offset, int length) {
+		mac.update(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH);
+		try {
+			mac.doFinal(macOutput, 0);
+		} catch (ShortBufferException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+	/**
+	 * Check the HMAC of a received packet. Does not modify buf.
+	 * @return True if the packet was sent with this key.
+	 */
+	boolean verify(byte[] buf, int offset, int length) {
+		if(length < HMAC_LENGTH) return false;
+		computeMac(buf, offset, length);
+		// Constant time, like MessageDigest.isEqual().
+		int diff = 0;
+		for(int i = 0; i < HMAC_LENGTH; i++)
+			diff |= buf[offset + i] ^ macOutput[i];
+		return diff == 0;
+	}
+
+	/** Decrypt a received packet in place, after it has been verified. */
+	void decrypt(byte[] buf, int offset, int length, int seqNum) {
+		setSequenceNumber(seqNum);
+		payloadCipher.blockDecipher(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH);
+	}
+
+	/**
+	 * Encrypt a packet in place, and write its HMAC into the first HMAC_LENGTH bytes.
+	 * @param buf Contains the plaintext payload, starting with the sequence number, at
+	 * offset + HMAC_LENGTH.
+	 */
+	void encrypt(byte[] buf, int offset, int length) {
+		int seqNum = ((buf[offset + HMAC_LENGTH] & 0xFF) << 24)
+			| ((buf[offset + HMAC_LENGTH + 1] & 0xFF) << 16)
+			| ((buf[offset + HMAC_LENGTH + 2] & 0xFF) << 8)
+			| (buf[offset + HMAC_LENGTH + 3] & 0xFF);
+		setSequenceNumber(seqNum);
+		payloadCipher.blockEncipher(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH);
+		computeMac(buf, offset, length);
+		System.arraycopy(macOutput, 0, buf, offset, HMAC_LENGTH);
+	}
+
+	/** @return The sequence number as it will appear at the start of an encrypted payload,
+	 * for the watch list. */
+	byte[] encryptSequenceNumber(int seqNum) {
+		byte[] seqNumBytes = new byte[4];
+		seqNumBytes[0] = (byte) (seqNum >>> 24);
+		seqNumBytes[1] = (byte) (seqNum >>> 16);
+		seqNumBytes[2] = (byte) (seqNum >>> 8);
+		seqNumBytes[3] = (byte) (seqNum);
+		setSequenceNumber(seqNum);
+		payloadCipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
+		return seqNumBytes;
+	}
+
+}
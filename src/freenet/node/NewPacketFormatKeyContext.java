@@ -28,6 +28,11 @@ public class NewPacketFormatKeyContext {
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
+	/** The index the watch list has been added to, if any. Protected by (this). */
+	SeqNumWatchListIndex watchListIndex;
+	/** Set when the key is dropped, so its watch list is not added to the index again.
+	 * Protected by (this). */
+	boolean watchListForgotten;
 	
 	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
@@ -113,6 +113,7 @@ import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.store.caching.CachingFreenetStore;
 import freenet.store.caching.CachingFreenetStoreTracker;
+import freenet.store.saltedhash.CipherManager;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Executor;
@@ -489,6 +490,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
 	private int storeSaltHashSlotFilterPersistenceTime;
+	private int storeSaltHashDigestCacheSize;
 
 	/** Minimum total datastore size */
 	public static final long MIN_STORE_SIZE = 32 * 1024 * 1024;
@@ -656,11 +658,13 @@ public class Node implements TimeSkewDetectorCallback {
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
 	private int maxTimeForSingleCompressor;
+	private boolean parallelInsertCompression;
 	private boolean connectionSpeedDetection;
 	boolean inputLimitDefault;
 	final boolean enableARKs;
 	final boolean enablePerNodeFailureTables;
 	final boolean enableULPRDataPropagation;
+	private int failureTableSize;
 	final boolean enableSwapping;
 	private volatile boolean publishOurPeersLocation;
 	private volatile boolean routeAccordingToOurPeersLocation;
@@ -753,6 +757,12 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean isPRNGReady = false;
 
 	private boolean storePreallocate;
+
+	private volatile boolean storeSaltHashUseMmap;
+
+	private volatile int storeSaltHashWriteBehindDelay;
+
+	private volatile boolean storeSaltHashWriteBehindForce;
 	
 	private boolean enableRoutedPing;
 
@@ -1388,6 +1398,26 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enableULPRDataPropagation = nodeConfig.getBoolean("enableULPRDataPropagation");
 
+		nodeConfig.register("failureTableSize", FailureTable.MAX_ENTRIES, sortOrder++, true, false,
+				"Node.failureTableSize", "Node.failureTableSizeLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return failureTableSize;
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val <= 0)
+							throw new InvalidConfigValueException(l10n("mustBePositive"));
+						failureTableSize = val;
+						throw new NodeNeedRestartException("Failure table size cannot be changed on the fly");
+					}
+
+		}, false);
+		failureTableSize = Math.max(1, nodeConfig.getInt("failureTableSize"));
+
 		nodeConfig.register("enableSwapping", true, sortOrder++, true, false, "Node.enableSwapping", "Node.enableSwappingLong", new BooleanCallback() {
 
 			@Override
@@ -1650,6 +1680,23 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxTimeForSingleCompressor = nodeConfig.getInt("maxTimeForSingleCompressor");
 
+		nodeConfig.register("parallelInsertCompression", false, sortOrder++,
+				true, false, "Node.parallelInsertCompression",
+				"Node.parallelInsertCompressionLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return parallelInsertCompression;
+			}
+			@Override
+			public void set(Boolean parallelInsertCompression) {
+				synchronized(Node.this) {
+					Node.this.parallelInsertCompression = parallelInsertCompression;
+				}
+			}
+		});
+
+		parallelInsertCompression = nodeConfig.getBoolean("parallelInsertCompression");
+
 		nodeConfig.register("connectionSpeedDetection", true, sortOrder++,
 			true, true, "Node.connectionSpeedDetection",
 			"Node.connectionSpeedDetectionLong", new BooleanCallback() {
@@ -1725,7 +1772,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// ULPRs
 
-		failureTable = new FailureTable(this);
+		failureTable = new FailureTable(this, failureTableSize);
 
 		nodeStats = new NodeStats(this, sortOrder, config.createSubConfig("node.load"), obwLimit, ibwLimit, lastVersion);
 
@@ -2061,6 +2108,27 @@ public class Node implements TimeSkewDetectorCallback {
 		}, false);
 		storeSaltHashSlotFilterPersistenceTime = nodeConfig.getInt("storeSaltHashSlotFilterPersistenceTime");
 
+		nodeConfig.register("storeSaltHashDigestCacheSize", CipherManager.DEFAULT_DIGEST_CACHE_SIZE, sortOrder++, true, false,
+				"Node.storeSaltHashDigestCacheSize", "Node.storeSaltHashDigestCacheSizeLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return storeSaltHashDigestCacheSize;
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("mustBePositive"));
+						storeSaltHashDigestCacheSize = val;
+						throw new NodeNeedRestartException("Digest cache size cannot be changed on the fly");
+					}
+
+		}, false);
+		storeSaltHashDigestCacheSize = nodeConfig.getInt("storeSaltHashDigestCacheSize");
+		CipherManager.setDigestCacheSize(Math.max(0, storeSaltHashDigestCacheSize));
+
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
 			@Override
@@ -2123,6 +2191,69 @@ public class Node implements TimeSkewDetectorCallback {
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
 
+		nodeConfig.register("storeSaltHashUseMmap", false, sortOrder++, true, false,
+				"Node.storeSaltHashUseMmap", "Node.storeSaltHashUseMmapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashUseMmap;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				storeSaltHashUseMmap = val;
+				if (storeType.equals("salt-hash")) {
+					setUseMmap(chkDatastore, val);
+					setUseMmap(chkDatacache, val);
+					setUseMmap(pubKeyDatastore, val);
+					setUseMmap(pubKeyDatacache, val);
+					setUseMmap(sskDatastore, val);
+					setUseMmap(sskDatacache, val);
+					setUseMmap(chkClientcache, val);
+					setUseMmap(pubKeyClientcache, val);
+					setUseMmap(sskClientcache, val);
+				}
+			}
+
+			private void setUseMmap(StoreCallback<?> datastore, boolean val) {
+				if(datastore == null || datastore.getStore() == null) return;
+				FreenetStore<?> store = datastore.getStore().getUnderlyingStore();
+				if(store instanceof SaltedHashFreenetStore)
+					((SaltedHashFreenetStore<?>)store).setUseMmap(val);
+			}
+		});
+		storeSaltHashUseMmap = nodeConfig.getBoolean("storeSaltHashUseMmap");
+
+		nodeConfig.register("storeSaltHashWriteBehindDelay", 0, sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehindDelay", "Node.storeSaltHashWriteBehindDelayLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return storeSaltHashWriteBehindDelay;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeSaltHashWriteBehindDelay = val;
+				updateStoreWriteBehind();
+			}
+		}, false);
+		storeSaltHashWriteBehindDelay = nodeConfig.getInt("storeSaltHashWriteBehindDelay");
+
+		nodeConfig.register("storeSaltHashWriteBehindForce", false, sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehindForce", "Node.storeSaltHashWriteBehindForceLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashWriteBehindForce;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				storeSaltHashWriteBehindForce = val;
+				updateStoreWriteBehind();
+			}
+		});
+		storeSaltHashWriteBehindForce = nodeConfig.getBoolean("storeSaltHashWriteBehindForce");
+
 		if(File.separatorChar == '/' && System.getProperty("os.name").toLowerCase().indexOf("mac os") < 0) {
 			securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<SecurityLevels.PHYSICAL_THREAT_LEVEL>() {
 
@@ -3110,6 +3241,31 @@ public class Node implements TimeSkewDetectorCallback {
 		}
     }
 
+	private void updateStoreWriteBehind() {
+		if(!storeType.equals("salt-hash")) return;
+		updateStoreWriteBehind(chkDatastore);
+		updateStoreWriteBehind(chkDatacache);
+		updateStoreWriteBehind(pubKeyDatastore);
+		updateStoreWriteBehind(pubKeyDatacache);
+		updateStoreWriteBehind(sskDatastore);
+		updateStoreWriteBehind(sskDatacache);
+		updateStoreWriteBehind(chkClientcache);
+		updateStoreWriteBehind(pubKeyClientcache);
+		updateStoreWriteBehind(sskClientcache);
+	}
+
+	private void updateStoreWriteBehind(StoreCallback<?> datastore) {
+		if(datastore == null || datastore.getStore() == null) return;
+		FreenetStore<?> store = datastore.getStore().getUnderlyingStore();
+		if(store instanceof SaltedHashFreenetStore) {
+			try {
+				((SaltedHashFreenetStore<?>)store).setWriteBehind(storeSaltHashWriteBehindDelay, storeSaltHashWriteBehindForce);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write pending entries to "+store+" : "+e, e);
+			}
+		}
+	}
+
 	private <T extends StorableBlock> FreenetStore<T> makeClientcache(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
 		FreenetStore<T> store = makeStore(type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
 		return store;
@@ -3127,6 +3283,8 @@ public class Node implements TimeSkewDetectorCallback {
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
 		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		fs.setUseMmap(storeSaltHashUseMmap);
+		fs.setWriteBehind(storeSaltHashWriteBehindDelay, storeSaltHashWriteBehindForce);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
@@ -4363,6 +4521,10 @@ public class Node implements TimeSkewDetectorCallback {
 		return ticker;
 	}
 
+	public FailureTable getFailureTable() {
+		return failureTable;
+	}
+
 	public int getUnclaimedFIFOSize() {
 		return usm.getUnclaimedFIFOSize();
 	}
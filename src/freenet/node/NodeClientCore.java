@@ -179,6 +179,9 @@ public class NodeClientCore implements Persistable {
 	private boolean alwaysCommit;
 	private final PluginStores pluginStores;
 	private boolean lazyStartDatastoreChecker;
+	private boolean lazyResume;
+	/** True once the FCP server has been told about the persistent requests. */
+	private boolean loadedFCP;
 
 	private boolean finishedInitStorage;
 	private boolean finishingInitStorage;
@@ -218,6 +221,34 @@ public class NodeClientCore implements Persistable {
 				    });
 		lazyStartDatastoreChecker = nodeConfig.getBoolean("lazyStartDatastoreChecker");
 
+		nodeConfig.register("lazyResume", false, sortOrder++, true, false,
+				    "NodeClientCore.lazyResume",
+				    "NodeClientCore.lazyResumeLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    synchronized (NodeClientCore.this) {
+							    return lazyResume;
+						    }
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    synchronized (NodeClientCore.this) {
+							    if (val != lazyResume) {
+								    lazyResume = val;
+								    throw new NodeNeedRestartException(
+										    l10n("lazyResumeMustRestartNode"));
+							    }
+						    }
+					    }
+
+				    });
+		lazyResume = nodeConfig.getBoolean("lazyResume");
+
 		storeChecker =
 				new DatastoreChecker(node, lazyStartDatastoreChecker, node.executor,
 						     "Datastore checker");
@@ -444,7 +475,8 @@ public class NodeClientCore implements Persistable {
 								node, this,
 								persistentTempBucketFactory,
 								tempBucketFactory,
-								bandwidthStatsPutter);
+								bandwidthStatsPutter,
+								lazyResume);
 
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
 
@@ -814,8 +846,7 @@ public class NodeClientCore implements Persistable {
 					FCPServer.maybeCreate(node, this, node.config,
 							      fcpPersistentRoot);
 			clientContext.setDownloadCache(fcpServer);
-			if (!killedDatabase())
-				fcpServer.load();
+			maybeLoadFCP();
 		} catch (IOException e) {
 			throw new NodeInitException(NodeInitException.EXIT_COULD_NOT_START_FCP,
 						    "Could not start FCP: " + e);
@@ -854,6 +885,8 @@ public class NodeClientCore implements Persistable {
 					if (!killedDatabase())
 						return false;
 				}
+				if (clientLayerPersister.isResuming())
+					return false;
 				if (NodeClientCore.this.node.awaitingPassword())
 					return false;
 				if (NodeClientCore.this.node.isStopping())
@@ -960,7 +993,7 @@ public class NodeClientCore implements Persistable {
 		    return true;
 		}
 		// Don't actually start the database thread yet, messy concurrency issues.
-		fcpServer.load();
+		maybeLoadFCP();
 		System.out.println("Late database initialisation completed.");
 		return true;
 	}
@@ -972,7 +1005,26 @@ public class NodeClientCore implements Persistable {
 	 */
 	private void initStorage(DatabaseKey databaseKey) throws MasterKeysWrongPasswordException {
 	    clientLayerPersister.setFilesAndLoad(node.nodeDir.dir(), "client.dat",
-	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random);
+	            node.wantEncryptedDatabase(), node.wantNoPersistentDatabase(), databaseKey, clientContext, requestStarters, random,
+	            new Runnable() {
+
+	                @Override
+	                public void run() {
+	                    maybeLoadFCP();
+	                }
+
+	            });
+	}
+
+	/** Tell the FCP server about the persistent requests, once they have been loaded. May be 
+	 * called before the FCP server has been created, or before the requests have finished loading
+	 * in the background, in which case it will be called again later. */
+	private void maybeLoadFCP() {
+	    synchronized(this) {
+	        if(fcpServer == null || loadedFCP || killedDatabase()) return;
+	        loadedFCP = true;
+	    }
+	    fcpServer.load();
 	}
 
 	/** Must only be called after we have loaded master.keys */
@@ -1063,6 +1115,9 @@ public class NodeClientCore implements Persistable {
 			@Override
 			public void run() {
 				Logger.normal(this, "Resuming persistent requests");
+				// Persistent temp files must not be cleaned up until all the requests using them
+				// have been resumed.
+				clientLayerPersister.waitForResume();
 				if(node.getDatabaseKey() != null) {
 				    try {
 				        finishInitStorage();
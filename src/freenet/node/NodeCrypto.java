@@ -67,6 +67,8 @@ public class NodeCrypto {
 	final NodeCryptoConfig config;
 	final NodeIPPortDetector detector;
 	final BlockCipher anonSetupCipher;
+	/** Encrypted sequence numbers we are expecting on all our peers' session keys */
+	final SeqNumWatchListIndex seqNumWatchListIndex = new SeqNumWatchListIndex();
 
 	// Noderef related
 	/** An ordered version of the noderef FieldSet, without the signature */
@@ -104,7 +106,8 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector,
+							config.receiveWithNIO(), config.getReceiveThreads());
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +121,8 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector,
+						config.receiveWithNIO(), config.getReceiveThreads());
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -470,6 +474,13 @@ public class NodeCrypto {
 			return node.peers.getDarknetPeers();
 	}
 
+	/** Find the peers which may have sent a packet, from its encrypted sequence number. Used
+	 * for packets from addresses we don't recognise.
+	 * @return The peers, normally at most one, which must still try to decrypt the packet. */
+	public PeerNode[] getPeerNodesBySeqNum(byte[] buf, int offset, int length) {
+		return seqNumWatchListIndex.getPeerNodes(buf, offset, length);
+	}
+
 	public boolean allowConnection(PeerNode pn, FreenetInetAddress addr) {
     	if(config.oneConnectionPerAddress()) {
     		// Disallow multiple connections to the same address
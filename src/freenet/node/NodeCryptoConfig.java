@@ -54,6 +54,14 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** If true, receive packets with a DatagramChannel and a direct buffer rather than a 
+	 * DatagramSocket. */
+	private boolean receiveWithNIO;
+	
+	/** If nonzero, decrypt and handle incoming packets on this many threads rather than on
+	 * the receiving thread. */
+	private int receiveThreads;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -240,6 +248,50 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+		
+		config.register("receiveWithNIO", false, sortOrder++, true, false, "Node.receiveWithNIO", "Node.receiveWithNIOLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(NodeCryptoConfig.this) {
+					return receiveWithNIO;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(NodeCryptoConfig.this) {
+					if(val == receiveWithNIO) return;
+					receiveWithNIO = val;
+				}
+				throw new NodeNeedRestartException("receiveWithNIO cannot be changed on the fly");
+			}
+		});
+		receiveWithNIO = config.getBoolean("receiveWithNIO");
+		
+		config.register("receiveThreads", 0, sortOrder++, true, false, "Node.receiveThreads", "Node.receiveThreadsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						synchronized(NodeCryptoConfig.this) {
+							return receiveThreads;
+						}
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0) throw new InvalidConfigValueException("receiveThreads must not be negative");
+						synchronized(NodeCryptoConfig.this) {
+							if(val == receiveThreads) return;
+							receiveThreads = val;
+						}
+						throw new NodeNeedRestartException("receiveThreads cannot be changed on the fly");
+					}
+			
+		}, false);
+		receiveThreads = Math.max(0, config.getInt("receiveThreads"));
+		
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			@Override
@@ -328,4 +380,12 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+	
+	public synchronized boolean receiveWithNIO() {
+		return receiveWithNIO;
+	}
+	
+	public synchronized int getReceiveThreads() {
+		return receiveThreads;
+	}
 }
@@ -28,6 +28,7 @@ import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
@@ -1986,6 +1987,21 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
+		fs.put("RAMBucketChunkBytes", node.clientCore.tempBucketFactory.getRamChunkBytes());
+		fs.put("RAMBucketPooledBytes", node.clientCore.tempBucketFactory.getPooledRamBytes());
+		fs.put("RAMBucketChunksAllocated", node.clientCore.tempBucketFactory.getRamChunksAllocated());
+		fs.put("RAMBucketChunksReused", node.clientCore.tempBucketFactory.getRamChunksReused());
+		fs.put("RAMBucketMigrations", node.clientCore.tempBucketFactory.getMigrations());
+		fs.put("RAMBucketMigratedBytes", node.clientCore.tempBucketFactory.getMigratedBytes());
+		MemoryLimitedJobRunner memoryLimitedJobRunner = node.clientCore.memoryLimitedJobRunner;
+		fs.put("memoryLimitedJobsQueued", memoryLimitedJobRunner.getQueuedJobs());
+		fs.put("memoryLimitedJobsRunning", memoryLimitedJobRunner.getRunningThreads());
+		fs.put("memoryLimitedJobsPrefetching", memoryLimitedJobRunner.getPrefetchingThreads());
+		fs.put("memoryLimitedJobsFinished", memoryLimitedJobRunner.getJobsFinished());
+		fs.put("memoryLimitedJobsPerHour", memoryLimitedJobRunner.getJobsPerHour());
+		fs.put("memoryLimitedJobAverageQueueWaitTime", memoryLimitedJobRunner.getAverageQueueWaitTime());
+		fs.put("memoryLimitedJobTotalPrefetchTime", memoryLimitedJobRunner.getTotalPrefetchTime());
+		fs.put("memoryLimitedJobTotalRunTime", memoryLimitedJobRunner.getTotalRunTime());
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
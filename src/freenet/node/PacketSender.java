@@ -9,6 +9,8 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
@@ -59,6 +61,9 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
+	/** We look at every peer at least this often, even if it hasn't told us it needs to send
+	 * anything, to check for timeouts, start ARK fetches etc. */
+	static final long MAX_PEER_INTERVAL = SECONDS.toMillis(1);
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
@@ -66,6 +71,13 @@ public class PacketSender implements Runnable {
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
 
+	/** When the send loop next needs to look at each peer. */
+	private final DeadlineQueue<PeerNode> peerQueue = new DeadlineQueue<PeerNode>();
+
+	private final AtomicLong loopIterations = new AtomicLong();
+	private final AtomicLong peersTouched = new AtomicLong();
+	private final AtomicLong packetsSent = new AtomicLong();
+
 	PacketSender(Node node) {
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
@@ -120,7 +132,6 @@ public class PacketSender implements Runnable {
 		 * ran out of bandwidth. We start the loop from here next time.
 		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -147,16 +158,20 @@ public class PacketSender implements Runnable {
 	 */
 	private void realRun() {
 		long now = System.currentTimeMillis();
-                PeerManager pm;
-		PeerNode[] nodes;
+		loopIterations.incrementAndGet();
 
-        pm = node.peers;
-        nodes = pm.myPeers();
+		peerQueue.setItems(node.peers.myPeers(), now);
+		// Only look at the peers which need it. Everyone else is in the queue.
+		List<PeerNode> due = peerQueue.takeDue(now);
+		PeerNode[] nodes = due.toArray(new PeerNode[due.size()]);
+		peersTouched.addAndGet(nodes.length);
 
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		final boolean canSendThrottled;
+		/** When we will next be able to send a throttled packet. */
+		long canSendThrottledTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
@@ -168,6 +183,7 @@ public class PacketSender implements Runnable {
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
 			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottledTime = now + canSendAt;
 			canSendThrottled = false;
 		}
 		
@@ -183,6 +199,8 @@ public class PacketSender implements Runnable {
 		long lowestFullPacketSendTime = Long.MAX_VALUE;
 		/** The peer(s) which lowestFullPacketSendTime is referring to */
 		ArrayList<PeerNode> urgentFullPacketPeers = null;
+		/** All the peers with a full packet's worth of data to send. */
+		ArrayList<PeerNode> fullPacketPeers = null;
 		/** The earliest time at which a peer needs to send an ack, before now. */
 		long lowestAckTime = Long.MAX_VALUE;
 		/** The peer(s) which lowestAckTime is referring to */
@@ -194,6 +212,9 @@ public class PacketSender implements Runnable {
 
 		for(PeerNode pn: nodes) {
 			now = System.currentTimeMillis();
+			/** When we next need to look at this peer. */
+			long peerNextTime = now + MAX_PEER_INTERVAL;
+			try {
 			
 			// Basic peer maintenance.
 			
@@ -259,6 +280,9 @@ public class PacketSender implements Runnable {
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
+							if(fullPacketPeers == null)
+								fullPacketPeers = new ArrayList<PeerNode>();
+							fullPacketPeers.add(pn);
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
 								if(urgentFullPacketPeers != null)
@@ -293,8 +317,14 @@ public class PacketSender implements Runnable {
 					if(urgentTime < Long.MAX_VALUE && logMINOR)
 						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
 					nextActionTime = Math.min(nextActionTime, urgentTime);
+					peerNextTime = Math.min(peerNextTime, urgentTime);
 				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+					long lostPacketsTime = pn.timeCheckForLostPackets();
+					nextActionTime = Math.min(nextActionTime, lostPacketsTime);
+					peerNextTime = Math.min(peerNextTime, lostPacketsTime);
+					peerNextTime = Math.min(peerNextTime, pn.timeSendAcks());
+					// Look again when we can send its data.
+					peerNextTime = Math.min(peerNextTime, canSendThrottledTime);
 				}
 			} else
 				// Not connected
@@ -303,6 +333,7 @@ public class PacketSender implements Runnable {
 					pn.startARKFetcher();
 
 			long handshakeTime = pn.timeSendHandshake(now);
+			peerNextTime = Math.min(peerNextTime, handshakeTime);
 			if(handshakeTime != Long.MAX_VALUE) {
 				if(handshakeTime < lowestHandshakeTime) {
 					lowestHandshakeTime = handshakeTime;
@@ -319,6 +350,9 @@ public class PacketSender implements Runnable {
 			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
 				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
 			oldTempNow = tempNow;
+			} finally {
+				schedule(pn, peerNextTime);
+			}
 		}
 		
 		// We may send a packet, send an ack-only packet, or send a handshake.
@@ -351,8 +385,15 @@ public class PacketSender implements Runnable {
 		if(toSendPacket != null) {
 			try {
 				if(toSendPacket.maybeSendPacket(now, false)) {
+					packetsSent.incrementAndGet();
 					// Round-robin over the loop to update nextActionTime appropriately
 					nextActionTime = now;
+					schedule(toSendPacket, now);
+					// The other peers with full packets may be next.
+					if(fullPacketPeers != null) {
+						for(PeerNode pn : fullPacketPeers)
+							schedule(pn, now);
+					}
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
@@ -361,8 +402,10 @@ public class PacketSender implements Runnable {
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
+					packetsSent.incrementAndGet();
                     // Round-robin over the loop to update nextActionTime appropriately
                     nextActionTime = now;
+					schedule(toSendAckOnly, now);
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
@@ -389,6 +432,8 @@ public class PacketSender implements Runnable {
 			// Send handshake if necessary
 			long beforeHandshakeTime = System.currentTimeMillis();
 			toSendHandshake.getOutgoingMangler().sendHandshake(toSendHandshake, false);
+			packetsSent.incrementAndGet();
+			schedule(toSendHandshake, now);
 			long afterHandshakeTime = System.currentTimeMillis();
 			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
@@ -457,16 +502,15 @@ public class PacketSender implements Runnable {
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
+				lastReceivedPacketFromAnyNode = now;
 			}
 
 		if(sleepTime > 0) {
 			// Update logging only when have time to do so
 			try {
 				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
-				}
+					Logger.minor(this, "Sleeping for up to " + sleepTime);
+				peerQueue.sleep(now, sleepTime);
 			} catch(InterruptedException e) {
 			// Ignore, just wake up. Probably we got interrupt()ed
 			// because a new packet came in.
@@ -477,12 +521,34 @@ public class PacketSender implements Runnable {
 		}
 	}
 
-	/** Wake up, and send any queued packets. */
-	void wakeUp() {
-		// Wake up if needed
-		synchronized(this) {
-			notifyAll();
-		}
+	/** Wake up, and send any queued packets for the given peer. */
+	void wakeUp(PeerNode pn) {
+		schedule(pn, System.currentTimeMillis());
+	}
+
+	/**
+	 * Make sure the send loop looks at a peer by the given time, e.g. because it has queued
+	 * a message, received a packet which needs to be acknowledged, or needs to handshake. If the
+	 * peer is already due sooner this does nothing. LOCKING: Can be called with any locks held,
+	 * we don't call out while holding the lock.
+	 */
+	void schedule(PeerNode pn, long time) {
+		peerQueue.schedule(pn, time);
+	}
+
+	/** @return The number of times the send loop has run. */
+	public long getLoopIterations() {
+		return loopIterations.get();
+	}
+
+	/** @return The number of times the send loop has looked at a peer. */
+	public long getPeersTouched() {
+		return peersTouched.get();
+	}
+
+	/** @return The number of packets the send loop has sent, including handshakes. */
+	public long getPacketsSent() {
+		return packetsSent.get();
 	}
 
 	protected String l10n(String key, String[] patterns, String[] values) {
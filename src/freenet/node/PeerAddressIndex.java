@@ -0,0 +1,150 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+
+/**
+ * Index of peers (normally PeerNode's) by IP:port and by IP address, so that the sender of an
+ * incoming packet can be found without checking every peer.
+ *
+ * Only numeric addresses are indexed. A peer with an address which is a hostname is also kept
+ * in a separate list, which callers must check linearly, since the hostname may be resolved to
+ * a different IP at any time.
+ *
+ * Lookups don't lock: the values are copy-on-write arrays in ConcurrentHashMap's. Updates are
+ * synchronized on the index. Callers must still check the peers returned against the address,
+ * because the index is only updated after a peer's address has changed.
+ */
+class PeerAddressIndex<T> {
+
+	private final ConcurrentHashMap<Peer, T[]> byPeer = new ConcurrentHashMap<Peer, T[]>();
+	private final ConcurrentHashMap<InetAddress, T[]> byIP = new ConcurrentHashMap<InetAddress, T[]>();
+	private volatile T[] withHostnames;
+	/** The numeric addresses each peer is indexed under. Protected by (this). */
+	private final IdentityHashMap<T, Peer[]> indexed = new IdentityHashMap<T, Peer[]>();
+	private final T[] empty;
+
+	/** @param empty An empty array of the right type, returned when there are no matches. */
+	PeerAddressIndex(T[] empty) {
+		this.empty = empty;
+		this.withHostnames = empty;
+	}
+
+	/**
+	 * Add a peer, or replace its addresses if it is already indexed.
+	 * @param addresses All the addresses the peer may send packets from. May contain nulls.
+	 */
+	synchronized void put(T peer, Peer[] addresses) {
+		remove(peer);
+		HashSet<Peer> numeric = new HashSet<Peer>();
+		boolean hasHostname = false;
+		for(Peer p : addresses) {
+			if(p == null) continue;
+			FreenetInetAddress addr = p.getFreenetAddress();
+			if(addr.hasHostname()) {
+				hasHostname = true;
+				continue;
+			}
+			InetAddress ip = addr.getAddress(false);
+			if(ip == null) continue;
+			numeric.add(new Peer(ip, p.getPort()));
+		}
+		Peer[] keys = numeric.toArray(new Peer[numeric.size()]);
+		for(Peer key : keys) {
+			add(byPeer, key, peer);
+			add(byIP, key.getAddress(false), peer);
+		}
+		if(hasHostname)
+			withHostnames = append(withHostnames, peer);
+		indexed.put(peer, keys);
+	}
+
+	/** @return True if the peer was indexed. */
+	synchronized boolean remove(T peer) {
+		Peer[] keys = indexed.remove(peer);
+		if(keys == null) return false;
+		for(Peer key : keys) {
+			delete(byPeer, key, peer);
+			delete(byIP, key.getAddress(false), peer);
+		}
+		withHostnames = without(withHostnames, peer);
+		return true;
+	}
+
+	synchronized boolean contains(T peer) {
+		return indexed.containsKey(peer);
+	}
+
+	synchronized int size() {
+		return indexed.size();
+	}
+
+	synchronized void clear() {
+		indexed.clear();
+		byPeer.clear();
+		byIP.clear();
+		withHostnames = empty;
+	}
+
+	/** @param peer A numeric address, e.g. the source of a packet.
+	 * @return Peers which may have this IP:port, not including those in getWithHostnames(). */
+	T[] getByPeer(Peer peer) {
+		T[] found = byPeer.get(peer);
+		return found == null ? empty : found;
+	}
+
+	/** @return Peers which may have this IP, not including those in getWithHostnames(). */
+	T[] getByIP(InetAddress ip) {
+		T[] found = byIP.get(ip);
+		return found == null ? empty : found;
+	}
+
+	/** @return Peers with at least one address which is a hostname. */
+	T[] getWithHostnames() {
+		return withHostnames;
+	}
+
+	private <K> void add(ConcurrentHashMap<K, T[]> map, K key, T peer) {
+		T[] old = map.get(key);
+		map.put(key, old == null ? append(empty, peer) : append(old, peer));
+	}
+
+	private <K> void delete(ConcurrentHashMap<K, T[]> map, K key, T peer) {
+		T[] old = map.get(key);
+		if(old == null) return;
+		T[] remaining = without(old, peer);
+		if(remaining.length == 0)
+			map.remove(key);
+		else
+			map.put(key, remaining);
+	}
+
+	private static <T> T[] append(T[] array, T item) {
+		T[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = item;
+		return result;
+	}
+
+	private T[] without(T[] array, T item) {
+		int count = 0;
+		for(T t : array)
+			if(t != item) count++;
+		if(count == array.length) return array;
+		if(count == 0) return empty;
+		T[] result = Arrays.copyOf(empty, count);
+		int i = 0;
+		for(T t : array)
+			if(t != item) result[i++] = t;
+		return result;
+	}
+
+}
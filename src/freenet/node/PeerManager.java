@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -66,6 +67,9 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** myPeers indexed by address, for identifying the sender of a packet. LOCKING: Don't 
+	 * update it while holding a lock on a PeerNode. */
+	private final PeerAddressIndex<PeerNode> addressIndex = new PeerAddressIndex<PeerNode>(new PeerNode[0]);
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -352,6 +356,7 @@ public class PeerManager {
 			}
 			myPeers = Arrays.copyOf(myPeers, myPeers.length + 1);
 			myPeers[myPeers.length - 1] = pn;
+			addressIndex.put(pn, pn.getAllAddresses());
 			Logger.normal(this, "Added " + pn);
 		}
 		if(pn.recordStatus())
@@ -434,6 +439,7 @@ public class PeerManager {
 					}
 				}
 				myPeers = newMyPeers;
+				addressIndex.remove(pn);
 
 				Logger.normal(this, "Removed " + pn);
 			}
@@ -453,6 +459,7 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			addressIndex.clear();
 		}
 		for(PeerNode oldPeer: oldPeers)
 			oldPeer.onRemove();
@@ -560,46 +567,68 @@ public class PeerManager {
 	 * non-isRealConnection()'s since they can also be connected.
 	 */
 	public PeerNode getByPeer(Peer peer) {
-		PeerNode[] peerList = myPeers();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer))
-				return pn;
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false))
-				return pn;
-		}
-		return null;
+		return getByPeer(peer, null);
 	}
 	
 	/**
 	 * Find the node with the given Peer address, or IP address. Checks the outgoing
 	 * packet mangler as well.
 	 * @param peer
-	 * @param mangler
+	 * @param mangler If null, match any mangler.
 	 * @return
 	 */
 	public PeerNode getByPeer(Peer peer, FNPPacketMangler mangler) {
-		PeerNode[] peerList = myPeers();
+		FreenetInetAddress addr = peer.getFreenetAddress();
+		InetAddress ip = addr.hasHostname() ? null : addr.getAddress(false);
+		if(ip == null) {
+			// Not a packet address, can't use the index.
+			PeerNode[] peerList = myPeers();
+			PeerNode pn = findByPeerAndPort(peerList, peer, mangler);
+			if(pn != null) return pn;
+			return findByIP(peerList, addr, mangler);
+		}
+		// Peers with hostnames aren't indexed, so must always be checked.
+		PeerNode[] withHostnames = addressIndex.getWithHostnames();
+		PeerNode pn = findByPeerAndPort(addressIndex.getByPeer(peer), peer, mangler);
+		if(pn != null) return pn;
+		pn = findByPeerAndPort(withHostnames, peer, mangler);
+		if(pn != null) return pn;
+		// Try a match by IP address if we can't match exactly by IP:port.
+		pn = findByIP(addressIndex.getByIP(ip), addr, mangler);
+		if(pn != null) return pn;
+		return findByIP(withHostnames, addr, mangler);
+	}
+
+	private static PeerNode findByPeerAndPort(PeerNode[] peerList, Peer peer, FNPPacketMangler mangler) {
 		for(PeerNode pn : peerList) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesPeerAndPort(peer) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
+		return null;
+	}
+
+	private static PeerNode findByIP(PeerNode[] peerList, FreenetInetAddress addr, FNPPacketMangler mangler) {
 		for(PeerNode pn : peerList) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesIP(addr, false) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
 		return null;
 	}
 
+	/**
+	 * Called when the detected or nominal addresses of a peer change, to update the index used
+	 * by getByPeer(). LOCKING: Caller must not hold the lock on the PeerNode.
+	 */
+	void updateAddressIndex(PeerNode pn) {
+		synchronized(this) {
+			// Only index peers which are in myPeers.
+			if(!addressIndex.contains(pn)) return;
+			addressIndex.put(pn, pn.getAllAddresses());
+		}
+	}
+
 	/**
 	 * Find nodes with a given IP address.
 	 */
@@ -2038,8 +2067,10 @@ public class PeerManager {
 			ArrayList<PeerNode> keep = new ArrayList<PeerNode>();
 			ArrayList<PeerNode> conn = new ArrayList<PeerNode>();
 			for(PeerNode pn : myPeers) {
-				if(pn instanceof OpennetPeerNode)
+				if(pn instanceof OpennetPeerNode) {
+					addressIndex.remove(pn);
 					continue;
+				}
 				keep.add(pn);
 				if(pn.isConnected())
 					conn.add(pn);
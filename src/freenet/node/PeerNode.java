@@ -1093,17 +1093,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender now, but it must
+			// look at us again before the maximum coalescing delay.
+			schedulePacketSender(now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	/** Make sure the PacketSender looks at this peer by the given time. */
+	void schedulePacketSender(long time) {
+		PacketSender ps = node.ps;
+		if(ps != null) ps.schedule(this, time);
 	}
 
 	@Override
@@ -1190,6 +1197,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			sendHandshakeTime = now; // Immediately
 			ctx = null;
 		}
+		schedulePacketSender(now);
 		Logger.normal(this, "We are asking for the key to be renewed (" + this.detectedPeer + ')');
 	}
 
@@ -1273,6 +1281,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				packetFormat = null;
 			}
 		}
+		// Handshake again as soon as possible.
+		schedulePacketSender(now);
 		if(oldPacketFormat != null) {
 			moreMessagesTellDisconnected = oldPacketFormat.onDisconnect();
 		}
@@ -1290,9 +1300,17 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				mi.onDisconnect();
 			}
 		}
-		if(cur != null) cur.disconnected();
-		if(prev != null) prev.disconnected();
-		if(unv != null) unv.disconnected();
+		if(dumpTrackers) {
+			if(cur != null) cur.dropped();
+			if(prev != null) prev.dropped();
+			if(unv != null) unv.dropped();
+		} else {
+			// Kept, and still in the index, so we recognise the peer if it comes back from a
+			// new address, e.g. after its NAT has given it a new port.
+			if(cur != null) cur.disconnected();
+			if(prev != null) prev.disconnected();
+			if(unv != null) unv.disconnected();
+		}
 		if(_lastThrottle != null)
 			_lastThrottle.maybeDisconnected();
 		node.lm.lostOrRestartedNode(this);
@@ -1816,11 +1834,12 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				updateShortToString();
 				// IP has changed, it is worth looking up the DNS address again.
 				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if(!isConnected())
-					return;
 			} else
 				return;
 		}
+		node.peers.updateAddressIndex(this);
+		if(!isConnected())
+			return;
 		getThrottle().maybeDisconnected();
 		sendIPAddressMessage();
 	}
@@ -2016,6 +2035,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		boolean bootIDChanged = false;
 		boolean wasARekey = false;
 		SessionKey oldPrev = null;
+		SessionKey oldUnverified = null;
 		SessionKey oldCur = null;
 		SessionKey newTracker;
 		MessageItem[] messagesTellDisconnected = null;
@@ -2099,6 +2119,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					// Keep the old unverified tracker if possible.
 					if(previousTracker == null)
 						previousTracker = unverifiedTracker;
+					else
+						oldUnverified = unverifiedTracker;
 				}
 				unverifiedTracker = newTracker;
 			} else {
@@ -2145,8 +2167,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			node.usm.onRestart(this);
 			node.tracker.onRestartOrDisconnect(this);
 		}
-		if(oldPrev != null) oldPrev.disconnected();
-		if(oldCur != null) oldCur.disconnected();
+		if(oldPrev != null) oldPrev.dropped();
+		if(oldCur != null) oldCur.dropped();
+		if(oldUnverified != null) oldUnverified.forgetWatchList();
+		// Before any packets arrive on it, in case the first one comes from a new address.
+		NewPacketFormat.createWatchList(newTracker);
 		if(oldPacketFormat != null) {
 			List<MessageItem> tellDisconnect = oldPacketFormat.onDisconnect();
 			if(tellDisconnect != null)
@@ -2316,7 +2341,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		node.peers.addConnectedPeer(this);
 		maybeOnConnect();
 		if(completelyDeprecatedTracker != null) {
-			completelyDeprecatedTracker.disconnected();
+			completelyDeprecatedTracker.dropped();
 		}
 	}
 
@@ -2426,6 +2451,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(logMINOR)
 			Logger.minor(this, "Parsing: \n" + fs);
 		boolean changedAnything = innerProcessNewNoderef(fs, forARK, forDiffNodeRef, forFullNodeRef) || forARK;
+		if(changedAnything)
+			node.peers.updateAddressIndex(this);
 		if(changedAnything && !isSeed())
 		    writePeers();
 		// FIXME should this be urgent if IPs change? Dunno.
@@ -5364,7 +5391,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			pf = packetFormat;
 			if(pf == null) return false;
 		}
-		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
+		if(!pf.handleReceivedPacket(buf, offset, length, now, replyTo)) return false;
+		// We will need to acknowledge it.
+		schedulePacketSender(now + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+		return true;
 	}
 
 	public void checkForLostPackets() {
@@ -5397,6 +5427,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			else if(unverifiedTracker == brokenKey)
 				unverifiedTracker = null;
 		}
+		brokenKey.forgetWatchList();
 		// Update connected vs not connected status.
 		isConnected();
 		setPeerNodeStatus(System.currentTimeMillis());
@@ -5443,6 +5474,18 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return paddingGen;
 	}
 
+	/** @return The detected address followed by the nominal addresses. Any of them may be
+	 * null. Used by PeerManager to index peers by address, so it must include every address
+	 * which matchesPeerAndPort() and matchesIP() can match. */
+	synchronized Peer[] getAllAddresses() {
+		int nominal = nominalPeer == null ? 0 : nominalPeer.size();
+		Peer[] addresses = new Peer[nominal + 1];
+		addresses[0] = detectedPeer;
+		for(int i=0;i<nominal;i++)
+			addresses[i+1] = nominalPeer.get(i);
+		return addresses;
+	}
+
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
 		if(detectedPeer != null && detectedPeer.laxEquals(peer)) return true;
 		if(nominalPeer != null) { // FIXME condition necessary???
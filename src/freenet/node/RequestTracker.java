@@ -3,13 +3,17 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import freenet.keys.NodeCHK;
+import freenet.support.LongObjectHashMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
@@ -22,31 +26,102 @@ public class RequestTracker {
 		Logger.registerClass(RequestTracker.class);
 	}
 	
+	/**
+	 * The running requests of one kind, by UID, and by the peer they came from. The UIDs are
+	 * not boxed, and the tags are in a dense array, so counting them for load management is
+	 * cheap, and counting the requests from one peer only has to look at that peer's.
+	 * 
+	 * Not synchronized: callers lock the non-local table of the same kind.
+	 */
+	private static final class UIDTable<T extends UIDTag> {
+		private final LongObjectHashMap<T> byUID = new LongObjectHashMap<T>();
+		/** Tags which were not originated locally, by the original source's
+		 * PeerNode.myRef. A tag's source can later become null (reassigned to us, or the peer
+		 * was dropped), but never another peer, so callers must still check getSource(). */
+		private final HashMap<WeakReference<PeerNode>, ArrayList<T>> bySource =
+			new HashMap<WeakReference<PeerNode>, ArrayList<T>>();
+
+		T get(long uid) {
+			return byUID.get(uid);
+		}
+
+		void put(long uid, T tag) {
+			T old = byUID.put(uid, tag);
+			if(old != null) removeFromSource(old);
+			WeakReference<PeerNode> ref = tag.getSourceRef();
+			if(ref == null) return;
+			ArrayList<T> tags = bySource.get(ref);
+			if(tags == null) {
+				tags = new ArrayList<T>(4);
+				bySource.put(ref, tags);
+			}
+			tags.add(tag);
+		}
+
+		void remove(long uid) {
+			T old = byUID.remove(uid);
+			if(old != null) removeFromSource(old);
+		}
+
+		private void removeFromSource(T tag) {
+			WeakReference<PeerNode> ref = tag.getSourceRef();
+			if(ref == null) return;
+			ArrayList<T> tags = bySource.get(ref);
+			if(tags == null) return;
+			// Tags don't override equals(), and there are only a few per peer.
+			tags.remove(tag);
+			if(tags.isEmpty()) bySource.remove(ref);
+		}
+
+		int size() {
+			return byUID.size();
+		}
+
+		long uidAt(int i) {
+			return byUID.keyAt(i);
+		}
+
+		T tagAt(int i) {
+			return byUID.valueAt(i);
+		}
+
+		/** @return The tags which were originally sent by the peer, or null. */
+		List<T> fromSource(PeerNode pn) {
+			return bySource.get(pn.myRef);
+		}
+
+		/** @return All the tags which were not originated locally, grouped by their original
+		 * source. */
+		Collection<ArrayList<T>> bySource() {
+			return bySource.values();
+		}
+	}
+
 	// The runningLocal* are secondary. That is, we take the lock on the
 	// corresponding running* when accessing runningLocal*. Local requests
 	// have a tag in *both*.
 	
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsBulk;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsBulk;
-
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsRT;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
+	private final UIDTable<RequestTag> runningCHKGetUIDsBulk;
+	private final UIDTable<RequestTag> runningLocalCHKGetUIDsBulk;
+	private final UIDTable<RequestTag> runningSSKGetUIDsBulk;
+	private final UIDTable<RequestTag> runningLocalSSKGetUIDsBulk;
+	private final UIDTable<InsertTag> runningCHKPutUIDsBulk;
+	private final UIDTable<InsertTag> runningLocalCHKPutUIDsBulk;
+	private final UIDTable<InsertTag> runningSSKPutUIDsBulk;
+	private final UIDTable<InsertTag> runningLocalSSKPutUIDsBulk;
+	private final UIDTable<OfferReplyTag> runningCHKOfferReplyUIDsBulk;
+	private final UIDTable<OfferReplyTag> runningSSKOfferReplyUIDsBulk;
+
+	private final UIDTable<RequestTag> runningCHKGetUIDsRT;
+	private final UIDTable<RequestTag> runningLocalCHKGetUIDsRT;
+	private final UIDTable<RequestTag> runningSSKGetUIDsRT;
+	private final UIDTable<RequestTag> runningLocalSSKGetUIDsRT;
+	private final UIDTable<InsertTag> runningCHKPutUIDsRT;
+	private final UIDTable<InsertTag> runningLocalCHKPutUIDsRT;
+	private final UIDTable<InsertTag> runningSSKPutUIDsRT;
+	private final UIDTable<InsertTag> runningLocalSSKPutUIDsRT;
+	private final UIDTable<OfferReplyTag> runningCHKOfferReplyUIDsRT;
+	private final UIDTable<OfferReplyTag> runningSSKOfferReplyUIDsRT;
 	
 	private final PeerManager peers;
 	private final Ticker ticker;
@@ -60,27 +135,27 @@ public class RequestTracker {
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
-		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-
-		runningCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
+		runningCHKGetUIDsRT = new UIDTable<RequestTag>();
+		runningLocalCHKGetUIDsRT = new UIDTable<RequestTag>();
+		runningSSKGetUIDsRT = new UIDTable<RequestTag>();
+		runningLocalSSKGetUIDsRT = new UIDTable<RequestTag>();
+		runningCHKPutUIDsRT = new UIDTable<InsertTag>();
+		runningLocalCHKPutUIDsRT = new UIDTable<InsertTag>();
+		runningSSKPutUIDsRT = new UIDTable<InsertTag>();
+		runningLocalSSKPutUIDsRT = new UIDTable<InsertTag>();
+		runningCHKOfferReplyUIDsRT = new UIDTable<OfferReplyTag>();
+		runningSSKOfferReplyUIDsRT = new UIDTable<OfferReplyTag>();
+
+		runningCHKGetUIDsBulk = new UIDTable<RequestTag>();
+		runningLocalCHKGetUIDsBulk = new UIDTable<RequestTag>();
+		runningSSKGetUIDsBulk = new UIDTable<RequestTag>();
+		runningLocalSSKGetUIDsBulk = new UIDTable<RequestTag>();
+		runningCHKPutUIDsBulk = new UIDTable<InsertTag>();
+		runningLocalCHKPutUIDsBulk = new UIDTable<InsertTag>();
+		runningSSKPutUIDsBulk = new UIDTable<InsertTag>();
+		runningLocalSSKPutUIDsBulk = new UIDTable<InsertTag>();
+		runningCHKOfferReplyUIDsBulk = new UIDTable<OfferReplyTag>();
+		runningSSKOfferReplyUIDsBulk = new UIDTable<OfferReplyTag>();
 		
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
@@ -95,20 +170,20 @@ public class RequestTracker {
 		// If these are switched around, we must remember to remove from both.
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
+			UIDTable<OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
 			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
+			UIDTable<InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
+			UIDTable<InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
 			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
+			UIDTable<RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
+			UIDTable<RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
 			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
+	private<T extends UIDTag> boolean innerLock(UIDTable<T> overallMap, UIDTable<T> localMap, T tag, long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			T oldTag = overallMap.get(uid);
@@ -151,15 +226,15 @@ public class RequestTracker {
 			completed(uid);
 
 		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
+			UIDTable<OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
 			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
+			UIDTable<InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
+			UIDTable<InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
 			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
+			UIDTable<RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
+			UIDTable<RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
 			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		}
 	}
@@ -180,7 +255,7 @@ public class RequestTracker {
 	 * it is not we expect the latter to be null.
 	 * @param canFail
 	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+	private<T extends UIDTag> void innerUnlock(UIDTable<T> overallMap, UIDTable<T> localMap, T tag, long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			if(overallMap.get(uid) != tag) {
@@ -238,9 +313,9 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
+		UIDTable<? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
+		UIDTable<? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
@@ -250,8 +325,8 @@ public class RequestTracker {
 			int countSR = 0;
 			int transfersOutSR = 0;
 			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
+			for(int i = 0; i < map.size(); i++) {
+				UIDTag tag = map.tagAt(i);
 				// The overall running* map can include local. But the local map can't include non-local.
 				if((!local) && tag.wasLocal) continue;
 				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
@@ -264,7 +339,7 @@ public class RequestTracker {
 					transfersOutSR += out;
 					transfersInSR += in;
 				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
+				if(logDEBUG) Logger.debug(this, "UID "+map.uidAt(i)+" : out "+transfersOut+" in "+transfersIn);
 			}
 			counter.total += count;
 			counter.expectedTransfersIn += transfersIn;
@@ -279,11 +354,11 @@ public class RequestTracker {
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: Requests accepted from a peer are indexed by peer, so counting them only looks
+	 * at that peer's requests. Requests routed to a peer are not, as where a request is routed
+	 * changes all the time, so counting them still looks at every request of the given type.
+	 * FIXME ideally we would countRequests for all PeerNode's simultaneously when we need data on
+	 * more than one.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -300,9 +375,9 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
+		UIDTable<? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
+		UIDTable<? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
@@ -317,8 +392,14 @@ public class RequestTracker {
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
 				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
+				List<? extends UIDTag> tags = null;
+				if(source != null) {
+					tags = map.fromSource(source);
+					if(tags == null) tags = Collections.emptyList();
+				}
+				int size = tags == null ? map.size() : tags.size();
+				for(int i = 0; i < size; i++) {
+					UIDTag tag = tags == null ? map.tagAt(i) : tags.get(i);
 					// The overall running* map can include local. But the local map can't include non-local.
 					if((!local) && tag.wasLocal) continue;
 					if(tag.getSource() == source) {
@@ -332,8 +413,8 @@ public class RequestTracker {
 							transfersOutSR += out;
 							transfersInSR += in;
 						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+tag.uid+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
+					} else if(logDEBUG) Logger.debug(this, "Not counting "+tag.uid);
 				}
 				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
 				counter.total += count;
@@ -347,23 +428,23 @@ public class RequestTracker {
 			} else {
 				// hasSourceRestarted is irrelevant for requests *to* a node.
 				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
+				for(int i = 0; i < map.size(); i++) {
+					UIDTag tag = map.tagAt(i);
 					// The overall running* map can include local. But the local map can't include non-local.
 					if((!local) && tag.wasLocal) continue;
 					// Ordinary requests can be routed to an offered key.
 					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
 					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+map.uidAt(i));
 						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
 						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
 						count++;
 					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+map.uidAt(i));
 						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
 						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
 						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+					} else if(logDEBUG) Logger.debug(this, "Not counting "+map.uidAt(i));
 				}
 				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
 				counter.total += count;
@@ -390,9 +471,9 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
+		UIDTable<? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
+		UIDTable<? extends UIDTag> mapLock = map;
 		if(local)
 			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
 		synchronized(mapLock) {
@@ -400,26 +481,51 @@ public class RequestTracker {
 				// If a request is adopted by us as a result of a timeout, it can be in the
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
+				if(local) {
+					// All local, so all counted against null.
+					for(int i = 0; i < map.size(); i++)
+						countRequest(map.tagAt(i), null, ignoreLocalVsRemote, transfersPerInsert, counterMap);
+				} else {
+					// The overall running* map can include local. But the local map can't include 
+					// non-local. So we only need the tags that came from a peer.
+					for(List<? extends UIDTag> tags : map.bySource()) {
+						PeerNode lastSource = null;
+						CountedRequests counter = null;
+						for(UIDTag tag : tags) {
+							PeerNode source = tag.getSource(); // Can be null in various cases
+							if(counter == null || source != lastSource) {
+								counter = getCounter(counterMap, source);
+								lastSource = source;
+							}
+							countRequest(tag, counter, ignoreLocalVsRemote, transfersPerInsert, null);
+						}
 					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
 				}
 			}
 		}
 	}
 	
+	private static CountedRequests getCounter(Map<PeerNode, CountedRequests> counterMap, PeerNode source) {
+		CountedRequests counter = counterMap.get(source);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(source, counter);
+		}
+		return counter;
+	}
+
+	/** Add a request to the counter, or if the counter is null, to its source's counter in the
+	 * counterMap. */
+	private static void countRequest(UIDTag tag, CountedRequests counter, boolean ignoreLocalVsRemote, int transfersPerInsert, Map<PeerNode, CountedRequests> counterMap) {
+		if(counter == null)
+			counter = getCounter(counterMap, tag.getSource());
+		int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+		int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+		counter.total++;
+		counter.expectedTransfersIn += in;
+		counter.expectedTransfersOut += out;
+	}
+
 	public class WaitingForSlots {
 		int local;
 		int remote;
@@ -444,11 +550,12 @@ public class RequestTracker {
 		return slots;
 	}
 	
-	private void countRequestsWaitingForSlots(HashMap<Long, ? extends UIDTag> runningUIDs, WaitingForSlots slots) {
+	private void countRequestsWaitingForSlots(UIDTable<? extends UIDTag> runningUIDs, WaitingForSlots slots) {
 		// FIXME use a counter, but that means make sure it always removes it when something bad happens.
 		
 		synchronized(runningUIDs) {
-			for(UIDTag tag : runningUIDs.values()) {
+			for(int i = 0; i < runningUIDs.size(); i++) {
+				UIDTag tag = runningUIDs.tagAt(i);
 				if(!tag.isWaitingForSlot()) continue;
 				if(tag.isLocal())
 					slots.local++;
@@ -463,7 +570,7 @@ public class RequestTracker {
 		tag.reassignToSelf();
 	}
 
-	private HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
+	private UIDTable<? extends UIDTag> getTracker(boolean local, boolean ssk,
 			boolean insert, boolean offer, boolean realTimeFlag) {
 		if(offer)
 			return getOfferTracker(ssk, realTimeFlag);
@@ -474,7 +581,7 @@ public class RequestTracker {
 	}
 
 
-	private HashMap<Long, RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
+	private UIDTable<RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
 		if(realTimeFlag) {
 			if(ssk) {
 				return local ? runningLocalSSKGetUIDsRT : runningSSKGetUIDsRT;
@@ -490,7 +597,7 @@ public class RequestTracker {
 		}
 	}
 
-	private HashMap<Long, InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
+	private UIDTable<InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
 		if(realTimeFlag) {
 			if(ssk) {
 				return local ? runningLocalSSKPutUIDsRT : runningSSKPutUIDsRT;
@@ -506,7 +613,7 @@ public class RequestTracker {
 		}
 	}
 
-	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
+	private UIDTable<OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
 		if(realTimeFlag)
 			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
 		else
@@ -542,12 +649,16 @@ public class RequestTracker {
 			}
 		}
 
-		private void checkUIDs(HashMap<Long, ? extends UIDTag> map) {
-			Long[] uids;
+		private void checkUIDs(UIDTable<? extends UIDTag> map) {
+			long[] uids;
 			UIDTag[] tags;
 			synchronized(map) {
-				uids = map.keySet().toArray(new Long[map.size()]);
-				tags = map.values().toArray(new UIDTag[map.size()]);
+				uids = new long[map.size()];
+				tags = new UIDTag[map.size()];
+				for(int i = 0; i < uids.length; i++) {
+					uids[i] = map.uidAt(i);
+					tags[i] = map.tagAt(i);
+				}
 			}
 			long now = System.currentTimeMillis();
 			for(int i=0;i<uids.length;i++) {
@@ -573,9 +684,11 @@ public class RequestTracker {
 	}
 
 	private void onRestartOrDisconnect(PeerNode pn,
-			HashMap<Long, ? extends UIDTag> uids) {
+			UIDTable<? extends UIDTag> uids) {
 		synchronized(uids) {
-			for(UIDTag tag : uids.values()) {
+			List<? extends UIDTag> tags = uids.fromSource(pn);
+			if(tags == null) return;
+			for(UIDTag tag : tags) {
 				if(tag.isSource(pn))
 					tag.onRestartOrDisconnectSource();
 			}
@@ -764,9 +877,10 @@ public class RequestTracker {
 		addRunningUIDs(runningCHKOfferReplyUIDsBulk, list);
 	}
 	
-	private void addRunningUIDs(HashMap<Long, ? extends UIDTag> runningUIDs, List<Long> list) {
+	private void addRunningUIDs(UIDTable<? extends UIDTag> runningUIDs, List<Long> list) {
 		synchronized(runningUIDs) {
-			list.addAll(runningUIDs.keySet());
+			for(int i = 0; i < runningUIDs.size(); i++)
+				list.add(runningUIDs.uidAt(i));
 		}
 	}
 
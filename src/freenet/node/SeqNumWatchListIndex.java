@@ -0,0 +1,152 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+
+import freenet.support.LongObjectHashMap;
+
+/**
+ * Index of the encrypted sequence numbers which NewPacketFormat is watching for, on every
+ * session key of every peer on one NodeCrypto. This lets us find the session key (and so the
+ * peer) a packet was sent on with one lookup, rather than checking every peer's watch list in
+ * turn, e.g. when a peer's NAT has given it a new port, or when we are flooded with junk.
+ *
+ * Different session keys may be watching for the same 4 bytes, so each value is a list. The
+ * lists are immutable, so they can be followed without holding the lock. A match doesn't mean
+ * the packet is valid, the caller must still check the HMAC.
+ *
+ * LOCKING: A key's watch list is only changed while holding its NewPacketFormatKeyContext's
+ * lock. This is taken before the index's lock.
+ */
+class SeqNumWatchListIndex {
+
+	static final class Match {
+		final SessionKey key;
+		final int seqNum;
+		final Match next;
+
+		private Match(SessionKey key, int seqNum, Match next) {
+			this.key = key;
+			this.seqNum = seqNum;
+			this.next = next;
+		}
+	}
+
+	private static final PeerNode[] NO_PEERS = new PeerNode[0];
+
+	private final LongObjectHashMap<Match> matches = new LongObjectHashMap<Match>();
+
+	private static long toKey(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+			((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	/** Add every sequence number in the key's watch list, unless the key has been dropped. The
+	 * caller must hold the key context's lock, and the watch list must exist. */
+	void addAll(SessionKey key) {
+		NewPacketFormatKeyContext context = key.packetContext;
+		if(context.watchListForgotten) return;
+		byte[][] watchList = context.seqNumWatchList;
+		synchronized(this) {
+			for(int i = 0; i < watchList.length; i++) {
+				int index = (context.watchListPointer + i) % watchList.length;
+				int seqNum = (int) ((0l + context.watchListOffset + i) % NewPacketFormat.NUM_SEQNUMS);
+				add(watchList[index], key, seqNum);
+			}
+		}
+		context.watchListIndex = this;
+	}
+
+	/** Remove every sequence number in the key's watch list, e.g. because the key is no longer
+	 * in use. */
+	void removeAll(SessionKey key) {
+		NewPacketFormatKeyContext context = key.packetContext;
+		synchronized(context) {
+			context.watchListForgotten = true;
+			if(context.watchListIndex != this) return;
+			synchronized(this) {
+				for(byte[] encrypted : context.seqNumWatchList) {
+					long k = toKey(encrypted, 0);
+					Match head = matches.get(k);
+					Match remaining = without(head, key, 0, false);
+					if(remaining == head) continue;
+					if(remaining == null)
+						matches.remove(k);
+					else
+						matches.put(k, remaining);
+				}
+			}
+			context.watchListIndex = null;
+		}
+	}
+
+	/** Replace one entry in a key's watch list, when the watch list moves. The caller must
+	 * hold the key context's lock. */
+	synchronized void replace(SessionKey key, byte[] oldEncrypted, int oldSeqNum,
+			byte[] newEncrypted, int newSeqNum) {
+		long k = toKey(oldEncrypted, 0);
+		Match head = matches.get(k);
+		Match remaining = without(head, key, oldSeqNum, true);
+		if(remaining != head) {
+			if(remaining == null)
+				matches.remove(k);
+			else
+				matches.put(k, remaining);
+		}
+		add(newEncrypted, key, newSeqNum);
+	}
+
+	private void add(byte[] encrypted, SessionKey key, int seqNum) {
+		long k = toKey(encrypted, 0);
+		matches.put(k, new Match(key, seqNum, matches.get(k)));
+	}
+
+	/** @return The list without the entries for the key (and sequence number if checkSeqNum).
+	 * The same list if there are none. */
+	private static Match without(Match list, SessionKey key, int seqNum, boolean checkSeqNum) {
+		if(list == null) return null;
+		Match rest = without(list.next, key, seqNum, checkSeqNum);
+		if(list.key == key && (!checkSeqNum || list.seqNum == seqNum)) return rest;
+		if(rest == list.next) return list;
+		return new Match(list.key, list.seqNum, rest);
+	}
+
+	/**
+	 * @param buf A received packet, which must be at least long enough to contain a sequence
+	 * number.
+	 * @param offset The offset of the encrypted sequence number in buf.
+	 * @return The session keys and sequence numbers which the packet may have been sent with,
+	 * or null.
+	 */
+	synchronized Match get(byte[] buf, int offset) {
+		return matches.get(toKey(buf, offset));
+	}
+
+	/** @return The peers which may have sent the packet, going by its sequence number. */
+	PeerNode[] getPeerNodes(byte[] buf, int offset, int length) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return NO_PEERS;
+		Match m = get(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		if(m == null) return NO_PEERS;
+		PeerNode[] peers = new PeerNode[1];
+		int count = 0;
+		for(; m != null; m = m.next) {
+			PeerNode pn = m.key.pn;
+			boolean found = false;
+			for(int i = 0; i < count; i++)
+				if(peers[i] == pn) found = true;
+			if(found) continue;
+			if(count == peers.length)
+				peers = Arrays.copyOf(peers, count * 2);
+			peers[count++] = pn;
+		}
+		return count == peers.length ? peers : Arrays.copyOf(peers, count);
+	}
+
+	/** @return The number of distinct encrypted sequence numbers indexed. */
+	synchronized int size() {
+		return matches.size();
+	}
+
+}
@@ -30,6 +30,10 @@ public class SessionKey {
 	final long trackerID;
 	
 	public final NewPacketFormatKeyContext packetContext;
+	/** Reusable state for decrypting incoming packets. Synchronize on it. */
+	final NewPacketFormatCipher incomingPacketCipher;
+	/** Reusable state for encrypting outgoing packets. Synchronize on it. */
+	final NewPacketFormatCipher outgoingPacketCipher;
 
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
@@ -44,9 +48,38 @@ public class SessionKey {
 		this.hmacKey = hmacKey;
 		this.packetContext = context;
 		this.trackerID = trackerID;
+		// Tests may not set up the ciphers.
+		if(ivCipher != null && incommingCipher != null)
+			incomingPacketCipher = new NewPacketFormatCipher(ivCipher, ivNonce, incommingCipher, hmacKey);
+		else
+			incomingPacketCipher = null;
+		if(ivCipher != null && outgoingCipher != null)
+			outgoingPacketCipher = new NewPacketFormatCipher(ivCipher, ivNonce, outgoingCipher, hmacKey);
+		else
+			outgoingPacketCipher = null;
 	}
 	
+	/** Called when the peer disconnects. The key may be kept, and used again if the peer comes
+	 * back, so it stays in the node's index, even if it comes back from a different address. */
 	public void disconnected() {
 		packetContext.disconnected();
 	}
+
+	/** Called when the peer stops using this key for good. */
+	void dropped() {
+		disconnected();
+		forgetWatchList();
+	}
+
+	/** Remove our sequence numbers from the node's index, and don't add them again, because we
+	 * won't be used again. */
+	void forgetWatchList() {
+		SeqNumWatchListIndex index;
+		synchronized(packetContext) {
+			// Even if it hasn't been added yet, e.g. before completedHandshake() creates it.
+			packetContext.watchListForgotten = true;
+			index = packetContext.watchListIndex;
+		}
+		if(index != null) index.removeAll(this);
+	}
 }
@@ -234,6 +234,13 @@ public abstract class UIDTag {
 		return sourceRef.get();
 	}
 
+	/** Get the original source's PeerNode.myRef, even if the tag has been reassigned to us.
+	 * Null if the request was originated locally. Used by RequestTracker to index tags by
+	 * source. */
+	WeakReference<PeerNode> getSourceRef() {
+		return sourceRef;
+	}
+
 	/** Reassign the tag to us rather than its original sender. */
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
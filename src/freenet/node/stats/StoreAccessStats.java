@@ -9,6 +9,24 @@ public abstract class StoreAccessStats {
 	public abstract long falsePos();
 	
 	public abstract long writes();
+
+	/** Hits in the store's cache of digested routing keys, if it has one. */
+	public long digestCacheHits() {
+		return 0;
+	}
+
+	/** Misses in the store's cache of digested routing keys, if it has one. */
+	public long digestCacheMisses() {
+		return 0;
+	}
+
+	public double digestCacheHitRate() throws StatsNotAvailableException {
+		long lookups = digestCacheHits() + digestCacheMisses();
+		if (lookups > 0)
+			return (100.0 * digestCacheHits() / lookups);
+		else
+			throw new StatsNotAvailableException();
+	}
 	
 	public long readRequests() {
 		return hits() + misses();
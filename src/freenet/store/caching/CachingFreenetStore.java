@@ -2,6 +2,7 @@ package freenet.store.caching;
 
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -22,22 +23,42 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * Blocks are spread over a number of shards by the first byte of their routing key, each with
+ * its own lock and its own LRU, so that puts don't block fetches of unrelated keys. Routing keys
+ * are hashes, so the shards fill up evenly. The least recently used block is only tracked per
+ * shard, and the shards are written to disk in turn.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
 public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetStore<T> {
     private static volatile boolean logMINOR;
  
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	/** Number of shards. A power of 2, and no more than 256 as we only use the first byte of
+	 * the routing key. */
+	static final int SHARDS;
+	static {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int shards = 1;
+		// Enough that threads rarely collide on a shard.
+		while(shards < processors * 4 && shards < 256)
+			shards *= 2;
+		SHARDS = shards;
+	}
+
+	/* If this flag is true, we don't accept puts anymore. Only set while holding all the shard
+	 * locks, so reading it with any one of them held is enough. */
+	private volatile boolean shuttingDown;
 	/***
 	 * True if close() has been called
 	 */
 	private AtomicBoolean closeCalled = new AtomicBoolean(false);
 
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	private final Shard<T>[] shards;
+	/** The next shard pushLeastRecentlyBlock() should look at. */
+	private final AtomicInteger nextShardToPush = new AtomicInteger();
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
 	
@@ -51,11 +72,21 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		boolean isOldBlock;
 	}
 
+	private final static class Shard<T> {
+		final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey =
+			LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+	}
+
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker) {
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		@SuppressWarnings("unchecked")
+		Shard<T>[] shards = (Shard<T>[]) new Shard<?>[SHARDS];
+		for(int i = 0; i < shards.length; i++)
+			shards[i] = new Shard<T>();
+		this.shards = shards;
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
@@ -70,6 +101,10 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		});
 	}
 
+	private Shard<T> shardFor(byte[] routingKey) {
+		return shards[routingKey[0] & (SHARDS - 1)];
+	}
+
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache,
@@ -79,11 +114,12 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		
 		Block<T> block = null;
 		
-		configLock.readLock().lock();
+		Shard<T> shard = shardFor(routingKey);
+		shard.lock.readLock().lock();
 		try {
-			block = blocksByRoutingKey.get(key);
+			block = shard.blocksByRoutingKey.get(key);
 		} finally {
-			configLock.readLock().unlock();
+			shard.lock.readLock().unlock();
 		}
 		
 		if(block != null) {
@@ -102,11 +138,12 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 		Block<T> block = null;
 		
-		configLock.readLock().lock();
+		Shard<T> shard = shardFor(routingKey);
+		shard.lock.readLock().lock();
 		try {
-			block = blocksByRoutingKey.get(key);
+			block = shard.blocksByRoutingKey.get(key);
 		} finally {
-			configLock.readLock().unlock();
+			shard.lock.readLock().unlock();
 		}
 		
 		return block != null || backDatastore.probablyInStore(routingKey);
@@ -128,11 +165,12 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		boolean cacheIt = true;
 		
 		//Case cache it
-		configLock.writeLock().lock();
+		Shard<T> shard = shardFor(routingKey);
+		shard.lock.writeLock().lock();
 		
 		try {
 			if(!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
+				Block<T> previousBlock = shard.blocksByRoutingKey.get(key);
 			
 				if(!collisionPossible || overwrite) {
 					if(previousBlock == null) {
@@ -140,7 +178,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 					}
 					
 					if(cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						shard.blocksByRoutingKey.push(key, storeBlock);
 					}
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
@@ -157,7 +195,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 						cacheIt = tracker.add(sizeBlock);
 						
 						if(cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							shard.blocksByRoutingKey.push(key, storeBlock);
 						}
 					}
 				}
@@ -165,7 +203,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 				cacheIt = false;
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			shard.lock.writeLock().unlock();
 		}
 		
 		//Case don't cache it
@@ -175,7 +213,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		}
 	}
 	
-	/** Try to write one block to disk.
+	/** Try to write one block to disk: the least recently used block of the next non-empty
+	 * shard.
 	 * @return The number of bytes written to disk if we successfully wrote a block, 0 if we wrote 
 	 * a block but can't remove it because it changed while we were writing it, and -1 if there 
 	 * were no blocks to write because the cache is empty.
@@ -183,15 +222,21 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	long pushLeastRecentlyBlock() {
 		Block<T> block = null;
 		ByteArrayWrapper key = null;
+		Shard<T> shard = null;
 		
-		configLock.writeLock().lock();
-		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
-		} finally {
-			configLock.writeLock().unlock();
+		int start = nextShardToPush.getAndIncrement();
+		for(int i = 0; i < SHARDS && block == null; i++) {
+			shard = shards[(start + i) & (SHARDS - 1)];
+			shard.lock.writeLock().lock();
+			try {
+				block = shard.blocksByRoutingKey.peekValue();
+				if(block != null)
+					key = shard.blocksByRoutingKey.peekKey();
+			} finally {
+				shard.lock.writeLock().unlock();
+			}
 		}
+		if(block == null) return -1;
 			
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
@@ -201,18 +246,18 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
 		}
 		
-		configLock.writeLock().lock();
+		shard.lock.writeLock().lock();
 		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+			Block<T> currentVersionOfBlock = shard.blocksByRoutingKey.get(key);
 			
 			/** it might have changed if there was a put() with overwrite=true. 
 			 *  If it has changed, return 0 , i.e. don't remove it*/
 			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
+				if(shard.blocksByRoutingKey.removeKey(key))
 					return sizeBlock;
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			shard.lock.writeLock().unlock();
 		}
 		return 0;
 	}
@@ -233,24 +278,29 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 
 	/** Close this store but not the underlying store. */
 	private void innerClose() {
-		configLock.writeLock().lock();
+		// Take all the locks so that no put() can add a block after we have flushed.
+		for(Shard<T> shard : shards)
+			shard.lock.writeLock().lock();
 		try {
 			shuttingDown = true;
-			tracker.unregisterCachingFS(this);
 		} finally {
-			configLock.writeLock().unlock();
+			for(Shard<T> shard : shards)
+				shard.lock.writeLock().unlock();
 		}
+		tracker.unregisterCachingFS(this);
 	}
 	
 	/** Only for unit tests */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		} finally {
-			configLock.readLock().unlock();
+		for(Shard<T> shard : shards) {
+			shard.lock.readLock().lock();
+			try {
+				if(!shard.blocksByRoutingKey.isEmpty())
+					return false;
+			} finally {
+				shard.lock.readLock().unlock();
+			}
 		}
-		return isEmpty;
+		return true;
 	}
 }
@@ -5,9 +5,9 @@ package freenet.store.saltedhash;
 
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.PCFBMode;
@@ -15,7 +15,7 @@ import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.node.MasterKeys;
-import freenet.support.ByteArrayWrapper;
+import freenet.support.Fields;
 import freenet.support.Logger;
 
 /**
@@ -36,10 +36,34 @@ public class CipherManager {
 	 */
 	private byte[] diskSalt;
 
+	public static final int DEFAULT_DIGEST_CACHE_SIZE = 4096;
+
+	/** Number of digested keys to cache, for stores created after it is set. */
+	private static volatile int digestCacheSize = DEFAULT_DIGEST_CACHE_SIZE;
+
+	public static void setDigestCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException();
+		digestCacheSize = size;
+	}
+
+	public static int getDigestCacheSize() {
+		return digestCacheSize;
+	}
+
 	CipherManager(byte[] salt, byte[] diskSalt) {
 		assert salt.length == 0x10;
 		this.salt = salt;
 		this.diskSalt = diskSalt;
+		int size = 0;
+		if (digestCacheSize > 0) {
+			// Round up to a power of 2.
+			size = 1;
+			while (size < digestCacheSize && size < (1 << 30))
+				size <<= 1;
+		}
+		digestRoutingKeyCache = new AtomicReferenceArray<DigestedKey>(size);
+		digestCacheMask = size - 1;
 	}
 
 	/**
@@ -51,16 +75,26 @@ public class CipherManager {
 		return diskSalt;
 	}
 
+	/** A cached digested key. Immutable, so it can be shared between threads without locking. */
+	private static final class DigestedKey {
+		final byte[] plainKey;
+		final byte[] digestedKey;
+
+		DigestedKey(byte[] plainKey, byte[] digestedKey) {
+			this.plainKey = plainKey;
+			this.digestedKey = digestedKey;
+		}
+	}
+
 	/**
-	 * Cache for digested keys
+	 * Cache for digested keys. Direct mapped, indexed by a hash of the plain key, so a lookup
+	 * takes no lock and allocates nothing. Two threads racing to fill the same slot only cost
+	 * a recomputation later.
 	 */
-	@SuppressWarnings("serial")
-	private Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
-		}
-	};
+	private final AtomicReferenceArray<DigestedKey> digestRoutingKeyCache;
+	private final int digestCacheMask;
+	private final AtomicLong digestCacheHits = new AtomicLong();
+	private final AtomicLong digestCacheMisses = new AtomicLong();
 
 	/**
 	 * Get digested routing key
@@ -69,12 +103,16 @@ public class CipherManager {
 	 * @return
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
-			if (dk != null)
-				return dk;
+		int slot = -1;
+		if (digestCacheMask >= 0) {
+			slot = Fields.hashCode(plainKey) & digestCacheMask;
+			DigestedKey cached = digestRoutingKeyCache.get(slot);
+			if (cached != null && Arrays.equals(cached.plainKey, plainKey)) {
+				digestCacheHits.incrementAndGet();
+				return cached.digestedKey;
+			}
 		}
+		digestCacheMisses.incrementAndGet();
 
 		MessageDigest digest = SHA256.getMessageDigest();
 		try {
@@ -84,9 +122,8 @@ public class CipherManager {
 			byte[] hashedRoutingKey = digest.digest();
 			assert hashedRoutingKey.length == 0x20;
 
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+			if (slot != -1)
+				digestRoutingKeyCache.lazySet(slot, new DigestedKey(plainKey.clone(), hashedRoutingKey));
 
 			return hashedRoutingKey;
 		} finally {
@@ -94,6 +131,14 @@ public class CipherManager {
 		}
 	}
 
+	long getDigestCacheHits() {
+		return digestCacheHits.get();
+	}
+
+	long getDigestCacheMisses() {
+		return digestCacheMisses.get();
+	}
+
 	/**
 	 * Encrypt this entry
 	 */
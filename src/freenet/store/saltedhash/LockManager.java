@@ -3,11 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,74 +13,122 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are spread over a fixed number of stripes, each with its own lock and its own
+ * table of locked offsets, so that locking unrelated slots doesn't contend on a single lock,
+ * and locking doesn't allocate anything.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Must be a power of 2. */
+	static final int STRIPES = 256;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/** The offsets currently locked in one stripe. Usually only a handful, so a linear scan
+	 * is fine. */
+	private static class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition unlocked = lock.newCondition();
+		private long[] locked = new long[4];
+		private int count;
+
+		/** Caller must hold the lock */
+		private int indexOf(long offset) {
+			for (int i = 0; i < count; i++)
+				if (locked[i] == offset)
+					return i;
+			return -1;
+		}
+
+		/** Caller must hold the lock */
+		private void add(long offset) {
+			if (count == locked.length)
+				locked = Arrays.copyOf(locked, count * 2);
+			locked[count++] = offset;
+		}
+
+		/** Caller must hold the lock */
+		private boolean remove(long offset) {
+			int i = indexOf(offset);
+			if (i == -1)
+				return false;
+			locked[i] = locked[--count];
+			return true;
+		}
+	}
+
+	private Stripe stripe(long offset) {
+		return stripes[(int) (offset & (STRIPES - 1))];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * then one lock at a time (or deadlock may occur). Threads that need several must lock
+	 * them in ascending order.
+	 *
+	 * @return <code>false</code> if we are shutting down or were interrupted.
 	 */
-	Condition lockEntry(long offset) {
+	boolean lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		Stripe stripe = stripe(offset);
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
 				do {
 					if (shutdown)
-						return null;
+						return false;
 
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+					if (stripe.indexOf(offset) != -1)
+						stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
 					else
 						break;
 				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				stripe.add(offset);
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
-			return null;
+			return false;
 		}
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return true;
 	}
 
 	/**
 	 * Unlock the entry
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripe(offset);
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			boolean removed = stripe.remove(offset);
+			assert removed;
+			// Waiters may be waiting for other offsets in the same stripe.
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -91,14 +137,14 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
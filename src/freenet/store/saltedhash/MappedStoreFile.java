@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only memory mapping of one of the salted hash store files, made of fixed windows of
+ * whole entries. An entry never straddles two windows, so it can always be read with absolute
+ * gets on a single buffer, without any allocation or system call.
+ *
+ * Windows are mapped lazily and never extend the file: a window at the end of the file only
+ * covers the part of it that exists when it is mapped. The caller must {@link #invalidate()}
+ * the mapping whenever the file is truncated or extended, and must not use it while this may
+ * happen (i.e. while the store is being resized).
+ *
+ * Writes still go through the {@link FileChannel}. The mapping is shared with the page cache,
+ * so they are visible to readers immediately.
+ */
+class MappedStoreFile {
+
+	/** Maximum size of a single window. Must fit in a MappedByteBuffer. */
+	private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+	private final FileChannel fc;
+	private final int entryLength;
+	private final long entriesPerWindow;
+	private final long windowSize;
+	/** Copy on write, so readers don't need to lock. */
+	private volatile MappedByteBuffer[] windows;
+
+	MappedStoreFile(FileChannel fc, int entryLength) {
+		this.fc = fc;
+		this.entryLength = entryLength;
+		this.entriesPerWindow = Math.max(1, MAX_WINDOW_SIZE / entryLength);
+		this.windowSize = entriesPerWindow * entryLength;
+		this.windows = new MappedByteBuffer[0];
+	}
+
+	/**
+	 * Get the window containing an entry. Only absolute gets may be used on it, as it is
+	 * shared between threads.
+	 * @param offset The entry number.
+	 * @return The window, or null if the entry is beyond the end of the file.
+	 * @throws IOException If the window could not be mapped, e.g. out of address space.
+	 */
+	ByteBuffer window(long offset) throws IOException {
+		int index = (int) (offset / entriesPerWindow);
+		int end = position(offset) + entryLength;
+		MappedByteBuffer[] w = windows;
+		if (index < w.length && w[index] != null && w[index].capacity() >= end)
+			return w[index];
+		return map(index, end);
+	}
+
+	/** @return The position of an entry within its window. */
+	int position(long offset) {
+		return (int) ((offset % entriesPerWindow) * entryLength);
+	}
+
+	private synchronized ByteBuffer map(int index, int end) throws IOException {
+		MappedByteBuffer[] w = windows;
+		if (index < w.length && w[index] != null && w[index].capacity() >= end)
+			return w[index];
+		long start = index * windowSize;
+		long length = Math.min(windowSize, fc.size() - start);
+		if (length < end)
+			return null;
+		MappedByteBuffer buf = fc.map(MapMode.READ_ONLY, start, length);
+		MappedByteBuffer[] newWindows = new MappedByteBuffer[Math.max(w.length, index + 1)];
+		System.arraycopy(w, 0, newWindows, 0, w.length);
+		newWindows[index] = buf;
+		windows = newWindows;
+		return buf;
+	}
+
+	/** Drop all the windows. They will be remapped on demand. The old mappings are released
+	 * when they are garbage collected. */
+	synchronized void invalidate() {
+		windows = new MappedByteBuffer[0];
+	}
+
+}
@@ -16,11 +16,7 @@ import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -288,6 +284,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 		}
 
+		configLock.writeLock().lock();
+		try {
+			this.ticker = ticker;
+			updateWriteQueue();
+		} finally {
+			configLock.writeLock().unlock();
+		}
+
 		// Otherwise the resize will be completed by the Cleaner thread.
 		// However, we do still need to set storeFileOffsetReady
 
@@ -328,8 +332,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, true);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return null;
@@ -364,7 +368,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -392,7 +396,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private Entry probeEntry0(byte[] digestedKey, byte[] routingKey, long probeStoreSize, boolean withData) throws IOException {
 		Entry entry = null;
-		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
+		long[] offset = getOffsetFromDigestedKey(digestedKey, probeStoreSize, probeOffsets.get());
 
 		for (int i = 0; i < offset.length; i++) {
 			if (logDEBUG)
@@ -438,8 +442,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, false);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
@@ -555,7 +559,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				onWrite();
 				return true;
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -576,6 +580,37 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** If true, read the store files through memory mappings rather than the FileChannel's,
+	 * except while resizing. */
+	private volatile boolean useMmap;
+	private MappedStoreFile metaMap;
+	private MappedStoreFile hdMap;
+
+	/** Maximum time in milliseconds puts may be kept in memory, 0 to write them immediately.
+	 * Protected by configLock. */
+	private long writeBehindDelay;
+	/** If true, force the store files after each batch of writes. Protected by configLock. */
+	private boolean writeBehindForce;
+	/** Non-null if write-behind is enabled and we have a ticker to flush it.
+	 * Protected by configLock. */
+	private WriteBehindQueue writeQueue;
+	private Ticker ticker;
+
+	/** Reused by readEntry() when not reading from the memory mapping. */
+	private final ThreadLocal<ByteBuffer> metaReadBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		}
+	};
+
+	/** Reused by probeEntry0(), so that a probe which misses doesn't allocate anything. */
+	private final ThreadLocal<long[]> probeOffsets = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[OPTION_MAX_PROBE];
+		}
+	};
 
 	/**
 	 * Data entry
@@ -633,29 +668,33 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		private Entry(ByteBuffer metaDataBuf, ByteBuffer hdBuf) {
+			this(metaDataBuf, metaDataBuf.position());
 			assert metaDataBuf.remaining() == METADATA_LENGTH;
 
-			digestedRoutingKey = new byte[0x20];
-			metaDataBuf.get(digestedRoutingKey);
+			if (hdBuf != null)
+				setHD(hdBuf);
+		}
 
-			dataEncryptIV = new byte[0x10];
-			metaDataBuf.get(dataEncryptIV);
+		/**
+		 * Read an entry from a metadata buffer using only absolute gets, so the buffer may be
+		 * shared with other threads.
+		 *
+		 * @param metaDataBuf
+		 * @param base position of the entry in the buffer
+		 */
+		private Entry(ByteBuffer metaDataBuf, int base) {
+			digestedRoutingKey = getBytes(metaDataBuf, base, 0x20);
+			dataEncryptIV = getBytes(metaDataBuf, base + 0x20, 0x10);
 
-			flag = metaDataBuf.getLong();
-			storeSize = metaDataBuf.getLong();
+			flag = metaDataBuf.getLong(base + 0x30);
+			storeSize = metaDataBuf.getLong(base + 0x38);
 
-			if ((flag & ENTRY_FLAG_PLAINKEY) != 0) {
-				plainRoutingKey = new byte[0x20];
-				metaDataBuf.get(plainRoutingKey);
-			}
+			if ((flag & ENTRY_FLAG_PLAINKEY) != 0)
+				plainRoutingKey = getBytes(metaDataBuf, base + 0x40, 0x20);
 
-			metaDataBuf.position(0x60);
-			generation = metaDataBuf.getInt();
+			generation = metaDataBuf.getInt(base + 0x60);
 
 			isEncrypted = true;
-
-			if (hdBuf != null)
-				setHD(hdBuf);
 		}
 
 		/**
@@ -782,22 +821,47 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		public int getSlotFilterEntry(byte[] digestedRoutingKey, long flags) {
 			int value = (digestedRoutingKey[2] & 0xFF) + ((digestedRoutingKey[1] & 0xFF) << 8) +
 				((digestedRoutingKey[0] & 0xFF) << 16);
-			value |= SLOT_CHECKED;
-			if((flags & ENTRY_FLAG_OCCUPIED) != 0)
-				value |= SLOT_OCCUPIED;
-			if((flags & ENTRY_NEW_BLOCK) != 0)
-				value |= SLOT_NEW_BLOCK;
-			if((flags & ENTRY_WRONG_STORE) != 0)
-				value |= SLOT_WRONG_STORE;
-			return value;
+			return slotFilterEntry(value, flags);
 		}
-		
+
 		public int getSlotFilterEntry() {
 			return getSlotFilterEntry(getDigestedRoutingKey(), flag);
 		}
 
 	}
 
+	private static byte[] getBytes(ByteBuffer buf, int index, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buf.get(index + i);
+		return bytes;
+	}
+
+	private int slotFilterEntry(int value, long flags) {
+		value |= SLOT_CHECKED;
+		if((flags & Entry.ENTRY_FLAG_OCCUPIED) != 0)
+			value |= SLOT_OCCUPIED;
+		if((flags & Entry.ENTRY_NEW_BLOCK) != 0)
+			value |= SLOT_NEW_BLOCK;
+		if((flags & Entry.ENTRY_WRONG_STORE) != 0)
+			value |= SLOT_WRONG_STORE;
+		return value;
+	}
+
+	/** Compute the slot filter entry for an entry in a metadata buffer, without allocating. */
+	private int slotFilterEntry(ByteBuffer metaDataBuf, int base, long flags) {
+		int value = (metaDataBuf.get(base + 2) & 0xFF) + ((metaDataBuf.get(base + 1) & 0xFF) << 8) +
+			((metaDataBuf.get(base) & 0xFF) << 16);
+		return slotFilterEntry(value, flags);
+	}
+
+	private static boolean digestedKeyEquals(ByteBuffer metaDataBuf, int base, byte[] digestedRoutingKey) {
+		for (int i = 0; i < 0x20; i++)
+			if (metaDataBuf.get(base + i) != digestedRoutingKey[i])
+				return false;
+		return true;
+	}
+
 	public boolean slotCacheLikelyMatch(int value, byte[] digestedRoutingKey) {
 		if((value & (SLOT_CHECKED)) == 0) return false;
 		if((value & (SLOT_OCCUPIED)) == 0) return false;
@@ -855,6 +919,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".hd"), ex);
 		}
 
+		metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH);
+		hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding);
+
 		return newStore;
 	}
 
@@ -881,22 +948,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
-
-		Entry entry = new Entry(mbf, null);
-		entry.curOffset = offset;
+		// Don't construct the Entry until we know we want it, so a miss doesn't allocate.
+		int base = 0;
+		ByteBuffer mbf = null;
+		if (writeQueue != null && !writeQueue.isEmpty())
+			mbf = writeQueue.getMeta(offset);
+		if (mbf == null) {
+			mbf = mappedWindow(metaMap, offset);
+			if (mbf != null)
+				base = metaMap.position(offset);
+		}
+		if (mbf == null) {
+			mbf = metaReadBuffer.get();
+			mbf.clear();
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 
-		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
-		int trueCache = entry.getSlotFilterEntry();
+		long flag = mbf.getLong(base + 0x30);
+		int trueCache = slotFilterEntry(mbf, base, flag);
 		if(trueCache != cache && !slotFilterDisabled) {
 			if(validCache)
 				Logger.error(this, "Slot cache has changed for slot "+offset+" from "+cache+" to "+trueCache);
@@ -904,7 +979,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		
 		if (routingKey != null) {
-			if (entry.isFree()) {
+			if ((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
 				if(validCache && !likelyMatch && !slotCacheIsFree(cache)) {
 					Logger.error(this, "Slot falsely identified as non-free on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -912,7 +987,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					Logger.minor(this, "True negative!");
 				return null;
 			}
-			if (!Arrays.equals(digestedRoutingKey, slotDigestedRoutingKey)) {
+			if (!digestedKeyEquals(mbf, base, digestedRoutingKey)) {
 				if(validCache && likelyMatch) {
 					Logger.normal(this, "False positive from slot cache on slot "+offset+" cache was "+cache);
 					bloomFalsePos.incrementAndGet();
@@ -925,19 +1000,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				Logger.error(this, "False NEGATIVE from slot cache on slot "+offset+" cache was "+cache);
 				bloomFalsePos.incrementAndGet();
 			}
+		}
 
-			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
-				boolean decrypted = cipherManager.decrypt(entry, routingKey);
-				if (!decrypted) {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
-					return null;
-				} else {
-					if(logMINOR && validCache && likelyMatch)
-						Logger.minor(this, "True positive!");
-				}
+		Entry entry = new Entry(mbf, base);
+		entry.curOffset = offset;
+
+		if (routingKey != null && withData) {
+			ByteBuffer hdBuf = readHD(offset);
+			entry.setHD(hdBuf);
+			boolean decrypted = cipherManager.decrypt(entry, routingKey);
+			if (!decrypted) {
+				if(logMINOR && validCache && likelyMatch)
+					Logger.minor(this, "True positive but decrypt failed on slot "+offset+" cache was "+cache);
+				return null;
+			} else {
+				if(logMINOR && validCache && likelyMatch)
+					Logger.minor(this, "True positive!");
 			}
 		}
 
@@ -951,7 +1029,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+		if (writeQueue != null && !writeQueue.isEmpty()) {
+			ByteBuffer buf = writeQueue.getHD(offset);
+			if (buf != null)
+				return buf;
+		}
+
+		int length = headerBlockLength + dataBlockLength + hdPadding;
+		ByteBuffer window = mappedWindow(hdMap, offset);
+		if (window != null) {
+			ByteBuffer buf = window.duplicate();
+			int pos = hdMap.position(offset);
+			buf.limit(pos + length);
+			buf.position(pos);
+			return buf;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(length);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 		do {
@@ -964,6 +1058,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return buf;
 	}
 
+	/**
+	 * Get the memory mapped window containing an entry, if memory mapping is enabled and we are
+	 * not resizing. Before calling this function, you should acquire the config lock.
+	 *
+	 * @return <code>null</code> if the caller should read from the FileChannel instead.
+	 */
+	private ByteBuffer mappedWindow(MappedStoreFile map, long offset) {
+		if (!useMmap || prevStoreSize != 0 || map == null)
+			return null;
+		try {
+			return map.window(offset);
+		} catch (IOException e) {
+			// Most likely out of address space e.g. on a 32-bit JVM.
+			Logger.error(this, "Unable to map store file for " + name + ", disabling memory mapping: " + e, e);
+			useMmap = false;
+			return null;
+		}
+	}
+
 	/** Get the flags for a slot. Tries to use the slot filter if possible. However, the
 	 * ENTRY_FLAG_PLAINKEY flag is not included in the slot filter, so it won't contain
 	 * that one.
@@ -1011,12 +1124,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		
+		// Don't write behind while resizing, as the files are being truncated or extended.
+		WriteBehindQueue queue = prevStoreSize == 0 ? writeQueue : null;
+
 		if(!slotFilterDisabled)
-			slotFilter.put((int)offset, entry.getSlotFilterEntry(digestedRoutingKey, entry.flag));
+			slotFilter.put((int)offset, entry.getSlotFilterEntry(digestedRoutingKey, entry.flag), queue != null);
 		
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
+		if (queue != null) {
+			queue.put(offset, bf, entry.toHDBuffer());
+			entry.curOffset = offset;
+			return;
+		}
 		do {
 			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 			if (status == -1)
@@ -1038,6 +1159,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		useMmap = false;
+		metaMap.invalidate();
+		hdMap.invalidate();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1066,6 +1190,63 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Keep puts in memory for up to <code>delay</code> milliseconds, and write them in batches
+	 * sorted by offset. See {@link WriteBehindQueue} for what this means if the node crashes.
+	 * Only takes effect once the store has been started with a ticker.
+	 * @param delay 0 to write every put immediately.
+	 * @param force If true, force the files to disk after each batch.
+	 */
+	public void setWriteBehind(long delay, boolean force) throws IOException {
+		configLock.writeLock().lock();
+		try {
+			writeBehindDelay = delay;
+			writeBehindForce = force;
+			updateWriteQueue();
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	/** Create, replace or remove the write-behind queue after a change of settings. Caller must
+	 * hold the config write lock. */
+	private void updateWriteQueue() throws IOException {
+		if (writeQueue != null) {
+			writeQueue.close();
+			writeQueue = null;
+		}
+		if (writeBehindDelay > 0 && ticker != null && !shutdown)
+			writeQueue = new WriteBehindQueue(name, metaFC, Entry.METADATA_LENGTH, hdFC,
+					headerBlockLength + dataBlockLength + hdPadding, slotFilterDisabled ? null : slotFilter,
+					ticker, writeBehindDelay, writeBehindForce);
+	}
+
+	/** Write out any pending puts. Caller must hold the config lock, or the locks for all the
+	 * slots it is interested in. */
+	private void flushWriteQueue() {
+		WriteBehindQueue queue = writeQueue;
+		if (queue == null || queue.isEmpty())
+			return;
+		try {
+			queue.flush();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write pending entries for " + name + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Read the store files through memory mappings instead of a read() call for every probe.
+	 * Uses a lot of address space, but not necessarily memory, on a big store.
+	 * @param useMmap
+	 */
+	public void setUseMmap(boolean useMmap) {
+		this.useMmap = useMmap;
+		if(!useMmap) {
+			metaMap.invalidate();
+			hdMap.invalidate();
+		}
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -1096,6 +1277,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
+			metaMap.invalidate();
+			hdMap.invalidate();
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1655,14 +1838,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			int locked = 0;
 			try {
 				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
+				for (; locked < length; locked++) {
+					if (!lockManager.lockEntry(offset + locked))
 						return false;
 				}
+				flushWriteQueue();
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
@@ -1752,9 +1935,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 			} finally {
 				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				for (int i = 0; i < locked; i++)
+					lockManager.unlockEntry(offset + i);
 			}
 		}
 
@@ -1765,8 +1947,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
-			if (lockMap == null)
+			long[] lockedOffsets = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			if (lockedOffsets == null)
 				return false;
 			try {
 				entry.storeSize = storeSize;
@@ -1800,7 +1982,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		}
 	}
@@ -1922,6 +2104,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 
 			old = storeSize;
+			// Puts are written immediately while resizing.
+			flushWriteQueue();
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
 			if(!slotFilterDisabled)
@@ -1961,55 +2145,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return the offsets locked, to pass to {@link #unlockDigestedKey(long[])}, or
+	 *         <code>null</code> if we failed to lock all of them.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private long[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			offsets = Arrays.copyOf(offsets, OPTION_MAX_PROBE * 2);
+			System.arraycopy(prevOffsets, 0, offsets, OPTION_MAX_PROBE, OPTION_MAX_PROBE);
+		}
+		// remove duplicated offsets, and lock in ascending order to prevent deadlocks
+		Arrays.sort(offsets);
+		int count = 0;
+		for (int i = 0; i < offsets.length; i++)
+			if (i == 0 || offsets[i] != offsets[i - 1])
+				offsets[count++] = offsets[i];
+		if (count != offsets.length)
+			offsets = Arrays.copyOf(offsets, count);
+
+		for (int i = 0; i < offsets.length; i++) {
+			if (!lockManager.lockEntry(offsets[i])) {
+				// failed, remove the locks
+				for (int j = 0; j < i; j++)
+					lockManager.unlockEntry(offsets[j]);
+				return null;
+			}
 		}
+		return offsets;
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(long[] lockedOffsets) {
+		for (long offset : lockedOffsets)
+			lockManager.unlockEntry(offset);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2052,6 +2220,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			configLock.writeLock().lock();
 			try {
+				if (writeQueue != null) {
+					try {
+						writeQueue.close();
+					} catch (IOException e) {
+						Logger.error(this, "Unable to write pending entries for " + name + ": " + e, e);
+					}
+					writeQueue = null;
+				}
 				flushAndClose(abort);
 				flags &= ~FLAG_DIRTY; // clean shutdown
 				writeConfigFile();
@@ -2073,8 +2249,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @return
 	 */
 	private long[] getOffsetFromDigestedKey(byte[] digestedKey, long storeSize) {
+		return getOffsetFromDigestedKey(digestedKey, storeSize, new long[OPTION_MAX_PROBE]);
+	}
+
+	/**
+	 * Get offset in the hash table, given a digested routing key.
+	 *
+	 * @param digestedKey
+	 * @param storeSize
+	 * @param offsets array of length {@link #OPTION_MAX_PROBE} to fill in
+	 * @return <code>offsets</code>
+	 */
+	private long[] getOffsetFromDigestedKey(byte[] digestedKey, long storeSize, long[] offsets) {
 		long keyValue = Fields.bytesToLong(digestedKey);
-		long[] offsets = new long[OPTION_MAX_PROBE];
 
 		for (int i = 0; i < OPTION_MAX_PROBE; i++) {
 			// h + 141 i^2 + 13 i
@@ -2229,6 +2416,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public long digestCacheHits() {
+				return cipherManager.getDigestCacheHits();
+			}
+
+			@Override
+			public long digestCacheMisses() {
+				return cipherManager.getDigestCacheMisses();
+			}
 			
 		};
 	}
@@ -0,0 +1,256 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Write-behind queue for the salted hash store. Entries written by put() are kept in memory
+ * for up to a configurable delay, or until enough of them have accumulated, and are then
+ * written together, sorted by offset, with one gathering write per run of consecutive slots
+ * and at most one force() per file.
+ *
+ * The store must read pending entries from here before going to disk, and must flush the
+ * queue before anything reads or writes the files directly (the cleaner, resizing, close).
+ *
+ * Durability: an entry is only on disk once the flush which includes it has completed. If the
+ * node crashes, puts from the last delay period (or the last batch, whichever is smaller) may
+ * be lost, which is acceptable for a cache of data that can be fetched again. They are never
+ * corrupted: header+data are written before the metadata which points to them, and if force is
+ * enabled, the header+data file is forced before the metadata is written. Without force, the
+ * operating system may reorder the writes, in which case a torn entry fails verification and is
+ * treated as a miss. The slot filter is updated in memory immediately, and persisted (if it is
+ * written immediately at all) after the entry; a slot filter which is ahead of the disk only
+ * causes a false positive, which readEntry() corrects.
+ */
+class WriteBehindQueue {
+
+	/** Flush synchronously from put() when this many entries are pending. */
+	static final int MAX_PENDING = 256;
+
+	private static class PendingWrite {
+		final long offset;
+		final ByteBuffer meta;
+		/** May be null if only the metadata has changed */
+		final ByteBuffer hd;
+
+		PendingWrite(long offset, ByteBuffer meta, ByteBuffer hd) {
+			this.offset = offset;
+			this.meta = meta;
+			this.hd = hd;
+		}
+	}
+
+	private static final Comparator<PendingWrite> BY_OFFSET = new Comparator<PendingWrite>() {
+		@Override
+		public int compare(PendingWrite a, PendingWrite b) {
+			return Long.compare(a.offset, b.offset);
+		}
+	};
+
+	private final String name;
+	private final FileChannel metaFC;
+	private final FileChannel hdFC;
+	private final int metaLength;
+	private final int hdLength;
+	/** Null if slot filters are disabled */
+	private final ResizablePersistentIntBuffer slotFilter;
+	private final Ticker ticker;
+	private final long maxDelay;
+	private final boolean force;
+	private final ConcurrentHashMap<Long, PendingWrite> pending = new ConcurrentHashMap<Long, PendingWrite>();
+	/** Serialises flushes, and hence the use of the channels' positions. */
+	private final Object flushLock = new Object();
+	/** Is the flush job scheduled? Protected by (this). */
+	private boolean scheduled;
+	/** Set once the queue has been replaced or the store closed. Protected by flushLock. */
+	private boolean closed;
+
+	private final AtomicLong entriesWritten = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+
+	/**
+	 * @param maxDelay Maximum time in milliseconds an entry may stay in memory.
+	 * @param force If true, force() the files after every flush.
+	 */
+	WriteBehindQueue(String name, FileChannel metaFC, int metaLength, FileChannel hdFC, int hdLength,
+			ResizablePersistentIntBuffer slotFilter, Ticker ticker, long maxDelay, boolean force) {
+		this.name = name;
+		this.metaFC = metaFC;
+		this.metaLength = metaLength;
+		this.hdFC = hdFC;
+		this.hdLength = hdLength;
+		this.slotFilter = slotFilter;
+		this.ticker = ticker;
+		this.maxDelay = maxDelay;
+		this.force = force;
+	}
+
+	/**
+	 * Queue an entry. The caller must hold the lock on the slot.
+	 * @param hd May be null if only the metadata changes.
+	 */
+	void put(long offset, ByteBuffer meta, ByteBuffer hd) throws IOException {
+		Long key = offset;
+		PendingWrite old = pending.get(key);
+		if (hd == null && old != null)
+			hd = old.hd; // Still needs writing.
+		pending.put(key, new PendingWrite(offset, meta, hd));
+		if (pending.size() >= MAX_PENDING)
+			flush();
+		else
+			schedule();
+	}
+
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Get the metadata of a pending entry. The caller must hold the lock on the slot, and
+	 * must only use absolute gets on the buffer.
+	 * @return null if there is no pending write for this slot.
+	 */
+	ByteBuffer getMeta(long offset) {
+		PendingWrite w = pending.get(offset);
+		return w == null ? null : w.meta;
+	}
+
+	/**
+	 * Get the header+data of a pending entry. The caller must hold the lock on the slot.
+	 * @return A new buffer over the whole entry, or null if there is no pending write of the
+	 * header+data for this slot.
+	 */
+	ByteBuffer getHD(long offset) {
+		PendingWrite w = pending.get(offset);
+		if (w == null || w.hd == null)
+			return null;
+		ByteBuffer buf = w.hd.duplicate();
+		buf.clear();
+		return buf;
+	}
+
+	private synchronized void schedule() {
+		if (scheduled)
+			return;
+		scheduled = true;
+		ticker.queueTimedJob(flusher, maxDelay);
+	}
+
+	private final Runnable flusher = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (WriteBehindQueue.this) {
+				scheduled = false;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write pending entries for " + name + ": " + e, e);
+			}
+			if (!pending.isEmpty())
+				schedule();
+		}
+
+	};
+
+	/**
+	 * Write all pending entries to disk. Entries which are replaced while we are writing stay
+	 * pending until the next flush.
+	 */
+	void flush() throws IOException {
+		synchronized (flushLock) {
+			if (closed || pending.isEmpty())
+				return;
+			PendingWrite[] writes = pending.values().toArray(new PendingWrite[0]);
+			Arrays.sort(writes, BY_OFFSET);
+
+			// Header+data first, so the metadata never points to data which was not written.
+			writeRuns(hdFC, hdLength, writes, true);
+			if (force)
+				hdFC.force(false);
+			writeRuns(metaFC, metaLength, writes, false);
+			if (force)
+				metaFC.force(false);
+
+			if (slotFilter != null && ResizablePersistentIntBuffer.getPersistenceTime() == -1) {
+				for (PendingWrite w : writes)
+					slotFilter.put((int) w.offset, slotFilter.get((int) w.offset));
+			}
+
+			for (PendingWrite w : writes)
+				pending.remove(w.offset, w);
+			entriesWritten.addAndGet(writes.length);
+			flushes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Write all pending entries, and stop. Later flushes, e.g. from a job which was already
+	 * scheduled, do nothing, so this must be called before the channels are closed.
+	 */
+	void close() throws IOException {
+		synchronized (flushLock) {
+			try {
+				flush();
+			} finally {
+				closed = true;
+			}
+		}
+	}
+
+	/** Write the given entries, which must be sorted by offset, with one gathering write for
+	 * each run of consecutive slots. */
+	private static void writeRuns(FileChannel fc, int length, PendingWrite[] writes, boolean hd) throws IOException {
+		ByteBuffer[] run = new ByteBuffer[writes.length];
+		int count = 0;
+		long runStart = -1;
+		for (PendingWrite w : writes) {
+			ByteBuffer buf = hd ? w.hd : w.meta;
+			if (buf == null)
+				continue;
+			if (count != 0 && w.offset != runStart + count) {
+				writeFully(fc, runStart * length, run, count);
+				count = 0;
+			}
+			if (count == 0)
+				runStart = w.offset;
+			// Don't change the position of the buffer readers may be using.
+			ByteBuffer dup = buf.duplicate();
+			dup.clear();
+			run[count++] = dup;
+		}
+		if (count != 0)
+			writeFully(fc, runStart * length, run, count);
+	}
+
+	private static void writeFully(FileChannel fc, long pos, ByteBuffer[] bufs, int count) throws IOException {
+		fc.position(pos);
+		int first = 0;
+		while (first < count) {
+			fc.write(bufs, first, count - first);
+			while (first < count && !bufs[first].hasRemaining())
+				first++;
+		}
+	}
+
+	long entriesWritten() {
+		return entriesWritten.get();
+	}
+
+	long flushes() {
+		return flushes.get();
+	}
+
+}
@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Lock-free version of BinaryBloomFilter. Keys can't be removed.
+ * @see AtomicBloomFilter
+ */
+public class AtomicBinaryBloomFilter extends AtomicBloomFilter {
+
+	/**
+	 * Constructor
+	 * 
+	 * @param length
+	 *            length in bits
+	 */
+	public AtomicBinaryBloomFilter(int length, int k) {
+		super(length, k, 1);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param buf
+	 *            serialized filter, length / 8 bytes starting at offset
+	 * @param length
+	 *            length in bits
+	 */
+	public AtomicBinaryBloomFilter(byte[] buf, int offset, int length, int k) {
+		super(length, k, 1);
+		readFrom(buf, offset);
+	}
+
+	@Override
+	public void removeKey(byte[] key) {
+		// ignore
+	}
+
+	@Override
+	protected boolean getBit(int offset) {
+		return (words.get(offset >>> 6) & (1L << offset)) != 0;
+	}
+
+	@Override
+	protected void setBit(int offset) {
+		int word = offset >>> 6;
+		long mask = 1L << offset;
+		while(true) {
+			long x = words.get(word);
+			if((x & mask) != 0) return;
+			if(words.compareAndSet(word, x, x | mask)) return;
+		}
+	}
+
+	@Override
+	protected void unsetBit(int offset) {
+		// NO-OP
+	}
+
+}
@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter which doesn't lock and doesn't allocate. Instead of seeding a MersenneTwister
+ * from the key, the positions are computed by double hashing (Kirsch and Mitzenmacher, "Less
+ * Hashing, Same Performance"): g_i(key) = h1(key) + i * h2(key) mod length, where h1 and h2 are
+ * simply the last 16 bytes of the key, which must therefore already be a hash, e.g. a salted
+ * routing key. Positions are packed into 64-bit words, which are updated with compare-and-set.
+ *
+ * The serialized form is the same size and layout as the corresponding BinaryBloomFilter or
+ * CountingBloomFilter, but the positions are different, so a filter written by one can't be read
+ * by the other: It has to be rebuilt from the keys.
+ *
+ * Fork and merge are not supported.
+ */
+public abstract class AtomicBloomFilter extends BloomFilter {
+
+	protected final AtomicLongArray words;
+	private final int sizeBytes;
+
+	/**
+	 * @param length Number of positions.
+	 * @param bitsPerPosition 1 for a binary filter, 2 for a counting filter.
+	 */
+	protected AtomicBloomFilter(int length, int k, int bitsPerPosition) {
+		super(length, k);
+		sizeBytes = this.length / 8 * bitsPerPosition;
+		words = new AtomicLongArray((sizeBytes + 7) / 8);
+	}
+
+	/** Initialize the filter from a serialized filter of the same size. */
+	protected void readFrom(byte[] buf, int offset) {
+		for(int i=0;i<sizeBytes;i+=8) {
+			long x = 0;
+			for(int j=Math.min(8, sizeBytes - i)-1;j>=0;j--)
+				x = (x << 8) | (buf[offset + i + j] & 0xff);
+			words.set(i / 8, x);
+		}
+	}
+
+	//-- Core
+	@Override
+	public void addKey(byte[] key) {
+		if(k == 0) return;
+		int step = step(key);
+		int pos = start(key);
+		for(int i=0;i<k;i++) {
+			setBit(pos);
+			pos = next(pos, step);
+		}
+	}
+
+	@Override
+	public void addKeyForked(byte[] key) {
+		// Not supported.
+	}
+
+	@Override
+	public boolean checkFilter(byte[] key) {
+		if(k == 0) return true;
+		int step = step(key);
+		int pos = start(key);
+		for(int i=0;i<k;i++) {
+			if(!getBit(pos)) return false;
+			pos = next(pos, step);
+		}
+		return true;
+	}
+
+	@Override
+	public void removeKey(byte[] key) {
+		if(k == 0) return;
+		int step = step(key);
+		int pos = start(key);
+		for(int i=0;i<k;i++) {
+			unsetBit(pos);
+			pos = next(pos, step);
+		}
+	}
+
+	//-- Hashes
+	/** The key should be a hash. If it's too short, mix it into something usable (FNV-1a). */
+	private static long hash(byte[] key, int offset, long seed) {
+		if(key.length >= 16)
+			return Fields.bytesToLong(key, key.length - 16 + offset);
+		long h = 0xcbf29ce484222325L ^ seed;
+		for(byte b : key)
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		return h ^ (h >>> 29);
+	}
+
+	private int start(byte[] key) {
+		return (int) ((hash(key, 0, 0) & Long.MAX_VALUE) % length);
+	}
+
+	private int step(byte[] key) {
+		int step = (int) ((hash(key, 8, 1) & Long.MAX_VALUE) % length);
+		// A zero step would give the same position k times.
+		return step == 0 ? 1 : step;
+	}
+
+	/** @return (pos + step) mod length, without overflowing. */
+	private int next(int pos, int step) {
+		return pos >= length - step ? pos - (length - step) : pos + step;
+	}
+
+	//-- Misc.
+	@Override
+	public void unsetAll() {
+		for(int i=0;i<words.length();i++)
+			words.set(i, 0);
+	}
+
+	@Override
+	public void fork(int k) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void merge() {
+		// Never forked.
+	}
+
+	@Override
+	public void discard() {
+		// Never forked.
+	}
+
+	@Override
+	public void force() {
+		// Not mapped.
+	}
+
+	@Override
+	public int getSizeBytes() {
+		return sizeBytes;
+	}
+
+	@Override
+	public int copyTo(byte[] buf, int offset) {
+		for(int i=0;i<sizeBytes;i+=8) {
+			long x = words.get(i / 8);
+			int end = Math.min(8, sizeBytes - i);
+			for(int j=0;j<end;j++) {
+				buf[offset + i + j] = (byte) x;
+				x >>>= 8;
+			}
+		}
+		return sizeBytes;
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		byte[] buf = new byte[sizeBytes];
+		copyTo(buf, 0);
+		os.write(buf);
+	}
+
+}
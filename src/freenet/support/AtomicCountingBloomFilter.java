@@ -0,0 +1,81 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Lock-free version of CountingBloomFilter. Each position is a 2-bit counter, which sticks at 3
+ * once it has overflowed. There are 32 counters to a word, and each word is updated with 
+ * compare-and-set, so threads only contend if they change the same word at the same time.
+ * @see AtomicBloomFilter
+ */
+public class AtomicCountingBloomFilter extends AtomicBloomFilter {
+
+	private boolean warnOnRemoveFromEmpty;
+	
+	public void setWarnOnRemoveFromEmpty() {
+		warnOnRemoveFromEmpty = true;
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param length
+	 *            number of counters
+	 */
+	public AtomicCountingBloomFilter(int length, int k) {
+		super(length, k, 2);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param length
+	 *            number of counters
+	 * @param buffer
+	 *            serialized filter, length / 4 bytes
+	 */
+	public AtomicCountingBloomFilter(int length, int k, byte[] buffer) {
+		super(length, k, 2);
+		assert(buffer.length == length / 4);
+		readFrom(buffer, 0);
+	}
+
+	private static int shift(int offset) {
+		return (offset & 31) * 2;
+	}
+
+	@Override
+	public boolean getBit(int offset) {
+		return ((words.get(offset >>> 5) >>> shift(offset)) & 3) != 0;
+	}
+
+	@Override
+	public void setBit(int offset) {
+		int word = offset >>> 5;
+		int shift = shift(offset);
+		while(true) {
+			long x = words.get(word);
+			long v = (x >>> shift) & 3;
+			if (v == 3)
+				return; // overflow
+			if(words.compareAndSet(word, x, x + (1L << shift))) return;
+		}
+	}
+
+	@Override
+	public void unsetBit(int offset) {
+		int word = offset >>> 5;
+		int shift = shift(offset);
+		while(true) {
+			long x = words.get(word);
+			long v = (x >>> shift) & 3;
+			if (v == 0 && warnOnRemoveFromEmpty)
+				Logger.error(this, "Unsetting bit but already unset - probable double remove, can cause false negatives, is very bad!", new Exception("error"));
+			if (v == 0 || v == 3)
+				return; // overflow / underflow
+			if(words.compareAndSet(word, x, x - (1L << shift))) return;
+		}
+	}
+
+}
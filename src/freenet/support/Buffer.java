@@ -22,6 +22,7 @@ package freenet.support;
 import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import freenet.io.WritableToDataOutputStream;
@@ -119,6 +120,12 @@ public class Buffer implements WritableToDataOutputStream {
 		stream.write(_data, _start, _length);
 	}
 
+	/** Write the length and the data, in the same format as writeToDataOutputStream(). */
+	public void writeTo(ByteBuffer buf) {
+		buf.putInt(_length);
+		buf.put(_data, _start, _length);
+	}
+
 	@Override
 	public String toString() {
 		if (this._length > 50) {
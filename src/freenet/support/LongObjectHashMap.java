@@ -0,0 +1,182 @@
+package freenet.support;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive long's to objects, which doesn't box the keys or allocate anything
+ * per entry. The entries are kept in dense arrays, so iterating over them with
+ * {@link #keyAt(int)} and {@link #valueAt(int)} is as cheap as iterating over an array, and
+ * the hash table is open addressed with linear probing and only stores indexes into them.
+ *
+ * Removing an entry moves the last entry into its place, so the order of iteration is not
+ * stable, and the map must not be modified while iterating over it by index.
+ *
+ * This class is not synchronized.
+ */
+public class LongObjectHashMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	/** Index of the entry in keys/values plus one, or 0 for an empty slot. Never more than
+	 * half full. */
+	private int[] table;
+
+	public LongObjectHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/** @param expectedSize The number of entries we can hold before having to grow. */
+	public LongObjectHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize)
+			capacity *= 2;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		table = new int[capacity * 2];
+	}
+
+	private static int hash(long key) {
+		// Fibonacci hashing: UIDs are random, but other keys may not be.
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/** @return The slot containing the key, or the empty slot where it would go. */
+	private int slot(long key) {
+		int mask = table.length - 1;
+		int i = hash(key) & mask;
+		while(true) {
+			int index = table[i];
+			if(index == 0 || keys[index - 1] == key) return i;
+			i = (i + 1) & mask;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return table[slot(key)] != 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int index = table[slot(key)];
+		return index == 0 ? null : (V) values[index - 1];
+	}
+
+	/** @return The previous value for the key, or null. */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int i = slot(key);
+		int index = table[i];
+		if(index != 0) {
+			V old = (V) values[index - 1];
+			values[index - 1] = value;
+			return old;
+		}
+		if(size == keys.length) {
+			grow();
+			i = slot(key);
+		}
+		keys[size] = key;
+		values[size] = value;
+		size++;
+		table[i] = size;
+		return null;
+	}
+
+	/** @return The value which was removed, or null. */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		int index = table[i];
+		if(index == 0) return null;
+		V old = (V) values[index - 1];
+		deleteSlot(i);
+		// Fill the hole in the dense arrays with the last entry.
+		int last = size - 1;
+		if(index - 1 != last) {
+			table[slot(keys[last])] = index;
+			keys[index - 1] = keys[last];
+			values[index - 1] = values[last];
+		}
+		values[last] = null;
+		size--;
+		return old;
+	}
+
+	/** Empty a slot, moving later entries in the same cluster back so that lookups don't stop
+	 * early. */
+	private void deleteSlot(int i) {
+		int mask = table.length - 1;
+		table[i] = 0;
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			int index = table[j];
+			if(index == 0) return;
+			int ideal = hash(keys[index - 1]) & mask;
+			// Leave it if its ideal slot is cyclically in (i, j].
+			boolean stay = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+			if(stay) continue;
+			table[i] = index;
+			table[j] = 0;
+			i = j;
+		}
+	}
+
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+		table = new int[capacity * 2];
+		for(int index = 0; index < size; index++)
+			table[slot(keys[index])] = index + 1;
+	}
+
+	/** @param i Between 0 and size()-1. */
+	public long keyAt(int i) {
+		if(i >= size) throw new ArrayIndexOutOfBoundsException(i);
+		return keys[i];
+	}
+
+	/** @param i Between 0 and size()-1. */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int i) {
+		if(i >= size) throw new ArrayIndexOutOfBoundsException(i);
+		return (V) values[i];
+	}
+
+	/** @return A copy of the keys. */
+	public long[] keys() {
+		return Arrays.copyOf(keys, size);
+	}
+
+	/** @return A copy of the values.
+	 * @param array An array of the right type, as for Collection.toArray(). */
+	@SuppressWarnings("unchecked")
+	public <E> E[] values(E[] array) {
+		if(array.length < size)
+			array = (E[]) Arrays.copyOf(array, size, array.getClass());
+		System.arraycopy(values, 0, array, 0, size);
+		if(array.length > size)
+			array[size] = null;
+		return array;
+	}
+
+	public void clear() {
+		Arrays.fill(values, 0, size, null);
+		Arrays.fill(table, 0);
+		size = 0;
+	}
+
+}
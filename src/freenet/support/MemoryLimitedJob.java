@@ -5,6 +5,9 @@ public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
     
+    /** When the job was queued, for stats. Set by MemoryLimitedJobRunner. */
+    long queuedTime;
+    
     public MemoryLimitedJob(long initial) {
         this.initialAllocation = initial;
     }
@@ -12,6 +15,20 @@ public abstract class MemoryLimitedJob {
     /** All memory limited jobs run at LOW_PRIORITY. This affects queueing. */
     public abstract int getPriority();
     
+    /** If true, prefetch() will be called before start(). */
+    public boolean hasPrefetch() {
+        return false;
+    }
+    
+    /** Optional I/O stage, e.g. reading the blocks to decode from disk. Called on a separate I/O
+     * thread once the memory has been allocated, so that the next job's disk reads overlap with 
+     * the previous job's decoding. start() is called afterwards, on another thread. Must not 
+     * throw: If the prefetch fails, start() should do the I/O itself, and handle any error as it 
+     * would have done without prefetch(). */
+    public void prefetch() {
+        // Do nothing.
+    }
+    
     /** Start the job. Generally called by MemoryLimitedJobRunner, which schedules jobs within
      * the limited available resource (memory).
      * @param chunk The chunk of the scarce resource that has been allocated for this job. Can
@@ -8,20 +8,50 @@ import freenet.support.io.NativeThread;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
+ *
+ * Jobs with an I/O stage (MemoryLimitedJob.hasPrefetch()) are pipelined: Once memory has been
+ * allocated to such a job, its prefetch() runs on one of a small number of I/O threads, and the
+ * job then waits for a compute thread, so e.g. a segment's blocks are read from disk while the
+ * previous segment is being decoded. At most maxThreads jobs can be waiting for a compute thread
+ * or prefetching at once, so we don't tie up memory far ahead of the decoders. Jobs which have
+ * prefetched are started before new jobs are admitted, as they already have their memory.
+ * Otherwise jobs are started in strict priority order, FIFO within a priority. After shutdown(),
+ * no more jobs are admitted, but jobs which have been admitted will still run.
  * @author toad
  */
 public class MemoryLimitedJobRunner {
     
     public static final int THREAD_PRIORITY = NativeThread.LOW_PRIORITY;
+    /** Default number of threads doing I/O for prefetch(). It's disk I/O, usually on one disk, so
+     * more threads wouldn't help much. */
+    public static final int DEFAULT_MAX_IO_THREADS = 1;
     public long capacity;
     /** The amount of some limited resource that is in use */
     private long counter;
     /** The jobs we can't start yet. FIXME Always FIFO order? Small jobs first? Prioritised even? */
     private final Deque<MemoryLimitedJob>[] jobs;
+    /** Jobs which have been allocated memory and have prefetched, and are waiting for a thread. */
+    private final Deque<MemoryLimitedJob>[] prefetchedJobs;
     private final Executor executor;
     private int runningThreads;
     private int maxThreads;
+    /** Number of jobs running prefetch() */
+    private int prefetchingThreads;
+    private int maxIOThreads;
+    /** Number of jobs in prefetchedJobs */
+    private int prefetchedCount;
     private boolean shutdown;
+
+    // Stats
+    private final long createdTime;
+    private long jobsAllocated;
+    private long jobsStarted;
+    private long jobsFinished;
+    /** Total time jobs have waited to be allocated memory */
+    private long totalQueueWaitTime;
+    private long totalPrefetchTime;
+    /** Total time spent in start(), not counting asynchronous completion */
+    private long totalRunTime;
     
     private static boolean logMINOR;
     static {
@@ -33,11 +63,15 @@ public class MemoryLimitedJobRunner {
         this.capacity = capacity;
         this.counter = 0;
         this.jobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities];
-        for(int i=0;i<jobs.length;i++) 
+        this.prefetchedJobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities];
+        for(int i=0;i<jobs.length;i++) {
             jobs[i] = new ArrayDeque<MemoryLimitedJob>();
+            prefetchedJobs[i] = new ArrayDeque<MemoryLimitedJob>();
+        }
         this.executor = executor;
         this.maxThreads = maxThreads;
-        
+        this.maxIOThreads = DEFAULT_MAX_IO_THREADS;
+        this.createdTime = System.currentTimeMillis();
     }
     
     /** Run the job if the counter is below some threshold, otherwise queue it. Will ignore if 
@@ -46,6 +80,7 @@ public class MemoryLimitedJobRunner {
         if(shutdown) return;
         if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
         if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
+        job.queuedTime = System.currentTimeMillis();
         jobs[job.getPriority()].add(job);
         maybeStartJobs();
     }
@@ -57,14 +92,26 @@ public class MemoryLimitedJobRunner {
         counter -= size;
         if(finishedThread) {
             runningThreads--;
+            jobsFinished++;
             if(shutdown) notifyAll();
         }
         maybeStartJobs();
     }
     
     private synchronized void maybeStartJobs() {
-        if(shutdown) return;
         while(true) {
+            // Jobs which have prefetched already have their memory, so start them first.
+            while(runningThreads < maxThreads && prefetchedCount > 0) {
+                for(Deque<MemoryLimitedJob> queue : prefetchedJobs) {
+                    MemoryLimitedJob job = queue.pollFirst();
+                    if(job != null) {
+                        prefetchedCount--;
+                        startJob(job);
+                        break;
+                    }
+                }
+            }
+            if(shutdown) return;
             MemoryLimitedJob job = null;
             int prio = 0;
             for(;prio<jobs.length;prio++) {
@@ -72,36 +119,90 @@ public class MemoryLimitedJobRunner {
                 if(job != null) break;
             }
             if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
+            if(job.initialAllocation + counter > capacity) return;
+            if(job.hasPrefetch()) {
+                if(prefetchingThreads >= maxIOThreads ||
+                        prefetchingThreads + prefetchedCount >= maxThreads) return;
                 jobs[prio].removeFirst();
+                allocate(job);
+                startPrefetch(job);
+            } else {
+                if(runningThreads >= maxThreads) return;
+                jobs[prio].removeFirst();
+                allocate(job);
                 startJob(job);
-            } else return;
+            }
         }
     }
     
-    private synchronized void startJob(final MemoryLimitedJob job) {
+    private synchronized void allocate(MemoryLimitedJob job) {
         counter += job.initialAllocation;
+        jobsAllocated++;
+        totalQueueWaitTime += System.currentTimeMillis() - job.queuedTime;
+    }
+
+    private synchronized void startPrefetch(final MemoryLimitedJob job) {
+        prefetchingThreads++;
+        if(logMINOR) Logger.minor(this, "Prefetching job "+job);
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    job.prefetch();
+                } catch (Throwable t) {
+                    Logger.error(this, "Prefetch failed for "+job+" : "+t, t);
+                } finally {
+                    onPrefetched(job, System.currentTimeMillis() - startTime);
+                }
+            }
+            
+            @Override
+            public int getPriority() {
+                return THREAD_PRIORITY;
+            }
+            
+        });
+    }
+
+    private synchronized void onPrefetched(MemoryLimitedJob job, long time) {
+        prefetchingThreads--;
+        totalPrefetchTime += time;
+        prefetchedJobs[job.getPriority()].add(job);
+        prefetchedCount++;
+        maybeStartJobs();
+    }
+
+    private synchronized void startJob(final MemoryLimitedJob job) {
         runningThreads++;
+        jobsStarted++;
         if(logMINOR) Logger.minor(this, "Starting job "+job);
         executor.execute(new PrioRunnable() {
 
             @Override
             public void run() {
+                long startTime = System.currentTimeMillis();
                 MemoryLimitedChunk chunk = new MemoryLimitedChunk(MemoryLimitedJobRunner.this, job.initialAllocation);
                 if(job.start(chunk))
                     chunk.release();
+                onRan(System.currentTimeMillis() - startTime);
             }
-            
+
             @Override
             public int getPriority() {
                 return THREAD_PRIORITY;
             }
-            
+
         });
     }
 
+    private synchronized void onRan(long time) {
+        totalRunTime += time;
+    }
+
     /** For tests and stats. How much of the scarce resource is used right now? */
-    long used() {
+    synchronized long used() {
         return counter;
     }
 
@@ -114,6 +215,16 @@ public class MemoryLimitedJobRunner {
         return maxThreads;
     }
 
+    public synchronized void setMaxIOThreads(int val) {
+        if(val < 1) throw new IllegalArgumentException();
+        this.maxIOThreads = val;
+        maybeStartJobs();
+    }
+
+    public synchronized int getMaxIOThreads() {
+        return maxIOThreads;
+    }
+
     public synchronized long getCapacity() {
         return capacity;
     }
@@ -129,7 +240,7 @@ public class MemoryLimitedJobRunner {
     
     public synchronized void waitForShutdown() {
         shutdown = true;
-        while(runningThreads > 0) {
+        while(runningThreads > 0 || prefetchingThreads > 0 || prefetchedCount > 0) {
             try {
                 wait();
             } catch (InterruptedException e) {
@@ -138,9 +249,52 @@ public class MemoryLimitedJobRunner {
         }
     }
 
+    /** @return The number of threads running jobs, including prefetch(). */
     public synchronized int getRunningThreads() {
-        return runningThreads;
+        return runningThreads + prefetchingThreads;
     }
 
-}
+    public synchronized int getPrefetchingThreads() {
+        return prefetchingThreads;
+    }
+
+    /** @return The number of jobs waiting, either for memory or, having prefetched, for a
+     * thread. */
+    public synchronized int getQueuedJobs() {
+        int total = prefetchedCount;
+        for(Deque<MemoryLimitedJob> queue : jobs)
+            total += queue.size();
+        return total;
+    }
 
+    public synchronized long getJobsStarted() {
+        return jobsStarted;
+    }
+
+    public synchronized long getJobsFinished() {
+        return jobsFinished;
+    }
+
+    /** @return Jobs finished per hour since startup. */
+    public synchronized double getJobsPerHour() {
+        long uptime = Math.max(1, System.currentTimeMillis() - createdTime);
+        return jobsFinished * 3600.0 * 1000.0 / uptime;
+    }
+
+    /** @return The average time in milliseconds a job waited for memory to be allocated. */
+    public synchronized double getAverageQueueWaitTime() {
+        if(jobsAllocated == 0) return 0;
+        return ((double) totalQueueWaitTime) / jobsAllocated;
+    }
+
+    /** @return The total time in milliseconds spent in MemoryLimitedJob.prefetch(). */
+    public synchronized long getTotalPrefetchTime() {
+        return totalPrefetchTime;
+    }
+
+    /** @return The total time in milliseconds spent in MemoryLimitedJob.start(). */
+    public synchronized long getTotalRunTime() {
+        return totalRunTime;
+    }
+
+}
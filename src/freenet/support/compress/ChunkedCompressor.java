@@ -0,0 +1,376 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Splits the data into chunks and compresses each one independently with another codec, so that
+ * both compression and decompression can use all the cores, rather than one thread per stream.
+ * The output is a sequence of frames, each of which is:
+ *
+ * <pre>
+ * int uncompressedLength (1 to chunk size)
+ * int compressedLength
+ * byte[compressedLength] the chunk, compressed by the inner codec
+ * </pre>
+ *
+ * followed by a frame with both lengths zero. LZMA_NEW's dictionary is 1MiB, so with 1MiB chunks
+ * we only lose the start of each chunk. The codec has its own metadata ID, so old nodes fail to
+ * parse the metadata rather than trying to decompress it.
+ *
+ * Up to twice as many chunks as there are threads are in memory at once, per stream. When
+ * decompressing, the chunk size is chosen by whoever compressed the data, and there may be many
+ * streams at once, so the memory used by the chunks being decompressed is also limited overall.
+ */
+public class ChunkedCompressor extends AbstractCompressor {
+
+	static final int DEFAULT_CHUNK_SIZE = NewLZMACompressor.MAX_DICTIONARY_SIZE;
+	/** Largest chunk we will decompress. */
+	static final int MAX_CHUNK_SIZE = 4 * DEFAULT_CHUNK_SIZE;
+	/** Compressing and decompressing LZMA with a 1MiB dictionary needs up to 16MiB. */
+	private static final long MEMORY_PER_THREAD = 64 * 1024 * 1024;
+	static final int THREADS;
+	private static final int WINDOW;
+	/** Bytes which may be used by chunks being decompressed, by all streams together. Enough for
+	 * a whole window of default-sized chunks, and at least one of the largest. */
+	static final int DECOMPRESS_MEMORY;
+	/** Limits the memory used by chunks being decompressed. Permits are bytes, see 
+	 * frameMemory(int). */
+	static final Semaphore decompressMemory;
+	private static final ThreadPoolExecutor executor;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ChunkedCompressor.class);
+		Runtime r = Runtime.getRuntime();
+		THREADS = (int) Math.max(1, Math.min(r.availableProcessors(), r.maxMemory() / MEMORY_PER_THREAD));
+		WINDOW = THREADS * 2;
+		DECOMPRESS_MEMORY = (int) Math.min(Integer.MAX_VALUE, Math.max(
+				(long) WINDOW * frameMemory(DEFAULT_CHUNK_SIZE), frameMemory(MAX_CHUNK_SIZE)));
+		decompressMemory = new Semaphore(DECOMPRESS_MEMORY);
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new NativeThread(r, "Chunked compressor thread", NativeThread.MIN_PRIORITY, true);
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private final Compressor inner;
+	private final int chunkSize;
+
+	ChunkedCompressor(Compressor inner) {
+		this(inner, DEFAULT_CHUNK_SIZE);
+	}
+
+	ChunkedCompressor(Compressor inner, int chunkSize) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException();
+		this.inner = inner;
+		this.chunkSize = chunkSize;
+	}
+
+	/** A chunk, either compressed or decompressed. */
+	private static class Frame {
+		final int length;
+		final byte[] data;
+
+		Frame(int length, byte[] data) {
+			this.length = length;
+			this.data = data;
+		}
+	}
+
+	/** The most a chunk can grow when compressed. Also limits what we accept. */
+	private static int maxCompressedLength(int length) {
+		return length + (length >> 3) + 1024;
+	}
+
+	/** @return The most memory needed to hold a chunk both compressed and decompressed. */
+	private static int frameMemory(int length) {
+		return length + maxCompressedLength(length);
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
+			throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+			// It is essential that the close()'s throw if there is any problem.
+			is.close(); is = null;
+			os.close(); os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength,
+						 long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+			throws IOException, CompressionRatioException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		DataOutputStream dos = new DataOutputStream(os);
+		ArrayDeque<Future<Frame>> pending = new ArrayDeque<Future<Frame>>();
+		long read = 0;
+		// Uncompressed bytes in the frames written so far.
+		long done = 0;
+		long written = 0;
+		boolean compressionEffectShouldBeChecked = minimumCompressionPercentage != 0;
+		boolean end = false;
+		try {
+			while(true) {
+				byte[] chunk = end ? null : readChunk(is, (int) Math.min(chunkSize, maxReadLength - read));
+				if(chunk == null) end = true;
+				if(chunk != null) {
+					read += chunk.length;
+					pending.addLast(executor.submit(new CompressTask(chunk)));
+					if(pending.size() < WINDOW) continue;
+				} else if(pending.isEmpty()) {
+					break;
+				}
+				Frame frame = waitFor(pending.removeFirst());
+				dos.writeInt(frame.length);
+				dos.writeInt(frame.data.length);
+				dos.write(frame.data);
+				done += frame.length;
+				written += 8 + frame.data.length;
+				if(written > maxWriteLength)
+					throw new CompressionOutputSizeException();
+				if(compressionEffectShouldBeChecked && done > amountOfDataToCheckCompressionRatio) {
+					checkCompressionEffect(done, written, minimumCompressionPercentage);
+					compressionEffectShouldBeChecked = false;
+				}
+			}
+			dos.writeInt(0);
+			dos.writeInt(0);
+			written += 8;
+			dos.flush();
+			if(written > maxWriteLength)
+				throw new CompressionOutputSizeException();
+			if(logMINOR)
+				Logger.minor(this, "Read "+read+" written "+written);
+			return written;
+		} finally {
+			cancel(pending);
+		}
+	}
+
+	/** @return Up to length bytes, less only at the end of the stream, or null if there are none. */
+	private static byte[] readChunk(InputStream is, int length) throws IOException {
+		if(length == 0) return null;
+		byte[] buf = new byte[length];
+		int read = 0;
+		while(read < length) {
+			int x = is.read(buf, read, length - read);
+			if(x <= -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			read += x;
+		}
+		if(read == 0) return null;
+		if(read < length) {
+			byte[] shorter = new byte[read];
+			System.arraycopy(buf, 0, shorter, 0, read);
+			return shorter;
+		}
+		return buf;
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		ArrayDeque<Future<Frame>> pending = new ArrayDeque<Future<Frame>>();
+		long total = 0;
+		long written = 0;
+		// Taken from decompressMemory for the frames in pending.
+		int held = 0;
+		boolean end = false;
+		try {
+			while(true) {
+				Frame frame = end ? null : readFrame(dis);
+				if(frame == null) end = true;
+				if(frame != null) {
+					total += frame.length;
+					if(total > maxLength) {
+						Logger.normal(this, "total="+total+", maxLength="+maxLength+" throwing a CompressionOutputSizeException");
+						throw tooBig(dis, total, maxLength + Math.max(0, maxCheckSizeBytes));
+					}
+					int memory = frameMemory(frame.length);
+					// Only block if we hold nothing, otherwise streams could deadlock waiting
+					// for each other. Instead, finish our own frames until there is room.
+					while(!decompressMemory.tryAcquire(memory)) {
+						if(pending.isEmpty()) {
+							decompressMemory.acquireUninterruptibly(memory);
+							break;
+						}
+						Frame done = writeFrame(pending.removeFirst(), os);
+						written += done.length;
+						held -= frameMemory(done.length);
+					}
+					held += memory;
+					pending.addLast(executor.submit(new DecompressTask(frame)));
+					if(pending.size() < WINDOW) continue;
+				} else if(pending.isEmpty()) {
+					break;
+				}
+				Frame done = writeFrame(pending.removeFirst(), os);
+				written += done.length;
+				held -= frameMemory(done.length);
+			}
+			os.flush();
+			return written;
+		} finally {
+			cancel(pending);
+			decompressMemory.release(held);
+		}
+	}
+
+	/** Wait for a frame to be decompressed, write it, and give back the memory it used. */
+	private static Frame writeFrame(Future<Frame> future, OutputStream os) throws IOException {
+		Frame frame = waitFor(future);
+		os.write(frame.data);
+		decompressMemory.release(frameMemory(frame.length));
+		return frame;
+	}
+
+	/** @return The next frame, still compressed, or null after the last frame. */
+	private static Frame readFrame(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		int compressedLength = dis.readInt();
+		if(length == 0 && compressedLength == 0) return null;
+		if(length <= 0 || length > MAX_CHUNK_SIZE)
+			throw new InvalidCompressedDataException("Invalid chunk length "+length);
+		if(compressedLength <= 0 || compressedLength > maxCompressedLength(length))
+			throw new InvalidCompressedDataException("Invalid compressed chunk length "+compressedLength+" for "+length);
+		byte[] data = new byte[compressedLength];
+		dis.readFully(data);
+		return new Frame(length, data);
+	}
+
+	/** The data is too big. Add up the lengths of the remaining frames without decompressing
+	 * them, as long as the total is under maxCheckLength, to tell the caller how big it is. */
+	private static CompressionOutputSizeException tooBig(DataInputStream dis, long total, long maxCheckLength) throws IOException {
+		while(total <= maxCheckLength) {
+			Frame frame = readFrame(dis);
+			if(frame == null) return new CompressionOutputSizeException(total);
+			total += frame.length;
+		}
+		return new CompressionOutputSizeException();
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+	private class CompressTask implements Callable<Frame> {
+
+		private final byte[] chunk;
+
+		CompressTask(byte[] chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public Frame call() throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.length);
+			inner.compress(new ByteArrayInputStream(chunk), baos, chunk.length, maxCompressedLength(chunk.length));
+			return new Frame(chunk.length, baos.toByteArray());
+		}
+
+	}
+
+	private class DecompressTask implements Callable<Frame> {
+
+		private final Frame frame;
+
+		DecompressTask(Frame frame) {
+			this.frame = frame;
+		}
+
+		@Override
+		public Frame call() throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(frame.length);
+			try {
+				inner.decompress(new ByteArrayInputStream(frame.data), baos, frame.length, -1);
+			} catch (CompressionOutputSizeException e) {
+				throw new InvalidCompressedDataException("Chunk bigger than its length "+frame.length);
+			}
+			if(baos.size() != frame.length)
+				throw new InvalidCompressedDataException("Chunk decompressed to "+baos.size()+" bytes, should be "+frame.length);
+			return new Frame(frame.length, baos.toByteArray());
+		}
+
+	}
+
+	private static Frame waitFor(Future<Frame> future) throws IOException {
+		while(true) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				// Ignore.
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if(t instanceof IOException) throw (IOException) t;
+				if(t instanceof RuntimeException) throw (RuntimeException) t;
+				if(t instanceof Error) throw (Error) t;
+				throw new IOException(t);
+			}
+		}
+	}
+
+	private static void cancel(ArrayDeque<Future<Frame>> pending) {
+		for(Future<Frame> future : pending)
+			future.cancel(false);
+	}
+
+}
@@ -28,7 +28,10 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// LZMA_NEW in independent chunks, so it can use several cores. Not used by default,
+		// because older nodes can't decompress it.
+		LZMA_CHUNKED("LZMA_CHUNKED", new ChunkedCompressor(new NewLZMACompressor()), (short)4);
 
 		public final String name;
 		public final Compressor compressor;
@@ -97,17 +100,19 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					// LZMA should no longer be used. Use LZMA_NEW instead.
 					if(v == LZMA) {
 						logLzmaOldRemovedWarning();
 						continue;
 					}
-					ret[x++] = v;
+					// Only if asked for explicitly.
+					if(v == LZMA_CHUNKED)
+						continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
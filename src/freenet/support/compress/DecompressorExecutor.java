@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs the decompressor stages of all the DecompressorThreadManager's on a shared pool of threads,
+ * rather than starting a new thread for every stage of every fetch.
+ *
+ * The stages of a chain feed each other through pipes, so they must all run at once: A chain is
+ * only started when there are threads for all its stages, and otherwise waits in a queue, in
+ * order. Meanwhile whoever is writing the compressed data blocks when the first pipe is full. No
+ * more than MAX_THREADS stages run at once, except that a chain with more stages than that can
+ * run on its own.
+ */
+public final class DecompressorExecutor {
+
+	static final int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(DecompressorExecutor.class);
+	}
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+			60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new NativeThread(r, "Decompressor thread "+count.incrementAndGet(), NativeThread.NORM_PRIORITY, true);
+			t.setDaemon(true);
+			return t;
+		}
+
+	});
+
+	/** Chains waiting for threads. LOCKING: Protected by the class. */
+	private static final ArrayDeque<Runnable[]> waiting = new ArrayDeque<Runnable[]>();
+	/** LOCKING: Protected by the class. */
+	private static int runningStages;
+	/** LOCKING: Protected by the class. */
+	private static int runningChains;
+	/** Bytes written by the last stage of every chain. */
+	private static final AtomicLong bytesDecompressed = new AtomicLong();
+	/** LOCKING: Protected by the class. */
+	private static long lastRateTime = System.currentTimeMillis();
+	private static long lastRateBytes;
+	private static double bytesPerSecond;
+
+	private DecompressorExecutor() {}
+
+	/** Run the stages of a decompression chain, all at the same time, when there are threads
+	 * for all of them. Does not block. */
+	static synchronized void execute(Runnable[] stages) {
+		if(waiting.isEmpty() && canStart(stages)) {
+			start(stages);
+		} else {
+			if(logMINOR) Logger.minor(DecompressorExecutor.class, "Queueing decompression: "+runningStages+" stages running, "+waiting.size()+" waiting");
+			waiting.add(stages);
+		}
+	}
+
+	private static boolean canStart(Runnable[] stages) {
+		return runningStages == 0 || runningStages + stages.length <= MAX_THREADS;
+	}
+
+	private static void start(Runnable[] stages) {
+		runningStages += stages.length;
+		runningChains++;
+		final AtomicInteger remaining = new AtomicInteger(stages.length);
+		for(final Runnable stage : stages) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						stage.run();
+					} finally {
+						onFinished(remaining.decrementAndGet() == 0);
+					}
+				}
+
+			});
+		}
+	}
+
+	private static synchronized void onFinished(boolean lastStage) {
+		runningStages--;
+		if(lastStage) runningChains--;
+		while(!waiting.isEmpty() && canStart(waiting.peek()))
+			start(waiting.remove());
+	}
+
+	static void addBytesDecompressed(long bytes) {
+		bytesDecompressed.addAndGet(bytes);
+	}
+
+	/** @return The number of decompressions running. */
+	public static synchronized int getRunningDecompressions() {
+		return runningChains;
+	}
+
+	/** @return The number of decompressions waiting for threads. */
+	public static synchronized int getQueuedDecompressions() {
+		return waiting.size();
+	}
+
+	/** @return The total number of bytes decompressed since startup. */
+	public static long getBytesDecompressed() {
+		return bytesDecompressed.get();
+	}
+
+	/** @return The rate of decompression, in bytes per second, averaged since the last call, or
+	 * over the last second if that was more recent. */
+	public static synchronized double getBytesPerSecond() {
+		long now = System.currentTimeMillis();
+		if(now - lastRateTime >= 1000) {
+			long bytes = bytesDecompressed.get();
+			bytesPerSecond = (bytes - lastRateBytes) * 1000.0 / (now - lastRateTime);
+			lastRateTime = now;
+			lastRateBytes = bytes;
+		}
+		return bytesPerSecond;
+	}
+
+}
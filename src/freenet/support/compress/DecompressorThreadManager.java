@@ -13,8 +13,6 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.List;
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -22,19 +20,25 @@ import java.util.Queue;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.RingBufferPipe;
 
 /** Creates and manages decompressor threads. This class is 
  * given all decompressors which should be applied to an
  * InputStream via addDecompressor. The decompressors will be
  * strung together and executed when the execute method is called.
  * This class also stores any errors which may arise.
+ * 
+ * The decompressors are connected by RingBufferPipe's, and run on the shared threads of
+ * DecompressorExecutor, so the number of decompressors running at once is limited. The caller
+ * should write the compressed data to a RingBufferPipe too; it will block if the decompressors
+ * have not started yet, or are not keeping up.
  * @author sajack
 */
 public class DecompressorThreadManager {
 
 	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	InputStream input;
 	final long maxLen;
 	private boolean finished = false;
 	private Throwable error = null;
@@ -53,7 +57,7 @@ public class DecompressorThreadManager {
 	 * @param inputStream The stream that will be decompressed, if compressed
 	 * @param maxLen The maximum number of bytes to extract
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+	public DecompressorThreadManager(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
 		this.maxLen = maxLen;
 		if(inputStream == null) {
@@ -65,51 +69,38 @@ public class DecompressorThreadManager {
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
+			RingBufferPipe output = new RingBufferPipe();
 			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
 			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			input = output.getInputStream();
 		}
 	}
 
-	/** Creates and executes a new thread for each decompressor,
-	 * chaining the output of the previous to the next.
+	/** Starts a decompressor for each stage, chaining the output of the previous
+	 * to the next. They will run as soon as there are threads free for all of them.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute() throws Throwable {
 		if(error != null) throw error;
 		if(threads.isEmpty()) {
 			onFinish();
 			return input;
 		}
-		try {
-			int count = 0;
-			while(!threads.isEmpty()){
-				if(getError() != null) throw getError();
-				DecompressorThread threadRunnable = threads.remove();
-				if(threads.isEmpty()) threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
-				t.start();
-				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
-				count++;
-			}
-			output.close();
-		} catch(Throwable t) {
-			onFailure(t);
-			throw t;
-		} finally {
-			Closer.close(output);
-		}
+		DecompressorThread[] stages = threads.toArray(new DecompressorThread[threads.size()]);
+		threads.clear();
+		stages[stages.length-1].setLast();
+		DecompressorExecutor.execute(stages);
+		if(logMINOR) Logger.minor(this, "Submitted "+stages.length+" decompressors");
 		return input;
-		
 	}
 
 	/** Informs the manager that a nonrecoverable exception has occured in the
 	 * decompression threads
-	 * @param e The thrown exception
+	 * @param e The thrown exception. Only the first is kept: The stages after it
+	 * will fail too, because their input was aborted.
 	 */
 	public synchronized void onFailure(Throwable t) {
-		error = t;
+		if(error == null) error = t;
 		onFinish();
 	}
 
@@ -157,6 +148,10 @@ public class DecompressorThreadManager {
 		final Compressor compressor;
 		/**The stream compressed data will be read from*/
 		private InputStream input;
+		/**The pipe decompressed data will be written to*/
+		private final RingBufferPipe pipe;
+		/**Counts what is written, for the statistics*/
+		private final CountedOutputStream counter;
 		/**The stream decompressed data will be written*/
 		private OutputStream output;
 		/**A upper limit to how much data may be decompressed. This is passed to the decompressor*/
@@ -166,10 +161,12 @@ public class DecompressorThreadManager {
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, RingBufferPipe pipe, long maxLen) {
 			this.compressor = compressor;
 			this.input = new BufferedInputStream(input);
-			this.output = new BufferedOutputStream(output);
+			this.pipe = pipe;
+			this.counter = new CountedOutputStream(pipe.getOutputStream());
+			this.output = new BufferedOutputStream(counter);
 			this.maxLen = maxLen;
 			this.manager = manager;
 		}
@@ -179,7 +176,8 @@ public class DecompressorThreadManager {
 		public void run() {
 			if(logMINOR) Logger.minor(this, "Decompressing...");
 			try {
-				if(manager.getError() == null) {
+				Throwable upstream = manager.getError();
+				if(upstream == null) {
 					compressor.decompress(input, output, maxLen, maxLen * 4);
 					input.close();
 					output.close();
@@ -187,13 +185,18 @@ public class DecompressorThreadManager {
 					input = null;
 					output = null;
 					if(isLast) manager.onFinish();
+				} else {
+					pipe.abort(upstream);
 				}
 				if(logMINOR) Logger.minor(this, "Finished decompressing...");
-			} catch (Exception e) {
-				manager.onFailure(e);
+			} catch (Throwable t) {
+				manager.onFailure(t);
+				// Tell the next stage, rather than giving it a truncated stream.
+				pipe.abort(t);
 			} finally {
 				Closer.close(input);
 				Closer.close(output);
+				if(isLast) DecompressorExecutor.addBytesDecompressed(counter.written());
 			}
 		}
 
@@ -203,4 +206,4 @@ public class DecompressorThreadManager {
 			isLast = true;
 		}
 	}
-}
\ No newline at end of file
+}
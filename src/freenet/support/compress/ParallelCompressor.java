@@ -0,0 +1,448 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs several compressors on the same data at the same time, reading the data only once, and
+ * picks the codec that trying them one after another would pick: The first one whose output fits
+ * in minSize bytes, or else the one whose output needs the fewest blocks, the earlier codec
+ * winning a tie, provided that it needs fewer blocks than the original data.
+ *
+ * The data is read in chunks, and each chunk is queued for every codec which is still running.
+ * The queues are bounded, so memory usage is bounded, and the slowest codec limits how fast the
+ * data is read. When a codec finishes, the others are told how much they can write before they
+ * can no longer win, and they give up as soon as they write more than that.
+ *
+ * A ParallelCompressor is used once.
+ * @see freenet.client.async.InsertCompressor
+ */
+public class ParallelCompressor {
+
+	private static final int CHUNK_SIZE = 32768;
+	/** Maximum number of chunks queued for each codec. */
+	private static final int QUEUE_CHUNKS = 32;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ParallelCompressor.class);
+	}
+
+	/** The winning codec and its output. */
+	public static class Result {
+		public final COMPRESSOR_TYPE codec;
+		public final RandomAccessBucket data;
+
+		Result(COMPRESSOR_TYPE codec, RandomAccessBucket data) {
+			this.codec = codec;
+			this.data = data;
+		}
+	}
+
+	private final Attempt[] attempts;
+	private final BucketFactory bf;
+	private final Executor executor;
+	private final int blockSize;
+	private final long minSize;
+	private final long amountOfDataToCheckCompressionRatio;
+	private final int minimumCompressionPercentage;
+	private long origSize;
+	private long origBlocks;
+	/** Number of codecs still running. LOCKING: Protected by this. */
+	private int running;
+
+	/**
+	 * @param codecs The codecs to try, in the order in which they would be tried one at a time.
+	 * @param executor Runs the codecs, one thread each. The caller's thread reads the data.
+	 * @param blockSize The output is compared by the number of blocks of this size it needs.
+	 * @param minSize If the output is no bigger than this, it fits in a single block, and the
+	 * first codec to achieve this wins.
+	 */
+	public ParallelCompressor(COMPRESSOR_TYPE[] codecs, BucketFactory bf, Executor executor,
+			int blockSize, long minSize, long amountOfDataToCheckCompressionRatio,
+			int minimumCompressionPercentage) {
+		attempts = new Attempt[codecs.length];
+		for(int i=0;i<codecs.length;i++)
+			attempts[i] = new Attempt(i, codecs[i]);
+		this.bf = bf;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.minSize = minSize;
+		this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+		this.minimumCompressionPercentage = minimumCompressionPercentage;
+	}
+
+	/**
+	 * Compress the data with all the codecs, and wait for them to finish.
+	 * @param is The data. This may not be read to the end if all the codecs give up early.
+	 * @param size The length of the data. No more than this will be read.
+	 * @return The winning codec and its output, or null if no codec made the data any smaller.
+	 * The caller must free the output.
+	 * @throws IOException If reading the data fails, or if a codec fails to write its output.
+	 */
+	public Result compress(InputStream is, long size) throws IOException {
+		origSize = size;
+		origBlocks = size / blockSize;
+		long initialLimit = Math.max(minSize, origBlocks * blockSize - 1);
+		synchronized(this) {
+			running = attempts.length;
+		}
+		for(Attempt a : attempts) {
+			a.limit = initialLimit;
+			executor.execute(a, "Compressing with "+a.codec);
+		}
+		try {
+			readData(is);
+		} catch (IOException e) {
+			abortAll();
+			waitForAttempts();
+			freeAll();
+			throw e;
+		} catch (RuntimeException e) {
+			abortAll();
+			waitForAttempts();
+			freeAll();
+			throw e;
+		}
+		waitForAttempts();
+		for(Attempt a : attempts) {
+			if(a.error != null) {
+				freeAll();
+				throw a.error;
+			}
+		}
+		Attempt winner = chooseWinner();
+		for(Attempt a : attempts) {
+			if(a != winner && a.bucket != null)
+				a.bucket.free();
+		}
+		if(winner == null) return null;
+		if(logMINOR) Logger.minor(this, "Compressed "+origSize+" bytes to "+winner.size+" with "+winner.codec);
+		return new Result(winner.codec, winner.bucket);
+	}
+
+	/** Read the data and feed it to the codecs, until the end of the data or until they have
+	 * all finished. */
+	private void readData(InputStream is) throws IOException {
+		long read = 0;
+		while(read < origSize) {
+			byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, origSize - read)];
+			int length = 0;
+			while(length < chunk.length) {
+				int x = is.read(chunk, length, chunk.length - length);
+				if(x <= -1) break;
+				length += x;
+			}
+			if(length == 0) break;
+			if(length < chunk.length) chunk = Arrays.copyOf(chunk, length);
+			read += length;
+			boolean wanted = false;
+			for(Attempt a : attempts) {
+				if(a.offer(chunk)) wanted = true;
+			}
+			if(!wanted) {
+				if(logMINOR) Logger.minor(this, "All codecs finished after reading "+read+" of "+origSize);
+				break;
+			}
+			if(length < CHUNK_SIZE) break;
+		}
+		for(Attempt a : attempts)
+			a.endOfData();
+	}
+
+	private void abortAll() {
+		for(Attempt a : attempts)
+			a.abort();
+	}
+
+	private void freeAll() {
+		for(Attempt a : attempts) {
+			if(a.bucket != null) a.bucket.free();
+		}
+	}
+
+	private synchronized void waitForAttempts() {
+		while(running > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+	}
+
+	private synchronized void onFinished(Attempt attempt) {
+		running--;
+		if(attempt.error != null) {
+			// The compress() will fail anyway.
+			abortAll();
+		} else if(attempt.size >= 0) {
+			for(Attempt a : attempts) {
+				if(a.finished) continue;
+				long limit = limit(a);
+				if(limit < 0) {
+					if(logMINOR) Logger.minor(this, a.codec+" can no longer beat "+attempt.codec);
+					a.abort();
+				} else {
+					a.limit = limit;
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	/** @return The maximum number of bytes the codec can write and still win, given the codecs
+	 * which have finished so far, or -1 if it can't win. This must never stop a codec which
+	 * chooseWinner() would pick. LOCKING: Called with the lock held. */
+	private long limit(Attempt a) {
+		boolean anyFits = false;
+		// It must end up needing fewer blocks than this. A codec rejected by chooseWinner()
+		// needs at least as many blocks as the best codec before it, so counts here too.
+		long maxBlocks = origBlocks;
+		for(Attempt b : attempts) {
+			if(b.size < 0) continue;
+			// If it fits, it is only rejected if it wrote more than the original data.
+			if(b.size <= minSize && b.written <= origSize) {
+				if(b.index < a.index) return -1;
+				anyFits = true;
+			}
+			long blocks = b.size / blockSize;
+			maxBlocks = Math.min(maxBlocks, b.index < a.index ? blocks : blocks + 1);
+		}
+		if(anyFits) return minSize;
+		return Math.max(minSize, maxBlocks * blockSize - 1);
+	}
+
+	/** Pick the same codec as InsertCompressor's sequential loop would. That tells each codec
+	 * not to write more than the best output so far, so a codec is rejected if it did. */
+	private Attempt chooseWinner() {
+		Attempt best = null;
+		long bestSize = origSize;
+		long bestBlocks = origBlocks;
+		for(Attempt a : attempts) {
+			if(a.size < 0) continue;
+			if(a.written > bestSize) continue;
+			if(a.size <= minSize) return a;
+			long blocks = a.size / blockSize;
+			if(blocks < bestBlocks) {
+				best = a;
+				bestSize = a.size;
+				bestBlocks = blocks;
+			}
+		}
+		return best;
+	}
+
+	/** Thrown to a codec which can no longer win. */
+	private static class AbortedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		AbortedException() {
+			super("Aborted: Another codec has already won");
+		}
+	}
+
+	/** One codec's compression of the data, on its own thread. */
+	private class Attempt implements PrioRunnable {
+
+		final int index;
+		final COMPRESSOR_TYPE codec;
+		/** The maximum number of bytes we can write and still win. */
+		volatile long limit;
+		/** Set if we can't win, or if something else failed. */
+		private volatile boolean aborted;
+		/** Chunks not yet read by the codec. LOCKING: Protected by this. */
+		private final ArrayDeque<byte[]> chunks;
+		/** LOCKING: Protected by this. */
+		private boolean endOfData;
+		private volatile boolean finished;
+		/** Size of the output if the codec finished successfully, otherwise -1. Set before
+		 * finished. */
+		private volatile long size = -1;
+		/** The number of bytes written according to the codec, which may not count headers. */
+		private volatile long written;
+		private RandomAccessBucket bucket;
+		private IOException error;
+
+		Attempt(int index, COMPRESSOR_TYPE codec) {
+			this.index = index;
+			this.codec = codec;
+			chunks = new ArrayDeque<byte[]>();
+		}
+
+		@Override
+		public void run() {
+			OutputStream os = null;
+			try {
+				bucket = bf.makeBucket(-1);
+				os = new LimitedOutputStream(bucket.getOutputStream());
+				// Same as the first codec in the sequential loop. Later codecs are checked
+				// against the best output so far by chooseWinner().
+				written = codec.compress(new ChunkInputStream(), os, origSize, origSize,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+				os.close();
+				os = null;
+				if(!aborted) size = bucket.size();
+			} catch (CompressionRatioException e) {
+				if(logMINOR) Logger.minor(this, codec+" did not compress the data enough: "+e);
+			} catch (IOException e) {
+				if(!(aborted || e instanceof CompressionOutputSizeException))
+					error = e;
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				if(!aborted)
+					Logger.error(this, "Compression failed with codec "+codec+" : "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Compression failed with codec "+codec+" : "+t, t);
+			} finally {
+				Closer.close(os);
+				synchronized(this) {
+					finished = true;
+					chunks.clear();
+					notifyAll();
+				}
+				onFinished(this);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MIN_PRIORITY;
+		}
+
+		/** Queue a chunk, waiting if the queue is full.
+		 * @return False if the codec doesn't want any more data. */
+		synchronized boolean offer(byte[] chunk) {
+			while(chunks.size() >= QUEUE_CHUNKS && !aborted && !finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(aborted || finished) return false;
+			chunks.addLast(chunk);
+			notifyAll();
+			return true;
+		}
+
+		synchronized void endOfData() {
+			endOfData = true;
+			notifyAll();
+		}
+
+		synchronized void abort() {
+			aborted = true;
+			chunks.clear();
+			notifyAll();
+		}
+
+		/** @return The next chunk, or null at the end of the data. */
+		private synchronized byte[] take() throws AbortedException {
+			while(chunks.isEmpty() && !endOfData && !aborted) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(aborted) throw new AbortedException();
+			byte[] chunk = chunks.pollFirst();
+			notifyAll();
+			return chunk;
+		}
+
+		private class ChunkInputStream extends InputStream {
+
+			private byte[] chunk;
+			private int offset;
+
+			/** @return False at the end of the data. */
+			private boolean fill() throws AbortedException {
+				if(chunk != null && offset < chunk.length) return true;
+				chunk = take();
+				offset = 0;
+				return chunk != null;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if(!fill()) return -1;
+				return chunk[offset++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				if(len == 0) return 0;
+				if(!fill()) return -1;
+				int x = Math.min(len, chunk.length - offset);
+				System.arraycopy(chunk, offset, buf, off, x);
+				offset += x;
+				return x;
+			}
+
+		}
+
+		/** Counts what the codec writes, and stops it if it can no longer win. */
+		private class LimitedOutputStream extends OutputStream {
+
+			private final OutputStream out;
+			private long written;
+
+			LimitedOutputStream(OutputStream out) {
+				this.out = out;
+			}
+
+			private void check() throws AbortedException {
+				if(aborted) throw new AbortedException();
+				if(written > limit) {
+					if(logMINOR) Logger.minor(this, codec+" can no longer win after writing "+written);
+					abort();
+					throw new AbortedException();
+				}
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				written++;
+				check();
+			}
+
+			@Override
+			public void write(byte[] buf, int off, int len) throws IOException {
+				out.write(buf, off, len);
+				written += len;
+				check();
+			}
+
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+
+		}
+
+	}
+
+}
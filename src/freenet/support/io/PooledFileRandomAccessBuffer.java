@@ -2,11 +2,16 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -20,6 +25,9 @@ import freenet.support.api.LockableRandomAccessBuffer;
  * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
  * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ...
  *
+ * Reads and writes use positional FileChannel I/O, so any number of threads can read and write
+ * the same file at once, as long as they have it locked open.
+ *
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
 public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
 
@@ -62,9 +70,12 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     /** >0 means locked. We will wait until we get the lock if necessary, this is always accurate.
      * LOCKING: Synchronized on fds. */
     private int lockLevel;
-    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
-     * LOCKING: Always take (this) last, i.e. after fds. */
+    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on fds. Will not be closed
+     * while lockLevel > 0, except by an interrupt during I/O, see reopenChannel(). */
     private transient RandomAccessFile raf;
+    /** raf's channel, used for all reads and writes. Volatile so that I/O doesn't need to take
+     * the fds lock. */
+    private transient volatile FileChannel channel;
     private final long length;
     private boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the
@@ -112,9 +123,10 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             this.length = currentLength;
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
+            synchronized(fds) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -134,9 +146,10 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             raf.write(initialContents, offset, size);
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
+            synchronized(fds) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -168,10 +181,22 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         if(fileOffset < 0) throw new IllegalArgumentException();
         RAFLock lock = lockOpen();
         try {
-            // FIXME Use NIO! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.readFully(buf, bufOffset, length);
+            ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+            FileChannel fc = channel;
+            while(true) {
+                try {
+                    while(bb.hasRemaining()) {
+                        if(fc.read(bb, fileOffset + bb.position() - bufOffset) == -1)
+                            throw new EOFException();
+                    }
+                    return;
+                } catch (ClosedByInterruptException e) {
+                    reopenChannel(fc);
+                    throw e;
+                } catch (AsynchronousCloseException e) {
+                    // Another thread was interrupted. Carry on where we left off.
+                    fc = reopenChannel(fc);
+                }
             }
         } finally {
             lock.unlock();
@@ -186,16 +211,46 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         try {
             if(fileOffset + length > this.length)
                 throw new IOException("Length limit exceeded");
-            // FIXME Use NIO (which has proper pwrite, with concurrency)! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.write(buf, bufOffset, length);
+            ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+            FileChannel fc = channel;
+            while(true) {
+                try {
+                    while(bb.hasRemaining())
+                        fc.write(bb, fileOffset + bb.position() - bufOffset);
+                    return;
+                } catch (ClosedByInterruptException e) {
+                    reopenChannel(fc);
+                    throw e;
+                } catch (AsynchronousCloseException e) {
+                    // Another thread was interrupted. Carry on where we left off.
+                    fc = reopenChannel(fc);
+                }
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /** A FileChannel is closed if any thread using it is interrupted. The fd still counts as
+     * open, and the caller still has us locked, so just open the file again.
+     * @param closed The channel which was closed.
+     * @return The channel to use from now on. */
+    private FileChannel reopenChannel(FileChannel closed) throws IOException {
+        synchronized(fds) {
+            if(channel == closed) {
+                if(logMINOR) Logger.minor(this, "Reopening after interrupted I/O: "+this);
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore, already closed.
+                }
+                raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+
     @Override
     public void close() {
         if(logMINOR) Logger.minor(this, "Closing "+this, new Exception("debug"));
@@ -233,6 +288,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                     return lock;
                 } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
                     raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                    channel = raf.getChannel();
                     lockLevel++;
                     fds.totalOpenFDs++;
                     return lock;
@@ -275,6 +331,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 Logger.error(this, "Error closing "+this+" : "+e, e);
             }
             raf = null;
+            channel = null;
             fds.totalOpenFDs--;
         }
     }
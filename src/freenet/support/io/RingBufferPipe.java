@@ -0,0 +1,202 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A pipe between two threads, like PipedInputStream and PipedOutputStream, but with a much bigger
+ * buffer (128KiB rather than 1KiB), made of slabs from a shared pool, so a busy pipeline does not
+ * wake both threads for every kilobyte, and does not allocate a new buffer for every pipe.
+ *
+ * The writer blocks while the buffer is full, and the reader while it is empty. Unlike the JDK
+ * pipes, this does not check whether the thread at the other end is still alive, so it can be used
+ * with thread pools: Both ends must be closed when the threads are finished with them, in a
+ * finally block. Closing the reader makes the writer fail; closing the writer gives the reader EOF
+ * once it has read what was written, and abort() gives the reader an error instead.
+ *
+ * The slabs go back to the pool when the reader is closed or reaches the end of the data.
+ */
+public class RingBufferPipe {
+
+	private static final int SLAB_CLASS = SlabPool.SIZE_CLASSES.length - 1;
+	private static final int SLAB_SIZE = SlabPool.SIZE_CLASSES[SLAB_CLASS];
+	private static final int SLABS = 4;
+	public static final int BUFFER_SIZE = SLAB_SIZE * SLABS;
+	/** Keep enough slabs for a few dozen idle pipes. */
+	private static final SlabPool pool = new SlabPool(32L * BUFFER_SIZE);
+
+	/** LOCKING: Everything is protected by this. */
+	private byte[][] slabs;
+	/** Where the next byte will be read from. */
+	private int readPos;
+	/** Number of bytes in the buffer. */
+	private int count;
+	private boolean writerClosed;
+	private boolean readerClosed;
+	private Throwable error;
+	private final InputStream input = new PipeInputStream();
+	private final OutputStream output = new PipeOutputStream();
+
+	public RingBufferPipe() {
+		slabs = new byte[SLABS][];
+		for(int i=0;i<SLABS;i++)
+			slabs[i] = pool.allocate(SLAB_CLASS);
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/** Close the writing end because of an error. The reader will get an IOException after it
+	 * has read what was written so far. */
+	public synchronized void abort(Throwable t) {
+		if(error == null) error = t;
+		writerClosed = true;
+		notifyAll();
+	}
+
+	private synchronized void write(byte[] buf, int offset, int length) throws IOException {
+		while(length > 0) {
+			while(count == BUFFER_SIZE && !readerClosed && !writerClosed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(readerClosed) throw new IOException("Pipe closed by reader");
+			if(writerClosed) throw new IOException("Pipe closed");
+			int writePos = (readPos + count) % BUFFER_SIZE;
+			int copied = copy(buf, offset, Math.min(length, BUFFER_SIZE - count), writePos, true);
+			offset += copied;
+			length -= copied;
+			if(count == 0) notifyAll();
+			count += copied;
+		}
+	}
+
+	private synchronized int read(byte[] buf, int offset, int length) throws IOException {
+		if(length == 0) return 0;
+		while(count == 0 && !writerClosed && !readerClosed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+		if(readerClosed) throw new IOException("Pipe closed");
+		if(count == 0) {
+			release();
+			if(error != null) throw new IOException("Writer failed: "+error, error);
+			return -1;
+		}
+		int copied = copy(buf, offset, Math.min(length, count), readPos, false);
+		if(count == BUFFER_SIZE) notifyAll();
+		readPos = (readPos + copied) % BUFFER_SIZE;
+		count -= copied;
+		return copied;
+	}
+
+	/** Copy between buf and the ring, starting at pos, splitting at slab boundaries and at the
+	 * end of the ring.
+	 * @return The number of bytes copied, which is always length. */
+	private int copy(byte[] buf, int offset, int length, int pos, boolean toRing) {
+		int copied = 0;
+		while(copied < length) {
+			byte[] slab = slabs[pos / SLAB_SIZE];
+			int slabOffset = pos % SLAB_SIZE;
+			int n = Math.min(length - copied, SLAB_SIZE - slabOffset);
+			if(toRing)
+				System.arraycopy(buf, offset + copied, slab, slabOffset, n);
+			else
+				System.arraycopy(slab, slabOffset, buf, offset + copied, n);
+			copied += n;
+			pos = (pos + n) % BUFFER_SIZE;
+		}
+		return copied;
+	}
+
+	private synchronized void closeReader() {
+		readerClosed = true;
+		count = 0;
+		release();
+		notifyAll();
+	}
+
+	private synchronized void closeWriter() {
+		writerClosed = true;
+		notifyAll();
+	}
+
+	/** LOCKING: Called with the lock held, when the buffer is no longer needed. */
+	private void release() {
+		if(slabs == null) return;
+		for(byte[] slab : slabs)
+			pool.release(slab);
+		slabs = null;
+	}
+
+	/** @return The number of bytes which can be read without blocking. */
+	private synchronized int available() {
+		return count;
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int x = read(single, 0, 1);
+			if(x <= 0) return -1;
+			return single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return RingBufferPipe.this.read(buf, offset, length);
+		}
+
+		@Override
+		public int available() {
+			return RingBufferPipe.this.available();
+		}
+
+		@Override
+		public void close() {
+			closeReader();
+		}
+
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			RingBufferPipe.this.write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			RingBufferPipe.this.write(buf, offset, length);
+		}
+
+		@Override
+		public void close() {
+			closeWriter();
+		}
+
+	}
+
+}
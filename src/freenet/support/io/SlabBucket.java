@@ -0,0 +1,327 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A bucket that stores data in memory, in chunks from a SlabPool, which are returned to the pool
+ * when the bucket is freed. Used by TempBucketFactory instead of ArrayBucket: Growing the bucket
+ * adds a chunk rather than copying everything written so far, and closing the OutputStream does
+ * not copy the data either.
+ *
+ * Only one OutputStream may be used at a time, by one thread. Streams do not lock: The writer
+ * publishes the new size through a volatile after each write, so InputStream's on other threads
+ * can read everything written so far. Chunks are only returned to the pool if no InputStream is
+ * open, so an InputStream can still be read after the bucket has been freed, as with ArrayBucket.
+ */
+final class SlabBucket implements RandomAccessBucket {
+
+    private static final byte[][] NO_CHUNKS = new byte[0][];
+
+    private final SlabPool pool;
+    /** Size class of the first chunk. Each following chunk is one class bigger, up to the
+     * largest. */
+    private final int firstSizeClass;
+    /** The chunks. Replaced rather than modified when a chunk is added. Written before size. */
+    private volatile byte[][] chunks = NO_CHUNKS;
+    /** Number of bytes written. */
+    private volatile long size;
+    /** If true, chunks is a single array which is not from the pool. */
+    private boolean flat;
+    private volatile boolean readOnly;
+    private volatile boolean freed;
+    /** Number of InputStream's which have not been closed. LOCKING: this */
+    private int openStreams;
+
+    /**
+     * @param expectedSize The expected size of the data, if known, which determines the size of
+     * the first chunk.
+     */
+    SlabBucket(SlabPool pool, long expectedSize) {
+        this.pool = pool;
+        this.firstSizeClass = SlabPool.sizeClassFor(Math.max(expectedSize, 1));
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return getOutputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(freed) throw new IOException("Already freed");
+        // Overwrite, like ArrayBucket.
+        releaseChunks();
+        size = 0;
+        return new SlabBucketOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        openStreams++;
+        return new SlabBucketInputStream();
+    }
+
+    private synchronized void onClosed() {
+        openStreams--;
+    }
+
+    private class SlabBucketOutputStream extends OutputStream {
+
+        /** Number of chunks in use. */
+        private int chunkCount;
+        /** Position in the last chunk in use. */
+        private int pos;
+        private long written;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            byte[] chunk = currentChunk();
+            chunk[pos++] = (byte) b;
+            size = ++written;
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            checkOpen();
+            if(offset < 0 || length < 0 || offset + length > buf.length)
+                throw new IndexOutOfBoundsException();
+            while(length > 0) {
+                byte[] chunk = currentChunk();
+                int copy = Math.min(length, chunk.length - pos);
+                System.arraycopy(buf, offset, chunk, pos, copy);
+                pos += copy;
+                offset += copy;
+                length -= copy;
+                written += copy;
+            }
+            size = written;
+        }
+
+        private void checkOpen() throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(freed) throw new IOException("Already freed");
+        }
+
+        /** @return The chunk to write to, adding one if the last is full. */
+        private byte[] currentChunk() {
+            byte[][] c = chunks;
+            if(chunkCount > 0 && pos < c[chunkCount-1].length)
+                return c[chunkCount-1];
+            int sizeClass = Math.min(firstSizeClass + chunkCount, SlabPool.SIZE_CLASSES.length - 1);
+            byte[] chunk = pool.allocate(sizeClass);
+            byte[][] newChunks = new byte[chunkCount+1][];
+            System.arraycopy(c, 0, newChunks, 0, chunkCount);
+            newChunks[chunkCount++] = chunk;
+            chunks = newChunks;
+            pos = 0;
+            return chunk;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private class SlabBucketInputStream extends InputStream {
+
+        private int chunkIndex;
+        /** Position in the current chunk. */
+        private int pos;
+        private long index;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            if(read <= 0) return -1;
+            return b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(offset < 0 || length < 0 || offset + length > buf.length)
+                throw new IndexOutOfBoundsException();
+            // Read size before chunks.
+            long available = size - index;
+            if(available <= 0) return -1;
+            if(length == 0) return 0;
+            byte[][] c = chunks;
+            int read = 0;
+            length = (int) Math.min(length, available);
+            while(length > 0) {
+                byte[] chunk = c[chunkIndex];
+                int copy = Math.min(length, chunk.length - pos);
+                System.arraycopy(chunk, pos, buf, offset, copy);
+                advance(copy, chunk.length);
+                offset += copy;
+                length -= copy;
+                read += copy;
+            }
+            return read;
+        }
+
+        private void advance(int bytes, int chunkLength) {
+            pos += bytes;
+            index += bytes;
+            if(pos == chunkLength) {
+                chunkIndex++;
+                pos = 0;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(closed) throw new IOException("Closed");
+            long toSkip = Math.min(n, size - index);
+            if(toSkip <= 0) return 0;
+            byte[][] c = chunks;
+            long skipped = 0;
+            while(skipped < toSkip) {
+                int chunkLength = c[chunkIndex].length;
+                int skip = (int) Math.min(toSkip - skipped, chunkLength - pos);
+                advance(skip, chunkLength);
+                skipped += skip;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if(closed) throw new IOException("Closed");
+            return (int) Math.min(Integer.MAX_VALUE, size - index);
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            onClosed();
+        }
+
+    }
+
+    /** Give the chunks back to the pool, or if they may still be read, just stop counting them.
+     * Must be called with the lock held, and not while the OutputStream is in use. */
+    private void releaseChunks() {
+        byte[][] c = chunks;
+        chunks = NO_CHUNKS;
+        if(!flat) {
+            for(byte[] chunk : c) {
+                if(openStreams == 0)
+                    pool.release(chunk);
+                else
+                    pool.discard(chunk);
+            }
+        }
+        flat = false;
+    }
+
+    /** @return A copy of the data. */
+    byte[] toByteArray() throws IOException {
+        long length = size;
+        byte[][] c = chunks;
+        if(length > Integer.MAX_VALUE) throw new IOException("Too big");
+        byte[] buf = new byte[(int) length];
+        int offset = 0;
+        for(int i=0;offset<length;i++) {
+            int copy = (int) Math.min(c[i].length, length - offset);
+            System.arraycopy(c[i], 0, buf, offset, copy);
+            offset += copy;
+        }
+        return buf;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(freed) return;
+        freed = true;
+        if(openStreams == 0) {
+            releaseChunks();
+            size = 0;
+        } else {
+            // Leave the data for the InputStream's, and let the garbage collector have it.
+            if(!flat) {
+                for(byte[] chunk : chunks)
+                    pool.discard(chunk);
+            }
+            flat = true;
+        }
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    /** Copies the data into a single array, which the bucket then uses too if no InputStream is
+     * open, returning the chunks to the pool. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        readOnly = true;
+        byte[] buf = toByteArray();
+        if(openStreams == 0) {
+            releaseChunks();
+            chunks = new byte[][] { buf };
+            flat = true;
+        }
+        ByteArrayRandomAccessBuffer raf = new ByteArrayRandomAccessBuffer(buf);
+        raf.setReadOnly();
+        return raf;
+    }
+
+}
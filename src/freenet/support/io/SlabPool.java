@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size byte[] chunks ("slabs") for in-RAM temporary buckets (SlabBucket). There is
+ * a free list for each size class, so short-lived buckets reuse the chunks of buckets which have
+ * been freed, rather than allocating (and zeroing, and garbage collecting) a new array for every
+ * bucket, and then copying it every time it grows, as ArrayBucket does.
+ *
+ * Chunks are only kept while the total size of the free lists is below a limit, which should be
+ * small compared to the RAM limit for temp buckets, because free chunks are not counted by
+ * TempBucketFactory. Above that, freed chunks are left to the garbage collector.
+ *
+ * Thread-safe, and does not lock.
+ */
+final class SlabPool {
+
+    /** Chunk sizes, smallest first. */
+    static final int[] SIZE_CLASSES = new int[] { 512, 4096, 32768 };
+
+    private final ConcurrentLinkedQueue<byte[]>[] freeChunks;
+    /** Total size of the chunks on the free lists. */
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private volatile long maxPooledBytes;
+    /** Total size of the chunks currently used by buckets. */
+    private final AtomicLong usedBytes = new AtomicLong();
+    /** Number of chunks allocated because the free list was empty. */
+    private final AtomicLong allocated = new AtomicLong();
+    /** Number of chunks taken from the free lists. */
+    private final AtomicLong reused = new AtomicLong();
+
+    SlabPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<byte[]>[] queues = 
+            (ConcurrentLinkedQueue<byte[]>[]) new ConcurrentLinkedQueue<?>[SIZE_CLASSES.length];
+        for(int i=0;i<queues.length;i++)
+            queues[i] = new ConcurrentLinkedQueue<byte[]>();
+        freeChunks = queues;
+    }
+
+    /** @return The smallest size class which can hold the given number of bytes, or the largest
+     * size class if none can. */
+    static int sizeClassFor(long size) {
+        for(int i=0;i<SIZE_CLASSES.length;i++)
+            if(size <= SIZE_CLASSES[i]) return i;
+        return SIZE_CLASSES.length - 1;
+    }
+
+    /** @return The size class of a chunk allocated by this pool, or -1. */
+    private static int sizeClassOf(byte[] chunk) {
+        for(int i=0;i<SIZE_CLASSES.length;i++)
+            if(chunk.length == SIZE_CLASSES[i]) return i;
+        return -1;
+    }
+
+    /** Get a chunk. The contents are undefined. */
+    byte[] allocate(int sizeClass) {
+        int size = SIZE_CLASSES[sizeClass];
+        usedBytes.addAndGet(size);
+        byte[] chunk = freeChunks[sizeClass].poll();
+        if(chunk != null) {
+            pooledBytes.addAndGet(-size);
+            reused.incrementAndGet();
+            return chunk;
+        }
+        allocated.incrementAndGet();
+        return new byte[size];
+    }
+
+    /** Return a chunk from allocate(). The caller must not use it afterwards. */
+    void release(byte[] chunk) {
+        int sizeClass = sizeClassOf(chunk);
+        if(sizeClass == -1) throw new IllegalArgumentException();
+        usedBytes.addAndGet(-chunk.length);
+        if(pooledBytes.addAndGet(chunk.length) > maxPooledBytes) {
+            // Let the garbage collector have it.
+            pooledBytes.addAndGet(-chunk.length);
+            return;
+        }
+        freeChunks[sizeClass].add(chunk);
+    }
+
+    /** Forget about a chunk from allocate() which may still be in use, so must not be reused. */
+    void discard(byte[] chunk) {
+        usedBytes.addAndGet(-chunk.length);
+    }
+
+    void setMaxPooledBytes(long max) {
+        maxPooledBytes = max;
+        for(int i=freeChunks.length-1;i>=0;i--) {
+            while(pooledBytes.get() > max) {
+                byte[] chunk = freeChunks[i].poll();
+                if(chunk == null) break;
+                pooledBytes.addAndGet(-chunk.length);
+            }
+        }
+    }
+
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    long getAllocatedChunks() {
+        return allocated.get();
+    }
+
+    long getReusedChunks() {
+        return reused.get();
+    }
+
+}
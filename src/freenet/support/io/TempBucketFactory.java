@@ -19,6 +19,7 @@ import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.EncryptedRandomAccessBucket;
@@ -41,11 +42,12 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * SlabBuckets keep their data in chunks from a pool (@see SlabPool), so that short-lived buckets 
+ * reuse memory rather than allocating it. They are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -63,20 +65,30 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final PooledFileRandomAccessBufferFactory underlyingDiskRAFFactory;
 	private final DiskSpaceCheckingRandomAccessBufferFactory diskRAFFactory;
 	private volatile long minDiskSpace;
-	private long bytesInUse = 0;
+	/** Bytes of data in RAM. Not locked, so writing to a RAM bucket doesn't lock the factory. */
+	private final AtomicLong bytesInUse = new AtomicLong();
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
 	
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
-	private long maxRAMBucketSize;
+	private volatile long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
-	private long maxRamUsed;
+	private volatile long maxRamUsed;
+	/** Chunks for RAM buckets. */
+	private final SlabPool slabPool;
+	/** Number of RAM buckets and RAFs migrated to disk. */
+	private final AtomicLong migrations = new AtomicLong();
+	/** Bytes migrated to disk. */
+	private final AtomicLong migratedBytes = new AtomicLong();
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
 	/** How many times the maxRAMBucketSize can a RAMBucket be before it gets migrated? */
 	final static int RAMBUCKET_CONVERSION_FACTOR = 4;
+	/** Freed chunks are kept for reuse up to this fraction of the RAM limit. They are not counted
+	 * in bytesInUse. */
+	final static int SLAB_POOL_DIVISOR = 8;
 	
 	final static boolean TRACE_BUCKET_LEAKS = false;
 
@@ -199,11 +211,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
 			_hasFreed(size);
+			_hasMigrated(size);
 			return true;
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket);
 		}
 		
 		@Override
@@ -245,7 +258,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
 						isOversized = true;
 						shouldMigrate = true;
-					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
+					} else if ((futureSize - currentSize) + bytesInUse.get() >= maxRamUsed)
 						shouldMigrate = true;
 					
 					if(shouldMigrate) {
@@ -552,6 +565,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		this.slabPool = new SlabPool(maxRamUsed / SLAB_POOL_DIVISOR);
 	}
 	
 	@Override
@@ -563,20 +577,48 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return makeBucket(size, factor, defaultIncrement);
 	}
 	
-	private synchronized void _hasTaken(long size) {
-		bytesInUse += size;
+	private void _hasTaken(long size) {
+		bytesInUse.addAndGet(size);
 	}
 	
-	private synchronized void _hasFreed(long size) {
-		bytesInUse -= size;
+	private void _hasFreed(long size) {
+		bytesInUse.addAndGet(-size);
 	}
 	
-	public synchronized long getRamUsed() {
-		return bytesInUse;
+	private void _hasMigrated(long size) {
+		migrations.incrementAndGet();
+		migratedBytes.addAndGet(size);
+	}
+	
+	/** Reserve RAM for a bucket or RAF of the given size, if it is small enough and there is 
+	 * enough RAM left. */
+	private boolean tryTake(long size) {
+		if(size <= 0 || size > maxRAMBucketSize) return false;
+		long max = maxRamUsed;
+		while(true) {
+			long used = bytesInUse.get();
+			if(used >= max || used + size > max) return false;
+			if(bytesInUse.compareAndSet(used, used + size)) return true;
+		}
+	}
+	
+	/** Start migrating buckets to disk if we are using too much RAM. */
+	private void maybeStartCleaner() {
+		if(bytesInUse.get() < maxRamUsed * MAX_USAGE_HIGH) return;
+		synchronized(this) {
+			if(runningCleaner) return;
+			runningCleaner = true;
+		}
+		executor.execute(cleaner);
+	}
+	
+	public long getRamUsed() {
+		return bytesInUse.get();
 	}
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		slabPool.setMaxPooledBytes(size / SLAB_POOL_DIVISOR);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -605,6 +647,38 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public boolean isEncrypting() {
 	    return reallyEncrypt;
 	}
+	
+	/** @return The number of bytes in free chunks kept for reuse by RAM buckets. */
+	public long getPooledRamBytes() {
+	    return slabPool.getPooledBytes();
+	}
+	
+	/** @return The number of bytes in chunks used by RAM buckets. This is more than getRamUsed() 
+	 * as the last chunk of each bucket is only partly used. */
+	public long getRamChunkBytes() {
+	    return slabPool.getUsedBytes();
+	}
+	
+	/** @return The number of chunks for RAM buckets which have been allocated because there were 
+	 * no free chunks of the right size. */
+	public long getRamChunksAllocated() {
+	    return slabPool.getAllocatedChunks();
+	}
+	
+	/** @return The number of chunks for RAM buckets which have been reused. */
+	public long getRamChunksReused() {
+	    return slabPool.getReusedChunks();
+	}
+	
+	/** @return The number of RAM buckets and RAFs which have been migrated to disk. */
+	public long getMigrations() {
+	    return migrations.get();
+	}
+	
+	/** @return The number of bytes migrated from RAM to disk. */
+	public long getMigratedBytes() {
+	    return migratedBytes.get();
+	}
 
 	static final double MAX_USAGE_LOW = 0.8;
 	static final double MAX_USAGE_HIGH = 0.9;
@@ -627,18 +701,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		boolean useRAMBucket = false;
 		long now = System.currentTimeMillis();
 		
-		synchronized(this) {
-			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-				useRAMBucket = true;
-			}
-			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-				runningCleaner = true;
-				executor.execute(cleaner);
-			}
+		// The space is taken as the bucket is written to.
+		long used = bytesInUse.get();
+		if((size > 0) && (size <= maxRAMBucketSize) && (used < maxRamUsed) && (used + size <= maxRamUsed)) {
+			useRAMBucket = true;
 		}
+		maybeStartCleaner();
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new SlabBucket(slabPool, size) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -686,9 +757,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				saidSo = false;
 				while(true) {
 					// Now migrate buckets until usage is below the lower threshold.
-					synchronized(TempBucketFactory.this) {
-						if(bytesInUse <= maxRamUsed * MAX_USAGE_LOW) return;
-					}
+					if(bytesInUse.get() <= maxRamUsed * MAX_USAGE_LOW) return;
 					try {
                         if(!cleanBucketQueue(System.currentTimeMillis(), true)) return;
                     } catch (InsufficientDiskSpaceException e) {
@@ -882,6 +951,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 hasMigrated = true;
             }
             migrate();
+            _hasMigrated(size);
             return true;
         }
 
@@ -926,16 +996,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	    TempRandomAccessBuffer raf = null;
 	    
-	    synchronized(this) {
-	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-	            raf = new TempRandomAccessBuffer((int)size, now);
-	            bytesInUse += size;
-	        }
-	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-	            runningCleaner = true;
-	            executor.execute(cleaner);
-	        }
-	    }
+	    if(tryTake(size))
+	        raf = new TempRandomAccessBuffer((int)size, now);
+	    maybeStartCleaner();
 	    
 	    if(raf != null) {
             synchronized(ramBucketQueue) {
@@ -974,16 +1037,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         
         TempRandomAccessBuffer raf = null;
         
-        synchronized(this) {
-            if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-                raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
-                bytesInUse += size;
-            }
-            if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-                runningCleaner = true;
-                executor.execute(cleaner);
-            }
-        }
+        if(tryTake(size))
+            raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
+        maybeStartCleaner();
         
         if(raf != null) {
             synchronized(ramBucketQueue) {
@@ -15,7 +15,7 @@ public class OnionFECCodecTest {
     private static final int BLOCK_SIZE = 4096;
     private static final int MAX_SEGMENT_SIZE = 255;
     
-    private final OnionFECCodec codec = new OnionFECCodec();
+    private final FECCodec codec = createCodec();
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -23,6 +23,10 @@ public class OnionFECCodecTest {
     private boolean[] checkBlocksPresent;
     private boolean[] dataBlocksPresent;
     
+    protected FECCodec createCodec() {
+        return new OnionFECCodec();
+    }
+    
     @Test
     public void testDecodeRandomSubset() {
         Random r = new Random(19412106);
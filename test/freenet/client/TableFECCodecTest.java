@@ -0,0 +1,151 @@
+package freenet.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.CHKBlock;
+import freenet.support.TestProperty;
+
+/** Run the FECCodec tests on TableFECCodec, and check that it is compatible with
+ * OnionFECCodec. */
+public class TableFECCodecTest extends OnionFECCodecTest {
+
+    @Override
+    protected FECCodec createCodec() {
+        return new TableFECCodec();
+    }
+
+    private static byte[][] randomBlocks(Random r, int count, int blockLength) {
+        byte[][] blocks = new byte[count][blockLength];
+        for(byte[] block : blocks) r.nextBytes(block);
+        return blocks;
+    }
+
+    private static byte[][] copyBlocks(byte[][] blocks) {
+        byte[][] ret = new byte[blocks.length][];
+        for(int i=0;i<ret.length;i++) ret[i] = blocks[i].clone();
+        return ret;
+    }
+
+    /** Check blocks must be exactly the same as the old codec's, and each codec must be able to
+     * decode from the other's check blocks. */
+    private void checkCompatible(int data, int check, int blockLength, Random r) {
+        FECCodec onion = new OnionFECCodec();
+        FECCodec table = new TableFECCodec();
+        byte[][] dataBlocks = randomBlocks(r, data, blockLength);
+        byte[][] onionCheckBlocks = new byte[check][blockLength];
+        byte[][] tableCheckBlocks = new byte[check][blockLength];
+        onion.encode(dataBlocks, onionCheckBlocks, new boolean[check], blockLength);
+        table.encode(dataBlocks, tableCheckBlocks, new boolean[check], blockLength);
+        for(int i=0;i<check;i++)
+            assertTrue("Check block "+i+" for "+data+"/"+check,
+                    Arrays.equals(onionCheckBlocks[i], tableCheckBlocks[i]));
+
+        // Drop as many blocks as possible, at random.
+        boolean[] dataBlocksPresent = new boolean[data];
+        boolean[] checkBlocksPresent = new boolean[check];
+        Arrays.fill(dataBlocksPresent, true);
+        Arrays.fill(checkBlocksPresent, true);
+        for(int dropped=0;dropped<check;) {
+            int blockNo = r.nextInt(data + check);
+            if(blockNo < data) {
+                if(!dataBlocksPresent[blockNo]) continue;
+                dataBlocksPresent[blockNo] = false;
+            } else {
+                if(!checkBlocksPresent[blockNo - data]) continue;
+                checkBlocksPresent[blockNo - data] = false;
+            }
+            dropped++;
+        }
+        byte[][] decoded = copyBlocks(dataBlocks);
+        for(int i=0;i<data;i++)
+            if(!dataBlocksPresent[i]) Arrays.fill(decoded[i], (byte)0);
+        table.decode(decoded, onionCheckBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+        for(int i=0;i<data;i++)
+            assertTrue(Arrays.equals(dataBlocks[i], decoded[i]));
+    }
+
+    @Test
+    public void testCompatible() {
+        Random r = new Random(1010);
+        checkCompatible(1, 1, 1024, r);
+        checkCompatible(1, 2, 1024, r);
+        checkCompatible(2, 3, 1024, r);
+        checkCompatible(128, 128, 1024, r);
+        checkCompatible(100, 156, 1024, r);
+        checkCompatible(200, 56, 1024, r);
+        checkCompatible(255, 1, 1024, r);
+        // Odd block lengths, and full size blocks, which are decoded in parallel.
+        checkCompatible(20, 21, 1000, r);
+        checkCompatible(128, 128, CHKBlock.DATA_LENGTH, r);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(254)+1;
+            int check = r.nextInt(256 - data)+1;
+            checkCompatible(data, check, 512, r);
+        }
+    }
+
+    @Test
+    public void testFieldArithmetic() {
+        for(int a=1;a<256;a++) {
+            assertEquals(1, TableFECCodec.mul(a, TableFECCodec.inverse(a)));
+            assertEquals(0, TableFECCodec.mul(a, 0));
+            assertEquals(a, TableFECCodec.mul(a, 1));
+        }
+        // x^8 = x^4 + x^3 + x^2 + 1
+        assertEquals(0x1d, TableFECCodec.mul(0x80, 2));
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes * 1000.0 / nanos;
+    }
+
+    /** Encode and decode speed in MB/s of data, for OnionFECCodec and TableFECCodec, for full
+     * segments, segments with extra check blocks, and small files. */
+    @Test
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+
+        int[][] sizes = new int[][] { { 128, 128 }, { 100, 156 }, { 20, 21 }, { 2, 3 } };
+        FECCodec[] codecs = new FECCodec[] { new OnionFECCodec(), new TableFECCodec() };
+        int blockLength = CHKBlock.DATA_LENGTH;
+        Random r = new Random(1111);
+        for(int[] size : sizes) {
+            int data = size[0];
+            int check = size[1];
+            byte[][] dataBlocks = randomBlocks(r, data, blockLength);
+            byte[][] checkBlocks = new byte[check][blockLength];
+            // Decode as many data blocks as possible.
+            boolean[] dataBlocksPresent = new boolean[data];
+            boolean[] checkBlocksPresent = new boolean[check];
+            for(int i=0;i<Math.min(data, check);i++) checkBlocksPresent[i] = true;
+            for(int i=check;i<data;i++) dataBlocksPresent[i] = true;
+            long bytes = (long) data * blockLength;
+            int iterations = Math.max(3, 200 / data);
+            for(int round=0;round<3;round++) {
+                for(FECCodec codec : codecs) {
+                    long start = System.nanoTime();
+                    for(int i=0;i<iterations;i++)
+                        codec.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+                    long encode = System.nanoTime() - start;
+                    byte[][] decoded = copyBlocks(dataBlocks);
+                    start = System.nanoTime();
+                    for(int i=0;i<iterations;i++)
+                        codec.decode(decoded, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+                    long decode = System.nanoTime() - start;
+                    for(int i=0;i<data;i++)
+                        assertTrue(Arrays.equals(dataBlocks[i], decoded[i]));
+                    System.out.println(codec.getClass().getSimpleName()+" "+data+"/"+check+
+                            ": encode "+megabytesPerSecond(bytes * iterations, encode)+
+                            " MB/s, decode "+megabytesPerSecond(bytes * iterations, decode)+" MB/s");
+                }
+            }
+        }
+    }
+
+}
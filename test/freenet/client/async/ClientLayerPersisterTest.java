@@ -0,0 +1,238 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.async.ClientLayerPersister.ClientDat;
+import freenet.client.async.ClientLayerPersister.RawRequest;
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.MasterSecret;
+import freenet.support.PooledExecutor;
+import freenet.support.io.DelayedFree;
+import freenet.support.io.FileUtil;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.TempBucketFactory;
+
+/** Tests the on-disk format of client.dat and its journal. The requests are opaque byte arrays
+ * here, so we don't need real ClientRequest's. */
+public class ClientLayerPersisterTest {
+
+    private static final String BASE_NAME = "client.dat";
+
+    private final File dir = new File("tmp.client-layer-persister-test");
+    private final Random random = new Random(1234);
+    private final byte[] salt = new byte[32];
+    private ClientLayerPersister persister;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        random.nextBytes(salt);
+        TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(),
+                new FilenameGenerator(random, false, dir, "junit"), 4096, 65536, random, false,
+                0, new MasterSecret());
+        persister = new ClientLayerPersister(null, null, null, null, null, tbf,
+                new PersistentStatsPutter(), false);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    /** Collects the requests read, as RawRequest's. */
+    private class CollectingLoader implements ClientLayerPersister.Loader {
+
+        final Map<RequestIdentifier, byte[]> requests = new HashMap<RequestIdentifier, byte[]>();
+        final List<RequestIdentifier> order = new ArrayList<RequestIdentifier>();
+        byte[] salt;
+        boolean validSalt;
+
+        @Override
+        public void onSalt(byte[] salt, boolean valid) {
+            this.salt = salt;
+            this.validSalt = valid;
+        }
+
+        @Override
+        public boolean wantRequest(RequestIdentifier reqID) {
+            return true;
+        }
+
+        @Override
+        public void loadRequest(RequestIdentifier reqID, InputStream is, long length)
+                throws IOException {
+            assertNotNull(reqID);
+            requests.put(reqID, persister.readRawRequest(reqID, is, length).data);
+            order.add(reqID);
+        }
+
+    }
+
+    /** A download on the global queue. RequestType is not visible from here, so read it. */
+    private static RequestIdentifier id(String identifier) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0x25ebd38d); // RequestIdentifier.MAGIC
+        dos.writeShort(1); // RequestIdentifier.VERSION
+        dos.writeBoolean(true);
+        dos.writeUTF(identifier);
+        dos.writeShort(0); // GET
+        return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    /** A request and its recovery data, as they would be written by writeRequest(). */
+    private RawRequest request(RequestIdentifier reqID, int size) throws IOException {
+        byte[] serialized = new byte[size];
+        random.nextBytes(serialized);
+        byte[] recovery = new byte[size / 2];
+        random.nextBytes(recovery);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        persister.writeChecksummedBytes(baos, serialized);
+        persister.writeChecksummedBytes(baos, recovery);
+        return new RawRequest(reqID, baos.toByteArray());
+    }
+
+    private void writeClientDat(long generation, List<RequestIdentifier> removed,
+            RawRequest... requests) throws IOException {
+        persister.writeClientDat(new FileOutputStream(new File(dir, BASE_NAME)), generation,
+                salt, removed, Arrays.asList(requests), null);
+    }
+
+    private void writeJournal(long generation, int segment, List<RawRequest> changed,
+            List<RequestIdentifier> removed) throws IOException {
+        persister.writeJournalSegment(
+                persister.makeJournalBucket(dir, BASE_NAME, segment, null).getOutputStream(),
+                generation, segment, changed, removed, null);
+    }
+
+    private ClientDat read(CollectingLoader loader) throws IOException {
+        File f = new File(dir, BASE_NAME);
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            return persister.readClientDat(fis, f.length(), dir, BASE_NAME, null, true, loader);
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        RawRequest a = request(id("a"), 100);
+        RawRequest b = request(id("b"), 2000);
+        RequestIdentifier gone = id("gone");
+        writeClientDat(7, Collections.singletonList(gone), a, b);
+        CollectingLoader loader = new CollectingLoader();
+        ClientDat dat = read(loader);
+        assertEquals(ClientLayerPersister.VERSION, dat.version);
+        assertEquals(7, dat.generation);
+        assertTrue(loader.validSalt);
+        assertArrayEquals(salt, loader.salt);
+        assertEquals(Arrays.asList(a.reqID, b.reqID), loader.order);
+        assertArrayEquals(a.data, loader.requests.get(a.reqID));
+        assertArrayEquals(b.data, loader.requests.get(b.reqID));
+        assertEquals(Collections.singleton(gone), dat.removed);
+        assertEquals(loader.requests.keySet(), dat.requests);
+        assertNotNull(dat.stats);
+        assertTrue(dat.buckets.isEmpty());
+        assertFalse(dat.journalFailed);
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        RawRequest a = request(id("a"), 100);
+        RawRequest b = request(id("b"), 100);
+        RawRequest c = request(id("c"), 100);
+        writeClientDat(3, Collections.<RequestIdentifier>emptyList(), a, b, c);
+        // Change a, add d, remove b.
+        RawRequest a2 = request(a.reqID, 5000);
+        RawRequest d = request(id("d"), 200);
+        writeJournal(3, 0, Arrays.asList(a2, d), Collections.singletonList(b.reqID));
+        // Change d again, remove c, then put c back.
+        RawRequest d2 = request(d.reqID, 300);
+        RawRequest c2 = request(c.reqID, 400);
+        writeJournal(3, 1, Collections.singletonList(d2), Collections.singletonList(c.reqID));
+        writeJournal(3, 2, Collections.singletonList(c2), Collections.<RequestIdentifier>emptyList());
+        CollectingLoader loader = new CollectingLoader();
+        ClientDat dat = read(loader);
+        assertFalse(dat.journalFailed);
+        assertEquals(3, loader.requests.size());
+        assertArrayEquals(a2.data, loader.requests.get(a.reqID));
+        assertArrayEquals(c2.data, loader.requests.get(c.reqID));
+        assertArrayEquals(d2.data, loader.requests.get(d.reqID));
+        assertFalse(loader.requests.containsKey(b.reqID));
+        assertEquals(Collections.singleton(b.reqID), dat.removed);
+        assertTrue(dat.requests.containsAll(loader.requests.keySet()));
+        assertNotNull(dat.stats);
+    }
+
+    @Test
+    public void testJournalWrongGeneration() throws IOException {
+        RawRequest a = request(id("a"), 100);
+        writeClientDat(5, Collections.<RequestIdentifier>emptyList(), a);
+        // Left over from before client.dat was last written.
+        writeJournal(4, 0, Collections.singletonList(request(a.reqID, 100)),
+                Collections.<RequestIdentifier>emptyList());
+        writeJournal(4, 1, Collections.<RawRequest>emptyList(), Collections.singletonList(a.reqID));
+        CollectingLoader loader = new CollectingLoader();
+        ClientDat dat = read(loader);
+        assertEquals(5, dat.generation);
+        assertFalse(dat.journalFailed);
+        assertEquals(1, loader.requests.size());
+        assertArrayEquals(a.data, loader.requests.get(a.reqID));
+        assertTrue(dat.removed.isEmpty());
+    }
+
+    @Test
+    public void testReadVersionNoJournal() throws IOException {
+        RawRequest a = request(id("a"), 100);
+        RawRequest b = request(id("b"), 100);
+        // Written before there was a journal: No generation and no list of removed requests.
+        FileOutputStream fos = new FileOutputStream(new File(dir, BASE_NAME));
+        ObjectOutputStream oos = new ObjectOutputStream(fos);
+        oos.writeLong(ClientLayerPersister.MAGIC);
+        oos.writeInt(ClientLayerPersister.VERSION_NO_JOURNAL);
+        new CRCChecksumChecker().writeAndChecksum(oos, salt);
+        oos.writeInt(2);
+        persister.writeRequest(oos, a);
+        persister.writeRequest(oos, b);
+        persister.writeStatsAndBuckets(oos, new DelayedFree[0]);
+        oos.close();
+        // Any journal segments on disk are not for this file.
+        writeJournal(0, 0, Collections.<RawRequest>emptyList(), Collections.singletonList(a.reqID));
+        CollectingLoader loader = new CollectingLoader();
+        ClientDat dat = read(loader);
+        assertEquals(ClientLayerPersister.VERSION_NO_JOURNAL, dat.version);
+        assertEquals(0, dat.generation);
+        assertArrayEquals(salt, loader.salt);
+        assertEquals(Arrays.asList(a.reqID, b.reqID), loader.order);
+        assertArrayEquals(a.data, loader.requests.get(a.reqID));
+        assertArrayEquals(b.data, loader.requests.get(b.reqID));
+        assertTrue(dat.removed.isEmpty());
+        assertNotNull(dat.stats);
+    }
+
+}
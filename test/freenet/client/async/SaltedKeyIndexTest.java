@@ -0,0 +1,192 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+
+public class SaltedKeyIndexTest {
+
+    private static class Listener implements KeyListener {
+
+        final byte[][] keys;
+
+        Listener(Random r, int count) {
+            keys = new byte[count][32];
+            for(byte[] key : keys) r.nextBytes(key);
+        }
+
+        long[] hashes() {
+            long[] hashes = new long[keys.length];
+            for(int i=0;i<keys.length;i++) hashes[i] = SaltedKeyIndex.hash(keys[i]);
+            return hashes;
+        }
+
+        @Override
+        public boolean probablyWantKey(Key key, byte[] saltedKey) {
+            return false;
+        }
+
+        @Override
+        public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return -1;
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            return false;
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        public long countKeys() {
+            return keys.length;
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return null;
+        }
+
+        @Override
+        public void onRemove() {
+            // Ignore.
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+        @Override
+        public byte[] getWantedKey() {
+            return null;
+        }
+
+    }
+
+    private static void checkFound(SaltedKeyIndex index, Listener listener) {
+        for(byte[] key : listener.keys) {
+            List<KeyListener> found = index.get(key);
+            assertTrue(found.contains(listener));
+            assertEquals(found.indexOf(listener), found.lastIndexOf(listener));
+        }
+    }
+
+    private static void checkNotFound(SaltedKeyIndex index, Listener listener) {
+        for(byte[] key : listener.keys)
+            assertFalse(index.get(key).contains(listener));
+    }
+
+    @Test
+    public void testAddRemove() {
+        Random r = new Random(2121);
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        Listener a = new Listener(r, 100);
+        Listener b = new Listener(r, 5000);
+        assertTrue(index.add(a, a.hashes()));
+        assertFalse(index.add(a, a.hashes()));
+        assertTrue(index.add(b, b.hashes()));
+        assertEquals(2, index.size());
+        assertEquals(5100, index.countKeys());
+        checkFound(index, a);
+        checkFound(index, b);
+        // Random keys are not found.
+        Listener other = new Listener(r, 1000);
+        for(byte[] key : other.keys)
+            assertTrue(index.get(key).isEmpty());
+        assertTrue(index.remove(b));
+        assertFalse(index.remove(b));
+        assertFalse(index.contains(b));
+        checkFound(index, a);
+        checkNotFound(index, b);
+        assertEquals(100, index.countKeys());
+        assertTrue(index.remove(a));
+        assertEquals(0, index.size());
+        checkNotFound(index, a);
+    }
+
+    @Test
+    public void testSameKeys() {
+        Random r = new Random(2122);
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        Listener a = new Listener(r, 100);
+        Listener b = new Listener(r, 0);
+        Listener c = new Listener(r, 10);
+        assertTrue(index.add(a, a.hashes()));
+        // Duplicates are only counted once.
+        long[] hashes = a.hashes();
+        long[] twice = new long[hashes.length * 2];
+        System.arraycopy(hashes, 0, twice, 0, hashes.length);
+        System.arraycopy(hashes, 0, twice, hashes.length, hashes.length);
+        assertTrue(index.add(b, twice));
+        assertTrue(index.add(c, c.hashes()));
+        assertEquals(200 + 10, index.countKeys());
+        for(byte[] key : a.keys) {
+            List<KeyListener> found = index.get(key);
+            assertEquals(2, found.size());
+            assertTrue(found.contains(a));
+            assertTrue(found.contains(b));
+        }
+        assertTrue(index.remove(a));
+        for(byte[] key : a.keys) {
+            List<KeyListener> found = index.get(key);
+            assertEquals(1, found.size());
+            assertTrue(found.contains(b));
+        }
+        checkFound(index, c);
+    }
+
+    /** Add and remove many listeners, so that the table is rebuilt and the listeners are
+     * renumbered. */
+    @Test
+    public void testChurn() {
+        Random r = new Random(2123);
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        Listener[] listeners = new Listener[200];
+        for(int i=0;i<listeners.length;i++) {
+            listeners[i] = new Listener(r, r.nextInt(300));
+            assertTrue(index.add(listeners[i], listeners[i].hashes()));
+        }
+        for(int round=0;round<2000;round++) {
+            int i = r.nextInt(listeners.length);
+            assertTrue(index.remove(listeners[i]));
+            checkNotFound(index, listeners[i]);
+            listeners[i] = new Listener(r, r.nextInt(300));
+            assertTrue(index.add(listeners[i], listeners[i].hashes()));
+        }
+        int keys = 0;
+        for(Listener listener : listeners) {
+            checkFound(index, listener);
+            keys += listener.keys.length;
+        }
+        assertEquals(keys, index.countKeys());
+        assertEquals(listeners.length, index.size());
+    }
+
+}
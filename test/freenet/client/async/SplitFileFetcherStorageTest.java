@@ -2,10 +2,12 @@ package freenet.client.async;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -27,6 +29,7 @@ import freenet.client.MetadataUnresolvedException;
 import freenet.client.OnionFECCodec;
 import freenet.client.events.SimpleEventProducer;
 import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
 import freenet.crypt.DummyRandomSource;
 import freenet.keys.CHKBlock;
@@ -366,6 +369,7 @@ public class SplitFileFetcherStorageTest {
         private boolean closed;
         private boolean failed;
         private boolean hasRestartedOnCorruption;
+        private boolean loadedKeyHashes;
         private LockableRandomAccessBuffer raf;
 
         public StorageCallback(TestSplitfile splitfile) {
@@ -531,6 +535,17 @@ public class SplitFileFetcherStorageTest {
             // Will be used in a different test.
             synchronized(this) {
                 hasRestartedOnCorruption = true;
+                notifyAll();
+            }
+        }
+
+        public synchronized void waitForRestartedOnCorruption() {
+            while(!hasRestartedOnCorruption) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
             }
         }
 
@@ -562,6 +577,24 @@ public class SplitFileFetcherStorageTest {
             return salt;
         }
 
+        @Override
+        public void onLoadedKeyHashes() {
+            synchronized(this) {
+                loadedKeyHashes = true;
+                notifyAll();
+            }
+        }
+
+        public synchronized void waitForLoadedKeyHashes() {
+            while(!loadedKeyHashes) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+
         @Override
         public void onResume(int succeeded, int failed, ClientMetadata mimeType, long finalSize) {
             // Ignore.
@@ -1016,6 +1049,72 @@ public class SplitFileFetcherStorageTest {
         storage.close();
     }
     
+    /** The keys are indexed by the scheduler, which is not persistent, so after reloading we need
+     * to read them all from disk. */
+    @Test
+    public void testPersistenceReloadKeyHashes() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, StorageFormatException {
+        int dataBlocks = 3, checkBlocks = 3;
+        TestSplitfile test = TestSplitfile.constructSingleSegment(dataBlocks*BLOCK_SIZE, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        long[] hashes = storage.keyListener.takeKeyHashes();
+        assertEquals(dataBlocks + checkBlocks, hashes.length);
+        for(int i=0;i<dataBlocks + checkBlocks;i++)
+            assertEquals(SaltedKeyIndex.hash(salt.saltKey(test.getCHK(i))), hashes[i]);
+        assertNull(storage.keyListener.takeKeyHashes());
+        // No need to shutdown the old storage.
+        storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+        assertNull(storage.keyListener.takeKeyHashes());
+        storage.start(false);
+        cb.waitForLoadedKeyHashes();
+        assertTrue(Arrays.equals(hashes, storage.keyListener.takeKeyHashes()));
+        storage.close();
+    }
+    
+    private static int readVersion(LockableRandomAccessBuffer raf) throws IOException {
+        byte[] buf = new byte[4];
+        raf.pread(raf.size()-12, buf, 0, 4);
+        return new DataInputStream(new ByteArrayInputStream(buf)).readInt();
+    }
+    
+    /** Change the version in the footer, and the checksum that covers it. */
+    private static void writeVersion(LockableRandomAccessBuffer raf, int version) throws IOException {
+        ChecksumChecker checker = new CRCChecksumChecker();
+        int checksumLength = checker.checksumLength();
+        byte[] buf = new byte[14];
+        raf.pread(raf.size()-(22+checksumLength), buf, 0, 4);
+        raf.pread(raf.size()-18, buf, 4, 10);
+        ByteBuffer.wrap(buf).putInt(10, version);
+        raf.pwrite(raf.size()-(18+checksumLength), checker.generateChecksum(buf), 0, checksumLength);
+        raf.pwrite(raf.size()-18, buf, 4, 10);
+    }
+    
+    /** Files written by version 1 have Bloom filters in the old format. These are regenerated on
+     * startup, and the file is upgraded to the current version. */
+    @Test
+    public void testPersistenceReloadOldVersion() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, StorageFormatException {
+        int dataBlocks = 3, checkBlocks = 3;
+        TestSplitfile test = TestSplitfile.constructSingleSegment(dataBlocks*BLOCK_SIZE, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        LockableRandomAccessBuffer raf = cb.getRAF();
+        assertEquals(SplitFileFetcherStorage.VERSION, readVersion(raf));
+        writeVersion(raf, 1);
+        storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertTrue(storage.keyListener.needsKeys());
+        assertFalse(storage.start(false));
+        cb.waitForRestartedOnCorruption();
+        assertEquals(SplitFileFetcherStorage.VERSION, readVersion(raf));
+        for(int i=0;i<dataBlocks+checkBlocks;i++)
+            assertTrue(storage.keyListener.probablyWantKey(test.getCHK(i), salt.saltKey(test.getCHK(i))));
+        // Now it's the current version, we can use the filters as they are.
+        storage = test.createStorage(cb, test.makeFetchContext(), raf);
+        assertFalse(storage.keyListener.needsKeys());
+        for(int i=0;i<dataBlocks+checkBlocks;i++)
+            assertTrue(storage.keyListener.probablyWantKey(test.getCHK(i), salt.saltKey(test.getCHK(i))));
+        storage.close();
+    }
+    
     @Test
     public void testPersistenceReloadThenFetch() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
         int dataBlocks = 2;
@@ -1353,6 +1353,11 @@ public class SplitFileInserterStorageTest {
             return salt;
         }
 
+        @Override
+        public void onLoadedKeyHashes() {
+            // Ignore.
+        }
+
     }
 
     @Test
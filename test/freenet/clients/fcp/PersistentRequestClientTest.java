@@ -0,0 +1,177 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.node.RequestStarter;
+
+/** Tests registering requests with a PersistentRequestClient when they are resumed.
+ * ClientLayerPersister may resume many requests in parallel, and most of them are on the global
+ * queue, so they all end up on the same client. */
+public class PersistentRequestClientTest {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 500;
+
+    /** Just enough of a request to be resumed. */
+    private static class DummyRequest extends ClientRequest {
+
+        DummyRequest(String identifier, PersistentRequestClient client) {
+            super(null, identifier, 0, null, null, client,
+                    RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, Persistence.FOREVER, false,
+                    null, true);
+        }
+
+        @Override
+        public void onLostConnection(ClientContext context) {}
+
+        @Override
+        public void sendPendingMessages(FCPConnectionOutputHandler handler,
+                String listRequestIdentifier, boolean includeData, boolean onlyData) {}
+
+        @Override
+        void register(boolean noTags) {}
+
+        @Override
+        protected ClientRequester getClientRequest() {
+            return null;
+        }
+
+        @Override
+        protected void freeData() {}
+
+        @Override
+        public double getSuccessFraction() {
+            return 0;
+        }
+
+        @Override
+        public double getTotalBlocks() {
+            return 0;
+        }
+
+        @Override
+        public double getMinBlocks() {
+            return 0;
+        }
+
+        @Override
+        public double getFetchedBlocks() {
+            return 0;
+        }
+
+        @Override
+        public double getFailedBlocks() {
+            return 0;
+        }
+
+        @Override
+        public double getFatalyFailedBlocks() {
+            return 0;
+        }
+
+        @Override
+        public String getFailureReason(boolean longDescription) {
+            return null;
+        }
+
+        @Override
+        public boolean isTotalFinalized() {
+            return false;
+        }
+
+        @Override
+        public void start(ClientContext context) {}
+
+        @Override
+        public boolean hasSucceeded() {
+            return false;
+        }
+
+        @Override
+        public boolean canRestart() {
+            return false;
+        }
+
+        @Override
+        public boolean restart(ClientContext context, boolean disableFilterData) {
+            return false;
+        }
+
+        @Override
+        RequestStatus getStatus() {
+            return null;
+        }
+
+        @Override
+        protected void innerResume(ClientContext context) {}
+
+        @Override
+        RequestIdentifier.RequestType getType() {
+            return RequestIdentifier.RequestType.GET;
+        }
+
+        @Override
+        public boolean fullyResumed() {
+            return true;
+        }
+
+    }
+
+    @Test
+    public void testResumeInParallel() throws InterruptedException {
+        final PersistentRequestRoot root = new PersistentRequestRoot();
+        final List<List<ClientRequest>> batches = new ArrayList<List<ClientRequest>>();
+        for(int i=0;i<THREADS;i++) {
+            List<ClientRequest> batch = new ArrayList<ClientRequest>();
+            for(int j=0;j<REQUESTS_PER_THREAD;j++)
+                batch.add(new DummyRequest("request-"+i+"-"+j, root.globalForeverClient));
+            batches.add(batch);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for(int i=0;i<THREADS;i++) {
+            final List<ClientRequest> batch = batches.get(i);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(ClientRequest req : batch)
+                            assertSame(root.globalForeverClient, root.resume(req, true, null));
+                    } catch (Throwable t) {
+                        synchronized(errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread t : threads)
+            t.join();
+        assertEquals(new ArrayList<Throwable>(), errors);
+        ClientRequest[] resumed = root.getPersistentRequests();
+        assertEquals(THREADS * REQUESTS_PER_THREAD, resumed.length);
+        Set<String> identifiers = new HashSet<String>();
+        for(ClientRequest req : resumed)
+            identifiers.add(req.getIdentifier());
+        assertEquals(THREADS * REQUESTS_PER_THREAD, identifiers.size());
+        for(List<ClientRequest> batch : batches) {
+            for(ClientRequest req : batch)
+                assertSame(req, root.globalForeverClient.getRequest(req.getIdentifier()));
+        }
+    }
+
+}
@@ -17,7 +17,14 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
@@ -85,6 +92,85 @@ public class EncryptedRandomAccessBufferTest {
         }
     }
     
+    /** Reads and writes at arbitrary offsets must not depend on where earlier ones left the
+     * keystream. */
+    @Test
+    public void testRandomAccess() throws IOException, GeneralSecurityException {
+        for(EncryptedRandomAccessBufferType type: types){
+            byte[] data = new byte[10000];
+            Random r = new Random(1268);
+            r.nextBytes(data);
+            byte[] bytes = new byte[data.length+type.headerLen];
+            ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(bytes);
+            EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(type, barat, secret, true);
+            // Write backwards in odd-sized chunks.
+            for(int end = data.length; end > 0; end -= 333) {
+                int start = Math.max(0, end - 333);
+                erat.pwrite(start, data, start, end - start);
+            }
+            for(int i = 0; i < 100; i++) {
+                int start = r.nextInt(data.length);
+                int length = r.nextInt(data.length - start + 1);
+                byte[] result = new byte[length + 2];
+                erat.pread(start, result, 1, length);
+                assertArrayEquals(Arrays.copyOfRange(data, start, start + length), 
+                        Arrays.copyOfRange(result, 1, length + 1));
+            }
+            erat.close();
+            // Still readable with fresh ciphers.
+            ByteArrayRandomAccessBuffer barat2 = new ByteArrayRandomAccessBuffer(bytes);
+            EncryptedRandomAccessBuffer erat2 = new EncryptedRandomAccessBuffer(type, barat2, secret, false);
+            byte[] result = new byte[data.length];
+            erat2.pread(0, result, 0, result.length);
+            erat2.close();
+            assertArrayEquals(data, result);
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final int blockSize = 4096;
+        final int blocks = 32;
+        final byte[] data = new byte[blockSize*blocks];
+        new Random(1269).nextBytes(data);
+        byte[] bytes = new byte[data.length+types[0].headerLen];
+        ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(bytes);
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], barat, secret, true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // Each thread writes its own blocks, then reads them all back.
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for(int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws IOException {
+                        byte[] buf = new byte[blockSize];
+                        for(int i = 0; i < 50; i++) {
+                            for(int block = thread; block < blocks; block += 8) {
+                                erat.pwrite(block*blockSize, data, block*blockSize, blockSize);
+                                erat.pread(block*blockSize, buf, 0, blockSize);
+                                if(!Arrays.equals(buf, Arrays.copyOfRange(data, block*blockSize, (block+1)*blockSize)))
+                                    return false;
+                            }
+                        }
+                        return true;
+                    }
+
+                }));
+            }
+            for(Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+        byte[] result = new byte[data.length];
+        erat.pread(0, result, 0, result.length);
+        assertArrayEquals(data, result);
+        erat.close();
+    }
+    
     @Test
     public void testWrongERATType() throws IOException, GeneralSecurityException {
         byte[] bytes = new byte[100];
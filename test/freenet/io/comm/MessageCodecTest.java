@@ -0,0 +1,306 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.keys.NodeSSK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
+
+public class MessageCodecTest {
+
+	private final Random random = new Random(1234);
+
+	/** Every message type in DMT. */
+	private static List<MessageType> dmtTypes() throws IllegalAccessException {
+		List<MessageType> types = new ArrayList<MessageType>();
+		for(Field f : DMT.class.getFields()) {
+			if(Modifier.isStatic(f.getModifiers()) && f.getType() == MessageType.class)
+				types.add((MessageType) f.get(null));
+		}
+		return types;
+	}
+
+	private byte[] bytes(int length) {
+		byte[] b = new byte[length];
+		random.nextBytes(b);
+		return b;
+	}
+
+	private Object randomValue(Class<?> type) throws IOException {
+		if(type == Boolean.class) return random.nextBoolean();
+		if(type == Byte.class) return (byte) random.nextInt();
+		if(type == Short.class) return (short) random.nextInt();
+		if(type == Integer.class) return random.nextInt();
+		if(type == Long.class) return random.nextLong();
+		if(type == Float.class) return random.nextFloat();
+		if(type == Double.class) return random.nextDouble();
+		if(type == String.class) {
+			char[] chars = new char[random.nextInt(20)];
+			for(int i = 0; i < chars.length; i++) chars[i] = (char) random.nextInt(0x10000);
+			return new String(chars);
+		}
+		if(type == Buffer.class) return new Buffer(bytes(random.nextInt(100)));
+		if(type == ShortBuffer.class) return new ShortBuffer(bytes(random.nextInt(100)));
+		if(type == float[].class) {
+			float[] floats = new float[random.nextInt(10)];
+			for(int i = 0; i < floats.length; i++) floats[i] = random.nextFloat();
+			return floats;
+		}
+		if(type == double[].class) {
+			double[] doubles = new double[random.nextInt(10)];
+			for(int i = 0; i < doubles.length; i++) doubles[i] = random.nextDouble();
+			return doubles;
+		}
+		if(type == BitArray.class) {
+			BitArray bits = new BitArray(1 + random.nextInt(100));
+			for(int i = 0; i < bits.getSize(); i++) bits.setBit(i, random.nextBoolean());
+			return bits;
+		}
+		if(type == NodeSSK.class)
+			return new NodeSSK(bytes(32), bytes(32), Key.ALGO_AES_PCFB_256_SHA256);
+		if(type == NodeCHK.class || type == Key.class)
+			return new NodeCHK(bytes(32), Key.ALGO_AES_PCFB_256_SHA256);
+		if(type == Peer.class)
+			return new Peer(InetAddress.getByAddress(bytes(4)), random.nextInt(0x10000));
+		throw new AssertionError("No generator for " + type);
+	}
+
+	private Message randomMessage(MessageType type) throws IOException {
+		Message m = new Message(type);
+		for(String name : type.getOrderedFields())
+			m.set(name, randomValue(type.typeOf(name)));
+		return m;
+	}
+
+	/** How messages were encoded before MessageCodec, one field at a time with Serializer. */
+	private static byte[] oldEncode(Message m, Message... subMessages) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for(String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+		for(Message sub : subMessages) {
+			byte[] temp = oldEncode(sub);
+			dos.writeShort(temp.length);
+			dos.write(temp);
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/** How messages were decoded before MessageCodec, one field at a time with Serializer. */
+	private static Message oldDecode(MessageType type, byte[] buf) throws IOException {
+		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
+		assertEquals(type.getName().hashCode(), bb.readInt());
+		Message m = new Message(type);
+		for(String name : type.getOrderedFields())
+			m.set(name, Serializer.readFromDataInputStream(type.typeOf(name), bb));
+		return m;
+	}
+
+	private static void assertFieldEquals(Object expected, Object actual) {
+		if(expected instanceof double[])
+			assertTrue(Arrays.equals((double[]) expected, (double[]) actual));
+		else if(expected instanceof float[])
+			assertTrue(Arrays.equals((float[]) expected, (float[]) actual));
+		else
+			assertEquals(expected, actual);
+	}
+
+	private static void assertSameFields(Message expected, Message actual) {
+		assertEquals(expected.getSpec(), actual.getSpec());
+		for(String name : expected.getSpec().getOrderedFields())
+			assertFieldEquals(expected.getObject(name), actual.getObject(name));
+	}
+
+	/** Random messages of every DMT type must encode to exactly what Serializer wrote, and
+	 * decode to the same values as Serializer read. */
+	@Test
+	public void testCompatibleWithSerializer() throws Exception {
+		for(MessageType type : dmtTypes()) {
+			for(int i = 0; i < 20; i++) {
+				Message m = randomMessage(type);
+				byte[] encoded = m.encodeToPacket();
+				assertArrayEquals(type.getName(), oldEncode(m), encoded);
+
+				assertSameFields(m, oldDecode(type, encoded));
+
+				if(type.isInternalOnly()) continue;
+				Message decoded = Message.decodeMessageLax(encoded, null, 0);
+				assertNotNull(type.getName(), decoded);
+				assertSameFields(m, decoded);
+			}
+		}
+	}
+
+	@Test
+	public void testSubMessages() throws Exception {
+		Message m = randomMessage(DMT.FNPSwapRequest);
+		Message sub = randomMessage(DMT.FNPRejectedOverload);
+		m.addSubMessage(sub);
+		byte[] encoded = m.encodeToPacket();
+		assertArrayEquals(oldEncode(m, sub), encoded);
+
+		// At an offset in a larger buffer.
+		byte[] buf = new byte[encoded.length + 10];
+		System.arraycopy(encoded, 0, buf, 5, encoded.length);
+		Message decoded = Message.decodeMessageFromPacket(buf, 5, encoded.length, null, 0);
+		assertSameFields(m, decoded);
+		assertSameFields(sub, decoded.getSubMessage(DMT.FNPRejectedOverload));
+
+		// A truncated sub-message is ignored.
+		decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length - 1, null, 0);
+		assertSameFields(m, decoded);
+		assertEquals(null, decoded.getSubMessage(DMT.FNPRejectedOverload));
+	}
+
+	@Test
+	public void testEncodeToBuffer() throws Exception {
+		Message m = randomMessage(DMT.FNPSwapRequest);
+		byte[] encoded = m.encodeToPacket();
+		ByteBuffer buf = ByteBuffer.allocate(encoded.length + 10);
+		buf.position(3);
+		m.encodeToBuffer(buf);
+		assertEquals(3 + encoded.length, buf.position());
+		assertArrayEquals(encoded, Arrays.copyOfRange(buf.array(), 3, 3 + encoded.length));
+	}
+
+	/** Every prefix of a message must fail to decode with EOFException. */
+	@Test
+	public void testTruncated() throws Exception {
+		for(MessageType type : dmtTypes()) {
+			Message m = randomMessage(type);
+			byte[] encoded = m.encodeToPacket();
+			MessageCodec codec = type.getCodec();
+			for(int length = 4; length < encoded.length; length++) {
+				ByteBuffer buf = ByteBuffer.wrap(encoded, 4, length - 4);
+				try {
+					codec.decode(new Message(type), buf);
+					fail("Decoded " + length + " of " + encoded.length + " bytes of " + type.getName());
+				} catch (EOFException e) {
+					// Expected.
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFields() {
+		Message m = new Message(DMT.FNPSwapRequest);
+		assertFalse(m.isSet(DMT.UID));
+		assertEquals(null, m.getObject(DMT.UID));
+		try {
+			m.getLong(DMT.UID);
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		try {
+			m.set(DMT.UID, 1);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected, UID is a long.
+		}
+		assertFalse(m.isSet(DMT.UID));
+		m.set(DMT.UID, 1L);
+		assertTrue(m.isSet(DMT.UID));
+		assertEquals(Long.valueOf(1), m.getObject(DMT.UID));
+		m.set(DMT.UID, Long.valueOf(-5));
+		assertEquals(-5, m.getLong(DMT.UID));
+		assertFalse(m.isSet("noSuchField"));
+		try {
+			m.encodeToPacket();
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected, the other fields are not set.
+		}
+	}
+
+	@Test
+	public void testNoFieldsAfterUse() {
+		MessageType type = new MessageType("MessageCodecTest.testNoFieldsAfterUse", DMT.PRIORITY_LOW);
+		try {
+			type.addField("a", Long.class);
+			new Message(type);
+			try {
+				type.addField("b", Long.class);
+				fail();
+			} catch (IllegalStateException e) {
+				// Expected.
+			}
+		} finally {
+			type.unregister();
+		}
+	}
+
+	/** Messages per second for encoding and decoding with Serializer and with MessageCodec. */
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int MESSAGES = 1000 * 1000;
+		Message m = randomMessage(DMT.FNPSwapRequest);
+		MessageType type = m.getSpec();
+		byte[] encoded = m.encodeToPacket();
+		ByteBuffer buf = ByteBuffer.allocate(encoded.length);
+
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < MESSAGES; i++)
+				oldEncode(m);
+			long oldEncode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < MESSAGES; i++) {
+				buf.clear();
+				m.encodeToBuffer(buf);
+			}
+			long encode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < MESSAGES; i++)
+				oldDecode(type, encoded);
+			long oldDecode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < MESSAGES; i++)
+				Message.decodeMessageLax(encoded, null, 0);
+			long decode = System.nanoTime() - start;
+
+			System.out.println("Messages/sec for " + type.getName() + ": old encode " +
+					(MESSAGES * 1000000000L / oldEncode) + ", encode " + (MESSAGES * 1000000000L / encode) +
+					", old decode " + (MESSAGES * 1000000000L / oldDecode) + ", decode " +
+					(MESSAGES * 1000000000L / decode));
+		}
+	}
+
+}
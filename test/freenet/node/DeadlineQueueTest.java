@@ -0,0 +1,124 @@
+package freenet.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeadlineQueueTest {
+
+	private static final String A = new String("a");
+	private static final String B = new String("b");
+	private static final String C = new String("c");
+
+	private DeadlineQueue<String> queue;
+
+	@Before
+	public void setUp() {
+		queue = new DeadlineQueue<String>();
+		// New items are due immediately.
+		queue.setItems(new String[] { A, B, C }, 0);
+		assertEquals(Arrays.asList(A, B, C), sorted(queue.takeDue(0)));
+		assertTrue(queue.takeDue(Long.MAX_VALUE).isEmpty());
+	}
+
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+
+	@Test
+	public void testTakeDueInOrder() {
+		queue.schedule(A, 300);
+		queue.schedule(B, 100);
+		queue.schedule(C, 200);
+		assertTrue(queue.takeDue(99).isEmpty());
+		assertEquals(Arrays.asList(B), queue.takeDue(100));
+		assertEquals(Arrays.asList(C, A), queue.takeDue(1000));
+		assertTrue(queue.takeDue(Long.MAX_VALUE).isEmpty());
+	}
+
+	@Test
+	public void testRescheduleEarlier() {
+		queue.schedule(A, 1000);
+		queue.schedule(A, 100);
+		assertEquals(Arrays.asList(A), queue.takeDue(100));
+		// The entry for 1000 is stale, so A is not due again.
+		assertTrue(queue.takeDue(1000).isEmpty());
+	}
+
+	@Test
+	public void testRescheduleLater() {
+		queue.schedule(A, 100);
+		// Already due sooner, so this does nothing.
+		queue.schedule(A, 1000);
+		assertEquals(Arrays.asList(A), queue.takeDue(100));
+		assertTrue(queue.takeDue(1000).isEmpty());
+		// Once it has been taken, it can be scheduled later than before.
+		queue.schedule(A, 2000);
+		assertTrue(queue.takeDue(1999).isEmpty());
+		assertEquals(Arrays.asList(A), queue.takeDue(2000));
+	}
+
+	@Test
+	public void testStaleEntrySkipped() {
+		queue.schedule(A, 500);
+		queue.schedule(B, 200);
+		// Leaves a stale entry for A at 500, behind B.
+		queue.schedule(A, 100);
+		assertEquals(Arrays.asList(A), queue.takeDue(100));
+		queue.schedule(A, 600);
+		// The stale entry at 500 is skipped, not returned in place of the one at 600.
+		assertEquals(Arrays.asList(B), queue.takeDue(500));
+		assertEquals(Arrays.asList(A), queue.takeDue(600));
+	}
+
+	@Test
+	public void testRemovedWhileScheduled() {
+		queue.schedule(A, 100);
+		queue.schedule(B, 100);
+		// A disconnects and is removed from the PeerManager.
+		queue.setItems(new String[] { B, C }, 50);
+		assertEquals(Arrays.asList(B), queue.takeDue(100));
+		// Scheduling a peer we don't know about does nothing.
+		queue.schedule(A, 200);
+		assertTrue(queue.takeDue(200).isEmpty());
+		// If it comes back it is due immediately, and only once.
+		queue.setItems(new String[] { A, B, C }, 300);
+		assertEquals(Arrays.asList(A), queue.takeDue(300));
+		assertTrue(queue.takeDue(Long.MAX_VALUE).isEmpty());
+	}
+
+	@Test
+	public void testScheduleWakesSleeper() throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		Thread sleeper = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.sleep(start, 60000);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		};
+		sleeper.start();
+		// Wait for it to start sleeping.
+		while(sleeper.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(10);
+		// Not sooner than it will wake up anyway.
+		queue.schedule(A, start + 120000);
+		Thread.sleep(100);
+		assertTrue(sleeper.isAlive());
+		queue.schedule(B, start);
+		sleeper.join(10000);
+		assertFalse(sleeper.isAlive());
+	}
+
+}
@@ -0,0 +1,218 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.Executor;
+import freenet.support.Ticker;
+
+public class FailureTableTest {
+
+	/** Never runs the cleaner: The tests call expireEntries() with the time they want. */
+	private static final Ticker NULL_TICKER = new Ticker() {
+
+		@Override
+		public void queueTimedJob(Runnable job, long offset) {
+		}
+
+		@Override
+		public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		}
+
+		@Override
+		public Executor getExecutor() {
+			return null;
+		}
+
+		@Override
+		public void removeQueuedJob(Runnable job) {
+		}
+
+		@Override
+		public void queueTimedJobAbsolute(Runnable runner, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+		}
+
+	};
+
+	private static class TestPeer implements PeerNodeUnlocked {
+
+		private final WeakReference<TestPeer> ref = new WeakReference<TestPeer>(this);
+		volatile boolean connected = true;
+
+		@Override
+		public double getLocation() {
+			return 0.5;
+		}
+
+		@Override
+		public long getBootID() {
+			return 1;
+		}
+
+		@Override
+		public void offer(Key key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public WeakReference<? extends PeerNodeUnlocked> getWeakRef() {
+			return ref;
+		}
+
+		@Override
+		public String shortToString() {
+			return "test peer";
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+	}
+
+	private static final long RF_TIMEOUT = FailureTable.RECENTLY_FAILED_TIME;
+	private static final long FT_TIMEOUT = FailureTable.REJECT_TIME;
+	private static final long LIFETIME = FailureTableEntry.MAX_TIME_BETWEEN_REQUEST_AND_OFFER;
+	private static final long PERIOD = FailureTable.CLEANUP_PERIOD;
+
+	private static Key key(Random r) {
+		byte[] routingKey = new byte[32];
+		r.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	private static FailureTable table(int maxEntries) {
+		return new FailureTable(null, maxEntries, new Random(2727), NULL_TICKER);
+	}
+
+	@Test
+	public void testExpiry() {
+		Random r = new Random(2728);
+		FailureTable ft = table(FailureTable.MAX_ENTRIES);
+		TestPeer peer = new TestPeer();
+		long start = System.currentTimeMillis();
+		Key a = key(r);
+		Key b = key(r);
+		ft.onFailed(a, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start);
+		ft.onFailed(b, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start);
+		assertEquals(2, ft.getEntryCount());
+		// Not due yet.
+		assertEquals(0, ft.expireEntries(start + LIFETIME - PERIOD));
+		assertEquals(2, ft.getEntryCount());
+		// Used again, so it is moved to a later slot.
+		ft.onFailed(b, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start + LIFETIME / 2);
+		// The wheel comes round to the first slot.
+		assertEquals(1, ft.expireEntries(start + LIFETIME + 2 * PERIOD));
+		assertNull(ft.getEntry(a));
+		assertNotNull(ft.getEntry(b));
+		assertEquals(1, ft.expireEntries(start + LIFETIME / 2 + LIFETIME + 2 * PERIOD));
+		assertEquals(0, ft.getEntryCount());
+	}
+
+	@Test
+	public void testExpireDisconnected() {
+		Random r = new Random(2729);
+		FailureTable ft = table(FailureTable.MAX_ENTRIES);
+		TestPeer peer = new TestPeer();
+		long start = System.currentTimeMillis();
+		Key a = key(r);
+		ft.onFailed(a, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start);
+		// Not looked at before it is due, even though it is empty.
+		peer.connected = false;
+		assertEquals(0, ft.expireEntries(start + LIFETIME / 2));
+		assertNotNull(ft.getEntry(a));
+		assertEquals(1, ft.expireEntries(start + LIFETIME + 2 * PERIOD));
+		assertEquals(0, ft.getEntryCount());
+	}
+
+	/** An entry due a whole turn of the wheel later shares its slot with the one being expired,
+	 * and must be left alone. */
+	@Test
+	public void testNextLap() {
+		Random r = new Random(2730);
+		FailureTable ft = table(FailureTable.MAX_ENTRIES);
+		TestPeer peer = new TestPeer();
+		long start = System.currentTimeMillis();
+		Key a = key(r);
+		ft.onFailed(a, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start + LIFETIME);
+		peer.connected = false;
+		FailureTableEntry entry = ft.getEntry(a);
+		assertEquals(0, ft.expireEntries(start + 2 * LIFETIME - PERIOD));
+		assertSame(entry, ft.getEntry(a));
+		assertEquals(1, ft.expireEntries(start + 2 * LIFETIME + 2 * PERIOD));
+		assertEquals(0, ft.getEntryCount());
+	}
+
+	@Test
+	public void testMaxEntries() {
+		Random r = new Random(2731);
+		FailureTable ft = table(FailureTable.SEGMENTS * 10);
+		TestPeer peer = new TestPeer();
+		long now = System.currentTimeMillis();
+		for(int i=0;i<FailureTable.SEGMENTS * 100;i++)
+			ft.onFailed(key(r), peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, now);
+		assertEquals(ft.getMaxEntries(), ft.getEntryCount());
+		// Entries dropped from the LRU are not left on the wheel.
+		assertEquals(ft.getMaxEntries(), ft.expireEntries(now + LIFETIME + 2 * PERIOD));
+		assertEquals(0, ft.getEntryCount());
+	}
+
+	/** Many threads adding and looking up keys in all the segments, while the cleaner runs. */
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final FailureTable ft = table(FailureTable.MAX_ENTRIES);
+		final TestPeer peer = new TestPeer();
+		final long start = System.currentTimeMillis();
+		final int threads = 8;
+		final int keysPerThread = 1000;
+		final Key[][] keys = new Key[threads][keysPerThread];
+		Random r = new Random(2732);
+		for(int i=0;i<threads;i++)
+			for(int j=0;j<keysPerThread;j++)
+				keys[i][j] = key(r);
+		final Throwable[] errors = new Throwable[threads];
+		Thread[] workers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int index = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int round=0;round<5;round++) {
+							for(Key key : keys[index]) {
+								ft.onFailed(key, peer, (short)10, RF_TIMEOUT, FT_TIMEOUT, start);
+								assertNotNull(ft.getEntry(key));
+								// Also look at another thread's keys.
+								ft.getEntry(keys[(index + 1) % threads][round]);
+							}
+						}
+					} catch (Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+			workers[i].start();
+		}
+		// The cleaner runs at the same time, but nothing is due.
+		long now = start;
+		for(int i=0;i<50;i++) {
+			now += PERIOD / 10;
+			assertEquals(0, ft.expireEntries(now));
+		}
+		for(int i=0;i<threads;i++) {
+			workers[i].join();
+			assertNull(errors[i]);
+		}
+		assertEquals(threads * keysPerThread, ft.getEntryCount());
+		assertEquals(threads * keysPerThread, ft.expireEntries(start + LIFETIME + 2 * PERIOD));
+		assertEquals(0, ft.getEntryCount());
+	}
+
+}
@@ -44,6 +44,28 @@ public class NPFPacketTest {
 		assertFalse(r.getError());
 	}
 
+	@Test
+	public void testPacketInLargerBuffer() {
+		byte[] packet = new byte[] {
+		                (byte)0xFF, (byte)0xFF, // Not part of the packet
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x07, //Sequence number 7
+		                (byte)0x01, //1 ack
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x02, (byte)0x01, //Ack for packet 2
+		                (byte)0x01, (byte)0x01, (byte)0x01}; // Not part of the packet
+		NPFPacket r = NPFPacket.create(packet, 2, 10, pn);
+
+		assertEquals(7, r.getSequenceNumber());
+		assertEquals(1, r.getAcks().size());
+		assertTrue(r.getAcks().contains(Integer.valueOf(2)));
+		assertEquals(0, r.getFragments().size());
+		assertEquals(10, r.getLength());
+		assertFalse(r.getError());
+
+		// An ack range which runs past the end of the packet, but not the buffer.
+		r = NPFPacket.create(packet, 2, 9, pn);
+		assertTrue(r.getError());
+	}
+
 	@Test
 	public void testPacketWithAcks() {
 		byte[] packet = new byte[] {
@@ -0,0 +1,152 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static freenet.node.NewPacketFormat.HMAC_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.TestProperty;
+
+public class NewPacketFormatCipherTest {
+
+	private final Random random = new Random(1234);
+
+	private BlockCipher cipher() throws Exception {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		BlockCipher c = new Rijndael(256, 256);
+		c.initialize(key);
+		return c;
+	}
+
+	private byte[] bytes(int length) {
+		byte[] b = new byte[length];
+		random.nextBytes(b);
+		return b;
+	}
+
+	/** How packets were encrypted before NewPacketFormatCipher, allocating everything. */
+	private static byte[] oldEncrypt(byte[] plaintext, BlockCipher ivCipher, byte[] ivNonce,
+			BlockCipher payloadCipher, byte[] hmacKey) {
+		byte[] data = new byte[plaintext.length + HMAC_LENGTH];
+		System.arraycopy(plaintext, 0, data, HMAC_LENGTH, plaintext.length);
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
+		ivCipher.encipher(IV, IV);
+		PCFBMode.create(payloadCipher, IV).blockEncipher(data, HMAC_LENGTH, plaintext.length);
+		byte[] text = Arrays.copyOfRange(data, HMAC_LENGTH, data.length);
+		System.arraycopy(HMAC.macWithSHA256(hmacKey, text), 0, data, 0, HMAC_LENGTH);
+		return data;
+	}
+
+	@Test
+	public void testCompatible() throws Exception {
+		BlockCipher ivCipher = cipher();
+		BlockCipher payloadCipher = cipher();
+		byte[] ivNonce = bytes(32);
+		byte[] hmacKey = bytes(32);
+		NewPacketFormatCipher sender = new NewPacketFormatCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		NewPacketFormatCipher receiver = new NewPacketFormatCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+
+		for(int i = 0; i < 100; i++) {
+			int seqNum = random.nextInt() & 0x7FFFFFFF;
+			byte[] plaintext = bytes(5 + random.nextInt(1300));
+			plaintext[0] = (byte) (seqNum >>> 24);
+			plaintext[1] = (byte) (seqNum >>> 16);
+			plaintext[2] = (byte) (seqNum >>> 8);
+			plaintext[3] = (byte) seqNum;
+			byte[] expected = oldEncrypt(plaintext, ivCipher, ivNonce, payloadCipher, hmacKey);
+
+			// Encrypt at an offset in a larger buffer.
+			byte[] buf = new byte[expected.length + 20];
+			System.arraycopy(plaintext, 0, buf, 7 + HMAC_LENGTH, plaintext.length);
+			sender.encrypt(buf, 7, expected.length);
+			assertArrayEquals(expected, Arrays.copyOfRange(buf, 7, 7 + expected.length));
+			assertArrayEquals(receiver.encryptSequenceNumber(seqNum),
+					Arrays.copyOfRange(buf, 7 + HMAC_LENGTH, 7 + HMAC_LENGTH + 4));
+
+			assertTrue(receiver.verify(buf, 7, expected.length));
+			receiver.decrypt(buf, 7, expected.length, seqNum);
+			assertArrayEquals(plaintext, Arrays.copyOfRange(buf, 7 + HMAC_LENGTH, 7 + expected.length));
+		}
+	}
+
+	@Test
+	public void testTampered() throws Exception {
+		BlockCipher ivCipher = cipher();
+		BlockCipher payloadCipher = cipher();
+		byte[] ivNonce = bytes(32);
+		byte[] hmacKey = bytes(32);
+		NewPacketFormatCipher cipher = new NewPacketFormatCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		NewPacketFormatCipher otherKey = new NewPacketFormatCipher(ivCipher, ivNonce, payloadCipher, bytes(32));
+
+		byte[] buf = bytes(500);
+		cipher.encrypt(buf, 0, buf.length);
+		byte[] copy = buf.clone();
+		assertTrue(cipher.verify(buf, 0, buf.length));
+		assertFalse(otherKey.verify(buf, 0, buf.length));
+		// verify() must not change the packet, another key may need to try it.
+		assertArrayEquals(copy, buf);
+		buf[buf.length - 1] ^= 1;
+		assertFalse(cipher.verify(buf, 0, buf.length));
+		assertFalse(cipher.verify(buf, 0, HMAC_LENGTH - 1));
+	}
+
+	/** Packets per second on one core, for encrypting and decrypting full size packets, with
+	 * the old allocating code and with NewPacketFormatCipher. */
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int PACKETS = 200 * 1000;
+		final int SIZE = 1280;
+		BlockCipher ivCipher = cipher();
+		BlockCipher payloadCipher = cipher();
+		byte[] ivNonce = bytes(32);
+		byte[] hmacKey = bytes(32);
+		NewPacketFormatCipher cipher = new NewPacketFormatCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		byte[] plaintext = bytes(SIZE - HMAC_LENGTH);
+		byte[] buf = new byte[SIZE];
+
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < PACKETS; i++)
+				oldEncrypt(plaintext, ivCipher, ivNonce, payloadCipher, hmacKey);
+			long oldEncode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < PACKETS; i++) {
+				System.arraycopy(plaintext, 0, buf, HMAC_LENGTH, plaintext.length);
+				cipher.encrypt(buf, 0, SIZE);
+			}
+			long encode = System.nanoTime() - start;
+
+			byte[] encrypted = buf.clone();
+			start = System.nanoTime();
+			for(int i = 0; i < PACKETS; i++) {
+				System.arraycopy(encrypted, 0, buf, 0, SIZE);
+				if(!cipher.verify(buf, 0, SIZE)) throw new AssertionError();
+				cipher.decrypt(buf, 0, SIZE, 0);
+			}
+			long decode = System.nanoTime() - start;
+
+			System.out.println("Packets/sec for " + SIZE + " byte packets: old encode " +
+					(PACKETS * 1000000000L / oldEncode) + ", encode " + (PACKETS * 1000000000L / encode) +
+					", decode " + (PACKETS * 1000000000L / decode));
+		}
+	}
+
+}
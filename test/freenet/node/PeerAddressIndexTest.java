@@ -0,0 +1,128 @@
+package freenet.node;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+import freenet.support.TestProperty;
+
+public class PeerAddressIndexTest {
+
+	private static final Object[] NONE = new Object[0];
+
+	private static Peer peer(String physical) throws Exception {
+		return new Peer(physical, true);
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		PeerAddressIndex<Object> index = new PeerAddressIndex<Object>(NONE);
+		Object a = new Object();
+		Object b = new Object();
+		index.put(a, new Peer[] { peer("10.0.0.1:1000"), null, peer("10.0.0.2:2000") });
+		index.put(b, new Peer[] { peer("10.0.0.1:1001") });
+		assertEquals(2, index.size());
+
+		assertArrayEquals(new Object[] { a }, index.getByPeer(peer("10.0.0.1:1000")));
+		assertArrayEquals(new Object[] { a }, index.getByPeer(peer("10.0.0.2:2000")));
+		assertArrayEquals(new Object[] { b }, index.getByPeer(peer("10.0.0.1:1001")));
+		assertArrayEquals(NONE, index.getByPeer(peer("10.0.0.1:1002")));
+		assertArrayEquals(new Object[] { a, b }, index.getByIP(InetAddress.getByName("10.0.0.1")));
+		assertArrayEquals(NONE, index.getByIP(InetAddress.getByName("10.0.0.3")));
+		assertArrayEquals(NONE, index.getWithHostnames());
+
+		assertTrue(index.remove(a));
+		assertFalse(index.remove(a));
+		assertFalse(index.contains(a));
+		assertArrayEquals(NONE, index.getByPeer(peer("10.0.0.1:1000")));
+		assertArrayEquals(new Object[] { b }, index.getByIP(InetAddress.getByName("10.0.0.1")));
+	}
+
+	@Test
+	public void testAddressChange() throws Exception {
+		PeerAddressIndex<Object> index = new PeerAddressIndex<Object>(NONE);
+		Object a = new Object();
+		index.put(a, new Peer[] { peer("10.0.0.1:1000") });
+		index.put(a, new Peer[] { peer("10.0.0.5:1000"), peer("10.0.0.5:1000") });
+		assertEquals(1, index.size());
+		assertArrayEquals(NONE, index.getByPeer(peer("10.0.0.1:1000")));
+		assertArrayEquals(NONE, index.getByIP(InetAddress.getByName("10.0.0.1")));
+		assertArrayEquals(new Object[] { a }, index.getByPeer(peer("10.0.0.5:1000")));
+		assertArrayEquals(new Object[] { a }, index.getByIP(InetAddress.getByName("10.0.0.5")));
+		index.clear();
+		assertEquals(0, index.size());
+		assertArrayEquals(NONE, index.getByPeer(peer("10.0.0.5:1000")));
+	}
+
+	@Test
+	public void testHostnames() throws Exception {
+		PeerAddressIndex<Object> index = new PeerAddressIndex<Object>(NONE);
+		Object a = new Object();
+		Object b = new Object();
+		index.put(a, new Peer[] { peer("10.0.0.1:1000"), peer("peer.example.org:1000") });
+		index.put(b, new Peer[] { peer("10.0.0.2:1000") });
+		assertArrayEquals(new Object[] { a }, index.getWithHostnames());
+		assertArrayEquals(new Object[] { a }, index.getByPeer(peer("10.0.0.1:1000")));
+		index.put(a, new Peer[] { peer("10.0.0.1:1000") });
+		assertArrayEquals(NONE, index.getWithHostnames());
+		index.put(a, new Peer[] { peer("peer.example.org:1000") });
+		index.remove(a);
+		assertArrayEquals(NONE, index.getWithHostnames());
+	}
+
+	/** Compare finding the sender of a packet from an unknown address with the index, against
+	 * the linear scan PeerManager.getByPeer() used to do. */
+	@Test
+	public void testBenchmarkUnmatchedLookup() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int PEERS = 200;
+		final int LOOKUPS = 1000 * 1000;
+		PeerAddressIndex<Object> index = new PeerAddressIndex<Object>(NONE);
+		Peer[] addresses = new Peer[PEERS];
+		for(int i=0;i<PEERS;i++) {
+			addresses[i] = peer("10.1." + (i / 250) + "." + (i % 250 + 1) + ":" + (10000 + i));
+			index.put(addresses[i], new Peer[] { addresses[i] });
+		}
+		Peer[] unknown = new Peer[256];
+		for(int i=0;i<unknown.length;i++)
+			unknown[i] = peer("10.2.0." + i + ":" + (20000 + i));
+
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			int found = 0;
+			for(int i=0;i<LOOKUPS;i++) {
+				Peer p = unknown[i & 255];
+				boolean match = false;
+				for(Peer a : addresses)
+					if(a.laxEquals(p)) { match = true; break; }
+				if(!match) {
+					FreenetInetAddress addr = p.getFreenetAddress();
+					for(Peer a : addresses)
+						if(a.getFreenetAddress().laxEquals(addr)) { match = true; break; }
+				}
+				if(match) found++;
+			}
+			long scan = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<LOOKUPS;i++) {
+				Peer p = unknown[i & 255];
+				if(index.getByPeer(p).length != 0 || index.getWithHostnames().length != 0 ||
+						index.getByIP(p.getAddress(false)).length != 0)
+					found++;
+			}
+			long indexed = System.nanoTime() - start;
+			assertEquals(0, found);
+			System.out.println("Unmatched lookups with " + PEERS + " peers: scan " + (scan / LOOKUPS) +
+					"ns, index " + (indexed / LOOKUPS) + "ns");
+		}
+	}
+
+}
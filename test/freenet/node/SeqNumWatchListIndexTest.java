@@ -0,0 +1,124 @@
+package freenet.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SeqNumWatchListIndexTest {
+
+	private static byte[] bytes(int i) {
+		return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+	}
+
+	/** A key whose watch list is just the sequence numbers from first, unencrypted. */
+	private static SessionKey key(int first, int length) {
+		NewPacketFormatKeyContext context = new NewPacketFormatKeyContext(0, first);
+		context.seqNumWatchList = new byte[length][];
+		for(int i = 0; i < length; i++)
+			context.seqNumWatchList[i] = bytes(first + i);
+		return new SessionKey(null, null, null, null, null, null, null, null, context, 1);
+	}
+
+	/** The encrypted sequence number at offset HMAC_LENGTH in a fake packet. */
+	private static byte[] packet(int i) {
+		byte[] buf = new byte[NewPacketFormat.HMAC_LENGTH + 20];
+		System.arraycopy(bytes(i), 0, buf, NewPacketFormat.HMAC_LENGTH, 4);
+		return buf;
+	}
+
+	@Test
+	public void testAddRemove() {
+		SeqNumWatchListIndex index = new SeqNumWatchListIndex();
+		SessionKey a = key(100, 10);
+		SessionKey b = key(105, 10);
+		synchronized(a.packetContext) {
+			index.addAll(a);
+		}
+		synchronized(b.packetContext) {
+			index.addAll(b);
+		}
+		assertSame(index, a.packetContext.watchListIndex);
+		assertEquals(15, index.size());
+
+		SeqNumWatchListIndex.Match m = index.get(bytes(101), 0);
+		assertSame(a, m.key);
+		assertEquals(101, m.seqNum);
+		assertNull(m.next);
+		// Both keys are watching for 107.
+		m = index.get(bytes(107), 0);
+		assertEquals(2, count(m));
+		assertNull(index.get(bytes(115), 0));
+		assertEquals(0, index.getPeerNodes(packet(99), 0, 30).length);
+		assertEquals(0, index.getPeerNodes(packet(101), 0, 5).length);
+
+		a.forgetWatchList();
+		assertNull(a.packetContext.watchListIndex);
+		assertNull(index.get(bytes(101), 0));
+		m = index.get(bytes(107), 0);
+		assertSame(b, m.key);
+		assertNull(m.next);
+		assertEquals(10, index.size());
+		b.forgetWatchList();
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testReplace() {
+		SeqNumWatchListIndex index = new SeqNumWatchListIndex();
+		SessionKey a = key(0, 4);
+		synchronized(a.packetContext) {
+			index.addAll(a);
+			// Slide by one: sequence number 0 is replaced by 4.
+			index.replace(a, a.packetContext.seqNumWatchList[0], 0, bytes(4), 4);
+			a.packetContext.seqNumWatchList[0] = bytes(4);
+			a.packetContext.watchListPointer = 1;
+			a.packetContext.watchListOffset = 1;
+		}
+		assertNull(index.get(bytes(0), 0));
+		assertEquals(4, index.get(bytes(4), 0).seqNum);
+		assertEquals(4, index.size());
+		a.forgetWatchList();
+		assertEquals(0, index.size());
+	}
+
+	/** A key which is only disconnected may be used again, so it stays in the index. */
+	@Test
+	public void testDisconnectedKept() {
+		SeqNumWatchListIndex index = new SeqNumWatchListIndex();
+		SessionKey a = key(100, 10);
+		synchronized(a.packetContext) {
+			index.addAll(a);
+		}
+		a.disconnected();
+		assertSame(index, a.packetContext.watchListIndex);
+		assertSame(a, index.get(bytes(101), 0).key);
+		a.dropped();
+		assertNull(a.packetContext.watchListIndex);
+		assertEquals(0, index.size());
+	}
+
+	/** A key dropped before its watch list is indexed must never be indexed. */
+	@Test
+	public void testForgetBeforeIndexed() {
+		SeqNumWatchListIndex index = new SeqNumWatchListIndex();
+		SessionKey a = key(100, 10);
+		a.forgetWatchList();
+		assertTrue(a.packetContext.watchListForgotten);
+		synchronized(a.packetContext) {
+			index.addAll(a);
+		}
+		assertNull(a.packetContext.watchListIndex);
+		assertEquals(0, index.size());
+	}
+
+	private static int count(SeqNumWatchListIndex.Match m) {
+		int count = 0;
+		for(; m != null; m = m.next)
+			count++;
+		return count;
+	}
+
+}
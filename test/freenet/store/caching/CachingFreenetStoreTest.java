@@ -15,6 +15,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -57,6 +58,7 @@ import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Fields;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -570,6 +572,97 @@ public class CachingFreenetStoreTest {
 		}
 	}
 
+	/* Check that blocks in every shard are written to the underlying store */
+	@Test
+	public void testPushAllShards() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 1024);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize,
+				cachingFreenetStorePeriod, ticker);
+		try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, ramStore, tracker)) {
+			cachingStore.start(null, true);
+
+			// Enough to hit every shard with high probability.
+			ClientCHKBlock[] blocks = new ClientCHKBlock[CachingFreenetStore.SHARDS * 4];
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = encodeBlockCHK("test" + i);
+				store.put(blocks[i].getBlock(), false);
+			}
+			assertEquals(blocks.length * store.getTotalBlockSize(), tracker.getSizeOfCache());
+			for (ClientCHKBlock block : blocks) {
+				ClientCHK key = block.getClientKey();
+				assertNull(ramStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null));
+			}
+
+			tracker.pushAllCachingStores();
+			assertEquals(0, tracker.getSizeOfCache());
+			assertTrue(cachingStore.isEmpty());
+			for (int i = 0; i < blocks.length; i++) {
+				ClientCHK key = blocks[i].getClientKey();
+				CHKBlock verify = ramStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+				assertNotNull(verify);
+				assertEquals("test" + i, decodeBlockCHK(verify, key));
+			}
+		}
+	}
+
+	/* Hammer fetch() and put() from an increasing number of threads, to see how the cache scales */
+	@Test
+	public void testBenchmarkConcurrentFetchPut() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		final CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 4096);
+		// Big enough that nothing is written to the underlying store while we are running.
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(Fields.parseLong("64M"),
+				60 * 60 * 1000L, ticker);
+		try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, ramStore, tracker)) {
+			cachingStore.start(null, true);
+
+			final CHKBlock[] blocks = new CHKBlock[1024];
+			for(int i=0;i<blocks.length;i++) {
+				blocks[i] = encodeBlockCHK("test" + i).getBlock();
+				store.put(blocks[i], false);
+			}
+
+			System.out.println("Shards: " + CachingFreenetStore.SHARDS);
+			int cores = Runtime.getRuntime().availableProcessors();
+			for(int threadCount = 1; threadCount <= cores * 2; threadCount *= 2) {
+				final AtomicLong fetches = new AtomicLong();
+				final AtomicLong puts = new AtomicLong();
+				final long end = System.currentTimeMillis() + 5000;
+				Thread[] threads = new Thread[threadCount];
+				for(int i=0;i<threadCount;i++) {
+					final Random random = new Random(i);
+					threads[i] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								while(System.currentTimeMillis() < end) {
+									CHKBlock block = blocks[random.nextInt(blocks.length)];
+									if(random.nextInt(4) == 0) {
+										store.put(block, false);
+										puts.incrementAndGet();
+									} else {
+										assertNotNull(store.fetch(block.getKey(), false, false, null));
+										fetches.incrementAndGet();
+									}
+								}
+							} catch (IOException e) {
+								throw new RuntimeException(e);
+							}
+						}
+					};
+					threads[i].start();
+				}
+				for(Thread t : threads)
+					t.join();
+				System.out.println(threadCount + " threads: " + fetches.get() / 5 + " fetches and " +
+						puts.get() / 5 + " puts per second");
+			}
+		}
+	}
+
 	/* Test to re-open after close */
 	@Test
  	public void testOnCloseCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
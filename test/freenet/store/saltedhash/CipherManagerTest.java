@@ -0,0 +1,72 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CipherManagerTest {
+
+	@After
+	public void tearDown() {
+		CipherManager.setDigestCacheSize(CipherManager.DEFAULT_DIGEST_CACHE_SIZE);
+	}
+
+	private CipherManager makeCipherManager(int seed) {
+		byte[] salt = new byte[0x10];
+		new Random(seed).nextBytes(salt);
+		return new CipherManager(salt, salt.clone());
+	}
+
+	@Test
+	public void testDigestCacheHits() {
+		CipherManager cipherManager = makeCipherManager(0);
+		Random random = new Random(1);
+		byte[] key = new byte[0x20];
+		random.nextBytes(key);
+		byte[] digest = cipherManager.getDigestedKey(key);
+		assertEquals(0, cipherManager.getDigestCacheHits());
+		assertEquals(1, cipherManager.getDigestCacheMisses());
+		// A copy of the key must hit the cache.
+		assertArrayEquals(digest, cipherManager.getDigestedKey(key.clone()));
+		assertEquals(1, cipherManager.getDigestCacheHits());
+		assertEquals(1, cipherManager.getDigestCacheMisses());
+		// Changing the caller's array must not corrupt the cache.
+		byte[] copy = key.clone();
+		key[0]++;
+		assertFalse(Arrays.equals(digest, cipherManager.getDigestedKey(key)));
+		assertArrayEquals(digest, cipherManager.getDigestedKey(copy));
+	}
+
+	@Test
+	public void testDigestsMatchWithoutCache() {
+		CipherManager cached = makeCipherManager(2);
+		CipherManager.setDigestCacheSize(0);
+		CipherManager uncached = makeCipherManager(2);
+		Random random = new Random(3);
+		byte[][] keys = new byte[1000][0x20];
+		for(byte[] key : keys)
+			random.nextBytes(key);
+		for(int i=0;i<3;i++) {
+			for(byte[] key : keys)
+				assertArrayEquals(uncached.getDigestedKey(key), cached.getDigestedKey(key));
+		}
+		assertEquals(0, uncached.getDigestCacheHits());
+		assertEquals(3000, uncached.getDigestCacheMisses());
+		assertEquals(3000, cached.getDigestCacheHits() + cached.getDigestCacheMisses());
+	}
+
+	@Test
+	public void testDifferentSalts() {
+		CipherManager a = makeCipherManager(4);
+		CipherManager b = makeCipherManager(5);
+		byte[] key = new byte[0x20];
+		assertFalse(Arrays.equals(a.getDigestedKey(key), b.getDigestedKey(key)));
+	}
+
+}
@@ -0,0 +1,94 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LockManagerTest {
+
+	@Test
+	public void testLockUnlock() {
+		LockManager lockManager = new LockManager();
+		assertTrue(lockManager.lockEntry(1));
+		// Same stripe, different offset.
+		assertTrue(lockManager.lockEntry(1 + LockManager.STRIPES));
+		lockManager.unlockEntry(1);
+		assertTrue(lockManager.lockEntry(1));
+		lockManager.unlockEntry(1 + LockManager.STRIPES);
+		lockManager.unlockEntry(1);
+		lockManager.shutdown();
+		assertFalse(lockManager.lockEntry(1));
+	}
+
+	@Test
+	public void testWaitsForUnlock() throws InterruptedException {
+		final LockManager lockManager = new LockManager();
+		assertTrue(lockManager.lockEntry(42));
+		final AtomicInteger locked = new AtomicInteger();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if(lockManager.lockEntry(42)) {
+					locked.incrementAndGet();
+					lockManager.unlockEntry(42);
+				}
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		assertEquals(0, locked.get());
+		lockManager.unlockEntry(42);
+		t.join();
+		assertEquals(1, locked.get());
+	}
+
+	@Test
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lockManager = new LockManager();
+		final int slots = LockManager.STRIPES * 2;
+		final int[] holders = new int[slots];
+		final int[] counters = new int[slots];
+		final AtomicInteger errors = new AtomicInteger();
+		final int threadCount = 8;
+		final int iterations = 10000;
+		Thread[] threads = new Thread[threadCount];
+		for(int i=0;i<threadCount;i++) {
+			final Random random = new Random(i);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<iterations;j++) {
+						int slot = random.nextInt(slots);
+						if(!lockManager.lockEntry(slot)) {
+							errors.incrementAndGet();
+							return;
+						}
+						try {
+							if(holders[slot]++ != 0)
+								errors.incrementAndGet();
+							counters[slot]++;
+							holders[slot]--;
+						} finally {
+							lockManager.unlockEntry(slot);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		lockManager.shutdown();
+		assertEquals(0, errors.get());
+		int total = 0;
+		for(int c : counters)
+			total += c;
+		assertEquals(threadCount * iterations, total);
+	}
+
+}
@@ -1,10 +1,12 @@
 package freenet.store.saltedhash;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
@@ -42,6 +44,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -101,6 +104,140 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* Simple test with CHK for SaltedHashFreenetStore reading through memory mappings */
+	@Test
+	public void testSimpleCHKMmap() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkSimpleCHKMmap(false);
+		checkSimpleCHKMmap(true);
+	}
+
+	private void checkSimpleCHKMmap(boolean useSlotFilter) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKMmap", store, weakPRNG, 10, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setUseMmap(true);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			assertNull(store.fetch(blocks[i].getClientKey().getNodeCHK(), false, false, null));
+			store.put(blocks[i].getBlock(), false);
+		}
+
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		// Switching back to the FileChannel must give the same results.
+		saltStore.setUseMmap(false);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.close();
+	}
+
+	/* Simple test with CHK for SaltedHashFreenetStore with delayed writes */
+	@Test
+	public void testSimpleCHKWriteBehind() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKWriteBehind", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		// Long enough that nothing is written until we ask for it.
+		saltStore.setWriteBehind(HOURS.toMillis(1), false);
+		saltStore.start(ticker, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+
+		// Pending writes must be visible.
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		// Disabling write-behind writes everything out.
+		saltStore.setWriteBehind(0, false);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHKWriteBehind", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
+	/* Hammer fetch() and put() from many threads, to measure lock contention */
+	@Test
+	public void testBenchmarkConcurrentFetchPut() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, 4096, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final CHKBlock[] blocks = new CHKBlock[1024];
+		for(int i=0;i<blocks.length;i++)
+			blocks[i] = encodeBlockCHK("test" + i).getBlock();
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int threadCount = 1; threadCount <= cores * 4; threadCount *= 2) {
+			final AtomicLong ops = new AtomicLong();
+			final long end = System.currentTimeMillis() + 5000;
+			Thread[] threads = new Thread[threadCount];
+			for(int i=0;i<threadCount;i++) {
+				final Random random = new Random(i);
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							while(System.currentTimeMillis() < end) {
+								CHKBlock block = blocks[random.nextInt(blocks.length)];
+								// Mostly reads, like a real node.
+								if(random.nextInt(4) == 0)
+									store.put(block, false);
+								else
+									store.fetch(block.getKey(), false, false, null);
+								ops.incrementAndGet();
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for(Thread t : threads)
+				t.join();
+			System.out.println(threadCount + " threads: " + ops.get() / 5 + " fetch/put per second");
+		}
+
+		saltStore.close();
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -53,7 +54,10 @@ public class BloomFilterTest {
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		_testFilterRemove(filter);
+	}
 
+	private void _testFilterRemove(BloomFilter filter) {
 		Map<ByteArrayWrapper, byte[]> baseList = new HashMap<ByteArrayWrapper, byte[]>();
 
 		// Add Keys
@@ -156,4 +160,169 @@ public class BloomFilterTest {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	@Test
+	public void testAtomicCountingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(new AtomicCountingBloomFilter(FILTER_SIZE, K));
+	}
+
+	@Test
+	public void testAtomicBinaryFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(new AtomicBinaryBloomFilter(FILTER_SIZE, K));
+	}
+
+	@Test
+	public void testAtomicCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterRemove(new AtomicCountingBloomFilter(FILTER_SIZE, K));
+	}
+
+	@Test
+	public void testAtomicCountingFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(new AtomicCountingBloomFilter(FILTER_SIZE, K));
+	}
+
+	@Test
+	public void testAtomicBinaryFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(new AtomicBinaryBloomFilter(FILTER_SIZE, K));
+	}
+
+	/** The serialized form must have the same layout as BinaryBloomFilter and CountingBloomFilter,
+	 * and must survive a round trip. */
+	@Test
+	public void testAtomicFilterSerialization() {
+		int length = 1000; // Not a whole number of words.
+		AtomicBinaryBloomFilter binary = new AtomicBinaryBloomFilter(length, 5);
+		AtomicCountingBloomFilter counting = new AtomicCountingBloomFilter(length, 5);
+		byte[][] keys = new byte[10][32];
+		for (byte[] key : keys) {
+			rand.nextBytes(key);
+			binary.addKey(key);
+			counting.addKey(key);
+		}
+		byte[] buf = new byte[binary.getSizeBytes()];
+		assertEquals(length / 8, binary.copyTo(buf, 0));
+		for (int i = 0; i < length; i++)
+			assertEquals(binary.getBit(i), (buf[i / 8] & (1 << (i % 8))) != 0);
+		AtomicBinaryBloomFilter binaryCopy = new AtomicBinaryBloomFilter(buf, 0, length, 5);
+		buf = new byte[counting.getSizeBytes()];
+		assertEquals(length / 4, counting.copyTo(buf, 0));
+		CountingBloomFilter legacy = new CountingBloomFilter(length, 5, buf.clone());
+		for (int i = 0; i < length; i++)
+			assertEquals(counting.getBit(i), legacy.getBit(i));
+		AtomicCountingBloomFilter countingCopy = new AtomicCountingBloomFilter(length, 5, buf);
+		for (byte[] key : keys) {
+			assertTrue(binaryCopy.checkFilter(key));
+			assertTrue(countingCopy.checkFilter(key));
+		}
+		for (byte[] key : keys)
+			countingCopy.removeKey(key);
+		assertEquals(0, countingCopy.getFilledCount());
+	}
+
+	private static byte[][] randomKeys(Random r, int count) {
+		byte[][] keys = new byte[count][32];
+		for (byte[] key : keys)
+			r.nextBytes(key);
+		return keys;
+	}
+
+	/** Adds and removes on different threads must not lose updates to the same word. */
+	@Test
+	public void testAtomicFilterConcurrent() throws InterruptedException {
+		final int threads = 4;
+		// Small filter so the threads collide.
+		final AtomicCountingBloomFilter counting = new AtomicCountingBloomFilter(256, 3);
+		final AtomicBinaryBloomFilter binary = new AtomicBinaryBloomFilter(FILTER_SIZE * 4, 3);
+		final byte[][][] keys = new byte[threads][][];
+		for (int i = 0; i < threads; i++)
+			keys[i] = randomKeys(rand, 20);
+		final byte[][] binaryKeys = randomKeys(rand, PASS * threads);
+		Thread[] t = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						for (byte[] key : keys[thread])
+							counting.addKey(key);
+						for (byte[] key : keys[thread])
+							counting.removeKey(key);
+					}
+					for (int j = thread; j < binaryKeys.length; j += threads)
+						binary.addKey(binaryKeys[j]);
+				}
+			};
+			t[i].start();
+		}
+		for (Thread thread : t)
+			thread.join();
+		// Counters which overflowed stick at 3, the rest must be back to zero. Read them
+		// directly, 4 to a byte, lowest first: A lost update could leave 1 or 2.
+		byte[] counters = new byte[256 / 4];
+		assertEquals(counters.length, counting.copyTo(counters, 0));
+		for (int i = 0; i < 256; i++) {
+			int v = (counters[i >> 2] >>> ((i & 3) * 2)) & 3;
+			assertTrue("Counter " + i + " is " + v, v == 0 || v == 3);
+		}
+		for (byte[] key : binaryKeys)
+			assertTrue(binary.checkFilter(key));
+	}
+
+	/** @return Probes per second, running for about a second. */
+	private static long benchmarkProbes(final BloomFilter filter, final byte[][] keys, int threads) throws InterruptedException {
+		final long end = System.nanoTime() + 1000L * 1000L * 1000L;
+		final AtomicLong probes = new AtomicLong();
+		Thread[] t = new Thread[threads];
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					while (System.nanoTime() < end) {
+						for (int j = 0; j < 1000; j++)
+							filter.checkFilter(keys[(int) (count++ % keys.length)]);
+					}
+					probes.addAndGet(count);
+				}
+			};
+			t[i].start();
+		}
+		for (Thread thread : t)
+			thread.join();
+		long time = System.nanoTime() - start;
+		return probes.get() * 1000L * 1000L * 1000L / time;
+	}
+
+	/** Probes per second on the old and new filters, with several threads. Half the keys are in
+	 * the filter, as for the segment filters of a splitfile. */
+	@Test
+	public void testBenchmark() throws InterruptedException {
+		if (!TestProperty.BENCHMARK) return;
+		int size = 1024 * 1024;
+		int keysInFilter = 50000;
+		int K = BloomFilter.optimialK(size, keysInFilter);
+		BloomFilter[] filters = new BloomFilter[] {
+				BloomFilter.createFilter(size, K, false),
+				new AtomicBinaryBloomFilter(size, K),
+				BloomFilter.createFilter(size, K, true),
+				new AtomicCountingBloomFilter(size, K) };
+		byte[][] keys = randomKeys(rand, keysInFilter * 2);
+		for (BloomFilter filter : filters)
+			for (int i = 0; i < keysInFilter; i++)
+				filter.addKey(keys[i]);
+		for (int round = 0; round < 3; round++) {
+			for (int threads = 1; threads <= 4; threads *= 2) {
+				for (BloomFilter filter : filters)
+					System.out.println(filter.getClass().getSimpleName() + " " + threads + " threads: " +
+							benchmarkProbes(filter, keys, threads) + " probes/sec");
+			}
+		}
+	}
 }
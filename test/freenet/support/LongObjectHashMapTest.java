@@ -0,0 +1,93 @@
+package freenet.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongObjectHashMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put(1, "one"));
+		assertNull(map.put(-1, "minus one"));
+		assertNull(map.put(Long.MAX_VALUE, "max"));
+		assertEquals("one", map.put(1, "uno"));
+		assertEquals(3, map.size());
+		assertEquals("uno", map.get(1));
+		assertEquals("minus one", map.get(-1));
+		assertEquals("max", map.get(Long.MAX_VALUE));
+		assertNull(map.get(2));
+		assertFalse(map.containsKey(0));
+
+		assertEquals("minus one", map.remove(-1));
+		assertNull(map.remove(-1));
+		assertEquals(2, map.size());
+		assertEquals("uno", map.get(1));
+		assertEquals("max", map.get(Long.MAX_VALUE));
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1));
+	}
+
+	@Test
+	public void testIteration() {
+		LongObjectHashMap<Long> map = new LongObjectHashMap<Long>();
+		for(long i=0;i<100;i++)
+			map.put(i * 3, i);
+		for(long i=0;i<100;i+=2)
+			map.remove(i * 3);
+		long[] keys = map.keys();
+		assertEquals(50, keys.length);
+		for(int i=0;i<map.size();i++) {
+			assertEquals(keys[i], map.keyAt(i));
+			assertEquals(keys[i], map.valueAt(i) * 3);
+		}
+		Arrays.sort(keys);
+		long[] expected = new long[50];
+		for(int i=0;i<50;i++)
+			expected[i] = (i * 2 + 1) * 3;
+		assertArrayEquals(expected, keys);
+		Long[] values = map.values(new Long[0]);
+		assertEquals(50, values.length);
+	}
+
+	/** Random operations, checked against a HashMap. Only a few distinct keys, so that there
+	 * are plenty of collisions and removals from the middle of clusters. */
+	@Test
+	public void testRandom() {
+		Random random = new Random(1234);
+		LongObjectHashMap<Integer> map = new LongObjectHashMap<Integer>();
+		HashMap<Long, Integer> check = new HashMap<Long, Integer>();
+		for(int i=0;i<100000;i++) {
+			long key = random.nextInt(500) * (random.nextBoolean() ? 1L : 1L << 32);
+			switch(random.nextInt(3)) {
+			case 0:
+				assertEquals(check.put(key, i), map.put(key, i));
+				break;
+			case 1:
+				assertEquals(check.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(check.get(key), map.get(key));
+			}
+			assertEquals(check.size(), map.size());
+		}
+		for(Map.Entry<Long, Integer> e : check.entrySet())
+			assertEquals(e.getValue(), map.get(e.getKey()));
+		for(int i=0;i<map.size();i++)
+			assertEquals(check.get(map.keyAt(i)), map.valueAt(i));
+	}
+
+}
@@ -330,6 +330,138 @@ public class MemoryLimitedJobRunnerTest {
         waitForZero(runner);
     }
 
+    class PrefetchingJob extends MemoryLimitedJob {
+        
+        private boolean isPrefetched;
+        private boolean prefetchedBeforeStart;
+        private boolean isStarted;
+        private boolean canFinish;
+        private boolean isFinished;
+        private final Object completionSemaphore;
+        
+        PrefetchingJob(long size, Object semaphore) {
+            super(size);
+            completionSemaphore = semaphore;
+        }
+
+        @Override
+        public int getPriority() {
+            return NativeThread.NORM_PRIORITY;
+        }
+        
+        @Override
+        public boolean hasPrefetch() {
+            return true;
+        }
+        
+        @Override
+        public void prefetch() {
+            synchronized(completionSemaphore) {
+                isPrefetched = true;
+                completionSemaphore.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean start(MemoryLimitedChunk chunk) {
+            checkRunner(chunk.getRunner());
+            synchronized(completionSemaphore) {
+                prefetchedBeforeStart = isPrefetched;
+                isStarted = true;
+                completionSemaphore.notifyAll();
+            }
+            synchronized(this) {
+                while(!canFinish)
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+            }
+            synchronized(completionSemaphore) {
+                isFinished = true;
+                completionSemaphore.notifyAll();
+            }
+            return true;
+        }
+        
+        public boolean isPrefetched() {
+            synchronized(completionSemaphore) {
+                return isPrefetched;
+            }
+        }
+        
+        public boolean isStarted() {
+            synchronized(completionSemaphore) {
+                return isStarted;
+            }
+        }
+        
+        public synchronized void setCanFinish() {
+            canFinish = true;
+            notify();
+        }
+        
+        void waitFor(boolean prefetched, boolean started, boolean finished) {
+            synchronized(completionSemaphore) {
+                while((prefetched && !isPrefetched) || (started && !isStarted) || 
+                        (finished && !isFinished)) {
+                    try {
+                        completionSemaphore.wait();
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+        
+    }
+    
+    /** The next job should be prefetched while the previous job is running. */
+    @Test
+    public void testPrefetch() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        PrefetchingJob a = new PrefetchingJob(1, completion);
+        PrefetchingJob b = new PrefetchingJob(1, completion);
+        runner.queueJob(a);
+        runner.queueJob(b);
+        a.waitFor(false, true, false);
+        b.waitFor(true, false, false);
+        Thread.sleep(100);
+        assertFalse(b.isStarted());
+        assertEquals(2, runner.used());
+        a.setCanFinish();
+        b.waitFor(false, true, false);
+        b.setCanFinish();
+        b.waitFor(false, false, true);
+        assertTrue(a.prefetchedBeforeStart);
+        assertTrue(b.prefetchedBeforeStart);
+        waitForZero(runner);
+        assertEquals(2, runner.getJobsStarted());
+        assertEquals(2, runner.getJobsFinished());
+    }
+    
+    /** Prefetching must not exceed the memory limit. */
+    @Test
+    public void testPrefetchMemoryLimit() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1, 2, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        PrefetchingJob a = new PrefetchingJob(1, completion);
+        PrefetchingJob b = new PrefetchingJob(1, completion);
+        runner.queueJob(a);
+        runner.queueJob(b);
+        a.waitFor(false, true, false);
+        Thread.sleep(100);
+        assertFalse(b.isPrefetched());
+        assertEquals(1, runner.getQueuedJobs());
+        a.setCanFinish();
+        b.waitFor(true, true, false);
+        b.setCanFinish();
+        b.waitFor(false, false, true);
+        waitForZero(runner);
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
@@ -0,0 +1,206 @@
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+public class ChunkedCompressorTest {
+
+	private static final int CHUNK_SIZE = 4096;
+
+	/** Chunked gzip with small chunks, so the tests are quick and use lots of chunks. */
+	private final ChunkedCompressor compressor = new ChunkedCompressor(new GzipCompressor(), CHUNK_SIZE);
+
+	@Test
+	public void testChunkedCompressor() throws InvalidCompressionCodecException {
+		assertEquals(COMPRESSOR_TYPE.LZMA_CHUNKED, COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		assertEquals(COMPRESSOR_TYPE.LZMA_CHUNKED, COMPRESSOR_TYPE.getCompressorByName("LZMA_CHUNKED"));
+		// Old nodes can't decompress it, so it is not used unless asked for.
+		assertFalse(Arrays.asList(COMPRESSOR_TYPE.getCompressorsArray(null)).contains(COMPRESSOR_TYPE.LZMA_CHUNKED));
+		assertArrayEquals(new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.LZMA_CHUNKED },
+				COMPRESSOR_TYPE.getCompressorsArray("LZMA_CHUNKED"));
+	}
+
+	private byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		return os.toByteArray();
+	}
+
+	private byte[] decompress(byte[] compressed, long maxLength, long maxCheckSizeBytes) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long written = compressor.decompress(new ByteArrayInputStream(compressed), os, maxLength, maxCheckSizeBytes);
+		assertEquals(os.size(), written);
+		return os.toByteArray();
+	}
+
+	private static byte[] text(Random r, int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + r.nextInt(4));
+		return data;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random r = new Random(2424);
+		int[] lengths = new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 100 + 17 };
+		for(int length : lengths) {
+			byte[] data = text(r, length);
+			byte[] compressed = compress(data);
+			if(length > CHUNK_SIZE)
+				assertTrue(compressed.length < length);
+			assertArrayEquals(data, decompress(compressed, length, -1));
+			// In RAM.
+			byte[] output = new byte[length];
+			assertEquals(length, compressor.decompress(compressed, 0, compressed.length, output));
+			assertArrayEquals(data, output);
+		}
+	}
+
+	@Test
+	public void testMaxLength() throws IOException {
+		Random r = new Random(2425);
+		byte[] data = text(r, CHUNK_SIZE * 10);
+		byte[] compressed = compress(data);
+		try {
+			decompress(compressed, data.length - 1, -1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(-1, e.estimatedSize);
+		}
+		// Finds out the size from the frames.
+		try {
+			decompress(compressed, CHUNK_SIZE * 2, data.length);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(data.length, e.estimatedSize);
+		}
+		try {
+			decompress(compressed, CHUNK_SIZE * 2, CHUNK_SIZE);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(-1, e.estimatedSize);
+		}
+		// Compressed size limit.
+		try {
+			compressor.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, compressed.length - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		assertAllMemoryReleased();
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		Random r = new Random(2426);
+		byte[] data = text(r, CHUNK_SIZE * 3);
+		byte[] compressed = compress(data);
+		// Uncompressed length of the first chunk.
+		byte[] bad = compressed.clone();
+		bad[3]++;
+		try {
+			decompress(bad, data.length * 2, -1);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Absurd chunk length.
+		bad = compressed.clone();
+		bad[0] = 0x7f;
+		try {
+			decompress(bad, Long.MAX_VALUE, -1);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Truncated.
+		try {
+			decompress(Arrays.copyOf(compressed, compressed.length - 4), data.length, -1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertAllMemoryReleased();
+	}
+
+	private static void assertAllMemoryReleased() {
+		assertEquals(ChunkedCompressor.DECOMPRESS_MEMORY, ChunkedCompressor.decompressMemory.availablePermits());
+	}
+
+	/** Several streams with the largest chunks need more memory than the overall limit, so they
+	 * must share it without deadlocking. */
+	@Test
+	public void testManyStreamsLargeChunks() throws Exception {
+		final ChunkedCompressor large = new ChunkedCompressor(new GzipCompressor(), ChunkedCompressor.MAX_CHUNK_SIZE);
+		final byte[] data = text(new Random(2428), ChunkedCompressor.MAX_CHUNK_SIZE * 2 + 1);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		large.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		final byte[] compressed = os.toByteArray();
+		int streams = Math.max(4, ChunkedCompressor.DECOMPRESS_MEMORY / (ChunkedCompressor.MAX_CHUNK_SIZE * 2) + 2);
+		final Throwable[] errors = new Throwable[streams];
+		Thread[] threads = new Thread[streams];
+		for(int i=0;i<streams;i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+						large.decompress(new ByteArrayInputStream(compressed), out, data.length, -1);
+						assertArrayEquals(data, out.toByteArray());
+					} catch (Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join(120000);
+			assertFalse(t.isAlive());
+		}
+		assertArrayEquals(new Throwable[streams], errors);
+		assertAllMemoryReleased();
+	}
+
+	/** Compare throughput with the other codecs. Run with -Dtest.benchmark=true. */
+	@Test
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(2427);
+		// Compressible, but not trivially.
+		byte[] data = new byte[32 * 1024 * 1024];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + (int) Math.abs(r.nextGaussian() * 6));
+		System.out.println("Threads: " + ChunkedCompressor.THREADS);
+		COMPRESSOR_TYPE[] codecs = new COMPRESSOR_TYPE[] {
+				COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW, COMPRESSOR_TYPE.LZMA_CHUNKED };
+		for(COMPRESSOR_TYPE codec : codecs) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			codec.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+			long compressTime = System.nanoTime() - start;
+			byte[] compressed = os.toByteArray();
+			start = System.nanoTime();
+			os = new ByteArrayOutputStream(data.length);
+			codec.decompress(new ByteArrayInputStream(compressed), os, data.length, -1);
+			long decompressTime = System.nanoTime() - start;
+			assertArrayEquals(data, os.toByteArray());
+			System.out.println(codec + ": " + compressed.length + " bytes, compress " +
+					(data.length * 1000L / compressTime) + " MB/s, decompress " +
+					(data.length * 1000L / decompressTime) + " MB/s");
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.RingBufferPipe;
+
+public class DecompressorThreadManagerTest {
+
+	private static byte[] text(Random r, int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + r.nextInt(4));
+		return data;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+		return os.toByteArray();
+	}
+
+	private static List<COMPRESSOR_TYPE> gzips(int count) {
+		List<COMPRESSOR_TYPE> list = new ArrayList<COMPRESSOR_TYPE>();
+		for(int i=0;i<count;i++)
+			list.add(COMPRESSOR_TYPE.GZIP);
+		return list;
+	}
+
+	/** Feeds the compressed data into the pipe, like ClientGetter does. */
+	private static class Writer extends Thread {
+		private final OutputStream os;
+		private final byte[] data;
+
+		Writer(OutputStream os, byte[] data) {
+			this.os = os;
+			this.data = data;
+		}
+
+		@Override
+		public void run() {
+			try {
+				os.write(data);
+			} catch (IOException e) {
+				// The decompressor failed.
+			} finally {
+				Closer.close(os);
+			}
+		}
+	}
+
+	/** Decompress through the manager.
+	 * @return The decompressed data. Throws whatever the decompressors threw. */
+	private static byte[] decompress(byte[] compressed, int stages, long maxLen) throws Throwable {
+		RingBufferPipe pipe = new RingBufferPipe();
+		DecompressorThreadManager manager = new DecompressorThreadManager(pipe.getInputStream(), gzips(stages), maxLen);
+		InputStream is = manager.execute();
+		Writer writer = new Writer(pipe.getOutputStream(), compressed);
+		writer.start();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[4096];
+			int x;
+			while((x = is.read(buf)) > 0)
+				os.write(buf, 0, x);
+		} catch (IOException e) {
+			// The manager has the original error.
+		} finally {
+			is.close();
+		}
+		manager.waitFinished();
+		writer.join();
+		return os.toByteArray();
+	}
+
+	@Test
+	public void testDecompress() throws Throwable {
+		Random r = new Random(2525);
+		byte[] data = text(r, 1024 * 1024 + 7);
+		assertArrayEquals(data, decompress(gzip(data), 1, data.length));
+		assertArrayEquals(data, decompress(gzip(gzip(data)), 2, data.length));
+		assertArrayEquals(data, decompress(gzip(gzip(gzip(data))), 3, data.length));
+		// Nothing to decompress.
+		RingBufferPipe pipe = new RingBufferPipe();
+		DecompressorThreadManager manager = new DecompressorThreadManager(pipe.getInputStream(), gzips(0), data.length);
+		assertSame(pipe.getInputStream(), manager.execute());
+		manager.waitFinished();
+		pipe.getInputStream().close();
+	}
+
+	@Test
+	public void testTooBig() throws Throwable {
+		Random r = new Random(2526);
+		byte[] data = text(r, 300 * 1024);
+		try {
+			decompress(gzip(gzip(data)), 2, data.length - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws Throwable {
+		Random r = new Random(2527);
+		byte[] data = text(r, 300 * 1024);
+		byte[] compressed = gzip(gzip(data));
+		for(int i=compressed.length/2;i<compressed.length;i++)
+			compressed[i] = (byte) r.nextInt();
+		try {
+			decompress(compressed, 2, data.length);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Not even the header.
+		try {
+			decompress(new byte[] { 1, 2, 3 }, 2, data.length);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** More chains than there are threads for must wait their turn rather than deadlock. */
+	@Test
+	public void testManyConcurrent() throws Throwable {
+		Random r = new Random(2528);
+		final byte[] data = text(r, 200 * 1024);
+		final byte[] compressed = gzip(gzip(data));
+		int count = DecompressorExecutor.MAX_THREADS * 3;
+		final Throwable[] errors = new Throwable[count];
+		Thread[] threads = new Thread[count];
+		long bytesBefore = DecompressorExecutor.getBytesDecompressed();
+		for(int i=0;i<count;i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						assertArrayEquals(data, decompress(compressed, 2, data.length));
+					} catch (Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(int i=0;i<count;i++) {
+			threads[i].join(60 * 1000);
+			assertFalse("Deadlocked", threads[i].isAlive());
+			assertNull(errors[i]);
+		}
+		// The last stage returns just after its reader sees EOF.
+		long deadline = System.currentTimeMillis() + 10 * 1000;
+		while(DecompressorExecutor.getRunningDecompressions() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, DecompressorExecutor.getRunningDecompressions());
+		assertEquals(0, DecompressorExecutor.getQueuedDecompressions());
+		assertTrue(DecompressorExecutor.getBytesDecompressed() - bytesBefore >= (long) count * data.length);
+	}
+
+}
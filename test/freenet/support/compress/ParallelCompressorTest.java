@@ -0,0 +1,159 @@
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.CHKBlock;
+import freenet.support.PooledExecutor;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ParallelCompressorTest {
+
+	private static final COMPRESSOR_TYPE[] CODECS = new COMPRESSOR_TYPE[] {
+		COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW };
+	private static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+	private static final int MIN_SIZE = CHKBlock.MAX_COMPRESSED_DATA_LENGTH;
+
+	private final BucketFactory bf = new ArrayBucketFactory();
+	private final PooledExecutor executor = new PooledExecutor();
+
+	public ParallelCompressorTest() {
+		executor.start();
+	}
+
+	/** What InsertCompressor's sequential loop picks. */
+	private static class Expected {
+		COMPRESSOR_TYPE codec;
+		byte[] data;
+	}
+
+	private static Expected compressSequentially(byte[] data, long amountOfDataToCheckCompressionRatio,
+			int minimumCompressionPercentage) throws IOException {
+		Expected best = new Expected();
+		long bestSize = data.length;
+		long bestBlocks = data.length / BLOCK_SIZE;
+		for(COMPRESSOR_TYPE codec : CODECS) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			try {
+				codec.compress(new ByteArrayInputStream(data), os, data.length, bestSize,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+			} catch (CompressionOutputSizeException e) {
+				continue;
+			} catch (CompressionRatioException e) {
+				continue;
+			} catch (RuntimeException e) {
+				// E.g. bzip2 refuses empty data.
+				continue;
+			}
+			byte[] out = os.toByteArray();
+			if(out.length <= MIN_SIZE) {
+				best.codec = codec;
+				best.data = out;
+				return best;
+			}
+			if(out.length / BLOCK_SIZE < bestBlocks) {
+				best.codec = codec;
+				best.data = out;
+				bestSize = out.length;
+				bestBlocks = out.length / BLOCK_SIZE;
+			}
+		}
+		return best;
+	}
+
+	private void checkSameAsSequential(byte[] data, long amountOfDataToCheckCompressionRatio,
+			int minimumCompressionPercentage) throws IOException {
+		Expected expected = compressSequentially(data, amountOfDataToCheckCompressionRatio,
+				minimumCompressionPercentage);
+		ParallelCompressor compressor = new ParallelCompressor(CODECS, bf, executor, BLOCK_SIZE, MIN_SIZE,
+				amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+		ParallelCompressor.Result result = compressor.compress(new ByteArrayInputStream(data), data.length);
+		if(expected.codec == null) {
+			assertNull(result);
+			return;
+		}
+		assertNotNull(result);
+		assertEquals(expected.codec, result.codec);
+		assertTrue(Arrays.equals(expected.data, BucketTools.toByteArray(result.data)));
+		result.data.free();
+	}
+
+	/** Text which compresses well, but differently with each codec. */
+	private static byte[] text(Random r, int length) {
+		String[] words = new String[] { "freenet", "splitfile", "insert", "block", "key", "the", "of",
+				"compression", "codec", "a", "node", "peer", "request" };
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < length) {
+			sb.append(words[r.nextInt(words.length)]);
+			sb.append(r.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		return sb.substring(0, length).getBytes();
+	}
+
+	private static byte[] random(Random r, int length) {
+		byte[] data = new byte[length];
+		r.nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testCompressible() throws IOException {
+		Random r = new Random(2323);
+		checkSameAsSequential(text(r, 1024 * 1024), Long.MAX_VALUE, 0);
+		checkSameAsSequential(text(r, 300 * 1024), Long.MAX_VALUE, 0);
+	}
+
+	/** Fits in a single block: The first codec to fit wins, even if a later one is smaller. */
+	@Test
+	public void testSingleBlock() throws IOException {
+		Random r = new Random(2324);
+		checkSameAsSequential(text(r, 50 * 1024), Long.MAX_VALUE, 0);
+		checkSameAsSequential(text(r, 100), Long.MAX_VALUE, 0);
+		checkSameAsSequential(new byte[0], Long.MAX_VALUE, 0);
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		Random r = new Random(2325);
+		checkSameAsSequential(random(r, 500 * 1024), Long.MAX_VALUE, 0);
+		// Gives up early, because the compression ratio is too poor.
+		checkSameAsSequential(random(r, 500 * 1024), 64 * 1024, 10);
+		// Only a little compressible.
+		byte[] data = random(r, 500 * 1024);
+		System.arraycopy(text(r, 100 * 1024), 0, data, 0, 100 * 1024);
+		checkSameAsSequential(data, Long.MAX_VALUE, 0);
+	}
+
+	@Test
+	public void testReadFailure() throws IOException {
+		Random r = new Random(2326);
+		final byte[] data = text(r, 1024 * 1024);
+		InputStream is = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] buf, int off, int len) {
+				if(available() < data.length / 2) throw new IllegalStateException("Broken");
+				return super.read(buf, off, len);
+			}
+		};
+		ParallelCompressor compressor = new ParallelCompressor(CODECS, bf, executor, BLOCK_SIZE, MIN_SIZE,
+				Long.MAX_VALUE, 0);
+		try {
+			compressor.compress(is, data.length);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+}
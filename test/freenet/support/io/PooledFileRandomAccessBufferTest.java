@@ -4,13 +4,20 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import freenet.support.TestProperty;
 import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
 import freenet.support.io.PooledFileRandomAccessBuffer.FDTracker;
 
@@ -297,6 +304,124 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    /** Many threads reading different parts of the same file at once must all get the right
+     * data. */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final int blockSize = 32768;
+        final int blocks = 64;
+        final PooledFileRandomAccessBuffer raf = construct(blockSize * blocks);
+        final byte[] data = new byte[blockSize * blocks];
+        new Random(1154).nextBytes(data);
+        raf.pwrite(0, data, 0, data.length);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for(int t = 0; t < 8; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws IOException {
+                        Random random = new Random(seed);
+                        byte[] buf = new byte[blockSize];
+                        for(int i = 0; i < 200; i++) {
+                            int block = random.nextInt(blocks);
+                            raf.pread((long) block * blockSize, buf, 0, blockSize);
+                            if(!Arrays.equals(buf, Arrays.copyOfRange(data, block * blockSize, (block + 1) * blockSize)))
+                                return false;
+                        }
+                        return true;
+                    }
+
+                }));
+            }
+            for(Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+        raf.close();
+        raf.free();
+    }
+
+    /** An interrupt during I/O closes the underlying channel. Later reads and writes must still
+     * work, and the fd must still be accounted for. */
+    @Test
+    public void testInterrupted() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(1);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        byte[] buf = new byte[sz];
+        new Random(1155).nextBytes(buf);
+        a.pwrite(0, buf, 0, sz);
+        byte[] cmp = new byte[sz];
+        Thread.currentThread().interrupt();
+        try {
+            a.pread(0, cmp, 0, sz);
+            fail("Interrupted read should fail");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            Thread.interrupted();
+        }
+        assertFalse(a.isLocked());
+        assertEquals(fds.getOpenFDs(), 1);
+        a.pread(0, cmp, 0, sz);
+        assertTrue(Arrays.equals(cmp, buf));
+        a.pwrite(0, buf, 0, sz);
+        a.close();
+        assertEquals(fds.getOpenFDs(), 0);
+        a.free();
+    }
+
+    /** Segment-sized reads from a large download-sized file, from one and from several threads.
+     * Run with -Dtest.benchmark=true. */
+    @Test
+    public void testBenchmarkParallelReads() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final int blockSize = 32768;
+        final int blocksPerSegment = 128; // Data and check blocks of one splitfile segment.
+        final int segments = 64; // 256MiB.
+        final PooledFileRandomAccessBuffer raf = construct((long) blockSize * blocksPerSegment * segments);
+        byte[] buf = new byte[blockSize];
+        Random random = new Random(1156);
+        for(long offset = 0; offset < raf.size(); offset += blockSize) {
+            random.nextBytes(buf);
+            raf.pwrite(offset, buf, 0, blockSize);
+        }
+        for(int threads = 1; threads <= 16; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                long start = System.nanoTime();
+                List<Future<?>> results = new ArrayList<Future<?>>();
+                for(int segment = 0; segment < segments; segment++) {
+                    final long segmentOffset = (long) segment * blockSize * blocksPerSegment;
+                    results.add(executor.submit(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws IOException {
+                            byte[] block = new byte[blockSize];
+                            for(int i = 0; i < blocksPerSegment; i++)
+                                raf.pread(segmentOffset + (long) i * blockSize, block, 0, blockSize);
+                            return null;
+                        }
+
+                    }));
+                }
+                for(Future<?> result : results)
+                    result.get();
+                long time = System.nanoTime() - start;
+                System.out.println("Read " + segments + " segments with " + threads + " threads: " +
+                        (raf.size() * 1000 / time) + "MB/sec");
+            } finally {
+                executor.shutdown();
+            }
+        }
+        raf.close();
+        raf.free();
+    }
+
     // FIXME more tests???
     
 }
@@ -0,0 +1,127 @@
+package freenet.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RingBufferPipeTest {
+
+	/** Writes data to the pipe in random sized pieces, then closes or aborts it. */
+	private static class Writer extends Thread {
+		private final RingBufferPipe pipe;
+		private final byte[] data;
+		private final Throwable abort;
+		IOException error;
+
+		Writer(RingBufferPipe pipe, byte[] data, Throwable abort) {
+			this.pipe = pipe;
+			this.data = data;
+			this.abort = abort;
+		}
+
+		@Override
+		public void run() {
+			Random r = new Random(1234);
+			OutputStream os = pipe.getOutputStream();
+			try {
+				int written = 0;
+				while(written < data.length) {
+					if(r.nextInt(10) == 0) {
+						os.write(data[written++]);
+						continue;
+					}
+					int length = Math.min(data.length - written, r.nextInt(RingBufferPipe.BUFFER_SIZE * 2));
+					os.write(data, written, length);
+					written += length;
+				}
+				if(abort != null)
+					pipe.abort(abort);
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				Closer.close(os);
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		Random r = new Random(1235);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[RingBufferPipe.BUFFER_SIZE * 2];
+		while(true) {
+			if(r.nextInt(10) == 0) {
+				int x = is.read();
+				if(x == -1) break;
+				baos.write(x);
+				continue;
+			}
+			int x = is.read(buf, 0, 1 + r.nextInt(buf.length - 1));
+			if(x == -1) break;
+			baos.write(buf, 0, x);
+		}
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		Random r = new Random(1236);
+		for(int length : new int[] { 0, 1, RingBufferPipe.BUFFER_SIZE, 1024 * 1024 + 17 }) {
+			byte[] data = new byte[length];
+			r.nextBytes(data);
+			RingBufferPipe pipe = new RingBufferPipe();
+			Writer writer = new Writer(pipe, data, null);
+			writer.start();
+			InputStream is = pipe.getInputStream();
+			assertArrayEquals(data, readAll(is));
+			assertEquals(-1, is.read());
+			is.close();
+			writer.join();
+			assertNull(writer.error);
+		}
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		Random r = new Random(1237);
+		byte[] data = new byte[300 * 1024];
+		r.nextBytes(data);
+		RingBufferPipe pipe = new RingBufferPipe();
+		Writer writer = new Writer(pipe, data, new IOException("Broken"));
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		byte[] buf = new byte[data.length];
+		new DataInputStream(is).readFully(buf);
+		assertArrayEquals(data, buf);
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			assertEquals("Broken", e.getCause().getMessage());
+		}
+		is.close();
+		writer.join();
+		assertNull(writer.error);
+	}
+
+	@Test
+	public void testReaderClosed() throws Exception {
+		byte[] data = new byte[RingBufferPipe.BUFFER_SIZE * 4];
+		RingBufferPipe pipe = new RingBufferPipe();
+		Writer writer = new Writer(pipe, data, null);
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		assertTrue(is.read(new byte[1024]) > 0);
+		// The writer is blocked because the buffer is full, and must be woken up.
+		is.close();
+		writer.join();
+		assertNotNull(writer.error);
+	}
+
+}
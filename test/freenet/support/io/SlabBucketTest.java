@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+public class SlabBucketTest extends BucketTestBase {
+	private SlabPool pool = new SlabPool(1024 * 1024);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new SlabBucket(pool, size);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	private byte[] write(Bucket bucket, int length) throws IOException {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		OutputStream os = bucket.getOutputStream();
+		// Odd sized writes, across chunk boundaries.
+		for(int i=0;i<length;i+=1000)
+			os.write(data, i, Math.min(1000, length - i));
+		os.close();
+		return data;
+	}
+
+	private static byte[] read(Bucket bucket) throws IOException {
+		byte[] buf = new byte[(int) bucket.size()];
+		DataInputStream dis = new DataInputStream(bucket.getInputStream());
+		dis.readFully(buf);
+		assertEquals(-1, dis.read());
+		dis.close();
+		return buf;
+	}
+
+	@Test
+	public void testManyChunks() throws IOException {
+		Bucket bucket = makeBucket(100);
+		byte[] data = write(bucket, 200 * 1000);
+		assertEquals(data.length, bucket.size());
+		assertTrue(Arrays.equals(data, read(bucket)));
+		assertTrue(pool.getUsedBytes() >= data.length);
+		bucket.free();
+		assertEquals(0, pool.getUsedBytes());
+	}
+
+	@Test
+	public void testReuse() throws IOException {
+		Bucket bucket = makeBucket(4096);
+		write(bucket, 4096);
+		bucket.free();
+		long allocated = pool.getAllocatedChunks();
+		assertEquals(4096, pool.getPooledBytes());
+		bucket = makeBucket(4096);
+		byte[] data = write(bucket, 4096);
+		assertEquals(allocated, pool.getAllocatedChunks());
+		assertEquals(1, pool.getReusedChunks());
+		assertEquals(0, pool.getPooledBytes());
+		assertTrue(Arrays.equals(data, read(bucket)));
+		bucket.free();
+	}
+
+	@Test
+	public void testPoolLimit() throws IOException {
+		pool.setMaxPooledBytes(4096);
+		Bucket a = makeBucket(4096);
+		Bucket b = makeBucket(4096);
+		write(a, 4096);
+		write(b, 4096);
+		a.free();
+		b.free();
+		assertEquals(4096, pool.getPooledBytes());
+		assertEquals(0, pool.getUsedBytes());
+		pool.setMaxPooledBytes(0);
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	/** Chunks must not be reused while an InputStream may still read them. */
+	@Test
+	public void testReadAfterFree() throws IOException {
+		Bucket bucket = makeBucket(4096);
+		byte[] data = write(bucket, 10000);
+		InputStream is = bucket.getInputStream();
+		bucket.free();
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(0, pool.getUsedBytes());
+		write(makeBucket(4096), 10000);
+		byte[] buf = new byte[data.length];
+		new DataInputStream(is).readFully(buf);
+		is.close();
+		assertTrue(Arrays.equals(data, buf));
+	}
+
+	@Test
+	public void testReadWhileWriting() throws IOException {
+		Bucket bucket = makeBucket(512);
+		OutputStream os = bucket.getOutputStream();
+		InputStream is = bucket.getInputStream();
+		assertEquals(-1, is.read());
+		os.write(1);
+		assertEquals(1, is.read());
+		byte[] data = new byte[5000];
+		new Random(1).nextBytes(data);
+		os.write(data);
+		byte[] buf = new byte[data.length];
+		new DataInputStream(is).readFully(buf);
+		assertTrue(Arrays.equals(data, buf));
+		os.close();
+		is.close();
+		bucket.free();
+	}
+
+	@Test
+	public void testToRandomAccessBuffer() throws IOException {
+		SlabBucket bucket = new SlabBucket(pool, 512);
+		byte[] data = write(bucket, 50000);
+		LockableRandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+		assertEquals(0, pool.getUsedBytes());
+		assertEquals(data.length, raf.size());
+		byte[] buf = new byte[data.length];
+		raf.pread(0, buf, 0, buf.length);
+		assertTrue(Arrays.equals(data, buf));
+		assertTrue(Arrays.equals(data, read(bucket)));
+		raf.free();
+		bucket.free();
+	}
+
+}